@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.media.jai.OpImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.esa.beam.watermask.operator.BenchmarkSupport.*;
+
+/**
+ * Measures {@link SRTMOpImage#computeTile(int, int)} and {@link PNGSourceImage#computeTile(int, int)}, for all
+ * tiles of the SRTM and the GlobCover region respectively; the time is given per region. Computing a tile always
+ * reads it from the auxdata files; in the cold variant, the images are also created anew, which opens the zip files
+ * or tile containers again. The GlobCover tiles are the same for both resolutions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class AuxdataImageBenchmark {
+
+    @Param({"50", "150"})
+    private int resolution;
+
+    @Param({WARM, COLD})
+    private String cache;
+
+    private AuxdataImages auxdataImages;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        if (WARM.equals(cache)) {
+            auxdataImages = AuxdataImages.acquire(resolution);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        if (COLD.equals(cache)) {
+            flushTileCaches();
+            auxdataImages = AuxdataImages.acquire(resolution);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        if (COLD.equals(cache)) {
+            auxdataImages.release();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (WARM.equals(cache)) {
+            auxdataImages.release();
+        }
+    }
+
+    @Benchmark
+    public void srtmComputeTile(Blackhole blackhole) {
+        final OpImage image = getImage(SRTM_NORTH);
+        // SRTM tiles span 1 degree and are named by their lower left corner
+        final int minTileX = (int) (SRTM_WEST + 180.0F);
+        final int maxTileX = (int) (SRTM_EAST + 180.0F) - 1;
+        final int minTileY = (int) (90.0F - SRTM_NORTH);
+        final int maxTileY = (int) (90.0F - SRTM_SOUTH) - 1;
+        computeTiles(image, minTileX, maxTileX, minTileY, maxTileY, blackhole);
+    }
+
+    @Benchmark
+    public void pngComputeTile(Blackhole blackhole) {
+        final OpImage image = getImage(GC_NORTH);
+        final int minTileX = image.XToTileX(toGlobCoverX(GC_WEST));
+        final int maxTileX = image.XToTileX(toGlobCoverX(GC_EAST) - 1);
+        final int minTileY = image.YToTileY(toGlobCoverY(GC_NORTH));
+        final int maxTileY = image.YToTileY(toGlobCoverY(GC_SOUTH) - 1);
+        computeTiles(image, minTileX, maxTileX, minTileY, maxTileY, blackhole);
+    }
+
+    private OpImage getImage(float lat) {
+        return auxdataImages.getImageSource().getImage(90.0F - lat);
+    }
+
+    private static void computeTiles(OpImage image, int minTileX, int maxTileX, int minTileY, int maxTileY,
+                                     Blackhole blackhole) {
+        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                blackhole.consume(image.computeTile(tileX, tileY));
+            }
+        }
+    }
+
+    private static int toGlobCoverX(float lon) {
+        return (int) ((lon + 180.0F) / 360.0F * WatermaskClassifier.GC_IMAGE_WIDTH);
+    }
+
+    private static int toGlobCoverY(float lat) {
+        return (int) ((90.0F - lat) / 30.0F * WatermaskClassifier.GC_IMAGE_HEIGHT);
+    }
+}
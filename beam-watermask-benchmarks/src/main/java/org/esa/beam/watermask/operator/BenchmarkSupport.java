@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import javax.media.jai.JAI;
+import java.util.Random;
+
+/**
+ * Regions and cache handling shared by the benchmarks.
+ * <p/>
+ * The benchmarks run on the coasts of Denmark, covered by the SRTM tiles, and of northern Norway, covered by the
+ * GlobCover tiles, where many auxdata tiles hold both land and water. Each benchmark has a {@code warm} and a
+ * {@code cold} variant. Warm benchmarks keep their classifier or images for the whole trial, so that the auxdata
+ * tiles are cached after the warm-up. Cold benchmarks flush the caches and open the auxdata anew before each
+ * invocation, so that every tile is read from the auxdata files again; the file cache of the operating system is
+ * not dropped.
+ */
+final class BenchmarkSupport {
+
+    static final String WARM = "warm";
+    static final String COLD = "cold";
+
+    static final float SRTM_NORTH = 58.0F;
+    static final float SRTM_SOUTH = 54.0F;
+    static final float SRTM_WEST = 8.0F;
+    static final float SRTM_EAST = 13.0F;
+
+    static final float GC_NORTH = 71.0F;
+    static final float GC_SOUTH = 68.0F;
+    static final float GC_WEST = 14.0F;
+    static final float GC_EAST = 26.0F;
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Flushes the auxdata tile cache and the JAI tile cache, which holds computed tiles of the operator.
+     */
+    static void flushTileCaches() {
+        AuxdataTileCache.getInstance().flush();
+        JAI.getDefaultInstance().getTileCache().flush();
+    }
+
+    /**
+     * Creates random geo-positions within the given region, first all latitudes, then all longitudes.
+     */
+    static float[][] createRandomPositions(int count, float north, float south, float west, float east, long seed) {
+        final Random random = new Random(seed);
+        final float[][] positions = new float[2][count];
+        for (int i = 0; i < count; i++) {
+            positions[0][i] = south + random.nextFloat() * (north - south);
+            positions[1][i] = west + random.nextFloat() * (east - west);
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.media.jai.OpImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.esa.beam.watermask.operator.BenchmarkSupport.*;
+
+/**
+ * Compares {@link PNGSourceImage#computeTile(int, int)} on PNG tiles, which are decoded and inverted, with the same
+ * tiles 1-bit packed, which are read with a single bulk read; the time is given per region. The tiles of the
+ * GlobCover region are copied from the installed GC_water_mask.zip into a temporary zip file of each format, without
+ * a constant tiles index or tile container, so that every tile is read from the zip file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class GlobCoverTileBenchmark {
+
+    private static final String PNG = "png";
+    private static final String RAW = "raw";
+
+    @Param({PNG, RAW})
+    private String format;
+
+    private File tempDir;
+    private PNGSourceImage image;
+    private int minTileX;
+    private int maxTileX;
+    private int minTileY;
+    private int maxTileY;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        tempDir = File.createTempFile("globcover-benchmark", "");
+        if (!tempDir.delete() || !tempDir.mkdir()) {
+            throw new IOException("Failed to create " + tempDir);
+        }
+        final File pngFile = new File(tempDir, "png.zip");
+        final AuxdataImages auxdataImages = AuxdataImages.acquire(50);
+        try {
+            final OpImage northImage = auxdataImages.getImageSource().getImage(90.0F - GC_NORTH);
+            minTileX = northImage.XToTileX(toGlobCoverX(GC_WEST));
+            maxTileX = northImage.XToTileX(toGlobCoverX(GC_EAST) - 1);
+            minTileY = northImage.YToTileY(toGlobCoverY(GC_NORTH));
+            maxTileY = northImage.YToTileY(toGlobCoverY(GC_SOUTH) - 1);
+            copyPngTiles(new File(auxdataImages.getAuxdataDir(), "GC_water_mask.zip"), pngFile);
+        } finally {
+            auxdataImages.release();
+        }
+        image = createImage(pngFile);
+        if (RAW.equals(format)) {
+            final File rawFile = new File(tempDir, "raw.zip");
+            writePackedTiles(image, rawFile);
+            image.dispose();
+            image = createImage(rawFile);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        image.dispose();
+        final File[] files = tempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        tempDir.delete();
+    }
+
+    @Benchmark
+    public void computeTile(Blackhole blackhole) {
+        for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                blackhole.consume(image.computeTile(tileX, tileY));
+            }
+        }
+    }
+
+    private void copyPngTiles(File sourceFile, File targetFile) throws IOException {
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        try {
+            final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(targetFile));
+            try {
+                for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                    for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                        final String name = WatermaskUtils.createGlobCoverFileName(tileX, tileY, false);
+                        final ZipEntry entry = zipFile.getEntry(name);
+                        if (entry != null) {
+                            outputStream.putNextEntry(new ZipEntry(name));
+                            copy(zipFile.getInputStream(entry), outputStream);
+                            outputStream.closeEntry();
+                        }
+                    }
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private void writePackedTiles(PNGSourceImage pngImage, File targetFile) throws IOException {
+        final int tileWidth = pngImage.getTileWidth();
+        final int tileHeight = pngImage.getTileHeight();
+        final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(targetFile));
+        try {
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                    // tiles missing from the zip file are invalid and stay missing
+                    if (pngImage.getTileDataLength(tileX, tileY) == 0) {
+                        continue;
+                    }
+                    final Raster tile = pngImage.computeTile(tileX, tileY);
+                    final byte[] samples = ((DataBufferByte) tile.getDataBuffer()).getData();
+                    final String name = WatermaskUtils.createGlobCoverFileName(tileX, tileY, true);
+                    outputStream.putNextEntry(new ZipEntry(name));
+                    outputStream.write(WatermaskUtils.packBits(samples, tileWidth, tileHeight));
+                    outputStream.closeEntry();
+                }
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static PNGSourceImage createImage(File zipFile) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("width", String.valueOf(WatermaskClassifier.GC_IMAGE_WIDTH));
+        properties.setProperty("height", String.valueOf(WatermaskClassifier.GC_IMAGE_HEIGHT));
+        properties.setProperty("tileWidth", String.valueOf(WatermaskClassifier.GC_TILE_WIDTH));
+        properties.setProperty("tileHeight", String.valueOf(WatermaskClassifier.GC_TILE_HEIGHT));
+        final InputStream inputStream = AuxdataImages.class.getResourceAsStream("image.properties");
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        return PNGSourceImage.create(properties, zipFile);
+    }
+
+    private static void copy(InputStream inputStream, ZipOutputStream outputStream) throws IOException {
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static int toGlobCoverX(float lon) {
+        return (int) ((lon + 180.0F) / 360.0F * WatermaskClassifier.GC_IMAGE_WIDTH);
+    }
+
+    private static int toGlobCoverY(float lat) {
+        return (int) ((90.0F - lat) / 30.0F * WatermaskClassifier.GC_IMAGE_HEIGHT);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the 50 m SRTM tiles held on the heap in the {@link AuxdataTileCache}, as without an off-heap store, with
+ * the tiles held in an {@link OffHeapTileStore}. Both are given the default capacity of the auxdata tile cache and
+ * walk through more tiles than fit, reading samples of each tile through a {@link TileAccessor}. The time is given
+ * per walk; the garbage collections are reported by the JMH profiler {@code gc} (see readme.txt).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(2)
+public class OffHeapTileStoreBenchmark {
+
+    private static final int RESOLUTION = 50;
+    private static final int NUM_TILES = 400;
+    private static final int NUM_VISITS = 3000;
+    private static final int SAMPLES_PER_VISIT = 20000;
+    private static final long CAPACITY = AuxdataTileCache.DEFAULT_SIZE_MB * 1024L * 1024L;
+
+    private static final int SIDE_LENGTH = WatermaskUtils.computeSideLength(RESOLUTION);
+    private static final MultiPixelPackedSampleModel SAMPLE_MODEL =
+            new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, SIDE_LENGTH, SIDE_LENGTH, 1);
+
+    @Param({"heap", "offheap"})
+    private String storage;
+
+    private Tiles tiles;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        final byte[] template = new byte[TileAccessor.getDataLength(SAMPLE_MODEL)];
+        new Random(42).nextBytes(template);
+        tiles = "heap".equals(storage) ? new HeapTiles(template) : new OffHeapTiles(template);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        tiles.dispose();
+    }
+
+    @Benchmark
+    public long walk() throws IOException {
+        final Random random = new Random(5);
+        long checksum = 0;
+        int tileIndex = 0;
+        for (int visit = 0; visit < NUM_VISITS; visit++) {
+            // mostly neighbouring tiles, sometimes a jump, as for swaths crossing the tile grid
+            tileIndex = random.nextInt(8) == 0 ? random.nextInt(NUM_TILES) : (tileIndex + 1) % NUM_TILES;
+            final int tileX = tileIndex % 360;
+            final int tileY = tileIndex / 360;
+            final TileAccessor accessor = tiles.acquire(tileX, tileY);
+            final int minX = tileX * SIDE_LENGTH;
+            final int minY = tileY * SIDE_LENGTH;
+            for (int i = 0; i < SAMPLES_PER_VISIT; i++) {
+                checksum += accessor.getSample(minX + random.nextInt(SIDE_LENGTH), minY + random.nextInt(SIDE_LENGTH));
+            }
+            checksum += accessor.countBits(minX, minY + random.nextInt(SIDE_LENGTH), SIDE_LENGTH);
+            tiles.release(tileX, tileY);
+        }
+        return checksum;
+    }
+
+    private abstract static class Tiles {
+
+        abstract TileAccessor acquire(int tileX, int tileY) throws IOException;
+
+        void release(int tileX, int tileY) {
+        }
+
+        abstract void dispose();
+    }
+
+    /**
+     * Like {@link SRTMOpImage#getTile(int, int)}: a cache miss allocates a raster which the tile data is read into.
+     */
+    private static final class HeapTiles extends Tiles {
+
+        private final byte[] template;
+        private final AuxdataTileCache cache = new AuxdataTileCache(CAPACITY, EvictionPolicy.LRU);
+        private final RenderedImage owner = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+
+        private HeapTiles(byte[] template) {
+            this.template = template;
+        }
+
+        @Override
+        TileAccessor acquire(int tileX, int tileY) {
+            Raster raster = cache.getTile(owner, tileX, tileY);
+            if (raster == null) {
+                final WritableRaster writableRaster = Raster.createWritableRaster(
+                        SAMPLE_MODEL, new Point(tileX * SIDE_LENGTH, tileY * SIDE_LENGTH));
+                final byte[] data = ((DataBufferByte) writableRaster.getDataBuffer()).getData();
+                System.arraycopy(template, 0, data, 0, data.length);
+                cache.add(owner, tileX, tileY, writableRaster);
+                raster = writableRaster;
+            }
+            return TileAccessor.create(raster);
+        }
+
+        @Override
+        void dispose() {
+            cache.flush();
+        }
+    }
+
+    private static final class OffHeapTiles extends Tiles {
+
+        private final OffHeapTileStore store;
+
+        private OffHeapTiles(final byte[] template) {
+            store = new OffHeapTileStore(template.length, CAPACITY, new OffHeapTileStore.TileLoader() {
+                @Override
+                public void loadTile(int tileX, int tileY, ByteBuffer target) {
+                    target.put(template);
+                }
+            });
+        }
+
+        @Override
+        TileAccessor acquire(int tileX, int tileY) throws IOException {
+            final ByteBuffer buffer = store.acquire(tileX, tileY);
+            return TileAccessor.create(buffer, SAMPLE_MODEL, tileX * SIDE_LENGTH, tileY * SIDE_LENGTH);
+        }
+
+        @Override
+        void release(int tileX, int tileY) {
+            store.release(tileX, tileY);
+        }
+
+        @Override
+        void dispose() {
+            store.dispose();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.esa.beam.framework.dataop.maptransf.Datum;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * A synthetic geo-coding of a swath heading south-south-west, like the descending pass of a polar orbiter, whose
+ * pixels grow towards the edges of the swath. It is not affine, so the operator evaluates it like the geo-coding of
+ * a real swath product.
+ */
+final class SwathGeoCoding implements GeoCoding {
+
+    private static final float TILT = 0.2F;
+    private static final float EDGE_GROWTH = 0.25F;
+
+    private final float lat0;
+    private final float lon0;
+    private final float pixelSize;
+    private final int width;
+
+    /**
+     * @param lat0      The latitude of the upper left pixel.
+     * @param lon0      The longitude of the upper left pixel.
+     * @param pixelSize The size of a pixel at the centre of the swath, in degrees of latitude.
+     * @param width     The width of the swath, in pixels.
+     */
+    SwathGeoCoding(float lat0, float lon0, float pixelSize, int width) {
+        this.lat0 = lat0;
+        this.lon0 = lon0;
+        this.pixelSize = pixelSize;
+        this.width = width;
+    }
+
+    @Override
+    public GeoPos getGeoPos(PixelPos pixelPos, GeoPos geoPos) {
+        final float dx = pixelPos.x - 0.5F * width;
+        final float x = pixelPos.x + EDGE_GROWTH * dx * Math.abs(dx) / width;
+        final float lat = lat0 - pixelSize * (pixelPos.y + TILT * x);
+        final float lon = lon0 + pixelSize * (x - TILT * pixelPos.y) / (float) Math.cos(Math.toRadians(lat));
+        geoPos.setLocation(lat, lon);
+        return geoPos;
+    }
+
+    @Override
+    public boolean isCrossingMeridianAt180() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetPixelPos() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetGeoPos() {
+        return true;
+    }
+
+    @Override
+    public PixelPos getPixelPos(GeoPos geoPos, PixelPos pixelPos) {
+        return null;
+    }
+
+    @Override
+    public Datum getDatum() {
+        return null;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public CoordinateReferenceSystem getImageCRS() {
+        return null;
+    }
+
+    @Override
+    public CoordinateReferenceSystem getMapCRS() {
+        return null;
+    }
+
+    @Override
+    public CoordinateReferenceSystem getGeoCRS() {
+        return null;
+    }
+
+    @Override
+    public MathTransform getImageToMapTransform() {
+        return null;
+    }
+}
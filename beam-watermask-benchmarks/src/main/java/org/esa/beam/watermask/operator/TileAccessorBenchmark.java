@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Raster#getSample(int, int, int)} with {@link TileAccessor#getSample(int, int)} on 1-bit packed
+ * tiles of the 50 m and 150 m auxdata, for random positions and for row scans. The time is given per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class TileAccessorBenchmark {
+
+    private static final int NUM_SAMPLES = 1 << 20;
+    private static final String RANDOM = "random";
+    private static final String ROW_SCAN = "rowScan";
+
+    @Param({"50", "150"})
+    private int resolution;
+
+    @Param({RANDOM, ROW_SCAN})
+    private String access;
+
+    private WritableRaster raster;
+    private TileAccessor accessor;
+    private int[] xs;
+    private int[] ys;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        polluteProfiles();
+        final int sideLength = WatermaskUtils.computeSideLength(resolution);
+        raster = createPackedTile(sideLength);
+        accessor = TileAccessor.create(raster);
+        xs = new int[NUM_SAMPLES];
+        ys = new int[NUM_SAMPLES];
+        final Random random = new Random(17);
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            if (RANDOM.equals(access)) {
+                xs[i] = raster.getMinX() + random.nextInt(sideLength);
+                ys[i] = raster.getMinY() + random.nextInt(sideLength);
+            } else {
+                xs[i] = raster.getMinX() + i % sideLength;
+                ys[i] = raster.getMinY() + (i / sideLength) % sideLength;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public int rasterGetSample() {
+        return sumSamples(raster, xs, ys);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public int tileAccessorGetSample() {
+        return sumSamples(accessor, xs, ys);
+    }
+
+    private static int sumSamples(Raster raster, int[] xs, int[] ys) {
+        int sum = 0;
+        for (int i = 0; i < xs.length; i++) {
+            sum += raster.getSample(xs[i], ys[i], 0);
+        }
+        return sum;
+    }
+
+    private static int sumSamples(TileAccessor accessor, int[] xs, int[] ys) {
+        int sum = 0;
+        for (int i = 0; i < xs.length; i++) {
+            sum += accessor.getSample(xs[i], ys[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * The classifier reads 1-bit packed SRTM tiles as well as byte-per-pixel constant and GlobCover tiles through
+     * the same call sites, so both are run through them before measuring.
+     */
+    private static void polluteProfiles() {
+        final WritableRaster byteRaster = Raster.createBandedRaster(DataBuffer.TYPE_BYTE, 576, 491, 1,
+                                                                    new Point(0, 0));
+        final int[] xs = new int[NUM_SAMPLES];
+        final int[] ys = new int[NUM_SAMPLES];
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            xs[i] = i % 576;
+            ys[i] = (i / 576) % 491;
+        }
+        final TileAccessor byteAccessor = TileAccessor.create(byteRaster);
+        for (int run = 0; run < 10; run++) {
+            sumSamples(byteRaster, xs, ys);
+            sumSamples(byteAccessor, xs, ys);
+        }
+    }
+
+    private static WritableRaster createPackedTile(int sideLength) {
+        final MultiPixelPackedSampleModel sampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE,
+                                                                                        sideLength, sideLength, 1);
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(sideLength * 7,
+                                                                                         sideLength * 3));
+        new Random(42).nextBytes(((DataBufferByte) raster.getDataBuffer()).getData());
+        return raster;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.esa.beam.watermask.operator.BenchmarkSupport.*;
+
+/**
+ * Measures {@link TileCodec#decode(ByteBuffer, ByteBuffer)} for all SRTM tiles of the SRTM region, encoded by each
+ * codec; the time is given per region. The tiles are read from the installed zip file and encoded in memory, and the
+ * encoded size of the region is printed, so that size and decoding speed can be compared. The time of the operator
+ * on a cache miss is measured by {@link WatermaskOpBenchmark} with a tile container written by
+ * {@code TileContainerWriter} for the codec (see readme.txt).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class TileCodecBenchmark {
+
+    @Param({"50", "150"})
+    private int resolution;
+
+    @Param({TileCodec.RAW, TileCodec.DEFLATE, TileCodec.LZ4, TileCodec.RLE})
+    private String codecName;
+
+    private TileCodec codec;
+    private List<byte[]> encodedTiles;
+    private ByteBuffer target;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        codec = TileCodec.forName(codecName);
+        encodedTiles = new ArrayList<byte[]>();
+        final AuxdataImages auxdataImages = AuxdataImages.acquire(resolution);
+        long rawSize = 0;
+        long encodedSize = 0;
+        int tileLength = 0;
+        try {
+            final ZipFile zipFile = new ZipFile(new File(auxdataImages.getAuxdataDir(), resolution + "m.zip"));
+            try {
+                // SRTM tiles span 1 degree and are named by their lower left corner
+                for (int lat = (int) SRTM_SOUTH; lat < (int) SRTM_NORTH; lat++) {
+                    for (int lon = (int) SRTM_WEST; lon < (int) SRTM_EAST; lon++) {
+                        final ZipEntry entry = zipFile.getEntry(WatermaskUtils.createImgFileName(lat, lon));
+                        if (entry == null) {
+                            continue;
+                        }
+                        final byte[] data = readEntry(zipFile, entry);
+                        final byte[] encoded = codec.encode(data);
+                        encodedTiles.add(encoded);
+                        tileLength = data.length;
+                        rawSize += data.length;
+                        encodedSize += encoded.length;
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            auxdataImages.release();
+        }
+        target = ByteBuffer.allocate(tileLength);
+        System.out.printf("%n%d tiles of %d m, %s: %d bytes encoded to %d bytes (%.1f %%)%n", encodedTiles.size(),
+                          resolution, codecName, rawSize, encodedSize, 100.0 * encodedSize / rawSize);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws IOException {
+        for (byte[] encoded : encodedTiles) {
+            target.clear();
+            codec.decode(ByteBuffer.wrap(encoded), target);
+            blackhole.consume(target.get(0));
+        }
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        final byte[] data = new byte[(int) entry.getSize()];
+        final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(entry));
+        try {
+            inputStream.readFully(data);
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.esa.beam.watermask.operator.BenchmarkSupport.*;
+
+/**
+ * Measures {@link WatermaskClassifier#getWaterMaskFraction(GeoCoding, int, int)} for random pixels of a swath of
+ * 300 m pixels over the SRTM region, at several super-sampling factors, with and without adaptive super-sampling.
+ * The time is given per pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class WaterMaskFractionBenchmark {
+
+    private static final int NUM_PIXELS = 1024;
+    private static final int SWATH_WIDTH = 1000;
+    private static final int SWATH_HEIGHT = 1400;
+    private static final float PIXEL_SIZE = 0.0027F;
+
+    @Param({"50"})
+    private int resolution;
+
+    @Param({"1", "3", "10"})
+    private int subSampling;
+
+    @Param({"false", "true"})
+    private boolean adaptive;
+
+    @Param({WARM, COLD})
+    private String cache;
+
+    private GeoCoding geoCoding;
+    private int[] pixelXs;
+    private int[] pixelYs;
+    private WatermaskClassifier classifier;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        geoCoding = new SwathGeoCoding(SRTM_NORTH, SRTM_WEST + 1.0F, PIXEL_SIZE, SWATH_WIDTH);
+        final Random random = new Random(42);
+        pixelXs = new int[NUM_PIXELS];
+        pixelYs = new int[NUM_PIXELS];
+        for (int i = 0; i < NUM_PIXELS; i++) {
+            pixelXs[i] = random.nextInt(SWATH_WIDTH);
+            pixelYs[i] = random.nextInt(SWATH_HEIGHT);
+        }
+        if (WARM.equals(cache)) {
+            classifier = new WatermaskClassifier(resolution, subSampling, subSampling, false, adaptive);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        if (COLD.equals(cache)) {
+            flushTileCaches();
+            classifier = new WatermaskClassifier(resolution, subSampling, subSampling, false, adaptive);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        if (COLD.equals(cache)) {
+            classifier.dispose();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (WARM.equals(cache)) {
+            classifier.dispose();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_PIXELS)
+    public void getWaterMaskFraction(Blackhole blackhole) {
+        for (int i = 0; i < NUM_PIXELS; i++) {
+            blackhole.consume(classifier.getWaterMaskFraction(geoCoding, pixelXs[i], pixelYs[i]));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.esa.beam.watermask.operator.BenchmarkSupport.*;
+
+/**
+ * Measures {@link WatermaskClassifier#getWaterMaskSample(float, float)} for random positions within a region
+ * covered by the SRTM or by the GlobCover tiles. The time is given per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class WaterMaskSampleBenchmark {
+
+    private static final int NUM_SAMPLES = 16384;
+
+    @Param({"50", "150"})
+    private int resolution;
+
+    @Param({"srtm", "globcover"})
+    private String region;
+
+    @Param({WARM, COLD})
+    private String cache;
+
+    private float[][] positions;
+    private WatermaskClassifier classifier;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws IOException {
+        if ("srtm".equals(region)) {
+            positions = createRandomPositions(NUM_SAMPLES, SRTM_NORTH, SRTM_SOUTH, SRTM_WEST, SRTM_EAST, 42);
+        } else {
+            positions = createRandomPositions(NUM_SAMPLES, GC_NORTH, GC_SOUTH, GC_WEST, GC_EAST, 42);
+        }
+        if (WARM.equals(cache)) {
+            classifier = new WatermaskClassifier(resolution);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException {
+        if (COLD.equals(cache)) {
+            flushTileCaches();
+            classifier = new WatermaskClassifier(resolution);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        if (COLD.equals(cache)) {
+            classifier.dispose();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (WARM.equals(cache)) {
+            classifier.dispose();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_SAMPLES)
+    public void getWaterMaskSample(Blackhole blackhole) {
+        final float[] lats = positions[0];
+        final float[] lons = positions[1];
+        for (int i = 0; i < NUM_SAMPLES; i++) {
+            blackhole.consume(classifier.getWaterMaskSample(lats[i], lons[i]));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
+import org.esa.beam.framework.datamodel.Product;
+import org.esa.beam.framework.gpf.GPF;
+import org.esa.beam.framework.gpf.OperatorSpi;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.media.jai.JAI;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.Raster;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.esa.beam.watermask.operator.BenchmarkSupport.*;
+
+/**
+ * Measures {@link WatermaskOp#computeTile}, for a region of 1024 x 1024 pixels of a synthetic product over the SRTM
+ * region; the time is given per region. The product is either a swath with a non-affine geo-coding, or a product in
+ * plate carr&eacute;e, which the operator maps onto the auxdata affinely. The computed target tiles are flushed
+ * from the JAI tile cache before each invocation in both variants; the cold variant also creates the target product
+ * anew, which creates a new classifier. The auxdata tiles are not prefetched.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(2)
+public class WatermaskOpBenchmark {
+
+    private static final int PRODUCT_WIDTH = 2048;
+    private static final int PRODUCT_HEIGHT = 2048;
+    private static final float PIXEL_SIZE = 0.0027F;
+    private static final Rectangle REGION = new Rectangle(512, 512, 1024, 1024);
+
+    @Param({"swath", "plateCarree"})
+    private String geoCoding;
+
+    @Param({"1", "3"})
+    private int subSampling;
+
+    @Param({WARM, COLD})
+    private String cache;
+
+    private Product sourceProduct;
+    private Product targetProduct;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        GPF.getDefaultInstance().getOperatorSpiRegistry().loadOperatorSpis();
+        sourceProduct = new Product("source", "synthetic", PRODUCT_WIDTH, PRODUCT_HEIGHT);
+        if ("swath".equals(geoCoding)) {
+            sourceProduct.setGeoCoding(new SwathGeoCoding(SRTM_NORTH, SRTM_WEST, PIXEL_SIZE, PRODUCT_WIDTH));
+        } else {
+            final AffineTransform imageToMap = new AffineTransform(PIXEL_SIZE, 0.0, 0.0, -PIXEL_SIZE,
+                                                                   SRTM_WEST, SRTM_NORTH);
+            sourceProduct.setGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84,
+                                                        new Rectangle(PRODUCT_WIDTH, PRODUCT_HEIGHT), imageToMap));
+        }
+        if (WARM.equals(cache)) {
+            targetProduct = createTargetProduct();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+        if (COLD.equals(cache)) {
+            flushTileCaches();
+            targetProduct = createTargetProduct();
+        } else {
+            // only the computed target tiles are dropped, the auxdata tiles stay cached
+            JAI.getDefaultInstance().getTileCache().flush();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() {
+        if (COLD.equals(cache)) {
+            targetProduct.dispose();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        if (WARM.equals(cache)) {
+            targetProduct.dispose();
+        }
+        sourceProduct.dispose();
+    }
+
+    @Benchmark
+    public Raster computeTile() {
+        return targetProduct.getBand("land_water_fraction").getSourceImage().getData(REGION);
+    }
+
+    private Product createTargetProduct() {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("resolution", 50);
+        parameters.put("subSamplingFactorX", subSampling);
+        parameters.put("subSamplingFactorY", subSampling);
+        parameters.put("prefetchAuxdata", false);
+        return GPF.createProduct(OperatorSpi.getOperatorAlias(WatermaskOp.class), parameters, sourceProduct);
+    }
+}
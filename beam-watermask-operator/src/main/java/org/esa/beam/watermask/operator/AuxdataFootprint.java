@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The 1&deg; cells of the globe covered by a geo-coded product, in the order in which the pixel rows of the product
+ * reach them. A cell is identified by the indices of its western longitude and its northern latitude, counted from
+ * 180&deg; west and 90&deg; north, like the SRTM tiles of the water mask.
+ * <p/>
+ * The geo-coding is only evaluated on a coarse grid of pixels; each grid cell contributes all 1&deg; cells
+ * overlapped by the bounding box of its corners. Grid cells crossing the anti-meridian are unwrapped.
+ */
+final class AuxdataFootprint {
+
+    static final int DEFAULT_GRID_STEP = 32;
+
+    private static final int NUM_CELLS_X = 360;
+    private static final int NUM_CELLS_Y = 180;
+
+    private final int[] cells;
+
+    private AuxdataFootprint(int[] cells) {
+        this.cells = cells;
+    }
+
+    /**
+     * Computes the footprint of a product.
+     *
+     * @param geoCoding The geo-coding of the product.
+     * @param width     The width of the product, in pixels.
+     * @param height    The height of the product, in pixels.
+     * @param gridStep  The distance of the pixels the geo-coding is evaluated for.
+     *
+     * @return the footprint.
+     */
+    static AuxdataFootprint compute(GeoCoding geoCoding, int width, int height, int gridStep) {
+        final float[] xs = createGridCoordinates(width, gridStep);
+        final float[] ys = createGridCoordinates(height, gridStep);
+        final Set<Integer> cells = new LinkedHashSet<Integer>();
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        float[] previousLats = null;
+        float[] previousLons = null;
+        for (float y : ys) {
+            final float[] lats = new float[xs.length];
+            final float[] lons = new float[xs.length];
+            for (int i = 0; i < xs.length; i++) {
+                pixelPos.setLocation(xs[i], y);
+                geoCoding.getGeoPos(pixelPos, geoPos);
+                lats[i] = geoPos.isValid() ? geoPos.lat : Float.NaN;
+                lons[i] = geoPos.isValid() ? geoPos.lon : Float.NaN;
+            }
+            if (previousLats != null) {
+                addCells(previousLats, previousLons, lats, lons, cells);
+            } else if (ys.length == 1) {
+                addCells(lats, lons, lats, lons, cells);
+            }
+            previousLats = lats;
+            previousLons = lons;
+        }
+        final int[] cellArray = new int[cells.size()];
+        int index = 0;
+        for (Integer cell : cells) {
+            cellArray[index++] = cell;
+        }
+        return new AuxdataFootprint(cellArray);
+    }
+
+    int getCellCount() {
+        return cells.length;
+    }
+
+    /**
+     * @return the longitude index of the cell with the given index, 0 for the cell east of 180&deg; west.
+     */
+    int getLonIndex(int cellIndex) {
+        return cells[cellIndex] % NUM_CELLS_X;
+    }
+
+    /**
+     * @return the latitude index of the cell with the given index, 0 for the cell south of 90&deg; north.
+     */
+    int getLatIndex(int cellIndex) {
+        return cells[cellIndex] / NUM_CELLS_X;
+    }
+
+    /**
+     * @return the pixel centre coordinates of the grid, including the first and the last pixel.
+     */
+    private static float[] createGridCoordinates(int size, int gridStep) {
+        final int numNodes = (size - 1 + gridStep - 1) / gridStep + 1;
+        final float[] coordinates = new float[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            coordinates[i] = Math.min(i * gridStep, size - 1) + 0.5F;
+        }
+        return coordinates;
+    }
+
+    /**
+     * Adds the cells overlapped by the grid cells between two rows of grid nodes. Invalid nodes are left out;
+     * a grid cell without any valid node adds nothing.
+     */
+    private static void addCells(float[] lats0, float[] lons0, float[] lats1, float[] lons1, Set<Integer> cells) {
+        final int lastNode = Math.max(lats0.length - 1, 1);
+        final float[] cellLats = new float[4];
+        final float[] cellLons = new float[4];
+        for (int i = 0; i < lastNode; i++) {
+            final int next = Math.min(i + 1, lats0.length - 1);
+            cellLats[0] = lats0[i];
+            cellLats[1] = lats0[next];
+            cellLats[2] = lats1[i];
+            cellLats[3] = lats1[next];
+            cellLons[0] = lons0[i];
+            cellLons[1] = lons0[next];
+            cellLons[2] = lons1[i];
+            cellLons[3] = lons1[next];
+            addBoundingBox(cellLats, cellLons, cells);
+        }
+    }
+
+    private static void addBoundingBox(float[] lats, float[] lons, Set<Integer> cells) {
+        float minLat = Float.POSITIVE_INFINITY;
+        float maxLat = Float.NEGATIVE_INFINITY;
+        float minLon = Float.POSITIVE_INFINITY;
+        float maxLon = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < lats.length; i++) {
+            if (!Float.isNaN(lats[i]) && !Float.isNaN(lons[i])) {
+                minLat = Math.min(minLat, lats[i]);
+                maxLat = Math.max(maxLat, lats[i]);
+                minLon = Math.min(minLon, lons[i]);
+                maxLon = Math.max(maxLon, lons[i]);
+            }
+        }
+        if (minLat > maxLat) {
+            return;
+        }
+        if (maxLon - minLon > 180.0F) {
+            // the grid cell crosses the anti-meridian; its western longitudes are moved east by a full turn
+            minLon = Float.POSITIVE_INFINITY;
+            maxLon = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < lons.length; i++) {
+                if (!Float.isNaN(lats[i]) && !Float.isNaN(lons[i])) {
+                    final float lon = lons[i] < 0.0F ? lons[i] + 360.0F : lons[i];
+                    minLon = Math.min(minLon, lon);
+                    maxLon = Math.max(maxLon, lon);
+                }
+            }
+        }
+        final int minLatIndex = clamp((int) Math.floor(90.0 - maxLat), NUM_CELLS_Y);
+        final int maxLatIndex = clamp((int) Math.floor(90.0 - minLat), NUM_CELLS_Y);
+        final int minLonIndex = (int) Math.floor(minLon + 180.0);
+        final int maxLonIndex = (int) Math.floor(maxLon + 180.0);
+        for (int latIndex = minLatIndex; latIndex <= maxLatIndex; latIndex++) {
+            for (int lonIndex = minLonIndex; lonIndex <= maxLonIndex; lonIndex++) {
+                final int wrappedLonIndex = ((lonIndex % NUM_CELLS_X) + NUM_CELLS_X) % NUM_CELLS_X;
+                cells.add(latIndex * NUM_CELLS_X + wrappedLonIndex);
+            }
+        }
+    }
+
+    private static int clamp(int index, int numCells) {
+        return Math.max(0, Math.min(index, numCells - 1));
+    }
+}
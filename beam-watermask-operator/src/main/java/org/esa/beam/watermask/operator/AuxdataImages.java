@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import com.bc.ceres.core.ProgressMonitor;
+import org.esa.beam.util.ResourceInstaller;
+import org.esa.beam.util.SystemUtils;
+import org.esa.beam.watermask.util.ImageDescriptor;
+import org.esa.beam.watermask.util.ImageDescriptorBuilder;
+import org.geotools.resources.image.ImageUtilities;
+
+import javax.imageio.ImageIO;
+import javax.media.jai.NullOpImage;
+import javax.media.jai.OpImage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.esa.beam.watermask.operator.WatermaskClassifier.*;
+
+/**
+ * The auxdata images of one resolution. They are shared by all {@link WatermaskClassifier}s of that resolution
+ * within the JVM, so that the auxdata is installed, the files are opened and the tiles are cached only once.
+ * <p/>
+ * Instances are reference counted: {@link #acquire(int)} returns the instance for a resolution and auxdata version,
+ * creating it if necessary, and {@link #release()} disposes the images when the last user releases them. The images
+ * are created outside of the lock of the registry, so that installing the auxdata of one resolution does not hold up
+ * the classifiers of other resolutions; threads acquiring the same resolution meanwhile wait for the creation.
+ * <p/>
+ * If a regional auxdata pack is configured (see {@link AuxdataPack}), the images of the resolutions 50 and 150 are
+ * read from the pack instead of the installed auxdata.
+ */
+final class AuxdataImages {
+
+    static final float INVALID_LAT_HEIGHT = -1.0F;
+
+    private static final Map<String, AuxdataImages> REGISTRY = new HashMap<String, AuxdataImages>();
+
+    private static final int CREATING = 0;
+    private static final int CREATED = 1;
+    private static final int FAILED = 2;
+
+    private final String key;
+    private final int resolution;
+    private final AuxdataPack pack;
+    private final Map<Integer, FractionPyramidLevel> pyramidLevels;
+    // guarded by the registry
+    private int referenceCount;
+    // guarded by this; the images are written before the state is set to CREATED
+    private int state;
+    private File auxdataDir;
+    private ImageSource imageSource;
+
+    /**
+     * Returns the shared images of the given resolution and increments their reference count.
+     *
+     * @param resolution The resolution, 50, 150 or 1000.
+     *
+     * @return the images.
+     *
+     * @throws IOException If the images cannot be created.
+     */
+    static AuxdataImages acquire(int resolution) throws IOException {
+        final AuxdataPack pack = resolution == 1000 ? null : AuxdataPack.getConfigured();
+        final String key = AUXDATA_VERSION + "/" + resolution + (pack != null ? "/" + pack.getDir() : "");
+        final AuxdataImages auxdataImages;
+        final boolean create;
+        synchronized (REGISTRY) {
+            AuxdataImages registeredImages = REGISTRY.get(key);
+            create = registeredImages == null;
+            if (create) {
+                registeredImages = new AuxdataImages(key, resolution, pack);
+                REGISTRY.put(key, registeredImages);
+            }
+            registeredImages.referenceCount++;
+            auxdataImages = registeredImages;
+        }
+        if (create) {
+            auxdataImages.create();
+        } else {
+            auxdataImages.awaitCreated();
+        }
+        return auxdataImages;
+    }
+
+    private AuxdataImages(String key, int resolution, AuxdataPack pack) {
+        this.key = key;
+        this.resolution = resolution;
+        this.pack = pack;
+        pyramidLevels = new HashMap<Integer, FractionPyramidLevel>();
+        state = CREATING;
+    }
+
+    /**
+     * Creates the images; called by the thread which has registered this instance. If that fails, the instance is
+     * removed from the registry, so that the next call of {@link #acquire(int)} tries again.
+     */
+    private void create() throws IOException {
+        boolean created = false;
+        try {
+            final File dir;
+            final ImageSource source;
+            if (resolution == 50 || resolution == 150) {
+                dir = pack != null ? pack.getDir() : installAuxdata();
+                source = createHighResImageSource(dir);
+            } else {
+                dir = null;
+                source = new LowResImageSource();
+            }
+            synchronized (this) {
+                auxdataDir = dir;
+                imageSource = source;
+            }
+            created = true;
+        } finally {
+            if (!created) {
+                synchronized (REGISTRY) {
+                    if (REGISTRY.get(key) == this) {
+                        REGISTRY.remove(key);
+                    }
+                }
+            }
+            setState(created ? CREATED : FAILED);
+            if (!created) {
+                release();
+            }
+        }
+    }
+
+    private synchronized void setState(int state) {
+        this.state = state;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the thread which has registered this instance has created the images. If creating them fails, or
+     * if the waiting thread is interrupted, the reference acquired by the waiting thread is released.
+     */
+    private void awaitCreated() throws IOException {
+        boolean created = false;
+        try {
+            synchronized (this) {
+                while (state == CREATING) {
+                    wait();
+                }
+                created = state == CREATED;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the auxdata images to be created.", e);
+        } finally {
+            if (!created) {
+                release();
+            }
+        }
+        if (!created) {
+            throw new IOException("Failed to create the auxdata images of the resolution " + resolution + ".");
+        }
+    }
+
+    private HighResImageSource createHighResImageSource(File auxdataDir) throws IOException {
+        final SRTMOpImage centerImage = createCenterImage(resolution, auxdataDir);
+        boolean created = false;
+        try {
+            final ImageDescriptor northDescriptor = getNorthDescriptor(auxdataDir);
+            final PNGSourceImage northImage = createBorderImage(northDescriptor);
+            created = true;
+            return new HighResImageSource(centerImage, northImage);
+        } finally {
+            if (!created) {
+                centerImage.dispose();
+            }
+        }
+    }
+
+    /**
+     * Increments the reference count of images which have been acquired before and are not yet disposed.
+     */
+    void retain() {
+        synchronized (REGISTRY) {
+            if (referenceCount == 0) {
+                throw new IllegalStateException("The auxdata images have been disposed.");
+            }
+            referenceCount++;
+        }
+    }
+
+    /**
+     * Decrements the reference count, and disposes the images if it drops to zero.
+     */
+    void release() {
+        synchronized (REGISTRY) {
+            referenceCount--;
+            if (referenceCount == 0) {
+                if (REGISTRY.get(key) == this) {
+                    REGISTRY.remove(key);
+                }
+                final ImageSource source = getImageSource();
+                if (source != null) {
+                    source.dispose();
+                }
+                synchronized (pyramidLevels) {
+                    for (FractionPyramidLevel pyramidLevel : pyramidLevels.values()) {
+                        pyramidLevel.getImage().dispose();
+                    }
+                }
+            }
+        }
+    }
+
+    int getReferenceCount() {
+        synchronized (REGISTRY) {
+            return referenceCount;
+        }
+    }
+
+    synchronized ImageSource getImageSource() {
+        return imageSource;
+    }
+
+    /**
+     * @return the directory the auxdata are read from, or {@code null} for the low resolution images.
+     */
+    synchronized File getAuxdataDir() {
+        return auxdataDir;
+    }
+
+    /**
+     * Returns the coarsest level of the water fraction pyramid installed in the auxdata directory whose factor does
+     * not exceed the given sub-sampling factor. Levels are opened once and shared as well.
+     *
+     * @return the level, or {@code null} if none is available.
+     *
+     * @throws IOException If the level cannot be opened.
+     */
+    FractionPyramidLevel getPyramidLevel(int subSampling) throws IOException {
+        final File auxdataDir = getAuxdataDir();
+        if (auxdataDir == null) {
+            return null;
+        }
+        final int factor = FractionPyramidLevel.findFactor(auxdataDir, resolution, subSampling);
+        if (factor == 0) {
+            return null;
+        }
+        synchronized (pyramidLevels) {
+            FractionPyramidLevel pyramidLevel = pyramidLevels.get(factor);
+            if (pyramidLevel == null) {
+                pyramidLevel = new FractionPyramidLevel(auxdataDir, resolution, factor, pack);
+                pyramidLevels.put(factor, pyramidLevel);
+            }
+            return pyramidLevel;
+        }
+    }
+
+    private SRTMOpImage createCenterImage(int resolution, File auxdataDir) throws IOException {
+        int tileSize = WatermaskUtils.computeSideLength(resolution);
+
+        int width = tileSize * 360;
+        int height = tileSize * 180;
+        final Properties properties = new Properties();
+        properties.setProperty("width", String.valueOf(width));
+        properties.setProperty("height", String.valueOf(height));
+        properties.setProperty("tileWidth", String.valueOf(tileSize));
+        properties.setProperty("tileHeight", String.valueOf(tileSize));
+        final URL imageProperties = getClass().getResource("image.properties");
+        properties.load(imageProperties.openStream());
+
+        File zipFile = new File(auxdataDir, resolution + "m.zip");
+        return SRTMOpImage.create(properties, zipFile, WATER_VALUE, pack);
+    }
+
+    private PNGSourceImage createBorderImage(ImageDescriptor descriptor) throws IOException {
+        int width = descriptor.getImageWidth();
+        int tileWidth = descriptor.getTileWidth();
+        int height = descriptor.getImageHeight();
+        int tileHeight = descriptor.getTileHeight();
+        final Properties properties = new Properties();
+        properties.setProperty("width", String.valueOf(width));
+        properties.setProperty("height", String.valueOf(height));
+        properties.setProperty("tileWidth", String.valueOf(tileWidth));
+        properties.setProperty("tileHeight", String.valueOf(tileHeight));
+        final URL imageProperties = getClass().getResource("image.properties");
+        properties.load(imageProperties.openStream());
+
+        final File auxdataDir = descriptor.getAuxdataDir();
+        final String zipFileName = descriptor.getZipFileName();
+        File zipFile = new File(auxdataDir, zipFileName);
+        return PNGSourceImage.create(properties, zipFile, pack);
+    }
+
+    private File installAuxdata() throws IOException {
+        URL sourceUrl = ResourceInstaller.getSourceUrl(this.getClass());
+        String auxdataSrcPath = "auxdata/images";
+
+        String relativeDestPath = ".beam/" + "beam-watermask-operator/auxdata_" + AUXDATA_VERSION + "/images";
+        File auxdataTargetDir = new File(SystemUtils.getUserHomeDir(), relativeDestPath);
+
+        ResourceInstaller resourceInstaller = new ResourceInstaller(sourceUrl, auxdataSrcPath, auxdataTargetDir);
+        resourceInstaller.install(".*", ProgressMonitor.NULL);
+
+        return auxdataTargetDir;
+    }
+
+    private static ImageDescriptor getNorthDescriptor(File auxdataDir) {
+        return new ImageDescriptorBuilder()
+                        .width(GC_IMAGE_WIDTH)
+                        .height(GC_IMAGE_HEIGHT)
+                        .tileWidth(GC_TILE_WIDTH)
+                        .tileHeight(GC_TILE_HEIGHT)
+                        .auxdataDir(auxdataDir)
+                        .zipFileName("GC_water_mask.zip")
+                        .build();
+    }
+
+    static interface ImageSource {
+
+        float getLonWidth();
+        float getLatHeight(float lat);
+        OpImage getImage(float lat);
+        void dispose();
+
+    }
+
+    private static class HighResImageSource implements ImageSource {
+
+        private final OpImage centralImage;
+        private final OpImage northImage;
+
+        private HighResImageSource(OpImage centralImage, OpImage northImage) {
+            this.centralImage = centralImage;
+            this.northImage = northImage;
+        }
+
+        @Override
+        public float getLonWidth() {
+                return 360.0F;
+        }
+
+        @Override
+        public float getLatHeight(float latitude) {
+            if (latitude < 150.0 && latitude > 30.0) {
+                return 180.0F;
+            } else if (latitude <= 30.0) {
+                return 30.0F;
+            }
+            return INVALID_LAT_HEIGHT;
+        }
+
+        @Override
+        public OpImage getImage(float latitude) {
+            if (latitude < 150.0 && latitude > 30.0) {
+                return centralImage;
+            } else if (latitude <= 30.0) {
+                return northImage;
+            }
+            return null;
+        }
+
+        @Override
+        public void dispose() {
+            centralImage.dispose();
+            northImage.dispose();
+        }
+    }
+
+    private static class LowResImageSource implements ImageSource {
+
+        private final OpImage image;
+
+        // the image is loaded eagerly, because the instance is shared by concurrent classifiers
+        private LowResImageSource() throws IOException {
+            final URL url = getClass().getResource("water.png");
+            BufferedImage waterImage = ImageIO.read(url);
+            image = new NullOpImage(waterImage, ImageUtilities.getImageLayout(waterImage), null, OpImage.OP_COMPUTE_BOUND);
+        }
+
+        @Override
+        public float getLonWidth() {
+                return 360.0F;
+        }
+
+        @Override
+        public float getLatHeight(float latitude) {
+            return 180.0F;
+        }
+
+        @Override
+        public OpImage getImage(float latitude) {
+            return image;
+        }
+
+        @Override
+        public void dispose() {
+            image.dispose();
+        }
+    }
+}
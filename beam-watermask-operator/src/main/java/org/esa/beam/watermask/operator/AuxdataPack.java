@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.BitSet;
+import java.util.Properties;
+
+/**
+ * A regional pack of the auxdata, as written by {@code org.esa.beam.watermask.util.AuxdataPackExtractor}. The
+ * pack directory holds the same zip files as the installed auxdata, but only with the tiles needed for the 1&deg;
+ * cells covering a region, and a manifest ({@link #MANIFEST_FILE_NAME}) listing these cells.
+ * <p/>
+ * If the system property {@link #PACK_PROPERTY} names a pack directory, the water mask is read from the pack
+ * instead of installing the auxdata, and is invalid outside of the cells of the pack. The resolution 1000, which
+ * is not read from the auxdata directory, is not affected.
+ * <p/>
+ * Cells are identified like the SRTM tiles, by the indices of their western longitude and northern latitude,
+ * counted from 180&deg; west and 90&deg; north.
+ */
+public final class AuxdataPack {
+
+    public static final String PACK_PROPERTY = "beam.watermask.auxdataPack";
+    public static final String MANIFEST_FILE_NAME = "auxdata-pack.properties";
+    public static final int NUM_CELLS_X = 360;
+    public static final int NUM_CELLS_Y = 180;
+
+    private static final String VERSION_KEY = "version";
+    private static final String REGION_KEY = "region";
+    private static final String CELLS_KEY = "cells";
+
+    private final File dir;
+    private final BitSet cells;
+
+    /**
+     * @return the pack named by {@link #PACK_PROPERTY}, or {@code null} if the property is not set.
+     *
+     * @throws IOException If the pack cannot be read.
+     */
+    static AuxdataPack getConfigured() throws IOException {
+        final String path = System.getProperty(PACK_PROPERTY);
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+        return load(new File(path.trim()));
+    }
+
+    /**
+     * Reads the manifest of a pack.
+     *
+     * @param dir The pack directory.
+     *
+     * @return the pack.
+     *
+     * @throws IOException If the manifest cannot be read or belongs to a different auxdata version.
+     */
+    static AuxdataPack load(File dir) throws IOException {
+        final File manifestFile = new File(dir, MANIFEST_FILE_NAME);
+        final Properties manifest = new Properties();
+        final InputStream inputStream = new FileInputStream(manifestFile);
+        try {
+            manifest.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        final String version = manifest.getProperty(VERSION_KEY);
+        if (!WatermaskClassifier.AUXDATA_VERSION.equals(version)) {
+            throw new IOException(MessageFormat.format("Auxdata pack ''{0}'' has version {1}, expected {2}.",
+                                                       dir, version, WatermaskClassifier.AUXDATA_VERSION));
+        }
+        return new AuxdataPack(dir.getAbsoluteFile(), parseCells(manifest.getProperty(CELLS_KEY, "")));
+    }
+
+    /**
+     * Writes the manifest of a pack.
+     *
+     * @param dir    The pack directory.
+     * @param cells  The cells of the pack; bit {@code latIndex * NUM_CELLS_X + lonIndex} is set for each cell.
+     * @param region A description of the region, for information only.
+     *
+     * @throws IOException If the manifest cannot be written.
+     */
+    public static void writeManifest(File dir, BitSet cells, String region) throws IOException {
+        final Properties manifest = new Properties();
+        manifest.setProperty(VERSION_KEY, WatermaskClassifier.AUXDATA_VERSION);
+        manifest.setProperty(REGION_KEY, region);
+        manifest.setProperty(CELLS_KEY, formatCells(cells));
+        final OutputStream outputStream = new FileOutputStream(new File(dir, MANIFEST_FILE_NAME));
+        try {
+            manifest.store(outputStream, "Regional auxdata pack of the land/water mask");
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private AuxdataPack(File dir, BitSet cells) {
+        this.dir = dir;
+        this.cells = cells;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    /**
+     * @return {@code true} if the pack holds the auxdata of the given cell.
+     */
+    boolean containsCell(int lonIndex, int latIndex) {
+        return lonIndex >= 0 && lonIndex < NUM_CELLS_X && latIndex >= 0 && latIndex < NUM_CELLS_Y
+               && cells.get(latIndex * NUM_CELLS_X + lonIndex);
+    }
+
+    /**
+     * Formats the cells as runs of longitude indices per latitude index, like '80:200-202 81:201'.
+     */
+    private static String formatCells(BitSet cells) {
+        final StringBuilder builder = new StringBuilder();
+        int cell = cells.nextSetBit(0);
+        while (cell >= 0 && cell < NUM_CELLS_X * NUM_CELLS_Y) {
+            final int latIndex = cell / NUM_CELLS_X;
+            final int rowEnd = (latIndex + 1) * NUM_CELLS_X;
+            final int runEnd = Math.min(cells.nextClearBit(cell), rowEnd);
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(latIndex).append(':').append(cell % NUM_CELLS_X);
+            if (runEnd - 1 > cell) {
+                builder.append('-').append((runEnd - 1) % NUM_CELLS_X);
+            }
+            cell = cells.nextSetBit(runEnd);
+        }
+        return builder.toString();
+    }
+
+    private static BitSet parseCells(String text) throws IOException {
+        final BitSet cells = new BitSet(NUM_CELLS_X * NUM_CELLS_Y);
+        for (String run : text.trim().split("\\s+")) {
+            if (run.isEmpty()) {
+                continue;
+            }
+            try {
+                final int colon = run.indexOf(':');
+                final int dash = run.indexOf('-', colon);
+                final int latIndex = Integer.parseInt(run.substring(0, colon));
+                final int firstLonIndex = Integer.parseInt(run.substring(colon + 1, dash < 0 ? run.length() : dash));
+                final int lastLonIndex = dash < 0 ? firstLonIndex : Integer.parseInt(run.substring(dash + 1));
+                if (latIndex < 0 || latIndex >= NUM_CELLS_Y || firstLonIndex < 0 || lastLonIndex >= NUM_CELLS_X
+                    || firstLonIndex > lastLonIndex) {
+                    throw new NumberFormatException();
+                }
+                cells.set(latIndex * NUM_CELLS_X + firstLonIndex, latIndex * NUM_CELLS_X + lastLonIndex + 1);
+            } catch (RuntimeException e) {
+                throw new IOException(MessageFormat.format("Invalid cells ''{0}'' in auxdata pack manifest.", run), e);
+            }
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import javax.media.jai.OpImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads auxdata tiles in the background, so that they are cached when the water fractions are computed. The tiles
+ * are loaded on a pool of daemon threads shared within the JVM; its size is given by the system property
+ * {@link #THREADS_PROPERTY}, and at most {@link #QUEUE_CAPACITY} tiles wait to be loaded. Tiles which do not fit
+ * into the queue are not prefetched, and neither are tiles which fail to load; they are read when they are needed.
+ * <p/>
+ * The auxdata images are retained until all tiles have been loaded or skipped, so that a prefetch may outlive the
+ * classifier which has started it.
+ */
+final class AuxdataPrefetcher {
+
+    static final String THREADS_PROPERTY = "beam.watermask.prefetchThreads";
+    static final int QUEUE_CAPACITY = 4096;
+
+    private static ThreadPoolExecutor executor;
+
+    private final AuxdataImages auxdataImages;
+    private final AtomicInteger pendingCount;
+    private final AtomicInteger loadedCount;
+    private final CountDownLatch completion;
+    private volatile boolean cancelled;
+
+    /**
+     * Starts loading the given tiles, in the given order.
+     *
+     * @param auxdataImages The images the tiles belong to.
+     * @param tiles         The tiles.
+     *
+     * @return the prefetch.
+     */
+    static AuxdataPrefetcher start(AuxdataImages auxdataImages, List<TileRequest> tiles) {
+        final AuxdataPrefetcher prefetcher = new AuxdataPrefetcher(auxdataImages, tiles.size());
+        if (tiles.isEmpty()) {
+            return prefetcher;
+        }
+        auxdataImages.retain();
+        final ThreadPoolExecutor executor = getExecutor();
+        for (final TileRequest tile : tiles) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetcher.load(tile);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                prefetcher.finish();
+            }
+        }
+        return prefetcher;
+    }
+
+    private AuxdataPrefetcher(AuxdataImages auxdataImages, int tileCount) {
+        this.auxdataImages = auxdataImages;
+        pendingCount = new AtomicInteger(tileCount);
+        loadedCount = new AtomicInteger();
+        completion = new CountDownLatch(tileCount > 0 ? 1 : 0);
+    }
+
+    /**
+     * Skips the tiles which have not been loaded yet.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Waits until all tiles have been loaded or skipped.
+     *
+     * @return {@code true} if the prefetch has completed, {@code false} if the timeout has elapsed before.
+     *
+     * @throws InterruptedException If the current thread is interrupted while waiting.
+     */
+    boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        return completion.await(timeout, unit);
+    }
+
+    /**
+     * @return the number of tiles loaded so far.
+     */
+    int getLoadedCount() {
+        return loadedCount.get();
+    }
+
+    private void load(TileRequest tile) {
+        try {
+            if (!cancelled) {
+                if (tile.image instanceof SRTMOpImage) {
+                    ((SRTMOpImage) tile.image).prefetchTile(tile.tileX, tile.tileY);
+                } else {
+                    tile.image.getTile(tile.tileX, tile.tileY);
+                }
+                loadedCount.incrementAndGet();
+            }
+        } catch (IOException ignored) {
+            // prefetching is best effort; the error is reported when the tile is read for computing the fractions
+        } catch (RuntimeException ignored) {
+            // ditto
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (pendingCount.decrementAndGet() == 0) {
+            auxdataImages.release();
+            completion.countDown();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            final int defaultThreadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            final int threadCount = Math.max(1, Integer.getInteger(THREADS_PROPERTY, defaultThreadCount));
+            executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                                              new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY),
+                                              new PrefetchThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * A tile of an auxdata image.
+     */
+    static final class TileRequest {
+
+        private final OpImage image;
+        private final int tileX;
+        private final int tileY;
+
+        TileRequest(OpImage image, int tileX, int tileY) {
+            this.image = image;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileRequest)) {
+                return false;
+            }
+            final TileRequest other = (TileRequest) o;
+            return image == other.image && tileX == other.tileX && tileY == other.tileY;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(image) * 31 + tileX) * 31 + tileY;
+        }
+    }
+
+    private static final class PrefetchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "watermask-prefetch-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import javax.media.jai.TileCache;
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The tile cache shared by all auxdata images of the watermask module, separate from the GPF tile cache. It has a
+ * single memory budget for all images and a choice of eviction policies:
+ * <ul>
+ * <li>{@code LRU} evicts the least recently used tile.</li>
+ * <li>{@code SLRU} (segmented LRU) protects tiles which have been requested more than once from tiles which are
+ * read only once, as during a single pass over a long swath.</li>
+ * <li>{@code ARC} adapts between recency and frequency based on the requests for recently evicted tiles.</li>
+ * </ul>
+ * The budget in MB and the policy are initialised from the system properties {@value #SIZE_PROPERTY} (default
+ * {@value #DEFAULT_SIZE_MB}) and {@value #POLICY_PROPERTY} (default {@code LRU}), and can be changed at runtime.
+ * Hits, misses and evictions are counted, see {@link #getStatistics()}.
+ * <p/>
+ * The memory threshold is used by {@link #memoryControl()} only, and the tile comparator is not used.
+ */
+public final class AuxdataTileCache implements TileCache {
+
+    public static final String SIZE_PROPERTY = "beam.watermask.tileCacheSize";
+    public static final String POLICY_PROPERTY = "beam.watermask.tileCachePolicy";
+    public static final long DEFAULT_SIZE_MB = 150;
+
+    private static final long MB = 1024L * 1024L;
+
+    private static AuxdataTileCache instance;
+
+    private final Map<TileKey, Entry> entries;
+    private EvictionPolicy policy;
+    private long memoryCapacity;
+    private long memoryUsage;
+    private float memoryThreshold;
+    private Comparator tileComparator;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @return the tile cache of the auxdata images.
+     */
+    public static synchronized AuxdataTileCache getInstance() {
+        if (instance == null) {
+            final long sizeMB = Long.parseLong(System.getProperty(SIZE_PROPERTY, String.valueOf(DEFAULT_SIZE_MB)));
+            final String policyName = System.getProperty(POLICY_PROPERTY, EvictionPolicy.LRU);
+            instance = new AuxdataTileCache(sizeMB * MB, policyName);
+        }
+        return instance;
+    }
+
+    AuxdataTileCache(long memoryCapacity, String policyName) {
+        if (memoryCapacity < 0) {
+            throw new IllegalArgumentException("Memory capacity must not be negative.");
+        }
+        this.entries = new HashMap<TileKey, Entry>();
+        this.memoryCapacity = memoryCapacity;
+        this.memoryThreshold = 1.0F;
+        this.policy = EvictionPolicy.create(policyName, memoryCapacity);
+    }
+
+    /**
+     * Sets the eviction policy. The tiles in the cache are kept, but their history is lost.
+     *
+     * @param policyName {@code LRU}, {@code SLRU} or {@code ARC}.
+     */
+    public synchronized void setPolicy(String policyName) {
+        if (policy.getName().equalsIgnoreCase(policyName)) {
+            return;
+        }
+        policy = EvictionPolicy.create(policyName, memoryCapacity);
+        for (Map.Entry<TileKey, Entry> entry : entries.entrySet()) {
+            policy.onAdd(entry.getKey(), entry.getValue().size);
+        }
+    }
+
+    public synchronized String getPolicy() {
+        return policy.getName();
+    }
+
+    /**
+     * @return a snapshot of the counters and the memory usage.
+     */
+    public synchronized Statistics getStatistics() {
+        return new Statistics(policy.getName(), hitCount, missCount, evictionCount, entries.size(), memoryUsage,
+                              memoryCapacity);
+    }
+
+    public synchronized void resetStatistics() {
+        hitCount = 0;
+        missCount = 0;
+        evictionCount = 0;
+    }
+
+    @Override
+    public void add(RenderedImage owner, int tileX, int tileY, Raster data) {
+        add(owner, tileX, tileY, data, null);
+    }
+
+    @Override
+    public synchronized void add(RenderedImage owner, int tileX, int tileY, Raster data, Object tileCacheMetric) {
+        final TileKey key = new TileKey(owner, tileX, tileY);
+        removeEntry(key);
+        final long size = computeSize(data);
+        if (size > memoryCapacity) {
+            return;
+        }
+        entries.put(key, new Entry(data, size));
+        memoryUsage += size;
+        policy.onAdd(key, size);
+        evict(memoryCapacity);
+    }
+
+    @Override
+    public synchronized void remove(RenderedImage owner, int tileX, int tileY) {
+        removeEntry(new TileKey(owner, tileX, tileY));
+    }
+
+    @Override
+    public synchronized Raster getTile(RenderedImage owner, int tileX, int tileY) {
+        final TileKey key = new TileKey(owner, tileX, tileY);
+        final Entry entry = entries.get(key);
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        if (metrics != null) {
+            metrics.auxdataCacheAccessed(entry != null);
+        }
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        policy.onHit(key);
+        return entry.raster;
+    }
+
+    @Override
+    public synchronized Raster[] getTiles(RenderedImage owner) {
+        final List<Raster> tiles = new ArrayList<Raster>();
+        for (Map.Entry<TileKey, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().owner == owner) {
+                tiles.add(entry.getValue().raster);
+            }
+        }
+        return tiles.isEmpty() ? null : tiles.toArray(new Raster[tiles.size()]);
+    }
+
+    @Override
+    public synchronized void removeTiles(RenderedImage owner) {
+        final Iterator<Map.Entry<TileKey, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<TileKey, Entry> entry = iterator.next();
+            if (entry.getKey().owner == owner) {
+                iterator.remove();
+                memoryUsage -= entry.getValue().size;
+                policy.onRemove(entry.getKey());
+            }
+        }
+        policy.onRemoveImage(owner);
+    }
+
+    @Override
+    public synchronized void addTiles(RenderedImage owner, Point[] tileIndices, Raster[] tiles,
+                                      Object tileCacheMetric) {
+        for (int i = 0; i < tileIndices.length; i++) {
+            add(owner, tileIndices[i].x, tileIndices[i].y, tiles[i], tileCacheMetric);
+        }
+    }
+
+    @Override
+    public synchronized Raster[] getTiles(RenderedImage owner, Point[] tileIndices) {
+        final Raster[] tiles = new Raster[tileIndices.length];
+        for (int i = 0; i < tileIndices.length; i++) {
+            tiles[i] = getTile(owner, tileIndices[i].x, tileIndices[i].y);
+        }
+        return tiles;
+    }
+
+    @Override
+    public synchronized void flush() {
+        entries.clear();
+        memoryUsage = 0;
+        policy.clear();
+    }
+
+    @Override
+    public synchronized void memoryControl() {
+        evict((long) (memoryCapacity * memoryThreshold));
+    }
+
+    /**
+     * Ignored; the cache is limited by memory only.
+     */
+    @Override
+    public void setTileCapacity(int tileCapacity) {
+    }
+
+    @Override
+    public int getTileCapacity() {
+        return 0;
+    }
+
+    @Override
+    public synchronized void setMemoryCapacity(long memoryCapacity) {
+        if (memoryCapacity < 0) {
+            throw new IllegalArgumentException("Memory capacity must not be negative.");
+        }
+        this.memoryCapacity = memoryCapacity;
+        policy.setCapacity(memoryCapacity);
+        evict(memoryCapacity);
+    }
+
+    /**
+     * Raises the memory capacity to the given one, but never lowers it, so that users of the shared cache cannot
+     * shrink it for each other.
+     *
+     * @return the memory capacity in effect.
+     */
+    public synchronized long raiseMemoryCapacity(long memoryCapacity) {
+        if (memoryCapacity > this.memoryCapacity) {
+            setMemoryCapacity(memoryCapacity);
+        }
+        return this.memoryCapacity;
+    }
+
+    @Override
+    public synchronized long getMemoryCapacity() {
+        return memoryCapacity;
+    }
+
+    @Override
+    public synchronized void setMemoryThreshold(float memoryThreshold) {
+        if (memoryThreshold < 0.0F || memoryThreshold > 1.0F) {
+            throw new IllegalArgumentException("Memory threshold must lie within [0, 1].");
+        }
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    @Override
+    public synchronized float getMemoryThreshold() {
+        return memoryThreshold;
+    }
+
+    @Override
+    public synchronized void setTileComparator(Comparator comparator) {
+        this.tileComparator = comparator;
+    }
+
+    @Override
+    public synchronized Comparator getTileComparator() {
+        return tileComparator;
+    }
+
+    private void removeEntry(TileKey key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            memoryUsage -= entry.size;
+            policy.onRemove(key);
+        }
+    }
+
+    private void evict(long targetUsage) {
+        while (memoryUsage > targetUsage) {
+            final TileKey key = policy.evict();
+            if (key == null) {
+                break;
+            }
+            final Entry entry = entries.remove(key);
+            if (entry != null) {
+                memoryUsage -= entry.size;
+                evictionCount++;
+            }
+        }
+    }
+
+    private static long computeSize(Raster raster) {
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final long bitsPerElement = DataBuffer.getDataTypeSize(dataBuffer.getDataType());
+        return dataBuffer.getSize() * dataBuffer.getNumBanks() * bitsPerElement / 8;
+    }
+
+    /**
+     * Identifies a tile by its image and tile indices; images are compared by identity.
+     */
+    static final class TileKey {
+
+        private final RenderedImage owner;
+        private final int tileX;
+        private final int tileY;
+
+        TileKey(RenderedImage owner, int tileX, int tileY) {
+            this.owner = owner;
+            this.tileX = tileX;
+            this.tileY = tileY;
+        }
+
+        RenderedImage getOwner() {
+            return owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return owner == other.owner && tileX == other.tileX && tileY == other.tileY;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(owner) * 31 + tileX) * 31 + tileY;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Raster raster;
+        private final long size;
+
+        private Entry(Raster raster, long size) {
+            this.raster = raster;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A snapshot of the counters and the memory usage of the cache.
+     */
+    public static final class Statistics {
+
+        private final String policy;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final int tileCount;
+        private final long memoryUsage;
+        private final long memoryCapacity;
+
+        private Statistics(String policy, long hitCount, long missCount, long evictionCount, int tileCount,
+                           long memoryUsage, long memoryCapacity) {
+            this.policy = policy;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.tileCount = tileCount;
+            this.memoryUsage = memoryUsage;
+            this.memoryCapacity = memoryCapacity;
+        }
+
+        public String getPolicy() {
+            return policy;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public int getTileCount() {
+            return tileCount;
+        }
+
+        public long getMemoryUsage() {
+            return memoryUsage;
+        }
+
+        public long getMemoryCapacity() {
+            return memoryCapacity;
+        }
+
+        /**
+         * @return the ratio of hits to requests, or 0 if there have been no requests.
+         */
+        public double getHitRatio() {
+            final long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 0.0 : (double) hitCount / requestCount;
+        }
+
+        @Override
+        public String toString() {
+            return MessageFormat.format("Auxdata tile cache ({0}): {1} hits, {2} misses ({3} hit ratio), " +
+                                        "{4} evictions, {5} tiles, {6} of {7} MB",
+                                        policy, hitCount, missCount,
+                                        String.format(Locale.ENGLISH, "%.1f%%", 100 * getHitRatio()),
+                                        evictionCount, tileCount,
+                                        String.format(Locale.ENGLISH, "%.1f", (double) memoryUsage / MB),
+                                        String.format(Locale.ENGLISH, "%.1f", (double) memoryCapacity / MB));
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+
+/**
+ * A single-file container for the 1-bit packed SRTM tiles, each of which is split into square blocks that are
+ * encoded by a {@link TileCodec} independently, so that a single block can be read and decoded without the rest of
+ * its tile. This serves isolated point queries, which would otherwise read and cache a whole tile for one bit.
+ * <p/>
+ * Layout: a header of seven ints (magic number, version, codec id, number of tiles in x and y, side length of the
+ * tiles and of the blocks, in pixels), the tile index holding the offset (long) and length (int) of each tile in
+ * row-major order, and the tiles. A tile starts with the offsets of its blocks in row-major order, relative to the
+ * tile, followed by the end offset of the last block, as ints; then the encoded blocks follow. A length of 0 marks
+ * a tile which is not contained.
+ * <p/>
+ * A decoded block holds {@code blockSize} rows of {@code blockSize / 8} bytes, 1-bit packed like the SRTM tiles;
+ * where the side length of a tile is no multiple of the block size, the blocks in the last row and column of the
+ * tile are padded with 0.
+ * <p/>
+ * Containers are written by {@code org.esa.beam.watermask.util.BlockContainerWriter}. An SRTM image reads single
+ * samples from the container if a file named like its zip file, but with the extension {@code .blocks}, exists next
+ * to it (see {@link #getContainerFile(File)}).
+ */
+public final class BlockContainer {
+
+    private static final int MAGIC = 0x574D424B;
+    private static final String FILE_EXTENSION = ".blocks";
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final TileCodec codec;
+    private final int numTilesX;
+    private final int numTilesY;
+    private final int tileSideLength;
+    private final int blockSize;
+    private final int blocksPerSide;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    /**
+     * @param zipFile The zip file of an SRTM image.
+     *
+     * @return the block container file belonging to the given zip file, if it exists.
+     */
+    public static File getContainerFile(File zipFile) {
+        return WatermaskUtils.getSiblingFile(zipFile, FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the block container if it exists for the given zip file.
+     *
+     * @return the container, or {@code null} if there is none.
+     */
+    static BlockContainer openIfExists(File zipFile) throws IOException {
+        final File containerFile = WatermaskUtils.getExistingSiblingFile(zipFile, FILE_EXTENSION);
+        return containerFile != null ? new BlockContainer(containerFile) : null;
+    }
+
+    private BlockContainer(File containerFile) throws IOException {
+        file = new RandomAccessFile(containerFile, "r");
+        try {
+            channel = file.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            WatermaskUtils.readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(MessageFormat.format("''{0}'' is not a block container of version {1}.",
+                                                           containerFile, VERSION));
+            }
+            codec = TileCodec.forId(header.getInt(8));
+            numTilesX = header.getInt(12);
+            numTilesY = header.getInt(16);
+            tileSideLength = header.getInt(20);
+            blockSize = header.getInt(24);
+            blocksPerSide = WatermaskUtils.computeBlocksPerSide(tileSideLength, blockSize);
+            final int numTiles = numTilesX * numTilesY;
+            final ByteBuffer index = ByteBuffer.allocate(numTiles * INDEX_ENTRY_SIZE);
+            WatermaskUtils.readFully(channel, index, HEADER_SIZE);
+            offsets = new long[numTiles];
+            lengths = new int[numTiles];
+            for (int i = 0; i < numTiles; i++) {
+                offsets[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+                lengths[i] = index.getInt(i * INDEX_ENTRY_SIZE + 8);
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    int getTileSideLength() {
+        return tileSideLength;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getBlocksPerSide() {
+        return blocksPerSide;
+    }
+
+    /**
+     * @return the number of bytes of a decoded block.
+     */
+    int getBlockLength() {
+        return blockSize / 8 * blockSize;
+    }
+
+    /**
+     * @return {@code true} if the container holds the given tile.
+     */
+    boolean hasTile(int tileX, int tileY) {
+        return tileX >= 0 && tileX < numTilesX && tileY >= 0 && tileY < numTilesY
+               && lengths[tileY * numTilesX + tileX] > 0;
+    }
+
+    /**
+     * Reads and decodes a single block, by two positional reads: one of its entries in the block offset table, and
+     * one of the encoded block.
+     *
+     * @param tileX  The tile index in x-direction.
+     * @param tileY  The tile index in y-direction.
+     * @param blockX The index of the block within the tile in x-direction.
+     * @param blockY The index of the block within the tile in y-direction.
+     * @param data   Receives the decoded block; must have the length {@link #getBlockLength()}.
+     *
+     * @return the number of encoded bytes which have been read.
+     *
+     * @throws IOException If the tile is not contained or the block cannot be read or decoded.
+     */
+    int readBlock(int tileX, int tileY, int blockX, int blockY, byte[] data) throws IOException {
+        if (!hasTile(tileX, tileY)) {
+            throw new IOException(MessageFormat.format("Tile ''{0} | {1}'' is not contained.", tileX, tileY));
+        }
+        if (blockX < 0 || blockX >= blocksPerSide || blockY < 0 || blockY >= blocksPerSide) {
+            throw new IllegalArgumentException(
+                    MessageFormat.format("Block ''{0} | {1}'' lies outside the tile.", blockX, blockY));
+        }
+        final long tileOffset = offsets[tileY * numTilesX + tileX];
+        final ByteBuffer entry = ByteBuffer.allocate(8);
+        WatermaskUtils.readFully(channel, entry, tileOffset + 4L * (blockY * blocksPerSide + blockX));
+        final int blockOffset = entry.getInt(0);
+        final int blockLength = entry.getInt(4) - blockOffset;
+        if (blockOffset < 0 || blockLength < 0 || blockOffset + blockLength > lengths[tileY * numTilesX + tileX]) {
+            throw new IOException(MessageFormat.format("Corrupt block offset table of tile ''{0} | {1}''.",
+                                                       tileX, tileY));
+        }
+        final ByteBuffer encoded = ByteBuffer.allocate(blockLength);
+        WatermaskUtils.readFully(channel, encoded, tileOffset + blockOffset);
+        encoded.flip();
+        try {
+            codec.decode(encoded, ByteBuffer.wrap(data));
+        } catch (IOException e) {
+            throw new IOException(MessageFormat.format("Failed to decode block ''{0} | {1}'' of tile ''{2} | {3}''.",
+                                                       blockX, blockY, tileX, tileY), e);
+        }
+        return blockLength;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Copies a block out of a 1-bit packed tile, padding it with 0 beyond the tile.
+     *
+     * @param tile           The tile data, rows of {@code tileSideLength / 8} bytes.
+     * @param tileSideLength The side length of the tile in pixels; a multiple of 8.
+     * @param blockSize      The side length of the block in pixels; a multiple of 8.
+     * @param blockX         The index of the block within the tile in x-direction.
+     * @param blockY         The index of the block within the tile in y-direction.
+     *
+     * @return the block data, rows of {@code blockSize / 8} bytes.
+     */
+    static byte[] extractBlock(byte[] tile, int tileSideLength, int blockSize, int blockX, int blockY) {
+        final int tileStride = tileSideLength / 8;
+        final int blockStride = blockSize / 8;
+        final byte[] block = new byte[blockStride * blockSize];
+        final int minX = blockX * blockStride;
+        final int minY = blockY * blockSize;
+        final int rowLength = Math.min(blockStride, tileStride - minX);
+        final int rowCount = Math.min(blockSize, tileSideLength - minY);
+        for (int y = 0; y < rowCount; y++) {
+            System.arraycopy(tile, (minY + y) * tileStride + minX, block, y * blockStride, rowLength);
+        }
+        return block;
+    }
+
+    /**
+     * Writes a block container. Tiles can be written in any order; the index is written on {@link #close()}.
+     */
+    public static final class Writer {
+
+        private final RandomAccessFile file;
+        private final TileCodec codec;
+        private final int numTilesX;
+        private final int numTilesY;
+        private final int tileSideLength;
+        private final int blockSize;
+        private final long[] offsets;
+        private final int[] lengths;
+        private long position;
+
+        /**
+         * Creates the container file.
+         *
+         * @param containerFile  The file to write.
+         * @param numTilesX      The number of tiles of the image in x-direction.
+         * @param numTilesY      The number of tiles of the image in y-direction.
+         * @param tileSideLength The side length of the tiles in pixels; a multiple of 8.
+         * @param blockSize      The side length of the blocks in pixels; a multiple of 8.
+         * @param codec          The codec encoding the blocks.
+         *
+         * @throws IOException If the file cannot be created.
+         */
+        public Writer(File containerFile, int numTilesX, int numTilesY, int tileSideLength, int blockSize,
+                      TileCodec codec) throws IOException {
+            if (tileSideLength <= 0 || tileSideLength % 8 != 0 || blockSize <= 0 || blockSize % 8 != 0) {
+                throw new IllegalArgumentException(
+                        MessageFormat.format("Tile side length {0} and block size {1} need to be multiples of 8.",
+                                             tileSideLength, blockSize));
+            }
+            file = new RandomAccessFile(containerFile, "rw");
+            file.setLength(0);
+            this.codec = codec;
+            this.numTilesX = numTilesX;
+            this.numTilesY = numTilesY;
+            this.tileSideLength = tileSideLength;
+            this.blockSize = blockSize;
+            offsets = new long[numTilesX * numTilesY];
+            lengths = new int[numTilesX * numTilesY];
+            position = HEADER_SIZE + (long) offsets.length * INDEX_ENTRY_SIZE;
+        }
+
+        /**
+         * Splits a tile into blocks, encodes and appends them.
+         *
+         * @param tileX The tile index in x-direction.
+         * @param tileY The tile index in y-direction.
+         * @param tile  The 1-bit packed tile data, as in the SRTM img files.
+         *
+         * @return the number of bytes the tile occupies in the container.
+         *
+         * @throws IOException If the data cannot be written.
+         */
+        public int writeTile(int tileX, int tileY, byte[] tile) throws IOException {
+            if (tileX < 0 || tileX >= numTilesX || tileY < 0 || tileY >= numTilesY) {
+                throw new IllegalArgumentException(
+                        MessageFormat.format("Tile ''{0} | {1}'' lies outside the image.", tileX, tileY));
+            }
+            if (tile.length != tileSideLength / 8 * tileSideLength) {
+                throw new IllegalArgumentException(MessageFormat.format("Invalid tile size: {0}.", tile.length));
+            }
+            final int blocksPerSide = WatermaskUtils.computeBlocksPerSide(tileSideLength, blockSize);
+            final int blockCount = blocksPerSide * blocksPerSide;
+            final byte[][] blocks = new byte[blockCount][];
+            final ByteBuffer table = ByteBuffer.allocate(4 * (blockCount + 1));
+            int blockOffset = table.capacity();
+            for (int blockY = 0; blockY < blocksPerSide; blockY++) {
+                for (int blockX = 0; blockX < blocksPerSide; blockX++) {
+                    final byte[] block = extractBlock(tile, tileSideLength, blockSize, blockX, blockY);
+                    final byte[] encoded = codec.encode(block);
+                    blocks[blockY * blocksPerSide + blockX] = encoded;
+                    table.putInt(blockOffset);
+                    blockOffset += encoded.length;
+                }
+            }
+            table.putInt(blockOffset);
+            file.seek(position);
+            file.write(table.array());
+            for (byte[] encoded : blocks) {
+                file.write(encoded);
+            }
+            offsets[tileY * numTilesX + tileX] = position;
+            lengths[tileY * numTilesX + tileX] = blockOffset;
+            position += blockOffset;
+            return blockOffset;
+        }
+
+        /**
+         * Writes header and index and closes the file.
+         *
+         * @throws IOException If the file cannot be written.
+         */
+        public void close() throws IOException {
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * INDEX_ENTRY_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(codec.getId()).putInt(numTilesX).putInt(numTilesY);
+                header.putInt(tileSideLength).putInt(blockSize);
+                for (int i = 0; i < offsets.length; i++) {
+                    header.putLong(offsets[i]).putInt(lengths[i]);
+                }
+                file.seek(0);
+                file.write(header.array());
+                file.setLength(position);
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+/**
+ * Tells for the blocks of the stored SRTM tiles whether they are all land, all water, invalid or mixed, at a
+ * hierarchy of block sizes (by default 512, 128 and 32 pixels), so that homogeneous regions are recognised without
+ * reading pixel data. A mixed block is resolved by the blocks of the next finer level within it.
+ * <p/>
+ * Layout: a header of six ints (magic number, version, number of tiles in x and y, side length of the tiles, number
+ * of levels), the block size of each level from coarse to fine, and the offset of the summary of each tile in
+ * row-major order (int, -1 for tiles which are not stored). The summary of a tile holds its levels from coarse to
+ * fine; each level holds a 2-bit code per block in row-major order, four blocks per byte starting in the most
+ * significant bits, and is padded to a whole byte. Where the side length of a tile is no multiple of a block size,
+ * the blocks in the last row and column are smaller.
+ * <p/>
+ * Indexes are written by {@code org.esa.beam.watermask.util.BlockSummaryIndexGenerator}. An SRTM image uses the
+ * index if a file named like its zip file, but with the extension {@code .summary}, exists next to it (see
+ * {@link #getIndexFile(File)}). The index is memory-mapped, so only the summaries of queried tiles are loaded.
+ */
+public final class BlockSummaryIndex {
+
+    /**
+     * The value of regions whose pixels differ, or which are not covered by the index.
+     */
+    public static final int MIXED = -1;
+
+    private static final int MAGIC = 0x574D4253;
+    private static final String FILE_EXTENSION = ".summary";
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final int LAND_CODE = 0;
+    private static final int WATER_CODE = 1;
+    private static final int INVALID_CODE = 2;
+    private static final int MIXED_CODE = 3;
+
+    private final MappedByteBuffer buffer;
+    private final int numTilesX;
+    private final int numTilesY;
+    private final int tileSideLength;
+    private final int[] blockSizes;
+    private final int[] levelOffsets;
+    private final int[] tileOffsets;
+
+    /**
+     * @param zipFile The zip file of an SRTM image.
+     *
+     * @return the index file of the given zip file, if it exists.
+     */
+    public static File getIndexFile(File zipFile) {
+        return WatermaskUtils.getSiblingFile(zipFile, FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the index if it exists for the given zip file.
+     *
+     * @return the index, or {@code null} if there is none.
+     */
+    static BlockSummaryIndex openIfExists(File zipFile) throws IOException {
+        final File indexFile = WatermaskUtils.getExistingSiblingFile(zipFile, FILE_EXTENSION);
+        if (indexFile == null) {
+            return null;
+        }
+        final RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException(MessageFormat.format("''{0}'' is not a block summary index of version {1}.",
+                                                           indexFile, VERSION));
+            }
+            return new BlockSummaryIndex(buffer);
+        } finally {
+            // the mapping stays valid after the file has been closed
+            file.close();
+        }
+    }
+
+    private BlockSummaryIndex(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        numTilesX = buffer.getInt(8);
+        numTilesY = buffer.getInt(12);
+        tileSideLength = buffer.getInt(16);
+        blockSizes = new int[buffer.getInt(20)];
+        for (int level = 0; level < blockSizes.length; level++) {
+            blockSizes[level] = buffer.getInt(HEADER_SIZE + 4 * level);
+        }
+        levelOffsets = computeLevelOffsets(tileSideLength, blockSizes);
+        tileOffsets = new int[numTilesX * numTilesY];
+        final int tileIndexOffset = HEADER_SIZE + 4 * blockSizes.length;
+        for (int i = 0; i < tileOffsets.length; i++) {
+            tileOffsets[i] = buffer.getInt(tileIndexOffset + 4 * i);
+        }
+    }
+
+    int getTileSideLength() {
+        return tileSideLength;
+    }
+
+    /**
+     * Tells whether all pixels of a rectangle within a tile have the same value.
+     *
+     * @param tileX The tile index in x-direction.
+     * @param tileY The tile index in y-direction.
+     * @param minX  The first pixel column of the rectangle, relative to the tile.
+     * @param minY  The first pixel row of the rectangle, relative to the tile.
+     * @param maxX  The last pixel column of the rectangle, relative to the tile.
+     * @param maxY  The last pixel row of the rectangle, relative to the tile.
+     *
+     * @return {@link WatermaskClassifier#LAND_VALUE}, {@link WatermaskClassifier#WATER_VALUE} or
+     * {@link WatermaskClassifier#INVALID_VALUE}, or {@link #MIXED} if the pixels differ or the tile is not stored.
+     */
+    int getValue(int tileX, int tileY, int minX, int minY, int maxX, int maxY) {
+        if (tileX < 0 || tileX >= numTilesX || tileY < 0 || tileY >= numTilesY
+            || tileOffsets[tileY * numTilesX + tileX] < 0) {
+            return MIXED;
+        }
+        return getLevelValue(tileOffsets[tileY * numTilesX + tileX], 0, Math.max(minX, 0), Math.max(minY, 0),
+                             Math.min(maxX, tileSideLength - 1), Math.min(maxY, tileSideLength - 1));
+    }
+
+    private int getLevelValue(int tileOffset, int level, int minX, int minY, int maxX, int maxY) {
+        final int blockSize = blockSizes[level];
+        final int blocksPerSide = WatermaskUtils.computeBlocksPerSide(tileSideLength, blockSize);
+        final int levelOffset = tileOffset + levelOffsets[level];
+        int value = MIXED;
+        for (int blockY = minY / blockSize; blockY <= maxY / blockSize; blockY++) {
+            for (int blockX = minX / blockSize; blockX <= maxX / blockSize; blockX++) {
+                final int code = getCode(levelOffset, blockY * blocksPerSide + blockX);
+                final int blockValue;
+                if (code != MIXED_CODE) {
+                    blockValue = toValue(code);
+                } else if (level + 1 < blockSizes.length) {
+                    blockValue = getLevelValue(tileOffset, level + 1,
+                                               Math.max(minX, blockX * blockSize), Math.max(minY, blockY * blockSize),
+                                               Math.min(maxX, (blockX + 1) * blockSize - 1),
+                                               Math.min(maxY, (blockY + 1) * blockSize - 1));
+                } else {
+                    return MIXED;
+                }
+                if (blockValue == MIXED || value != MIXED && blockValue != value) {
+                    return MIXED;
+                }
+                value = blockValue;
+            }
+        }
+        return value;
+    }
+
+    private int getCode(int levelOffset, int blockIndex) {
+        final int codes = buffer.get(levelOffset + blockIndex / 4);
+        return (codes >>> (6 - 2 * (blockIndex % 4))) & 3;
+    }
+
+    private static int toValue(int code) {
+        switch (code) {
+            case LAND_CODE:
+                return WatermaskClassifier.LAND_VALUE;
+            case WATER_CODE:
+                return WatermaskClassifier.WATER_VALUE;
+            default:
+                return WatermaskClassifier.INVALID_VALUE;
+        }
+    }
+
+    /**
+     * @return the offset of each level within the summary of a tile, followed by the length of the summary.
+     */
+    static int[] computeLevelOffsets(int tileSideLength, int[] blockSizes) {
+        final int[] offsets = new int[blockSizes.length + 1];
+        for (int level = 0; level < blockSizes.length; level++) {
+            final int blocksPerSide = WatermaskUtils.computeBlocksPerSide(tileSideLength, blockSizes[level]);
+            offsets[level + 1] = offsets[level] + (blocksPerSide * blocksPerSide + 3) / 4;
+        }
+        return offsets;
+    }
+
+    /**
+     * Computes the summary of a tile, as stored in the index.
+     *
+     * @param tile           The 1-bit packed tile data, as in the SRTM img files.
+     * @param tileSideLength The side length of the tile in pixels; a multiple of 8.
+     * @param blockSizes     The block size of each level from coarse to fine; multiples of 8.
+     *
+     * @return the summary.
+     */
+    static byte[] computeTileSummary(byte[] tile, int tileSideLength, int[] blockSizes) {
+        final int[] levelOffsets = computeLevelOffsets(tileSideLength, blockSizes);
+        final byte[] summary = new byte[levelOffsets[blockSizes.length]];
+        final int stride = tileSideLength / 8;
+        for (int level = 0; level < blockSizes.length; level++) {
+            final int blockSize = blockSizes[level];
+            final int blocksPerSide = WatermaskUtils.computeBlocksPerSide(tileSideLength, blockSize);
+            for (int blockY = 0; blockY < blocksPerSide; blockY++) {
+                for (int blockX = 0; blockX < blocksPerSide; blockX++) {
+                    // blocks start at byte boundaries, so whole bytes are compared
+                    final int minByte = blockX * blockSize / 8;
+                    final int maxByte = Math.min((blockX + 1) * blockSize / 8, stride);
+                    final int maxY = Math.min((blockY + 1) * blockSize, tileSideLength);
+                    final byte first = tile[blockY * blockSize * stride + minByte];
+                    int code = first == 0 ? LAND_CODE : first == (byte) 0xFF ? WATER_CODE : MIXED_CODE;
+                    for (int y = blockY * blockSize; y < maxY && code != MIXED_CODE; y++) {
+                        for (int i = y * stride + minByte; i < y * stride + maxByte; i++) {
+                            if (tile[i] != first) {
+                                code = MIXED_CODE;
+                                break;
+                            }
+                        }
+                    }
+                    final int blockIndex = blockY * blocksPerSide + blockX;
+                    summary[levelOffsets[level] + blockIndex / 4] |= code << (6 - 2 * (blockIndex % 4));
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Writes an index. Tiles can be written in any order; the header is written on {@link #close()}.
+     */
+    public static final class Writer {
+
+        private final RandomAccessFile file;
+        private final int numTilesX;
+        private final int numTilesY;
+        private final int tileSideLength;
+        private final int[] blockSizes;
+        private final int[] tileOffsets;
+        private long position;
+
+        /**
+         * Creates the index file.
+         *
+         * @param indexFile      The file to write.
+         * @param numTilesX      The number of tiles of the image in x-direction.
+         * @param numTilesY      The number of tiles of the image in y-direction.
+         * @param tileSideLength The side length of the tiles in pixels; a multiple of 8.
+         * @param blockSizes     The block size of each level from coarse to fine; multiples of 8.
+         *
+         * @throws IOException If the file cannot be created.
+         */
+        public Writer(File indexFile, int numTilesX, int numTilesY, int tileSideLength, int[] blockSizes)
+                throws IOException {
+            if (tileSideLength <= 0 || tileSideLength % 8 != 0) {
+                throw new IllegalArgumentException(
+                        MessageFormat.format("Tile side length {0} needs to be a multiple of 8.", tileSideLength));
+            }
+            for (int level = 0; level < blockSizes.length; level++) {
+                if (blockSizes[level] <= 0 || blockSizes[level] % 8 != 0
+                    || level > 0 && blockSizes[level] >= blockSizes[level - 1]) {
+                    throw new IllegalArgumentException(
+                            "Block sizes need to be multiples of 8, in descending order.");
+                }
+            }
+            file = new RandomAccessFile(indexFile, "rw");
+            file.setLength(0);
+            this.numTilesX = numTilesX;
+            this.numTilesY = numTilesY;
+            this.tileSideLength = tileSideLength;
+            this.blockSizes = blockSizes.clone();
+            tileOffsets = new int[numTilesX * numTilesY];
+            Arrays.fill(tileOffsets, -1);
+            position = HEADER_SIZE + 4L * blockSizes.length + 4L * tileOffsets.length;
+        }
+
+        /**
+         * Computes and appends the summary of a tile.
+         *
+         * @param tileX The tile index in x-direction.
+         * @param tileY The tile index in y-direction.
+         * @param tile  The 1-bit packed tile data, as in the SRTM img files.
+         *
+         * @return the summary of the tile.
+         *
+         * @throws IOException If the data cannot be written.
+         */
+        public byte[] writeTile(int tileX, int tileY, byte[] tile) throws IOException {
+            if (tileX < 0 || tileX >= numTilesX || tileY < 0 || tileY >= numTilesY) {
+                throw new IllegalArgumentException(
+                        MessageFormat.format("Tile ''{0} | {1}'' lies outside the image.", tileX, tileY));
+            }
+            if (tile.length != tileSideLength / 8 * tileSideLength) {
+                throw new IllegalArgumentException(MessageFormat.format("Invalid tile size: {0}.", tile.length));
+            }
+            final byte[] summary = computeTileSummary(tile, tileSideLength, blockSizes);
+            if (position + summary.length > Integer.MAX_VALUE) {
+                throw new IOException("Block summary index exceeds 2 GB.");
+            }
+            file.seek(position);
+            file.write(summary);
+            tileOffsets[tileY * numTilesX + tileX] = (int) position;
+            position += summary.length;
+            return summary;
+        }
+
+        /**
+         * Writes the header and closes the file.
+         *
+         * @throws IOException If the file cannot be written.
+         */
+        public void close() throws IOException {
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * blockSizes.length
+                                                              + 4 * tileOffsets.length);
+                header.putInt(MAGIC).putInt(VERSION).putInt(numTilesX).putInt(numTilesY).putInt(tileSideLength);
+                header.putInt(blockSizes.length);
+                for (int blockSize : blockSizes) {
+                    header.putInt(blockSize);
+                }
+                for (int tileOffset : tileOffsets) {
+                    header.putInt(tileOffset);
+                }
+                file.seek(0);
+                file.write(header.array());
+                file.setLength(position);
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.MessageFormat;
+
+/**
+ * Tells for each tile of the GlobCover image whether all of its pixels have the same value, so that it can be served
+ * as a constant raster instead of decoding its PNG. This is the case for most tiles of the Arctic Ocean, and for
+ * tiles entirely over land.
+ * <p/>
+ * Layout: a header of four ints (magic number, version, number of tiles in x and y), followed by one byte per tile
+ * in row-major order, holding the constant value of the tile or {@link #MIXED_TILE}. Tiles missing from the zip
+ * file have the value {@link WatermaskClassifier#INVALID_VALUE}.
+ * <p/>
+ * Indexes are written by {@code org.esa.beam.watermask.util.ConstantTilesIndexGenerator}. An image uses the index
+ * if a file named like its zip file, but with the extension {@code .constant}, exists next to it (see
+ * {@link #getIndexFile(File)}).
+ */
+public final class ConstantTilesIndex {
+
+    public static final int MIXED_TILE = -1;
+
+    private static final int MAGIC = 0x574D4354;
+    private static final String FILE_EXTENSION = ".constant";
+    private static final int VERSION = 1;
+
+    private final int numTilesX;
+    private final int numTilesY;
+    private final byte[] tileValues;
+
+    /**
+     * @param zipFile The zip file of an auxdata image.
+     *
+     * @return the index file of the given zip file, if it exists.
+     */
+    public static File getIndexFile(File zipFile) {
+        return WatermaskUtils.getSiblingFile(zipFile, FILE_EXTENSION);
+    }
+
+    /**
+     * Reads the index if it exists for the given zip file.
+     *
+     * @return the index, or {@code null} if there is none.
+     */
+    static ConstantTilesIndex readIfExists(File zipFile) throws IOException {
+        final File indexFile = WatermaskUtils.getExistingSiblingFile(zipFile, FILE_EXTENSION);
+        if (indexFile == null) {
+            return null;
+        }
+        final DataInputStream inputStream = new DataInputStream(new FileInputStream(indexFile));
+        try {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                throw new IOException(MessageFormat.format("''{0}'' is not a constant tiles index of version {1}.",
+                                                           indexFile, VERSION));
+            }
+            final int numTilesX = inputStream.readInt();
+            final int numTilesY = inputStream.readInt();
+            final byte[] tileValues = new byte[numTilesX * numTilesY];
+            inputStream.readFully(tileValues);
+            return new ConstantTilesIndex(numTilesX, numTilesY, tileValues);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Writes an index.
+     *
+     * @param indexFile  The file to write.
+     * @param numTilesX  The number of tiles of the image in x-direction.
+     * @param numTilesY  The number of tiles of the image in y-direction.
+     * @param tileValues The value of each tile in row-major order, or {@link #MIXED_TILE}.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(File indexFile, int numTilesX, int numTilesY, byte[] tileValues) throws IOException {
+        if (tileValues.length != numTilesX * numTilesY) {
+            throw new IllegalArgumentException(MessageFormat.format("Expected {0} tile values, got {1}.",
+                                                                    numTilesX * numTilesY, tileValues.length));
+        }
+        final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(indexFile));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(numTilesX);
+            outputStream.writeInt(numTilesY);
+            outputStream.write(tileValues);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private ConstantTilesIndex(int numTilesX, int numTilesY, byte[] tileValues) {
+        this.numTilesX = numTilesX;
+        this.numTilesY = numTilesY;
+        this.tileValues = tileValues;
+    }
+
+    /**
+     * @param tileX The tile index in x-direction.
+     * @param tileY The tile index in y-direction.
+     *
+     * @return the constant value of the tile, or {@link #MIXED_TILE} if its pixels differ or it lies outside of the
+     * index.
+     */
+    int getTileValue(int tileX, int tileY) {
+        if (tileX < 0 || tileX >= numTilesX || tileY < 0 || tileY >= numTilesY) {
+            return MIXED_TILE;
+        }
+        return tileValues[tileY * numTilesX + tileX];
+    }
+}
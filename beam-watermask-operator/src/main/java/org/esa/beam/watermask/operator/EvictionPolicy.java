@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.awt.image.RenderedImage;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides which tile the {@link AuxdataTileCache} evicts next. The policy only keeps track of the tile keys and
+ * their sizes in bytes; it is not thread-safe and is guarded by the cache.
+ */
+abstract class EvictionPolicy {
+
+    static final String LRU = "LRU";
+    static final String SLRU = "SLRU";
+    static final String ARC = "ARC";
+
+    /**
+     * Creates the policy of the given name.
+     *
+     * @param name     One of {@link #LRU}, {@link #SLRU} or {@link #ARC}, case is ignored.
+     * @param capacity The memory capacity of the cache, in bytes.
+     *
+     * @return the policy.
+     */
+    static EvictionPolicy create(String name, long capacity) {
+        final EvictionPolicy policy;
+        if (LRU.equalsIgnoreCase(name)) {
+            policy = new Lru();
+        } else if (SLRU.equalsIgnoreCase(name)) {
+            policy = new SegmentedLru();
+        } else if (ARC.equalsIgnoreCase(name)) {
+            policy = new Arc();
+        } else {
+            throw new IllegalArgumentException(
+                    MessageFormat.format("Unknown eviction policy ''{0}''; needs to be {1}, {2} or {3}.",
+                                         name, LRU, SLRU, ARC));
+        }
+        policy.setCapacity(capacity);
+        return policy;
+    }
+
+    abstract String getName();
+
+    void setCapacity(long capacity) {
+    }
+
+    /**
+     * Called when a cached tile is requested.
+     */
+    abstract void onHit(AuxdataTileCache.TileKey key);
+
+    /**
+     * Called when a tile is added to the cache.
+     */
+    abstract void onAdd(AuxdataTileCache.TileKey key, long size);
+
+    /**
+     * Called when a tile is removed from the cache other than by {@link #evict()}.
+     */
+    abstract void onRemove(AuxdataTileCache.TileKey key);
+
+    /**
+     * Called when all tiles of an image are removed; forgets any further information about the image.
+     */
+    void onRemoveImage(RenderedImage owner) {
+    }
+
+    /**
+     * Selects the next tile to evict and forgets it.
+     *
+     * @return the key of the tile, or {@code null} if no tile is left.
+     */
+    abstract AuxdataTileCache.TileKey evict();
+
+    abstract void clear();
+
+    private static AuxdataTileCache.TileKey removeEldest(Map<AuxdataTileCache.TileKey, Long> entries) {
+        final Iterator<AuxdataTileCache.TileKey> iterator = entries.keySet().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        final AuxdataTileCache.TileKey key = iterator.next();
+        iterator.remove();
+        return key;
+    }
+
+    private static void removeImage(Map<AuxdataTileCache.TileKey, Long> entries, RenderedImage owner) {
+        final Iterator<AuxdataTileCache.TileKey> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getOwner() == owner) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used tile.
+     */
+    private static final class Lru extends EvictionPolicy {
+
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> entries =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>(16, 0.75F, true);
+
+        @Override
+        String getName() {
+            return LRU;
+        }
+
+        @Override
+        void onHit(AuxdataTileCache.TileKey key) {
+            entries.get(key);
+        }
+
+        @Override
+        void onAdd(AuxdataTileCache.TileKey key, long size) {
+            entries.put(key, size);
+        }
+
+        @Override
+        void onRemove(AuxdataTileCache.TileKey key) {
+            entries.remove(key);
+        }
+
+        @Override
+        AuxdataTileCache.TileKey evict() {
+            return removeEldest(entries);
+        }
+
+        @Override
+        void clear() {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Segmented LRU: new tiles enter a probationary segment and are promoted to a protected segment when they are
+     * requested again. Tiles which are read only once, as during a single pass over a long swath, are evicted from
+     * the probationary segment first and do not displace tiles which are used repeatedly.
+     */
+    private static final class SegmentedLru extends EvictionPolicy {
+
+        private static final double PROTECTED_RATIO = 0.8;
+
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> probationary =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>();
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> protectedSegment =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>(16, 0.75F, true);
+        private long protectedSize;
+        private long protectedCapacity;
+
+        @Override
+        String getName() {
+            return SLRU;
+        }
+
+        @Override
+        void setCapacity(long capacity) {
+            protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        }
+
+        @Override
+        void onHit(AuxdataTileCache.TileKey key) {
+            final Long size = probationary.remove(key);
+            if (size == null) {
+                protectedSegment.get(key);
+                return;
+            }
+            protectedSegment.put(key, size);
+            protectedSize += size;
+            while (protectedSize > protectedCapacity && protectedSegment.size() > 1) {
+                final AuxdataTileCache.TileKey demoted = protectedSegment.keySet().iterator().next();
+                final Long demotedSize = protectedSegment.remove(demoted);
+                protectedSize -= demotedSize;
+                probationary.put(demoted, demotedSize);
+            }
+        }
+
+        @Override
+        void onAdd(AuxdataTileCache.TileKey key, long size) {
+            probationary.put(key, size);
+        }
+
+        @Override
+        void onRemove(AuxdataTileCache.TileKey key) {
+            if (probationary.remove(key) == null) {
+                final Long size = protectedSegment.remove(key);
+                if (size != null) {
+                    protectedSize -= size;
+                }
+            }
+        }
+
+        @Override
+        AuxdataTileCache.TileKey evict() {
+            if (!probationary.isEmpty()) {
+                return removeEldest(probationary);
+            }
+            if (protectedSegment.isEmpty()) {
+                return null;
+            }
+            final AuxdataTileCache.TileKey key = protectedSegment.keySet().iterator().next();
+            protectedSize -= protectedSegment.remove(key);
+            return key;
+        }
+
+        @Override
+        void clear() {
+            probationary.clear();
+            protectedSegment.clear();
+            protectedSize = 0;
+        }
+    }
+
+    /**
+     * An adaptive replacement cache (ARC) weighted by tile size. Tiles requested once and tiles requested repeatedly
+     * are kept in separate lists; the keys of recently evicted tiles are remembered as ghosts. A request for a ghost
+     * shifts the target size of the first list towards the list the ghost was evicted from, so the policy adapts
+     * between recency (small products revisiting tiles) and frequency (swaths streaming through many tiles).
+     */
+    private static final class Arc extends EvictionPolicy {
+
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> recent =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>();
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> frequent =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>();
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> recentGhosts =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>();
+        private final LinkedHashMap<AuxdataTileCache.TileKey, Long> frequentGhosts =
+                new LinkedHashMap<AuxdataTileCache.TileKey, Long>();
+        private long recentSize;
+        private long frequentSize;
+        private long recentGhostsSize;
+        private long frequentGhostsSize;
+        private long capacity;
+        private long recentTarget;
+
+        @Override
+        String getName() {
+            return ARC;
+        }
+
+        @Override
+        void setCapacity(long capacity) {
+            this.capacity = capacity;
+            recentTarget = Math.min(recentTarget, capacity);
+        }
+
+        @Override
+        void onHit(AuxdataTileCache.TileKey key) {
+            final Long size = recent.remove(key);
+            if (size != null) {
+                recentSize -= size;
+                frequent.put(key, size);
+                frequentSize += size;
+            } else {
+                final Long frequentEntrySize = frequent.remove(key);
+                if (frequentEntrySize != null) {
+                    frequent.put(key, frequentEntrySize);
+                }
+            }
+        }
+
+        @Override
+        void onAdd(AuxdataTileCache.TileKey key, long size) {
+            final Long recentGhostSize = recentGhosts.remove(key);
+            final Long frequentGhostSize = frequentGhosts.remove(key);
+            if (recentGhostSize != null) {
+                recentGhostsSize -= recentGhostSize;
+                final long delta = Math.max(size, frequentGhostsSize * size / Math.max(recentGhostsSize, 1));
+                recentTarget = Math.min(capacity, recentTarget + delta);
+                frequent.put(key, size);
+                frequentSize += size;
+            } else if (frequentGhostSize != null) {
+                frequentGhostsSize -= frequentGhostSize;
+                final long delta = Math.max(size, recentGhostsSize * size / Math.max(frequentGhostsSize, 1));
+                recentTarget = Math.max(0, recentTarget - delta);
+                frequent.put(key, size);
+                frequentSize += size;
+            } else {
+                recent.put(key, size);
+                recentSize += size;
+            }
+            trimGhosts();
+        }
+
+        @Override
+        void onRemove(AuxdataTileCache.TileKey key) {
+            final Long size = recent.remove(key);
+            if (size != null) {
+                recentSize -= size;
+            } else {
+                final Long frequentEntrySize = frequent.remove(key);
+                if (frequentEntrySize != null) {
+                    frequentSize -= frequentEntrySize;
+                }
+            }
+        }
+
+        @Override
+        void onRemoveImage(RenderedImage owner) {
+            removeImage(recentGhosts, owner);
+            removeImage(frequentGhosts, owner);
+            recentGhostsSize = sum(recentGhosts);
+            frequentGhostsSize = sum(frequentGhosts);
+        }
+
+        @Override
+        AuxdataTileCache.TileKey evict() {
+            if (!recent.isEmpty() && (recentSize > recentTarget || frequent.isEmpty())) {
+                final AuxdataTileCache.TileKey key = recent.keySet().iterator().next();
+                final Long size = recent.remove(key);
+                recentSize -= size;
+                recentGhosts.put(key, size);
+                recentGhostsSize += size;
+                return key;
+            }
+            if (!frequent.isEmpty()) {
+                final AuxdataTileCache.TileKey key = frequent.keySet().iterator().next();
+                final Long size = frequent.remove(key);
+                frequentSize -= size;
+                frequentGhosts.put(key, size);
+                frequentGhostsSize += size;
+                return key;
+            }
+            return null;
+        }
+
+        @Override
+        void clear() {
+            recent.clear();
+            frequent.clear();
+            recentGhosts.clear();
+            frequentGhosts.clear();
+            recentSize = 0;
+            frequentSize = 0;
+            recentGhostsSize = 0;
+            frequentGhostsSize = 0;
+            recentTarget = 0;
+        }
+
+        /**
+         * Keeps the ghosts of each list within the capacity.
+         */
+        private void trimGhosts() {
+            while (recentGhostsSize > capacity && !recentGhosts.isEmpty()) {
+                final AuxdataTileCache.TileKey key = recentGhosts.keySet().iterator().next();
+                recentGhostsSize -= recentGhosts.remove(key);
+            }
+            while (frequentGhostsSize > capacity && !frequentGhosts.isEmpty()) {
+                final AuxdataTileCache.TileKey key = frequentGhosts.keySet().iterator().next();
+                frequentGhostsSize -= frequentGhosts.remove(key);
+            }
+        }
+
+        private static long sum(Map<AuxdataTileCache.TileKey, Long> entries) {
+            long sum = 0;
+            for (Long size : entries.values()) {
+                sum += size;
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * A level of the water fraction pyramid. Each pixel holds the percentage of water within a block of
+ * {@code factor x factor} pixels of the 1-bit SRTM water mask, in the range [0..100]. The mask is reduced tile by
+ * tile; where the side length of a tile is no multiple of the factor, the blocks in the last row and column of the
+ * tile are smaller. The levels are created by {@code org.esa.beam.watermask.util.FractionPyramidBuilder}.
+ */
+class FractionPyramidLevel {
+
+    private final int factor;
+    private final int baseSideLength;
+    private final int sideLength;
+    private final SRTMOpImage image;
+
+    /**
+     * Finds the coarsest level available in the given directory whose factor does not exceed the given
+     * sub-sampling factor.
+     *
+     * @param auxdataDir  The directory containing the pyramid levels.
+     * @param resolution  The resolution of the water mask, 50 or 150.
+     * @param subSampling The sub-sampling factor.
+     *
+     * @return the factor of the level, or 0 if none is available.
+     */
+    static int findFactor(File auxdataDir, int resolution, int subSampling) {
+        final int[] factors = WatermaskUtils.FRACTION_PYRAMID_FACTORS;
+        for (int i = factors.length - 1; i >= 0; i--) {
+            final int factor = factors[i];
+            if (factor <= subSampling && getZipFile(auxdataDir, resolution, factor).isFile()) {
+                return factor;
+            }
+        }
+        return 0;
+    }
+
+    static int computeSideLength(int baseSideLength, int factor) {
+        return (baseSideLength + factor - 1) / factor;
+    }
+
+    /**
+     * Opens the level with the given factor.
+     *
+     * @param pack The auxdata pack the level is read from, or {@code null}.
+     *
+     * @throws IOException If the level cannot be opened.
+     */
+    FractionPyramidLevel(File auxdataDir, int resolution, int factor, AuxdataPack pack) throws IOException {
+        this.factor = factor;
+        this.baseSideLength = WatermaskUtils.computeSideLength(resolution);
+        this.sideLength = computeSideLength(baseSideLength, factor);
+        final Properties properties = new Properties();
+        properties.setProperty("width", String.valueOf(sideLength * 360));
+        properties.setProperty("height", String.valueOf(sideLength * 180));
+        properties.setProperty("tileWidth", String.valueOf(sideLength));
+        properties.setProperty("tileHeight", String.valueOf(sideLength));
+        properties.setProperty("dataType", "0");
+        image = SRTMOpImage.create(properties, getZipFile(auxdataDir, resolution, factor), 100, pack);
+    }
+
+    private static File getZipFile(File auxdataDir, int resolution, int factor) {
+        return new File(auxdataDir, WatermaskUtils.createFractionPyramidFileName(resolution, factor));
+    }
+
+    int getFactor() {
+        return factor;
+    }
+
+    SRTMOpImage getImage() {
+        return image;
+    }
+
+    /**
+     * Converts a pixel coordinate of the water mask into the coordinate of the level pixel containing it.
+     */
+    int toLevelCoordinate(int baseCoordinate) {
+        final int tileIndex = baseCoordinate / baseSideLength;
+        return tileIndex * sideLength + (baseCoordinate - tileIndex * baseSideLength) / factor;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+
+import java.awt.Rectangle;
+
+/**
+ * Provides the geo-positions of all super-samples of a pixel rectangle, one row of super-samples at a time.
+ * <p/>
+ * If a grid step greater than 1 is given, the geo-coding is only evaluated on a coarse grid of super-samples and
+ * the positions in between are interpolated bilinearly. Each grid cell is checked at its centre; cells where the
+ * interpolation error exceeds the given bound, or which have an invalid corner, are evaluated exactly.
+ * Longitudes are unwrapped before interpolation, so cells crossing the anti-meridian are interpolated correctly
+ * (see BEAM-1782). Invalid geo-positions are reported as {@code NaN}.
+ */
+class GeoPosGrid {
+
+    private final GeoCoding geoCoding;
+    private final Rectangle rectangle;
+    private final float[] samplingStepsX;
+    private final float[] samplingStepsY;
+    private final int numSamplesX;
+
+    private final int[] nodeCols;
+    private final int[] nodeRows;
+    private final int gridStep;
+    private final float[] nodeLats;
+    private final float[] nodeLons;
+    private final boolean[] exactCells;
+
+    private final GeoPos geoPos;
+    private final PixelPos pixelPos;
+
+    /**
+     * Creates the geo-position grid for the given rectangle.
+     *
+     * @param geoCoding      The geo-coding of the source product.
+     * @param rectangle      The pixel rectangle.
+     * @param samplingStepsX The super-sampling steps within a pixel in x-direction.
+     * @param samplingStepsY The super-sampling steps within a pixel in y-direction.
+     * @param gridStep       The distance of the exactly computed grid nodes, in super-samples. A value &le; 1
+     *                       means that all geo-positions are computed exactly.
+     * @param maxError       The maximum tolerated interpolation error, in degree.
+     */
+    GeoPosGrid(GeoCoding geoCoding, Rectangle rectangle, float[] samplingStepsX, float[] samplingStepsY,
+               int gridStep, double maxError) {
+        this.geoCoding = geoCoding;
+        this.rectangle = rectangle;
+        this.samplingStepsX = samplingStepsX;
+        this.samplingStepsY = samplingStepsY;
+        this.numSamplesX = rectangle.width * samplingStepsX.length;
+        this.geoPos = new GeoPos();
+        this.pixelPos = new PixelPos();
+
+        if (gridStep <= 1) {
+            this.gridStep = 1;
+            nodeCols = null;
+            nodeRows = null;
+            nodeLats = null;
+            nodeLons = null;
+            exactCells = null;
+        } else {
+            this.gridStep = gridStep;
+            nodeCols = createNodes(numSamplesX, gridStep);
+            nodeRows = createNodes(rectangle.height * samplingStepsY.length, gridStep);
+            nodeLats = new float[nodeCols.length * nodeRows.length];
+            nodeLons = new float[nodeCols.length * nodeRows.length];
+            exactCells = new boolean[(nodeCols.length - 1) * (nodeRows.length - 1)];
+            computeNodes();
+            checkCells(maxError);
+        }
+    }
+
+    /**
+     * Computes the geo-positions of the given row of super-samples.
+     *
+     * @param sampleRow The row of super-samples, relative to the rectangle.
+     * @param lats      Receives the latitudes; must hold at least {@code rectangle.width * samplingStepsX.length}
+     *                  elements.
+     * @param lons      Receives the longitudes; must hold at least {@code rectangle.width * samplingStepsX.length}
+     *                  elements. Interpolated longitudes are wrapped into the range [-180, 180).
+     */
+    void getRow(int sampleRow, float[] lats, float[] lons) {
+        getRow(sampleRow, 0, numSamplesX, lats, lons);
+    }
+
+    /**
+     * Computes the geo-positions of a part of the given row of super-samples; they are the same as those computed
+     * by {@link #getRow(int, float[], float[])}.
+     *
+     * @param sampleRow The row of super-samples, relative to the rectangle.
+     * @param fromCol   The first super-sample column to compute.
+     * @param toCol     The super-sample column after the last one to compute.
+     * @param lats      Receives the latitudes at the indices of the columns.
+     * @param lons      Receives the longitudes at the indices of the columns.
+     */
+    void getRow(int sampleRow, int fromCol, int toCol, float[] lats, float[] lons) {
+        if (exactCells == null) {
+            for (int sampleCol = fromCol; sampleCol < toCol; sampleCol++) {
+                computeExact(sampleCol, sampleRow);
+                lats[sampleCol] = geoPos.lat;
+                lons[sampleCol] = geoPos.lon;
+            }
+            return;
+        }
+        final int numCellCols = nodeCols.length - 1;
+        final int cellRow = Math.min(sampleRow / gridStep, nodeRows.length - 2);
+        final float wy = weight(sampleRow, nodeRows[cellRow], nodeRows[cellRow + 1]);
+        final int firstCellCol = Math.min(fromCol / gridStep, numCellCols - 1);
+        for (int cellCol = firstCellCol; cellCol < numCellCols && nodeCols[cellCol] < toCol; cellCol++) {
+            final int col0 = nodeCols[cellCol];
+            final int col1 = nodeCols[cellCol + 1];
+            final int firstCol = Math.max(col0, fromCol);
+            final int lastCol = Math.min(cellCol == numCellCols - 1 ? col1 : col1 - 1, toCol - 1);
+            if (exactCells[cellRow * numCellCols + cellCol]) {
+                for (int sampleCol = firstCol; sampleCol <= lastCol; sampleCol++) {
+                    computeExact(sampleCol, sampleRow);
+                    lats[sampleCol] = geoPos.lat;
+                    lons[sampleCol] = geoPos.lon;
+                }
+            } else {
+                final int i00 = cellRow * nodeCols.length + cellCol;
+                final int i10 = i00 + 1;
+                final int i01 = i00 + nodeCols.length;
+                final int i11 = i01 + 1;
+                final float lat0 = nodeLats[i00] + wy * (nodeLats[i01] - nodeLats[i00]);
+                final float lat1 = nodeLats[i10] + wy * (nodeLats[i11] - nodeLats[i10]);
+                final float lon0 = nodeLons[i00] + wy * (nodeLons[i01] - nodeLons[i00]);
+                final float lon1 = nodeLons[i10] + wy * (nodeLons[i11] - nodeLons[i10]);
+                for (int sampleCol = firstCol; sampleCol <= lastCol; sampleCol++) {
+                    final float wx = weight(sampleCol, col0, col1);
+                    lats[sampleCol] = lat0 + wx * (lat1 - lat0);
+                    lons[sampleCol] = wrapLon(lon0 + wx * (lon1 - lon0));
+                }
+            }
+        }
+    }
+
+    private void computeNodes() {
+        float referenceLon = Float.NaN;
+        for (int j = 0; j < nodeRows.length; j++) {
+            for (int i = 0; i < nodeCols.length; i++) {
+                computeExact(nodeCols[i], nodeRows[j]);
+                final int index = j * nodeCols.length + i;
+                nodeLats[index] = geoPos.lat;
+                float lon = geoPos.lon;
+                if (!Float.isNaN(lon)) {
+                    if (Float.isNaN(referenceLon)) {
+                        referenceLon = lon;
+                    }
+                    lon = unwrapLon(lon, referenceLon);
+                }
+                nodeLons[index] = lon;
+            }
+        }
+    }
+
+    private void checkCells(double maxError) {
+        final int numCellCols = nodeCols.length - 1;
+        final int numCellRows = nodeRows.length - 1;
+        for (int cellRow = 0; cellRow < numCellRows; cellRow++) {
+            for (int cellCol = 0; cellCol < numCellCols; cellCol++) {
+                final int i00 = cellRow * nodeCols.length + cellCol;
+                final int i10 = i00 + 1;
+                final int i01 = i00 + nodeCols.length;
+                final int i11 = i01 + 1;
+                final boolean exact;
+                if (Float.isNaN(nodeLats[i00] + nodeLats[i10] + nodeLats[i01] + nodeLats[i11] +
+                                nodeLons[i00] + nodeLons[i10] + nodeLons[i01] + nodeLons[i11])) {
+                    exact = true;
+                } else {
+                    final int col0 = nodeCols[cellCol];
+                    final int col1 = nodeCols[cellCol + 1];
+                    final int row0 = nodeRows[cellRow];
+                    final int row1 = nodeRows[cellRow + 1];
+                    final int midCol = (col0 + col1) / 2;
+                    final int midRow = (row0 + row1) / 2;
+                    final float wx = weight(midCol, col0, col1);
+                    final float wy = weight(midRow, row0, row1);
+                    final float lat = bilinear(nodeLats[i00], nodeLats[i10], nodeLats[i01], nodeLats[i11], wx, wy);
+                    final float lon = bilinear(nodeLons[i00], nodeLons[i10], nodeLons[i01], nodeLons[i11], wx, wy);
+                    computeExact(midCol, midRow);
+                    exact = !geoPos.isValid()
+                            || Math.abs(geoPos.lat - lat) > maxError
+                            || Math.abs(unwrapLon(geoPos.lon, lon) - lon) > maxError;
+                }
+                exactCells[cellRow * numCellCols + cellCol] = exact;
+            }
+        }
+    }
+
+    private void computeExact(int sampleCol, int sampleRow) {
+        final int numStepsX = samplingStepsX.length;
+        final int numStepsY = samplingStepsY.length;
+        pixelPos.x = rectangle.x + sampleCol / numStepsX + samplingStepsX[sampleCol % numStepsX];
+        pixelPos.y = rectangle.y + sampleRow / numStepsY + samplingStepsY[sampleRow % numStepsY];
+        geoCoding.getGeoPos(pixelPos, geoPos);
+        if (!geoPos.isValid()) {
+            geoPos.lat = Float.NaN;
+            geoPos.lon = Float.NaN;
+        }
+    }
+
+    private static int[] createNodes(int numSamples, int gridStep) {
+        final int lastSample = Math.max(numSamples - 1, 0);
+        final int numNodes = Math.max(lastSample / gridStep + (lastSample % gridStep == 0 ? 1 : 2), 2);
+        final int[] nodes = new int[numNodes];
+        for (int i = 0; i < numNodes - 1; i++) {
+            nodes[i] = Math.min(i * gridStep, lastSample);
+        }
+        nodes[numNodes - 1] = lastSample;
+        return nodes;
+    }
+
+    private static float weight(int index, int index0, int index1) {
+        return index1 == index0 ? 0.0F : (float) (index - index0) / (index1 - index0);
+    }
+
+    private static float bilinear(float v00, float v10, float v01, float v11, float wx, float wy) {
+        final float v0 = v00 + wx * (v10 - v00);
+        final float v1 = v01 + wx * (v11 - v01);
+        return v0 + wy * (v1 - v0);
+    }
+
+    static float unwrapLon(float lon, float referenceLon) {
+        while (lon - referenceLon > 180.0F) {
+            lon -= 360.0F;
+        }
+        while (lon - referenceLon < -180.0F) {
+            lon += 360.0F;
+        }
+        return lon;
+    }
+
+    static float wrapLon(float lon) {
+        if (lon >= 180.0F) {
+            return lon - 360.0F;
+        } else if (lon < -180.0F) {
+            return lon + 360.0F;
+        }
+        return lon;
+    }
+}
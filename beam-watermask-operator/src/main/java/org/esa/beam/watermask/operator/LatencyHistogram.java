@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with buckets doubling in width. Bucket {@code i} counts the latencies below
+ * {@link #getBucketLimitMicros(int)} which do not fall into bucket {@code i - 1}; the last bucket counts all longer
+ * latencies. Recording is lock-free.
+ */
+final class LatencyHistogram {
+
+    static final int NUM_BUCKETS = 24;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong totalNanos;
+
+    LatencyHistogram() {
+        counts = new AtomicLongArray(NUM_BUCKETS);
+        totalNanos = new AtomicLong();
+    }
+
+    void record(long nanos) {
+        final long micros = Math.max(nanos, 0) / 1000;
+        // bucket 0 holds latencies below 1 µs, bucket i those below 2^i µs
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+        counts.incrementAndGet(bucket);
+        totalNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the exclusive upper limit of the given bucket in microseconds; {@link Long#MAX_VALUE} for the last.
+     */
+    static long getBucketLimitMicros(int bucket) {
+        return bucket < NUM_BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+    }
+
+    long[] getCounts() {
+        final long[] snapshot = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean latency in milliseconds, or 0 if nothing has been recorded.
+     */
+    double getMeanMillis() {
+        final long count = getCount();
+        return count == 0 ? 0.0 : totalNanos.get() / 1.0e6 / count;
+    }
+
+    void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalNanos.set(0);
+    }
+}
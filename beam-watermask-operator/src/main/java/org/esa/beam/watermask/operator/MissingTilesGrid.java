@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tells for each 1&deg; tile of the SRTM images whether it exists, or whether it is missing and has a constant
+ * value of {@link WatermaskClassifier#LAND_VALUE}, {@link WatermaskClassifier#WATER_VALUE} or
+ * {@link WatermaskClassifier#INVALID_VALUE}.
+ * <p/>
+ * The grid is read from the resource {@code MissingTiles.grid}, which holds one byte per tile in row-major order
+ * of the image tiles, i.e. starting at 180&deg; west and 90&deg; north; a value of -1 marks existing tiles. It is
+ * created from {@code MissingTiles.properties} by {@code org.esa.beam.watermask.util.MissingTilesGridGenerator}
+ * and loaded once per JVM.
+ */
+final class MissingTilesGrid {
+
+    static final int NUM_TILES_X = 360;
+    static final int NUM_TILES_Y = 180;
+    static final int EXISTING_TILE = -1;
+
+    private static MissingTilesGrid instance;
+
+    private final byte[] tileValues;
+
+    static synchronized MissingTilesGrid getInstance() throws IOException {
+        if (instance == null) {
+            final byte[] tileValues = new byte[NUM_TILES_X * NUM_TILES_Y];
+            final InputStream inputStream = MissingTilesGrid.class.getResourceAsStream("MissingTiles.grid");
+            if (inputStream == null) {
+                throw new IOException("Resource 'MissingTiles.grid' not found.");
+            }
+            final DataInputStream dataInputStream = new DataInputStream(inputStream);
+            try {
+                dataInputStream.readFully(tileValues);
+            } finally {
+                dataInputStream.close();
+            }
+            instance = new MissingTilesGrid(tileValues);
+        }
+        return instance;
+    }
+
+    private MissingTilesGrid(byte[] tileValues) {
+        this.tileValues = tileValues;
+    }
+
+    /**
+     * @param tileX The tile index in x-direction, 0 at 180&deg; west.
+     * @param tileY The tile index in y-direction, 0 at 90&deg; north.
+     *
+     * @return the constant value of the missing tile, or {@link #EXISTING_TILE} if the tile exists.
+     */
+    int getTileValue(int tileX, int tileY) {
+        return tileValues[tileY * NUM_TILES_X + tileX];
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the raw data of the tiles of one auxdata image in direct byte buffers, outside of the Java heap. Tiles are
+ * read through a {@link TileAccessor} directly from the buffers; the heap only holds a small index.
+ * <p/>
+ * The store consists of slots of the length of one tile, which are allocated once and then reused: when all slots
+ * are in use, the least recently used tile which is not acquired is replaced. Hence, the direct memory is neither
+ * allocated nor released while tiles are loaded, which would cause additional garbage collections.
+ * <p/>
+ * A tile must be released after it has been acquired; until then, its slot is not reused.
+ */
+final class OffHeapTileStore {
+
+    /**
+     * The system property giving the capacity of the off-heap store of each SRTM image read from a zip file or from
+     * a tile container holding encoded tiles, in megabytes. The store is not used if the property is not set or 0.
+     */
+    static final String SIZE_PROPERTY = "beam.watermask.offHeapTileStoreSize";
+
+    /**
+     * Loads the raw data of a tile.
+     */
+    static interface TileLoader {
+
+        /**
+         * Reads the tile into the given buffer, starting at its position.
+         *
+         * @param tileX  The tile index in x-direction.
+         * @param tileY  The tile index in y-direction.
+         * @param target The buffer; it has as many bytes remaining as the tile is long.
+         *
+         * @throws IOException If the tile cannot be read.
+         */
+        void loadTile(int tileX, int tileY, ByteBuffer target) throws IOException;
+    }
+
+    private final int tileLength;
+    private final int maxSlotCount;
+    private final TileLoader loader;
+    private final LinkedHashMap<Long, Slot> index;
+    private final ArrayDeque<Slot> freeSlots;
+    private int slotCount;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * @return the capacity configured by {@link #SIZE_PROPERTY}, in bytes.
+     */
+    static long getConfiguredCapacity() {
+        return Long.getLong(SIZE_PROPERTY, 0L) * 1024L * 1024L;
+    }
+
+    /**
+     * Creates an empty store. Slots are allocated when needed.
+     *
+     * @param tileLength The length of the raw data of a tile, in bytes.
+     * @param capacity   The capacity, in bytes; must hold at least one tile.
+     * @param loader     Loads the tiles which are not contained.
+     */
+    OffHeapTileStore(int tileLength, long capacity, TileLoader loader) {
+        if (capacity < tileLength) {
+            throw new IllegalArgumentException(
+                    MessageFormat.format("Capacity of {0} bytes is too small for a tile of {1} bytes.",
+                                         capacity, tileLength));
+        }
+        this.tileLength = tileLength;
+        this.maxSlotCount = (int) Math.min(Integer.MAX_VALUE, capacity / tileLength);
+        this.loader = loader;
+        index = new LinkedHashMap<Long, Slot>(16, 0.75F, true);
+        freeSlots = new ArrayDeque<Slot>();
+    }
+
+    /**
+     * Returns the data of the given tile, loading it if necessary. Only absolute get methods may be used on the
+     * returned buffer; it is shared by all threads which have acquired the tile.
+     *
+     * @param tileX The tile index in x-direction.
+     * @param tileY The tile index in y-direction.
+     *
+     * @return the data, starting at index 0, or {@code null} if all slots are acquired by other threads.
+     *
+     * @throws IOException If the tile cannot be loaded.
+     */
+    ByteBuffer acquire(int tileX, int tileY) throws IOException {
+        final Long key = createKey(tileX, tileY);
+        final Slot slot;
+        final boolean load;
+        synchronized (this) {
+            final Slot cachedSlot = index.get(key);
+            if (cachedSlot != null) {
+                hitCount++;
+                cachedSlot.pinCount++;
+                slot = cachedSlot;
+                load = false;
+            } else {
+                slot = claimSlot();
+                if (slot == null) {
+                    return null;
+                }
+                missCount++;
+                slot.key = key;
+                slot.state = Slot.LOADING;
+                slot.pinCount = 1;
+                index.put(key, slot);
+                load = true;
+            }
+        }
+        if (load) {
+            load(slot, tileX, tileY);
+            return slot.buffer;
+        }
+        boolean loaded = false;
+        try {
+            loaded = slot.awaitLoaded();
+        } finally {
+            // also if interrupted while waiting, so that the slot is not pinned for good
+            if (!loaded) {
+                synchronized (this) {
+                    unpin(slot);
+                }
+            }
+        }
+        if (!loaded) {
+            throw new IOException(MessageFormat.format("Failed to load tile ''{0} | {1}''.", tileX, tileY));
+        }
+        return slot.buffer;
+    }
+
+    /**
+     * Releases a tile acquired before, so that its slot may be reused.
+     */
+    synchronized void release(int tileX, int tileY) {
+        final Slot slot = index.get(createKey(tileX, tileY));
+        if (slot != null) {
+            unpin(slot);
+        }
+    }
+
+    synchronized int getTileCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the direct memory allocated by the store, in bytes.
+     */
+    synchronized long getMemoryUsage() {
+        return (long) slotCount * tileLength;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Forgets all tiles and slots. The direct memory is released when the buffers are garbage collected, so tiles
+     * still acquired remain readable.
+     */
+    synchronized void dispose() {
+        index.clear();
+        freeSlots.clear();
+        slotCount = 0;
+    }
+
+    private void load(Slot slot, int tileX, int tileY) throws IOException {
+        boolean loaded = false;
+        try {
+            final ByteBuffer target = slot.buffer.duplicate();
+            target.clear();
+            loader.loadTile(tileX, tileY, target);
+            if (target.hasRemaining()) {
+                throw new IOException(MessageFormat.format("Tile ''{0} | {1}'' has {2} bytes, expected {3}.",
+                                                           tileX, tileY, target.position(), tileLength));
+            }
+            loaded = true;
+        } finally {
+            // the state is set first, because a failed slot may be reused as soon as it is unpinned
+            slot.setLoaded(loaded);
+            if (!loaded) {
+                synchronized (this) {
+                    index.remove(slot.key);
+                    slot.indexed = false;
+                    unpin(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a free slot, a newly allocated one, or the least recently used slot which is not acquired.
+     */
+    private Slot claimSlot() {
+        Slot slot = freeSlots.poll();
+        if (slot == null && slotCount < maxSlotCount) {
+            slot = new Slot(ByteBuffer.allocateDirect(tileLength));
+            slotCount++;
+        }
+        if (slot == null) {
+            final Iterator<Slot> iterator = index.values().iterator();
+            while (iterator.hasNext()) {
+                final Slot candidate = iterator.next();
+                if (candidate.pinCount == 0) {
+                    iterator.remove();
+                    slot = candidate;
+                    break;
+                }
+            }
+        }
+        if (slot != null) {
+            slot.indexed = true;
+        }
+        return slot;
+    }
+
+    private void unpin(Slot slot) {
+        slot.pinCount--;
+        if (slot.pinCount == 0 && !slot.indexed) {
+            freeSlots.add(slot);
+        }
+    }
+
+    private static Long createKey(int tileX, int tileY) {
+        return ((long) tileY << 32) | (tileX & 0xFFFFFFFFL);
+    }
+
+    private static final class Slot {
+
+        private static final int LOADING = 0;
+        private static final int LOADED = 1;
+        private static final int FAILED = 2;
+
+        private final ByteBuffer buffer;
+        // guarded by the store
+        private Long key;
+        private int pinCount;
+        private boolean indexed;
+        // guarded by the slot, written by the store while the slot is not acquired
+        private int state;
+
+        private Slot(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private synchronized void setLoaded(boolean loaded) {
+            state = loaded ? LOADED : FAILED;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the thread which has claimed the slot has loaded the tile.
+         *
+         * @return {@code true} if the tile has been loaded.
+         */
+        private synchronized boolean awaitLoaded() throws IOException {
+            try {
+                while (state == LOADING) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a tile to be loaded.", e);
+            }
+            return state == LOADED;
+        }
+    }
+}
@@ -21,37 +21,74 @@ import org.esa.beam.util.ImageUtils;
 import org.esa.beam.util.jai.SingleBandedSampleModel;
 
 import javax.imageio.ImageIO;
-import javax.media.jai.JAI;
 import javax.media.jai.SourcelessOpImage;
 import java.awt.Point;
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Enumeration;
 import java.util.Properties;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 /**
- * OpImage to read from GlobCover-based water mask images.
+ * OpImage to read from GlobCover-based water mask images. Tiles whose pixels all have the same value according to
+ * the {@link ConstantTilesIndex}, and tiles missing from the zip file, are served as shared constant rasters without
+ * decoding a PNG.
+ * <p/>
+ * The zip file holds the tiles either as PNGs, which are decoded and inverted when they are read, or 1-bit packed
+ * and already inverted, in the layout of the SRTM img files (see {@link WatermaskUtils#packBits(byte[], int, int)}).
+ * Packed tiles are read into the raster with a single bulk read; they are written by
+ * {@code org.esa.beam.watermask.util.GlobCoverTilePacker}.
+ * <p/>
+ * If the image is read from a regional auxdata pack, the pixels outside of the cells of the pack are invalid.
  *
  * @author Thomas Storm
  */
 public class PNGSourceImage extends SourcelessOpImage {
 
+    private static final int OUTSIDE_PACK = 0;
+    private static final int PARTLY_INSIDE_PACK = 1;
+    private static final int INSIDE_PACK = 2;
+
     private final ZipFile zipFile;
+    private final TileContainer tileContainer;
+    private final BitSet containedTiles;
+    private final BitSet packedTiles;
+    private final SampleModel packedSampleModel;
+    private final ConstantTilesIndex constantTiles;
+    private final AuxdataPack pack;
+    private final int cellSize;
+    private final String metricsSource;
+    private WritableRaster landRaster;
+    private WritableRaster waterRaster;
+    private WritableRaster invalidRaster;
 
     static PNGSourceImage create(Properties properties, File zipFile) throws IOException {
+        return create(properties, zipFile, null);
+    }
+
+    /**
+     * Creates an image reading from a zip file of a regional auxdata pack, which holds only some of the tiles; the
+     * other tiles are invalid.
+     */
+    static PNGSourceImage create(Properties properties, File zipFile, AuxdataPack pack) throws IOException {
         final ImageHeader imageHeader = ImageHeader.load(properties, null);
-        return new PNGSourceImage(imageHeader, zipFile);
+        return new PNGSourceImage(imageHeader, zipFile, pack);
     }
 
-    private PNGSourceImage(ImageHeader imageHeader, File zipFile) throws IOException {
+    private PNGSourceImage(ImageHeader imageHeader, File zipFile, AuxdataPack pack) throws IOException {
         super(imageHeader.getImageLayout(),
               null,
               ImageUtils.createSingleBandedSampleModel(DataBuffer.TYPE_BYTE,
@@ -61,16 +98,42 @@ public class PNGSourceImage extends SourcelessOpImage {
               imageHeader.getImageLayout().getMinY(null),
               imageHeader.getImageLayout().getWidth(null),
               imageHeader.getImageLayout().getHeight(null));
-        this.zipFile = new ZipFile(zipFile);
-        // this image uses its own tile cache in order not to disturb the GPF tile cache.
-        setTileCache(JAI.createTileCache(50L * 1024 * 1024));
+        tileContainer = TileContainer.openIfExists(zipFile);
+        this.zipFile = tileContainer == null ? new ZipFile(zipFile) : null;
+        containedTiles = new BitSet(getNumXTiles() * getNumYTiles());
+        packedTiles = new BitSet(getNumXTiles() * getNumYTiles());
+        if (this.zipFile != null) {
+            indexEntries(this.zipFile);
+        }
+        packedSampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, getTileWidth(), getTileHeight(), 1);
+        constantTiles = ConstantTilesIndex.readIfExists(zipFile);
+        this.pack = pack;
+        // the image spans all longitudes, and the cells of packs are 1° wide and high
+        cellSize = getWidth() / AuxdataPack.NUM_CELLS_X;
+        metricsSource = zipFile.getName();
+        // this image uses the auxdata tile cache in order not to disturb the GPF tile cache.
+        setTileCache(AuxdataTileCache.getInstance());
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        // constant tiles share the data of a constant raster, so they are not worth a place in the tile cache
+        if (getConstantTileValue(tileX, tileY) != ConstantTilesIndex.MIXED_TILE) {
+            return computeTile(tileX, tileY);
+        }
+        return super.getTile(tileX, tileY);
     }
 
     @Override
     public Raster computeTile(int tileX, int tileY) {
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        final long startNanos = metrics != null ? System.nanoTime() : 0L;
         Raster raster;
         try {
             raster = computeRawRaster(tileX, tileY);
+            if (metrics != null) {
+                metrics.auxdataTileComputed("PNGSourceImage", tileX, tileY, System.nanoTime() - startNanos);
+            }
         } catch (IOException e) {
             throw new RuntimeException(MessageFormat.format("Failed to read image tile ''{0} | {1}''.", tileX, tileY), e);
         }
@@ -78,40 +141,262 @@ public class PNGSourceImage extends SourcelessOpImage {
 
     }
 
-    private Raster computeRawRaster(int tileX, int tileY) throws IOException {
-        final String fileName = getFileName(tileX, tileY);
-        final WritableRaster targetRaster = createWritableRaster(tileX, tileY);
-        final ZipEntry zipEntry = zipFile.getEntry(fileName);
+    /**
+     * @return the number of bytes the given tile occupies when it is loaded; 0 for constant tiles, which share the
+     * data of a constant raster.
+     */
+    long getTileDataLength(int tileX, int tileY) {
+        if (getConstantTileValue(tileX, tileY) != ConstantTilesIndex.MIXED_TILE) {
+            return 0;
+        }
+        if (tileContainer == null && packedTiles.get(getTileIndex(tileX, tileY))
+            && getPackCoverage(tileX, tileY) != PARTLY_INSIDE_PACK) {
+            return (long) (getTileWidth() + 7) / 8 * getTileHeight();
+        }
+        return (long) getTileWidth() * getTileHeight();
+    }
+
+    /**
+     * Tells whether all pixels of a rectangle have the same value, without reading pixel data. Only constant tiles
+     * (see {@link ConstantTilesIndex}) are known to be homogeneous.
+     *
+     * @return the value of all pixels, or {@link BlockSummaryIndex#MIXED} if they differ or are not known to be equal.
+     */
+    int getHomogeneousValue(int minX, int minY, int maxX, int maxY) {
+        int value = BlockSummaryIndex.MIXED;
+        for (int tileY = YToTileY(minY); tileY <= YToTileY(maxY); tileY++) {
+            for (int tileX = XToTileX(minX); tileX <= XToTileX(maxX); tileX++) {
+                final int tileValue = getConstantTileValue(tileX, tileY);
+                if (tileValue == ConstantTilesIndex.MIXED_TILE
+                    || value != BlockSummaryIndex.MIXED && tileValue != value) {
+                    return BlockSummaryIndex.MIXED;
+                }
+                value = tileValue;
+            }
+        }
+        return value;
+    }
 
-        InputStream inputStream = null;
+    @Override
+    public synchronized void dispose() {
+        super.dispose();
         try {
-            inputStream = zipFile.getInputStream(zipEntry);
-            BufferedImage image = ImageIO.read(inputStream);
-            Raster imageData = image.getData();
-            for (int x = 0; x < imageData.getWidth(); x++) {
-                int xPos = tileXToX(tileX) + x;
-                for (int y = 0; y < imageData.getHeight(); y++) {
-                    byte sample = (byte) imageData.getSample(x, y, 0);
-                    sample = (byte) Math.abs(sample - 1);
-                    int yPos = tileYToY(tileY) + y;
-                    targetRaster.setSample(xPos, yPos, 0, sample);
+            if (tileContainer != null) {
+                tileContainer.close();
+            } else {
+                zipFile.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Raster computeRawRaster(int tileX, int tileY) throws IOException {
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        final int constantTileValue = getConstantTileValue(tileX, tileY);
+        if (constantTileValue != ConstantTilesIndex.MIXED_TILE) {
+            if (metrics != null) {
+                metrics.constantTileServed(metricsSource, tileX, tileY);
+            }
+            return getConstantRaster(new Point(tileXToX(tileX), tileYToY(tileY)), (byte) constantTileValue);
+        }
+        final Raster raster;
+        if (tileContainer != null) {
+            final WritableRaster targetRaster = createWritableRaster(tileX, tileY);
+            // the container holds the tiles already decoded and inverted
+            tileContainer.readTile(tileX, tileY, ((DataBufferByte) targetRaster.getDataBuffer()).getData());
+            if (metrics != null) {
+                metrics.auxdataTileRead(metricsSource, tileX, tileY, 0);
+            }
+            raster = targetRaster;
+        } else {
+            final boolean packed = packedTiles.get(getTileIndex(tileX, tileY));
+            final ZipEntry zipEntry = zipFile.getEntry(WatermaskUtils.createGlobCoverFileName(tileX, tileY, packed));
+            raster = packed ? readPackedTile(tileX, tileY, zipEntry) : readPngTile(tileX, tileY, zipEntry);
+            if (metrics != null) {
+                metrics.auxdataTileRead(metricsSource, tileX, tileY, Math.max(zipEntry.getSize(), 0));
+            }
+        }
+        if (getPackCoverage(tileX, tileY) == PARTLY_INSIDE_PACK) {
+            return maskOutsidePack(raster, tileX, tileY);
+        }
+        return raster;
+    }
+
+    /**
+     * Sets the pixels of a tile which lie outside of the cells of the auxdata pack to
+     * {@link WatermaskClassifier#INVALID_VALUE}.
+     */
+    private WritableRaster maskOutsidePack(Raster raster, int tileX, int tileY) {
+        final WritableRaster maskedRaster;
+        if (raster.getSampleModel() instanceof MultiPixelPackedSampleModel) {
+            // a 1-bit packed raster cannot hold the invalid value
+            maskedRaster = createWritableRaster(tileX, tileY);
+            maskedRaster.setRect(raster);
+        } else {
+            maskedRaster = (WritableRaster) raster;
+        }
+        final byte[] data = ((DataBufferByte) maskedRaster.getDataBuffer()).getData();
+        final Rectangle bounds = getTileRect(tileX, tileY);
+        final int originX = tileXToX(tileX);
+        final int originY = tileYToY(tileY);
+        final int firstLonIndex = bounds.x / cellSize;
+        final int lastLonIndex = (bounds.x + bounds.width - 1) / cellSize;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            final int latIndex = y / cellSize;
+            final int rowOffset = (y - originY) * getTileWidth() - originX;
+            for (int lonIndex = firstLonIndex; lonIndex <= lastLonIndex; lonIndex++) {
+                if (!pack.containsCell(lonIndex, latIndex)) {
+                    final int minX = Math.max(lonIndex * cellSize, bounds.x);
+                    final int maxX = Math.min((lonIndex + 1) * cellSize, bounds.x + bounds.width);
+                    Arrays.fill(data, rowOffset + minX, rowOffset + maxX, (byte) WatermaskClassifier.INVALID_VALUE);
                 }
             }
+        }
+        return maskedRaster;
+    }
+
+    private Raster readPackedTile(int tileX, int tileY, ZipEntry zipEntry) throws IOException {
+        final WritableRaster raster = createWritableRaster(packedSampleModel,
+                                                           new Point(tileXToX(tileX), tileYToY(tileY)));
+        final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        if (zipEntry.getSize() != data.length) {
+            throw new IOException(MessageFormat.format("Tile ''{0}'' has {1} bytes, expected {2}.",
+                                                       zipEntry.getName(), zipEntry.getSize(), data.length));
+        }
+        final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(zipEntry));
+        try {
+            inputStream.readFully(data);
         } finally {
-            if (inputStream != null) {
-                inputStream.close();
+            inputStream.close();
+        }
+        return raster;
+    }
+
+    private Raster readPngTile(int tileX, int tileY, ZipEntry zipEntry) throws IOException {
+        final WritableRaster targetRaster = createWritableRaster(tileX, tileY);
+        final byte[] data = ((DataBufferByte) targetRaster.getDataBuffer()).getData();
+        final int tileWidth = getTileWidth();
+        final InputStream inputStream = zipFile.getInputStream(zipEntry);
+        try {
+            final Raster imageData = ImageIO.read(inputStream).getData();
+            final int width = Math.min(imageData.getWidth(), tileWidth);
+            final int height = Math.min(imageData.getHeight(), getTileHeight());
+            final int[] samples = new int[width];
+            // row by row, inverting the samples into the data of the target raster
+            for (int y = 0; y < height; y++) {
+                imageData.getSamples(imageData.getMinX(), imageData.getMinY() + y, width, 1, 0, samples);
+                final int rowOffset = y * tileWidth;
+                for (int x = 0; x < width; x++) {
+                    data[rowOffset + x] = (byte) Math.abs((byte) samples[x] - 1);
+                }
             }
+        } finally {
+            inputStream.close();
         }
         return targetRaster;
     }
 
+    /**
+     * @return the value of a tile which need not be read, or {@link ConstantTilesIndex#MIXED_TILE}. Tiles missing
+     * from the zip file or lying outside of the auxdata pack are invalid.
+     */
+    private int getConstantTileValue(int tileX, int tileY) {
+        if (tileX < getMinTileX() || tileX > getMaxTileX() || tileY < getMinTileY() || tileY > getMaxTileY()) {
+            return ConstantTilesIndex.MIXED_TILE;
+        }
+        final int packCoverage = getPackCoverage(tileX, tileY);
+        if (packCoverage == OUTSIDE_PACK || !isContained(tileX, tileY)) {
+            return WatermaskClassifier.INVALID_VALUE;
+        }
+        if (packCoverage == PARTLY_INSIDE_PACK) {
+            // the pixels outside of the pack are masked when the tile is read
+            return ConstantTilesIndex.MIXED_TILE;
+        }
+        return constantTiles != null ? constantTiles.getTileValue(tileX, tileY) : ConstantTilesIndex.MIXED_TILE;
+    }
+
+    /**
+     * @return whether the cells of the auxdata pack cover a whole tile, a part of it or nothing of it. Without a
+     * pack, all tiles are inside.
+     */
+    private int getPackCoverage(int tileX, int tileY) {
+        if (pack == null) {
+            return INSIDE_PACK;
+        }
+        final Rectangle bounds = getTileRect(tileX, tileY);
+        int cellCount = 0;
+        int packCellCount = 0;
+        for (int latIndex = bounds.y / cellSize; latIndex <= (bounds.y + bounds.height - 1) / cellSize; latIndex++) {
+            for (int lonIndex = bounds.x / cellSize; lonIndex <= (bounds.x + bounds.width - 1) / cellSize;
+                 lonIndex++) {
+                cellCount++;
+                if (pack.containsCell(lonIndex, latIndex)) {
+                    packCellCount++;
+                }
+            }
+        }
+        if (packCellCount == 0) {
+            return OUTSIDE_PACK;
+        }
+        return packCellCount == cellCount ? INSIDE_PACK : PARTLY_INSIDE_PACK;
+    }
+
+    private boolean isContained(int tileX, int tileY) {
+        if (tileContainer != null) {
+            return tileContainer.hasTile(tileX, tileY);
+        }
+        return containedTiles.get(getTileIndex(tileX, tileY));
+    }
+
+    private int getTileIndex(int tileX, int tileY) {
+        return (tileY - getMinTileY()) * getNumXTiles() + tileX - getMinTileX();
+    }
+
+    private void indexEntries(ZipFile zipFile) {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final String name = entries.nextElement().getName();
+            final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(name);
+            if (tileIndices != null && tileIndices[0] >= getMinTileX() && tileIndices[0] <= getMaxTileX()
+                && tileIndices[1] >= getMinTileY() && tileIndices[1] <= getMaxTileY()) {
+                final int tileIndex = getTileIndex(tileIndices[0], tileIndices[1]);
+                containedTiles.set(tileIndex);
+                packedTiles.set(tileIndex, WatermaskUtils.isPackedGlobCoverFile(name));
+            }
+        }
+    }
+
+    private synchronized Raster getConstantRaster(Point location, byte tileValue) {
+        switch (tileValue) {
+            case 0:
+                if (landRaster == null) {
+                    landRaster = createConstantRaster(tileValue);
+                }
+                return landRaster.createTranslatedChild(location.x, location.y);
+            case 1:
+                if (waterRaster == null) {
+                    waterRaster = createConstantRaster(tileValue);
+                }
+                return waterRaster.createTranslatedChild(location.x, location.y);
+            default:
+                if (invalidRaster == null) {
+                    invalidRaster = createConstantRaster((byte) WatermaskClassifier.INVALID_VALUE);
+                }
+                return invalidRaster.createTranslatedChild(location.x, location.y);
+        }
+    }
+
+    private WritableRaster createConstantRaster(byte tileValue) {
+        final WritableRaster raster = createWritableRaster(sampleModel, new Point(0, 0));
+        Arrays.fill(((DataBufferByte) raster.getDataBuffer()).getData(), tileValue);
+        return raster;
+    }
+
     private WritableRaster createWritableRaster(int tileX, int tileY) {
         final Point location = new Point(tileXToX(tileX), tileYToY(tileY));
         final SampleModel sampleModel = new SingleBandedSampleModel(DataBuffer.TYPE_BYTE, getTileWidth(), getTileHeight());
         return createWritableRaster(sampleModel, location);
     }
 
-    private String getFileName(int tileX, int tileY) {
-        return String.format("%d-%d.png", tileX, tileY);
-    }
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.SourcelessOpImage;
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.text.MessageFormat;
+
+/**
+ * The SRTM water mask tiled by the blocks of a {@link BlockContainer}, so that single samples are read by decoding
+ * and caching one block instead of a whole SRTM tile. Each SRTM tile occupies {@code blocksPerSide x blockSize}
+ * pixels of this image in each direction; where the side length of the SRTM tiles is no multiple of the block size,
+ * the blocks in the last row and column of each SRTM tile overlap the padding (see
+ * {@link #toBlockCoordinate(int)}). The blocks are held by the {@link AuxdataTileCache}.
+ * <p/>
+ * Only tiles contained in the container may be read; missing tiles are served by the {@link SRTMOpImage}.
+ */
+class SRTMBlockImage extends SourcelessOpImage {
+
+    private final BlockContainer container;
+    private final int tileSideLength;
+    private final int blocksPerSide;
+    private final String metricsSource;
+
+    SRTMBlockImage(BlockContainer container, int numTilesX, int numTilesY, String metricsSource) {
+        this(container, createLayout(container, numTilesX, numTilesY), metricsSource);
+    }
+
+    private SRTMBlockImage(BlockContainer container, ImageLayout layout, String metricsSource) {
+        super(layout, null, layout.getSampleModel(null), 0, 0, layout.getWidth(null), layout.getHeight(null));
+        this.container = container;
+        this.tileSideLength = container.getTileSideLength();
+        this.blocksPerSide = container.getBlocksPerSide();
+        this.metricsSource = metricsSource;
+        // this image uses the auxdata tile cache in order not to disturb the GPF tile cache.
+        setTileCache(AuxdataTileCache.getInstance());
+    }
+
+    /**
+     * Converts a pixel coordinate of the SRTM image into the coordinate of this image.
+     */
+    int toBlockCoordinate(int coordinate) {
+        final int tileIndex = coordinate / tileSideLength;
+        return tileIndex * blocksPerSide * getTileWidth() + coordinate - tileIndex * tileSideLength;
+    }
+
+    /**
+     * @return the sample at the given pixel of the SRTM image, whose tile needs to be contained in the container.
+     */
+    int getSample(int x, int y) {
+        final int blockX = toBlockCoordinate(x);
+        final int blockY = toBlockCoordinate(y);
+        return getTile(XToTileX(blockX), YToTileY(blockY)).getSample(blockX, blockY, 0);
+    }
+
+    @Override
+    public Raster computeTile(int tileX, int tileY) {
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        final long startNanos = metrics != null ? System.nanoTime() : 0L;
+        final WritableRaster raster = createWritableRaster(sampleModel, new Point(tileXToX(tileX), tileYToY(tileY)));
+        final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final int srtmTileX = tileX / blocksPerSide;
+        final int srtmTileY = tileY / blocksPerSide;
+        try {
+            container.readBlock(srtmTileX, srtmTileY, tileX % blocksPerSide, tileY % blocksPerSide, data);
+            if (metrics != null) {
+                // nothing is inflated from a zip file, as for the tiles of a tile container
+                metrics.auxdataTileRead(metricsSource, srtmTileX, srtmTileY, 0);
+                metrics.auxdataTileComputed("SRTMBlockImage", tileX, tileY, System.nanoTime() - startNanos);
+            }
+        } catch (IOException e) {
+            String msg = MessageFormat.format("Failed to read image block ''{0} | {1}''.", tileX, tileY);
+            throw new RuntimeException(msg, e);
+        }
+        return raster;
+    }
+
+    private static ImageLayout createLayout(BlockContainer container, int numTilesX, int numTilesY) {
+        final int blockSize = container.getBlockSize();
+        final int paddedSideLength = container.getBlocksPerSide() * blockSize;
+        final SampleModel sampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, blockSize, blockSize, 1);
+        final ImageLayout layout = new ImageLayout(0, 0, numTilesX * paddedSideLength, numTilesY * paddedSideLength);
+        layout.setTileGridXOffset(0);
+        layout.setTileGridYOffset(0);
+        layout.setTileWidth(blockSize);
+        layout.setTileHeight(blockSize);
+        layout.setSampleModel(sampleModel);
+        return layout;
+    }
+}
@@ -20,7 +20,6 @@ import com.bc.ceres.core.Assert;
 import org.esa.beam.jai.ImageHeader;
 import org.esa.beam.util.ImageUtils;
 
-import javax.media.jai.JAI;
 import javax.media.jai.SourcelessOpImage;
 import java.awt.Point;
 import java.awt.image.DataBuffer;
@@ -31,6 +30,9 @@ import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.text.MessageFormat;
 import java.util.Arrays;
 import java.util.Properties;
@@ -45,18 +47,45 @@ import java.util.zip.ZipFile;
 public class SRTMOpImage extends SourcelessOpImage {
 
     private ZipFile zipFile;
-    private Properties missingTiles;
+    private TileContainer tileContainer;
+    private MissingTilesGrid missingTiles;
     private SampleModel rawImgSampleModel;
+    private int rawTileLength;
+    private OffHeapTileStore offHeapStore;
+    private BlockContainer blockContainer;
+    private SRTMBlockImage blockImage;
+    private BlockSummaryIndex summaryIndex;
     private WritableRaster landRaster;
     private WritableRaster waterRaster;
     private WritableRaster invalidRaster;
+    private final byte waterTileValue;
+    private final AuxdataPack pack;
+    private final String metricsSource;
 
     public static SRTMOpImage create(Properties defaultImageProperties, File zipFile) throws IOException {
+        return create(defaultImageProperties, zipFile, WatermaskClassifier.WATER_VALUE);
+    }
+
+    /**
+     * Creates an image whose missing water tiles are filled with the given value instead of
+     * {@link WatermaskClassifier#WATER_VALUE}, as needed for the levels of the water fraction pyramid.
+     */
+    static SRTMOpImage create(Properties defaultImageProperties, File zipFile, int waterTileValue) throws IOException {
+        return create(defaultImageProperties, zipFile, waterTileValue, null);
+    }
+
+    /**
+     * Creates an image reading from a zip file of a regional auxdata pack; tiles outside of the cells of the pack
+     * are invalid.
+     */
+    static SRTMOpImage create(Properties defaultImageProperties, File zipFile, int waterTileValue,
+                              AuxdataPack pack) throws IOException {
         final ImageHeader imageHeader = ImageHeader.load(defaultImageProperties, null);
-        return new SRTMOpImage(imageHeader, zipFile);
+        return new SRTMOpImage(imageHeader, zipFile, (byte) waterTileValue, pack);
     }
 
-    private SRTMOpImage(ImageHeader imageHeader, File zipFile) throws IOException {
+    private SRTMOpImage(ImageHeader imageHeader, File zipFile, byte waterTileValue, AuxdataPack pack)
+            throws IOException {
         super(imageHeader.getImageLayout(),
               null,
               ImageUtils.createSingleBandedSampleModel(DataBuffer.TYPE_BYTE,
@@ -66,28 +95,260 @@ public class SRTMOpImage extends SourcelessOpImage {
               imageHeader.getImageLayout().getMinY(null),
               imageHeader.getImageLayout().getWidth(null),
               imageHeader.getImageLayout().getHeight(null));
-        this.zipFile = new ZipFile(zipFile);
-        missingTiles = new Properties();
-        missingTiles.load(getClass().getResourceAsStream("MissingTiles.properties"));
-        // this image uses its own tile cache in order not to disturb the GPF tile cache.
-        setTileCache(JAI.createTileCache(50L * 1024 * 1024));
+        this.waterTileValue = waterTileValue;
+        this.pack = pack;
+        metricsSource = zipFile.getName();
+        tileContainer = TileContainer.openIfExists(zipFile);
+        if (tileContainer == null) {
+            this.zipFile = new ZipFile(zipFile);
+        }
+        boolean opened = false;
+        try {
+            openSources(imageHeader, zipFile);
+            opened = true;
+        } finally {
+            if (!opened) {
+                closeSources();
+            }
+        }
+    }
+
+    /**
+     * Opens the optional sources next to the zip file, and sets up the reading of raw tiles.
+     */
+    private void openSources(ImageHeader imageHeader, File zipFile) throws IOException {
+        missingTiles = MissingTilesGrid.getInstance();
+        // this image uses the auxdata tile cache in order not to disturb the GPF tile cache.
+        setTileCache(AuxdataTileCache.getInstance());
         rawImgSampleModel = imageHeader.getImageLayout().getSampleModel(null);
+        rawTileLength = TileAccessor.getDataLength(rawImgSampleModel);
+        final long offHeapCapacity = OffHeapTileStore.getConfiguredCapacity();
+        // a raw tile container is read from its mapping; the other sources are loaded into the off-heap store
+        final boolean mapped = tileContainer != null && tileContainer.isRaw();
+        if (!mapped && rawTileLength > 0 && offHeapCapacity >= rawTileLength) {
+            offHeapStore = new OffHeapTileStore(rawTileLength, offHeapCapacity, new OffHeapTileStore.TileLoader() {
+                @Override
+                public void loadTile(int tileX, int tileY, ByteBuffer target) throws IOException {
+                    readTileEntry(tileX, tileY, target);
+                }
+            });
+        }
+        blockContainer = BlockContainer.openIfExists(zipFile);
+        if (blockContainer != null) {
+            if (blockContainer.getTileSideLength() != getTileWidth() || getTileWidth() != getTileHeight()) {
+                throw new IOException(MessageFormat.format("Block container of ''{0}'' has tiles of {1} pixels, " +
+                                                           "expected {2}.", zipFile, blockContainer.getTileSideLength(),
+                                                           getTileWidth()));
+            }
+            blockImage = new SRTMBlockImage(blockContainer, getNumXTiles(), getNumYTiles(), metricsSource);
+        }
+        summaryIndex = BlockSummaryIndex.openIfExists(zipFile);
+        if (summaryIndex != null && summaryIndex.getTileSideLength() != getTileWidth()) {
+            throw new IOException(MessageFormat.format("Block summary index of ''{0}'' has tiles of {1} pixels, " +
+                                                       "expected {2}.", zipFile, summaryIndex.getTileSideLength(),
+                                                       getTileWidth()));
+        }
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        // missing tiles share the data of a constant raster, so they are not worth a place in the tile cache
+        if (isMissingTile(tileX, tileY)) {
+            return computeTile(tileX, tileY);
+        }
+        return super.getTile(tileX, tileY);
     }
 
     @Override
     public Raster computeTile(int tileX, int tileY) {
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        final long startNanos = metrics != null ? System.nanoTime() : 0L;
         try {
-            return readRawDataTile(tileX, tileY);
+            final Raster raster = readRawDataTile(tileX, tileY);
+            if (metrics != null) {
+                metrics.auxdataTileComputed("SRTMOpImage", tileX, tileY, System.nanoTime() - startNanos);
+            }
+            return raster;
         } catch (IOException e) {
             String msg = MessageFormat.format("Failed to read image tile ''{0} | {1}''.", tileX, tileY);
             throw new RuntimeException(msg, e);
         }
     }
 
+    /**
+     * Returns a single sample. If there is a block container next to the zip file (see {@link BlockContainer}), only
+     * the block containing the sample is read and cached rather than the whole tile.
+     *
+     * @return the sample at the given pixel, or {@link WatermaskClassifier#INVALID_VALUE} outside of the image.
+     */
+    int getSingleSample(int x, int y) {
+        final int tileX = XToTileX(x);
+        final int tileY = YToTileY(y);
+        if (blockImage != null && !isMissingTile(tileX, tileY) && blockContainer.hasTile(tileX, tileY)) {
+            return blockImage.getSample(x, y);
+        }
+        final Raster tile = getTile(tileX, tileY);
+        if (tile == null) {
+            return WatermaskClassifier.INVALID_VALUE;
+        }
+        return tile.getSample(x, y, 0);
+    }
+
+    /**
+     * Tells whether all pixels of a rectangle have the same value, without reading pixel data: missing tiles are
+     * known to be constant, and stored tiles are looked up in the block summary index if there is one next to the zip
+     * file (see {@link BlockSummaryIndex}).
+     *
+     * @param minX The first pixel column of the rectangle.
+     * @param minY The first pixel row of the rectangle.
+     * @param maxX The last pixel column of the rectangle.
+     * @param maxY The last pixel row of the rectangle.
+     *
+     * @return the value of all pixels, or {@link BlockSummaryIndex#MIXED} if they differ or are not known to be equal.
+     */
+    int getHomogeneousValue(int minX, int minY, int maxX, int maxY) {
+        int value = BlockSummaryIndex.MIXED;
+        for (int tileY = YToTileY(minY); tileY <= YToTileY(maxY); tileY++) {
+            for (int tileX = XToTileX(minX); tileX <= XToTileX(maxX); tileX++) {
+                final int tileValue = getHomogeneousTileValue(tileX, tileY, minX, minY, maxX, maxY);
+                if (tileValue == BlockSummaryIndex.MIXED || value != BlockSummaryIndex.MIXED && tileValue != value) {
+                    return BlockSummaryIndex.MIXED;
+                }
+                value = tileValue;
+            }
+        }
+        return value;
+    }
+
+    private int getHomogeneousTileValue(int tileX, int tileY, int minX, int minY, int maxX, int maxY) {
+        if (tileX < getMinTileX() || tileX > getMaxTileX() || tileY < getMinTileY() || tileY > getMaxTileY()) {
+            return WatermaskClassifier.INVALID_VALUE;
+        }
+        if (isMissingTile(tileX, tileY)) {
+            final byte tileValue = (byte) getMissingTileValue(tileX, tileY);
+            return tileValue == 1 ? waterTileValue : tileValue;
+        }
+        if (summaryIndex == null) {
+            return BlockSummaryIndex.MIXED;
+        }
+        final int tileMinX = tileXToX(tileX);
+        final int tileMinY = tileYToY(tileY);
+        return summaryIndex.getValue(tileX, tileY, minX - tileMinX, minY - tileMinY, maxX - tileMinX,
+                                     maxY - tileMinY);
+    }
+
+    /**
+     * Returns the raw data of an existing tile without copying it onto the Java heap: a view of the memory-mapped
+     * tile container if there is one holding raw tiles, or else the tile held by the off-heap tile store, if it is
+     * configured by
+     * {@link OffHeapTileStore#SIZE_PROPERTY}. The data is laid out by {@link #getRawSampleModel()}. A tile which has
+     * been returned must be released by {@link #releaseRawTile(int, int)}.
+     *
+     * @param tileX The tile index in x-direction.
+     * @param tileY The tile index in y-direction.
+     *
+     * @return the data, starting at index 0, or {@code null} if the tile is missing or its raw data is not available
+     * off the heap; then, {@link #getTile(int, int)} has to be used.
+     *
+     * @throws IOException If the tile cannot be read.
+     */
+    ByteBuffer acquireRawTile(int tileX, int tileY) throws IOException {
+        if (rawTileLength <= 0 || isMissingTile(tileX, tileY) || tileX < getMinTileX() || tileX > getMaxTileX()
+            || tileY < getMinTileY() || tileY > getMaxTileY()) {
+            return null;
+        }
+        if (tileContainer != null && tileContainer.isRaw()) {
+            final ByteBuffer buffer = tileContainer.mapTile(tileX, tileY);
+            if (buffer.remaining() != rawTileLength) {
+                throw new IOException(MessageFormat.format("Tile ''{0} | {1}'' has {2} bytes, expected {3}.",
+                                                           tileX, tileY, buffer.remaining(), rawTileLength));
+            }
+            return buffer;
+        }
+        if (offHeapStore != null) {
+            return offHeapStore.acquire(tileX, tileY);
+        }
+        return null;
+    }
+
+    /**
+     * Releases a tile returned by {@link #acquireRawTile(int, int)}.
+     */
+    void releaseRawTile(int tileX, int tileY) {
+        if (offHeapStore != null) {
+            offHeapStore.release(tileX, tileY);
+        }
+    }
+
+    /**
+     * Loads the given tile to where it is read from when the water fractions are computed: into the page cache for
+     * a raw tile container, into the off-heap tile store, or else into the tile cache. Missing tiles are skipped.
+     *
+     * @throws IOException If the tile cannot be read.
+     */
+    void prefetchTile(int tileX, int tileY) throws IOException {
+        if (isMissingTile(tileX, tileY)) {
+            return;
+        }
+        if (tileContainer != null && tileContainer.isRaw() && rawTileLength > 0) {
+            tileContainer.prefetchTile(tileX, tileY);
+        } else if (offHeapStore != null) {
+            if (offHeapStore.acquire(tileX, tileY) != null) {
+                offHeapStore.release(tileX, tileY);
+            }
+        } else {
+            getTile(tileX, tileY);
+        }
+    }
+
+    /**
+     * @return the number of bytes the given tile occupies when it is loaded; 0 for missing tiles, which share the
+     * data of a constant raster.
+     */
+    long getTileDataLength(int tileX, int tileY) {
+        if (isMissingTile(tileX, tileY)) {
+            return 0;
+        }
+        return rawTileLength > 0 ? rawTileLength : (long) getTileWidth() * getTileHeight();
+    }
+
+    /**
+     * @return the layout of the raw tile data returned by {@link #acquireRawTile(int, int)}.
+     */
+    SampleModel getRawSampleModel() {
+        return rawImgSampleModel;
+    }
+
     @Override
     public synchronized void dispose() {
+        super.dispose();
+        closeSources();
+    }
+
+    /**
+     * Closes the files opened so far; the mapping of the block summary index is released when it is collected.
+     */
+    private void closeSources() {
+        if (offHeapStore != null) {
+            offHeapStore.dispose();
+        }
+        if (blockImage != null) {
+            blockImage.dispose();
+        }
+        summaryIndex = null;
         try {
-            zipFile.close();
+            if (blockContainer != null) {
+                blockContainer.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            if (tileContainer != null) {
+                tileContainer.close();
+            } else if (zipFile != null) {
+                zipFile.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -96,25 +357,34 @@ public class SRTMOpImage extends SourcelessOpImage {
     private Raster readRawDataTile(int tileX, int tileY) throws IOException {
         final Point location = new Point(tileXToX(tileX), tileYToY(tileY));
 
-        // 89 not 90, because tile coordinates are given for lower left corner
-        final String imgFileName = WatermaskUtils.createImgFileName(89 - tileY, tileX - 180);
-        final String missingTileValue = missingTiles.getProperty(imgFileName.substring(0, imgFileName.indexOf('.')));
-        final boolean tileIsMissing = missingTileValue != null;
+        final int missingTileValue = getMissingTileValue(tileX, tileY);
+        final boolean tileIsMissing = missingTileValue != MissingTilesGrid.EXISTING_TILE;
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
         if (tileIsMissing) {
-            final byte tileValue = Byte.parseByte(missingTileValue);
+            if (metrics != null) {
+                metrics.constantTileServed(metricsSource, tileX, tileY);
+            }
+            final byte tileValue = (byte) missingTileValue;
             switch (tileValue) {
                 case 0:
                     return getLandRaster(location, tileValue);
                 case 1:
-                    return getWaterRaster(location, tileValue);
+                    return getWaterRaster(location, waterTileValue);
                 default:
                     return getInvalidRaster(location, tileValue);
             }
         }
 
-        final InputStream inputStream = createInputStream(imgFileName);
         final WritableRaster targetRaster = createWritableRaster(rawImgSampleModel, location);
         final byte[] data = ((DataBufferByte) targetRaster.getDataBuffer()).getData();
+        if (tileContainer != null) {
+            tileContainer.readTile(tileX, tileY, data);
+            if (metrics != null) {
+                metrics.auxdataTileRead(metricsSource, tileX, tileY, 0);
+            }
+            return targetRaster;
+        }
+        final InputStream inputStream = createInputStream(getImgFileName(tileX, tileY));
         try {
             int count = 0;
             int amount = data.length;
@@ -128,24 +398,73 @@ public class SRTMOpImage extends SourcelessOpImage {
         } finally {
             inputStream.close();
         }
+        if (metrics != null) {
+            metrics.auxdataTileRead(metricsSource, tileX, tileY, data.length);
+        }
         return targetRaster;
     }
 
-    private Raster getLandRaster(Point location, byte tileValue) {
+    private void readTileEntry(int tileX, int tileY, ByteBuffer target) throws IOException {
+        if (tileContainer != null) {
+            tileContainer.readTile(tileX, tileY, target);
+            final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+            if (metrics != null) {
+                metrics.auxdataTileRead(metricsSource, tileX, tileY, 0);
+            }
+            return;
+        }
+        final int startPosition = target.position();
+        final InputStream inputStream = createInputStream(getImgFileName(tileX, tileY));
+        try {
+            final ReadableByteChannel channel = Channels.newChannel(inputStream);
+            while (target.hasRemaining() && channel.read(target) >= 0) {
+                // read until the tile is complete or the entry ends
+            }
+        } finally {
+            inputStream.close();
+        }
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        if (metrics != null) {
+            metrics.auxdataTileRead(metricsSource, tileX, tileY, target.position() - startPosition);
+        }
+    }
+
+    private static String getImgFileName(int tileX, int tileY) {
+        // 89 not 90, because tile coordinates are given for lower left corner
+        return WatermaskUtils.createImgFileName(89 - tileY, tileX - 180);
+    }
+
+    private boolean isMissingTile(int tileX, int tileY) {
+        return tileX >= 0 && tileX < MissingTilesGrid.NUM_TILES_X && tileY >= 0 && tileY < MissingTilesGrid.NUM_TILES_Y
+               && getMissingTileValue(tileX, tileY) != MissingTilesGrid.EXISTING_TILE;
+    }
+
+    /**
+     * @return the value of a tile which is not stored, or {@link MissingTilesGrid#EXISTING_TILE}. Tiles outside of
+     * the auxdata pack are invalid.
+     */
+    private int getMissingTileValue(int tileX, int tileY) {
+        if (pack != null && !pack.containsCell(tileX, tileY)) {
+            return WatermaskClassifier.INVALID_VALUE;
+        }
+        return missingTiles.getTileValue(tileX, tileY);
+    }
+
+    private synchronized Raster getLandRaster(Point location, byte tileValue) {
         if (landRaster == null) {
             landRaster = createRaster(tileValue);
         }
         return landRaster.createTranslatedChild(location.x, location.y);
     }
 
-    private Raster getWaterRaster(Point location, byte tileValue) {
+    private synchronized Raster getWaterRaster(Point location, byte tileValue) {
         if (waterRaster == null) {
             waterRaster = createRaster(tileValue);
         }
         return waterRaster.createTranslatedChild(location.x, location.y);
     }
 
-    private Raster getInvalidRaster(Point location, byte tileValue) {
+    private synchronized Raster getInvalidRaster(Point location, byte tileValue) {
         if (invalidRaster == null) {
             invalidRaster = createRaster(tileValue);
         }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.nio.ByteBuffer;
+
+/**
+ * Direct sample access to the byte array backing an auxdata tile.
+ * <p/>
+ * The SRTM tiles are 1-bit packed ({@code numberOfBits = 1} in image.properties); reading them through
+ * {@link Raster#getSample(int, int, int)} costs several virtual calls and bounds checks per sample. This accessor
+ * resolves the layout once per tile and then reads bits by shift and mask. Byte-per-pixel tiles, as created for
+ * constant tiles and by {@link PNGSourceImage}, are read by plain array indexing. Any other layout falls back to
+ * the raster. Tiles held off the Java heap are read from a {@link ByteBuffer} in the same two layouts.
+ * Coordinates are not checked; they must lie within the raster.
+ */
+final class TileAccessor {
+
+    private static final int GENERIC = 0;
+    private static final int PACKED_BITS = 1;
+    private static final int BYTES = 2;
+    private static final int BUFFER_PACKED_BITS = 3;
+    private static final int BUFFER_BYTES = 4;
+
+    private final Raster raster;
+    private final int layout;
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    private final int translateX;
+    private final int translateY;
+    private final int scanlineStride;
+    private final int offset;
+    private final int pixelStride;
+    // a view of the heap array for reading long words, created on the first count of bits
+    private ByteBuffer heapWords;
+
+    private TileAccessor(Raster raster, int layout, byte[] data, int scanlineStride, int offset, int pixelStride) {
+        this(raster, layout, data, null, raster.getSampleModelTranslateX(), raster.getSampleModelTranslateY(),
+             scanlineStride, offset, pixelStride);
+    }
+
+    private TileAccessor(Raster raster, int layout, byte[] data, ByteBuffer buffer, int translateX, int translateY,
+                         int scanlineStride, int offset, int pixelStride) {
+        this.raster = raster;
+        this.layout = layout;
+        this.data = data;
+        this.buffer = buffer;
+        this.translateX = translateX;
+        this.translateY = translateY;
+        this.scanlineStride = scanlineStride;
+        this.offset = offset;
+        this.pixelStride = pixelStride;
+    }
+
+    /**
+     * Creates an accessor for the first band of the given raster.
+     *
+     * @param raster The raster.
+     *
+     * @return The accessor.
+     */
+    static TileAccessor create(Raster raster) {
+        final SampleModel sampleModel = raster.getSampleModel();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer instanceof DataBufferByte && dataBuffer.getNumBanks() == 1) {
+            final byte[] data = ((DataBufferByte) dataBuffer).getData();
+            if (sampleModel instanceof MultiPixelPackedSampleModel) {
+                final MultiPixelPackedSampleModel packedModel = (MultiPixelPackedSampleModel) sampleModel;
+                if (packedModel.getPixelBitStride() == 1) {
+                    // the data buffer offset is given in bytes, the data bit offset in bits
+                    return new TileAccessor(raster, PACKED_BITS, data, packedModel.getScanlineStride(),
+                                            dataBuffer.getOffset() * 8 + packedModel.getDataBitOffset(), 1);
+                }
+            } else if (sampleModel instanceof ComponentSampleModel) {
+                final ComponentSampleModel componentModel = (ComponentSampleModel) sampleModel;
+                if (componentModel.getBankIndices()[0] == 0) {
+                    return new TileAccessor(raster, BYTES, data, componentModel.getScanlineStride(),
+                                            dataBuffer.getOffset() + componentModel.getBandOffsets()[0],
+                                            componentModel.getPixelStride());
+                }
+            }
+        }
+        return new TileAccessor(raster, GENERIC, null, 0, 0, 0);
+    }
+
+    /**
+     * Creates an accessor for the raw data of a tile held in a buffer, as it is laid out by the given sample model.
+     *
+     * @param buffer      The data of the tile, starting at index 0. Only absolute get methods are used.
+     * @param sampleModel The sample model of the tile; see {@link #getDataLength(SampleModel)}.
+     * @param minX        The x-coordinate of the upper left pixel of the tile, in image coordinates.
+     * @param minY        The y-coordinate of the upper left pixel of the tile, in image coordinates.
+     *
+     * @return The accessor.
+     *
+     * @throws IllegalArgumentException if the sample model is neither 1-bit packed nor byte-per-pixel.
+     */
+    static TileAccessor create(ByteBuffer buffer, SampleModel sampleModel, int minX, int minY) {
+        if (isPackedBits(sampleModel)) {
+            final MultiPixelPackedSampleModel packedModel = (MultiPixelPackedSampleModel) sampleModel;
+            return new TileAccessor(null, BUFFER_PACKED_BITS, null, buffer, minX, minY,
+                                    packedModel.getScanlineStride(), packedModel.getDataBitOffset(), 1);
+        } else if (isBytes(sampleModel)) {
+            final ComponentSampleModel componentModel = (ComponentSampleModel) sampleModel;
+            return new TileAccessor(null, BUFFER_BYTES, null, buffer, minX, minY, componentModel.getScanlineStride(),
+                                    componentModel.getBandOffsets()[0], componentModel.getPixelStride());
+        }
+        throw new IllegalArgumentException("Sample model is neither 1-bit packed nor byte-per-pixel.");
+    }
+
+    /**
+     * @return the number of bytes of raw tile data laid out by the given sample model, or -1 if the layout cannot
+     * be read from a buffer.
+     */
+    static int getDataLength(SampleModel sampleModel) {
+        if (isPackedBits(sampleModel)) {
+            final MultiPixelPackedSampleModel packedModel = (MultiPixelPackedSampleModel) sampleModel;
+            final int lastBit = packedModel.getDataBitOffset() + packedModel.getWidth();
+            return (packedModel.getHeight() - 1) * packedModel.getScanlineStride() + (lastBit + 7) / 8;
+        } else if (isBytes(sampleModel)) {
+            final ComponentSampleModel componentModel = (ComponentSampleModel) sampleModel;
+            return componentModel.getBandOffsets()[0]
+                   + (componentModel.getHeight() - 1) * componentModel.getScanlineStride()
+                   + (componentModel.getWidth() - 1) * componentModel.getPixelStride() + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if the raster is 1-bit packed, so that {@link #countBits(int, int, int)} can be used.
+     */
+    boolean isPacked() {
+        return layout == PACKED_BITS || layout == BUFFER_PACKED_BITS;
+    }
+
+    /**
+     * Counts the set bits in a run of pixels of a 1-bit packed raster row. Whole bytes are read eight at a time
+     * with {@link ByteBuffer#getLong(int)}, from the buffer or from a view of the heap array, and counted with
+     * {@link Long#bitCount(long)}; partial bytes at both ends of the run are masked.
+     *
+     * @param x     The x-coordinate of the first pixel of the run, in image coordinates.
+     * @param y     The y-coordinate of the row, in image coordinates.
+     * @param count The number of pixels in the run; the run must lie within the raster.
+     *
+     * @return The number of pixels with value 1.
+     *
+     * @throws IllegalStateException if the raster is not 1-bit packed.
+     */
+    int countBits(int x, int y, int count) {
+        if (!isPacked()) {
+            throw new IllegalStateException("Raster is not 1-bit packed.");
+        }
+        final int bit = offset + x - translateX;
+        int index = (y - translateY) * scanlineStride + (bit >>> 3);
+        int remaining = count;
+        int bitCount = 0;
+        final int leadingBits = bit & 7;
+        if (leadingBits != 0) {
+            final int numBits = Math.min(8 - leadingBits, remaining);
+            final int mask = (0xFF >>> leadingBits) & ~(0xFF >>> (leadingBits + numBits));
+            bitCount += Integer.bitCount(getByte(index) & mask);
+            remaining -= numBits;
+            index++;
+        }
+        if (remaining >= 64) {
+            if (buffer == null && heapWords == null) {
+                heapWords = ByteBuffer.wrap(data);
+            }
+            final ByteBuffer words = buffer != null ? buffer : heapWords;
+            // the byte order within the words is irrelevant for counting
+            while (remaining >= 64) {
+                bitCount += Long.bitCount(words.getLong(index));
+                index += 8;
+                remaining -= 64;
+            }
+        }
+        while (remaining >= 8) {
+            bitCount += Integer.bitCount(getByte(index) & 0xFF);
+            index++;
+            remaining -= 8;
+        }
+        if (remaining > 0) {
+            bitCount += Integer.bitCount(getByte(index) & (0xFF << (8 - remaining)) & 0xFF);
+        }
+        return bitCount;
+    }
+
+    /**
+     * Returns the sample of the first band at the given position.
+     *
+     * @param x The x-coordinate in image coordinates.
+     * @param y The y-coordinate in image coordinates.
+     *
+     * @return The sample.
+     */
+    int getSample(int x, int y) {
+        final int sampleModelX = x - translateX;
+        final int sampleModelY = y - translateY;
+        switch (layout) {
+            case PACKED_BITS: {
+                final int bit = offset + sampleModelX;
+                final int element = data[sampleModelY * scanlineStride + (bit >>> 3)];
+                return (element >> (7 - (bit & 7))) & 1;
+            }
+            case BYTES:
+                return data[offset + sampleModelY * scanlineStride + sampleModelX * pixelStride] & 0xFF;
+            case BUFFER_PACKED_BITS: {
+                final int bit = offset + sampleModelX;
+                final int element = buffer.get(sampleModelY * scanlineStride + (bit >>> 3));
+                return (element >> (7 - (bit & 7))) & 1;
+            }
+            case BUFFER_BYTES:
+                return buffer.get(offset + sampleModelY * scanlineStride + sampleModelX * pixelStride) & 0xFF;
+            default:
+                return raster.getSample(x, y, 0);
+        }
+    }
+
+    private int getByte(int index) {
+        return buffer != null ? buffer.get(index) : data[index];
+    }
+
+    private static boolean isPackedBits(SampleModel sampleModel) {
+        return sampleModel instanceof MultiPixelPackedSampleModel
+               && sampleModel.getTransferType() == DataBuffer.TYPE_BYTE
+               && ((MultiPixelPackedSampleModel) sampleModel).getPixelBitStride() == 1;
+    }
+
+    private static boolean isBytes(SampleModel sampleModel) {
+        return sampleModel instanceof ComponentSampleModel
+               && sampleModel.getTransferType() == DataBuffer.TYPE_BYTE
+               && ((ComponentSampleModel) sampleModel).getBankIndices()[0] == 0;
+    }
+}
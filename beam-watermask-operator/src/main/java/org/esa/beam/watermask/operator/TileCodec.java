@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the tiles stored in a {@link TileContainer}. The codec of a container is chosen when it is written and
+ * recorded in its header by {@link #getId()}; decoding is what a cache miss pays for, so the codecs trade disk space
+ * for decoding speed differently:
+ * <ul>
+ * <li>{@link #RAW} stores the tiles as they are; they are read from the mapped file without decoding.</li>
+ * <li>{@link #RLE} stores runs of equal bytes, which make up most of the 1-bit packed water mask, with their length;
+ * decoding is little more than filling arrays.</li>
+ * <li>{@link #LZ4} stores the tiles in the LZ4 block format: literals and back references, without entropy coding.</li>
+ * <li>{@link #DEFLATE} stores the tiles deflated, as in the zip files; the smallest, but the slowest to decode.</li>
+ * </ul>
+ * Further codecs are added by implementing this class and registering an instance with
+ * {@link #register(TileCodec)} before containers written with them are read. Codecs are stateless and can be used
+ * concurrently.
+ */
+public abstract class TileCodec {
+
+    public static final String RAW = "raw";
+    public static final String DEFLATE = "deflate";
+    public static final String LZ4 = "lz4";
+    public static final String RLE = "rle";
+
+    private static final TileCodec RAW_CODEC = new Raw();
+    private static final List<TileCodec> CODECS = new CopyOnWriteArrayList<TileCodec>(
+            Arrays.asList(RAW_CODEC, new DeflateCodec(), new Lz4(), new RunLength()));
+
+    /**
+     * Registers a codec, so that it can be found by its name and read from container headers by its id.
+     *
+     * @param codec The codec.
+     *
+     * @throws IllegalArgumentException If a codec with the same name or id is registered already.
+     */
+    public static synchronized void register(TileCodec codec) {
+        for (TileCodec registeredCodec : CODECS) {
+            if (registeredCodec.getName().equalsIgnoreCase(codec.getName())
+                || registeredCodec.getId() == codec.getId()) {
+                throw new IllegalArgumentException(
+                        MessageFormat.format("Tile codec ''{0}'' with id {1} conflicts with ''{2}'' with id {3}.",
+                                             codec.getName(), codec.getId(), registeredCodec.getName(),
+                                             registeredCodec.getId()));
+            }
+        }
+        CODECS.add(codec);
+    }
+
+    /**
+     * Returns the codec of the given name.
+     *
+     * @param name One of {@link #RAW}, {@link #DEFLATE}, {@link #LZ4}, {@link #RLE} or the name of a registered
+     *             codec, case is ignored.
+     *
+     * @return the codec.
+     */
+    public static TileCodec forName(String name) {
+        final List<String> names = new ArrayList<String>();
+        for (TileCodec codec : CODECS) {
+            if (codec.getName().equalsIgnoreCase(name)) {
+                return codec;
+            }
+            names.add(codec.getName());
+        }
+        throw new IllegalArgumentException(
+                MessageFormat.format("Unknown tile codec ''{0}''; needs to be one of {1}.", name, names));
+    }
+
+    /**
+     * Returns the codec recorded in a container header.
+     *
+     * @throws IOException If there is no codec with the given id.
+     */
+    static TileCodec forId(int id) throws IOException {
+        for (TileCodec codec : CODECS) {
+            if (codec.getId() == id) {
+                return codec;
+            }
+        }
+        throw new IOException(MessageFormat.format("Unknown tile codec id {0}.", id));
+    }
+
+    static TileCodec getRaw() {
+        return RAW_CODEC;
+    }
+
+    public abstract String getName();
+
+    /**
+     * @return the id recorded in the headers of the containers written with this codec; unique among all codecs.
+     */
+    public abstract int getId();
+
+    /**
+     * @param data The tile data.
+     *
+     * @return the encoded data.
+     */
+    public abstract byte[] encode(byte[] data);
+
+    /**
+     * Decodes a tile into the given buffer, from its position to its limit. The positions of both buffers are
+     * advanced.
+     *
+     * @param source The encoded data, from its position to its limit.
+     * @param target The buffer receiving the tile data; it has as many bytes remaining as the tile is long.
+     *
+     * @throws IOException If the encoded data are corrupt or do not decode to the length of the tile.
+     */
+    public abstract void decode(ByteBuffer source, ByteBuffer target) throws IOException;
+
+    private static IOException createLengthException(int expected) {
+        return new IOException(MessageFormat.format("Encoded tile does not decode to {0} bytes.", expected));
+    }
+
+    private static final class Raw extends TileCodec {
+
+        @Override
+        public String getName() {
+            return RAW;
+        }
+
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            return data.clone();
+        }
+
+        @Override
+        public void decode(ByteBuffer source, ByteBuffer target) throws IOException {
+            if (source.remaining() != target.remaining()) {
+                throw createLengthException(target.remaining());
+            }
+            target.put(source);
+        }
+    }
+
+    private static final class DeflateCodec extends TileCodec {
+
+        @Override
+        public String getName() {
+            return DEFLATE;
+        }
+
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 4 + 64);
+                final byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    outputStream.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return outputStream.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public void decode(ByteBuffer source, ByteBuffer target) throws IOException {
+            final int length = target.remaining();
+            final byte[] input = new byte[source.remaining()];
+            source.get(input);
+            final byte[] output;
+            final int outputOffset;
+            if (target.hasArray()) {
+                output = target.array();
+                outputOffset = target.arrayOffset() + target.position();
+            } else {
+                output = new byte[length];
+                outputOffset = 0;
+            }
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(input);
+                int count = 0;
+                while (count < length && !inflater.finished()) {
+                    final int inflated = inflater.inflate(output, outputOffset + count, length - count);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    count += inflated;
+                }
+                // the stream has to end with the tile
+                if (count != length || !inflater.finished() && (inflater.inflate(new byte[1]) > 0
+                                                                || !inflater.finished())) {
+                    throw createLengthException(length);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflated tile.", e);
+            } finally {
+                inflater.end();
+            }
+            if (target.hasArray()) {
+                target.position(target.position() + length);
+            } else {
+                target.put(output);
+            }
+        }
+    }
+
+    /**
+     * The LZ4 block format: sequences of a token, literals, and a match given by its offset and length. The encoder
+     * finds matches through a hash table of 4-byte sequences, greedily and without an optimal parse; the format is
+     * the one of LZ4, so the tiles could be decoded by other LZ4 implementations as well.
+     */
+    private static final class Lz4 extends TileCodec {
+
+        private static final int MIN_MATCH = 4;
+        private static final int LAST_LITERALS = 5;
+        private static final int MF_LIMIT = 12;
+        private static final int MAX_OFFSET = 65535;
+        private static final int HASH_BITS = 16;
+
+        @Override
+        public String getName() {
+            return LZ4;
+        }
+
+        @Override
+        public int getId() {
+            return 2;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 4 + 64);
+            final int[] hashTable = new int[1 << HASH_BITS];
+            final int matchLimit = data.length - LAST_LITERALS;
+            int anchor = 0;
+            int position = 0;
+            while (position < data.length - MF_LIMIT) {
+                final int hash = hash(data, position);
+                final int candidate = hashTable[hash] - 1;
+                hashTable[hash] = position + 1;
+                if (candidate < 0 || position - candidate > MAX_OFFSET || !equals4(data, candidate, position)) {
+                    position++;
+                    continue;
+                }
+                int matchLength = MIN_MATCH;
+                while (position + matchLength < matchLimit
+                       && data[candidate + matchLength] == data[position + matchLength]) {
+                    matchLength++;
+                }
+                writeSequence(outputStream, data, anchor, position - anchor, position - candidate, matchLength);
+                position += matchLength;
+                anchor = position;
+            }
+            // the last sequence holds literals only
+            final int literalLength = data.length - anchor;
+            outputStream.write(Math.min(literalLength, 15) << 4);
+            if (literalLength >= 15) {
+                writeLength(outputStream, literalLength - 15);
+            }
+            outputStream.write(data, anchor, literalLength);
+            return outputStream.toByteArray();
+        }
+
+        @Override
+        public void decode(ByteBuffer source, ByteBuffer target) throws IOException {
+            final int start = target.position();
+            final int end = target.limit();
+            try {
+                while (true) {
+                    final int token = source.get() & 0xFF;
+                    int literalLength = token >>> 4;
+                    if (literalLength == 15) {
+                        literalLength += readLength(source);
+                    }
+                    if (literalLength > source.remaining() || literalLength > target.remaining()) {
+                        throw createLengthException(end - start);
+                    }
+                    final int sourceLimit = source.limit();
+                    source.limit(source.position() + literalLength);
+                    target.put(source);
+                    source.limit(sourceLimit);
+                    if (!source.hasRemaining()) {
+                        break;
+                    }
+                    final int offset = (source.get() & 0xFF) | (source.get() & 0xFF) << 8;
+                    int matchLength = token & 0x0F;
+                    if (matchLength == 15) {
+                        matchLength += readLength(source);
+                    }
+                    matchLength += MIN_MATCH;
+                    int position = target.position();
+                    if (offset == 0 || position - offset < start || matchLength > end - position) {
+                        throw new IOException("Corrupt LZ4 tile.");
+                    }
+                    // byte by byte, because the match may overlap the bytes it produces
+                    for (int i = position - offset; matchLength > 0; matchLength--) {
+                        target.put(position++, target.get(i++));
+                    }
+                    target.position(position);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt LZ4 tile.", e);
+            }
+            if (target.hasRemaining()) {
+                throw createLengthException(end - start);
+            }
+        }
+
+        private static void writeSequence(ByteArrayOutputStream outputStream, byte[] data, int literalStart,
+                                          int literalLength, int offset, int matchLength) {
+            final int storedMatchLength = matchLength - MIN_MATCH;
+            outputStream.write(Math.min(literalLength, 15) << 4 | Math.min(storedMatchLength, 15));
+            if (literalLength >= 15) {
+                writeLength(outputStream, literalLength - 15);
+            }
+            outputStream.write(data, literalStart, literalLength);
+            outputStream.write(offset & 0xFF);
+            outputStream.write(offset >>> 8);
+            if (storedMatchLength >= 15) {
+                writeLength(outputStream, storedMatchLength - 15);
+            }
+        }
+
+        private static void writeLength(ByteArrayOutputStream outputStream, int length) {
+            while (length >= 255) {
+                outputStream.write(255);
+                length -= 255;
+            }
+            outputStream.write(length);
+        }
+
+        private static int readLength(ByteBuffer source) {
+            int length = 0;
+            int value;
+            do {
+                value = source.get() & 0xFF;
+                length += value;
+            } while (value == 255);
+            return length;
+        }
+
+        private static int hash(byte[] data, int position) {
+            final int value = (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8
+                              | (data[position + 2] & 0xFF) << 16 | (data[position + 3] & 0xFF) << 24;
+            return (value * -1640531535) >>> (32 - HASH_BITS);
+        }
+
+        private static boolean equals4(byte[] data, int index1, int index2) {
+            return data[index1] == data[index2] && data[index1 + 1] == data[index2 + 1]
+                   && data[index1 + 2] == data[index2 + 2] && data[index1 + 3] == data[index2 + 3];
+        }
+    }
+
+    /**
+     * Run-length encoding for bitmaps: the 1-bit packed water mask consists mostly of long runs of 0x00 (land) and
+     * 0xFF (water) bytes, which are stored as their value and length; the bytes in between are stored as literals.
+     * Each run or literal section starts with a variable-length header holding its length and, in the lowest bit,
+     * whether it is a run.
+     */
+    private static final class RunLength extends TileCodec {
+
+        private static final int MIN_RUN = 3;
+
+        @Override
+        public String getName() {
+            return RLE;
+        }
+
+        @Override
+        public int getId() {
+            return 3;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length / 8 + 64);
+            int literalStart = 0;
+            int position = 0;
+            while (position < data.length) {
+                int runEnd = position + 1;
+                while (runEnd < data.length && data[runEnd] == data[position]) {
+                    runEnd++;
+                }
+                if (runEnd - position < MIN_RUN) {
+                    position = runEnd;
+                    continue;
+                }
+                if (position > literalStart) {
+                    writeHeader(outputStream, position - literalStart, false);
+                    outputStream.write(data, literalStart, position - literalStart);
+                }
+                writeHeader(outputStream, runEnd - position, true);
+                outputStream.write(data[position]);
+                position = runEnd;
+                literalStart = runEnd;
+            }
+            if (data.length > literalStart) {
+                writeHeader(outputStream, data.length - literalStart, false);
+                outputStream.write(data, literalStart, data.length - literalStart);
+            }
+            return outputStream.toByteArray();
+        }
+
+        @Override
+        public void decode(ByteBuffer source, ByteBuffer target) throws IOException {
+            final int length = target.remaining();
+            try {
+                while (source.hasRemaining()) {
+                    final long header = readHeader(source);
+                    final long count = header >>> 1;
+                    if (count > target.remaining()) {
+                        throw createLengthException(length);
+                    }
+                    if ((header & 1) != 0) {
+                        fill(target, source.get(), (int) count);
+                    } else {
+                        final int sourceLimit = source.limit();
+                        source.limit(source.position() + (int) count);
+                        target.put(source);
+                        source.limit(sourceLimit);
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupt run-length encoded tile.", e);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt run-length encoded tile.", e);
+            }
+            if (target.hasRemaining()) {
+                throw createLengthException(length);
+            }
+        }
+
+        private static void fill(ByteBuffer target, byte value, int count) {
+            if (target.hasArray()) {
+                final int offset = target.arrayOffset() + target.position();
+                Arrays.fill(target.array(), offset, offset + count, value);
+                target.position(target.position() + count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    target.put(value);
+                }
+            }
+        }
+
+        private static void writeHeader(ByteArrayOutputStream outputStream, int count, boolean run) {
+            long header = (long) count << 1 | (run ? 1 : 0);
+            while (header >= 0x80) {
+                outputStream.write((int) (header & 0x7F) | 0x80);
+                header >>>= 7;
+            }
+            outputStream.write((int) header);
+        }
+
+        private static long readHeader(ByteBuffer source) throws IOException {
+            long header = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int value = source.get() & 0xFF;
+                header |= (long) (value & 0x7F) << shift;
+                if (value < 0x80) {
+                    return header;
+                }
+            }
+            throw new IOException("Corrupt run-length encoded tile.");
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+
+/**
+ * A single-file container for the tiles of an auxdata image, read through memory mapping instead of inflating a zip
+ * entry per tile. The OS page cache keeps the data, so it is shared by all JVMs on a machine. The tiles are encoded
+ * by the {@link TileCodec} the container has been written with; by default they are stored raw.
+ * <p/>
+ * Layout: a header of five ints (magic number, version, codec id, number of tiles in x and y), the index holding the
+ * offset (long) and length (int) of each encoded tile in row-major order, and the tile data. Each tile starts at a
+ * page boundary and lies within one segment of {@link #SEGMENT_SIZE} bytes, so that it can be read from a single
+ * mapping. A length of 0 marks a tile which is not contained. Containers of version 1 have no codec id and hold raw
+ * tiles.
+ * <p/>
+ * Containers are written by {@code org.esa.beam.watermask.util.TileContainerWriter}. An image uses the container
+ * instead of its zip file if a file named like the zip file, but with the extension {@code .tiles}, exists next to
+ * it (see {@link #getContainerFile(File)}).
+ */
+public final class TileContainer {
+
+    private static final int MAGIC = 0x574D5443;
+    private static final String FILE_EXTENSION = ".tiles";
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int HEADER_SIZE_V1 = 16;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final int PAGE_SIZE = 4096;
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final TileCodec codec;
+    private final int numTilesX;
+    private final int numTilesY;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * @param zipFile The zip file of an auxdata image.
+     *
+     * @return the container file which replaces the given zip file, if it exists.
+     */
+    public static File getContainerFile(File zipFile) {
+        return WatermaskUtils.getSiblingFile(zipFile, FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the container if it exists for the given zip file.
+     *
+     * @return the container, or {@code null} if there is none.
+     */
+    static TileContainer openIfExists(File zipFile) throws IOException {
+        final File containerFile = WatermaskUtils.getExistingSiblingFile(zipFile, FILE_EXTENSION);
+        return containerFile != null ? new TileContainer(containerFile) : null;
+    }
+
+    private TileContainer(File containerFile) throws IOException {
+        file = new RandomAccessFile(containerFile, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            WatermaskUtils.readFully(channel, header, 0);
+            final int version = header.getInt(4);
+            if (header.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+                throw new IOException(MessageFormat.format("''{0}'' is not a tile container of version 1 to {1}.",
+                                                           containerFile, VERSION));
+            }
+            final int headerSize;
+            if (version == 1) {
+                codec = TileCodec.getRaw();
+                numTilesX = header.getInt(8);
+                numTilesY = header.getInt(12);
+                headerSize = HEADER_SIZE_V1;
+            } else {
+                codec = TileCodec.forId(header.getInt(8));
+                numTilesX = header.getInt(12);
+                numTilesY = header.getInt(16);
+                headerSize = HEADER_SIZE;
+            }
+            final int numTiles = numTilesX * numTilesY;
+            final ByteBuffer index = ByteBuffer.allocate(numTiles * INDEX_ENTRY_SIZE);
+            WatermaskUtils.readFully(channel, index, headerSize);
+            offsets = new long[numTiles];
+            lengths = new int[numTiles];
+            for (int i = 0; i < numTiles; i++) {
+                offsets[i] = index.getLong(i * INDEX_ENTRY_SIZE);
+                lengths[i] = index.getInt(i * INDEX_ENTRY_SIZE + 8);
+            }
+            segments = new MappedByteBuffer[(int) ((channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the codec the tiles are encoded with.
+     */
+    TileCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return {@code true} if the tiles are stored raw, so that {@link #mapTile(int, int)} returns the tile data.
+     */
+    boolean isRaw() {
+        return codec == TileCodec.getRaw();
+    }
+
+    /**
+     * @return {@code true} if the container holds the given tile.
+     */
+    boolean hasTile(int tileX, int tileY) {
+        return tileX >= 0 && tileX < numTilesX && tileY >= 0 && tileY < numTilesY
+               && lengths[tileY * numTilesX + tileX] > 0;
+    }
+
+    /**
+     * Copies the data of the given tile from the mapped file: raw tiles by a single bulk get, other tiles are
+     * decoded.
+     *
+     * @param tileX The tile index in x-direction.
+     * @param tileY The tile index in y-direction.
+     * @param data  Receives the data; must have the length of the tile.
+     *
+     * @throws IOException If the tile is not contained or has a different length, or the file cannot be mapped.
+     */
+    void readTile(int tileX, int tileY, byte[] data) throws IOException {
+        readTile(tileX, tileY, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Copies the data of the given tile into the given buffer, starting at its position, like
+     * {@link #readTile(int, int, byte[])}.
+     *
+     * @param target The buffer; it has as many bytes remaining as the tile is long.
+     */
+    void readTile(int tileX, int tileY, ByteBuffer target) throws IOException {
+        final ByteBuffer buffer = mapTile(tileX, tileY);
+        if (isRaw()) {
+            if (buffer.remaining() != target.remaining()) {
+                throw new IOException(MessageFormat.format("Tile ''{0} | {1}'' has {2} bytes, expected {3}.",
+                                                           tileX, tileY, buffer.remaining(), target.remaining()));
+            }
+            target.put(buffer);
+            return;
+        }
+        try {
+            codec.decode(buffer, target);
+        } catch (IOException e) {
+            throw new IOException(MessageFormat.format("Failed to decode tile ''{0} | {1}''.", tileX, tileY), e);
+        }
+    }
+
+    /**
+     * Returns the stored data of the given tile as a view of the mapped file, without copying it onto the Java heap.
+     * Unless the container {@link #isRaw() is raw}, the data are encoded.
+     *
+     * @param tileX The tile index in x-direction.
+     * @param tileY The tile index in y-direction.
+     *
+     * @return the stored data, starting at index 0 and ending at the limit.
+     *
+     * @throws IOException If the tile is not contained or the file cannot be mapped.
+     */
+    ByteBuffer mapTile(int tileX, int tileY) throws IOException {
+        if (!hasTile(tileX, tileY)) {
+            throw new IOException(MessageFormat.format("Tile ''{0} | {1}'' is not contained.", tileX, tileY));
+        }
+        final int tileIndex = tileY * numTilesX + tileX;
+        final int position = (int) (offsets[tileIndex] % SEGMENT_SIZE);
+        // duplicate, because the position of the shared mapping must not be changed concurrently
+        final ByteBuffer buffer = getSegment((int) (offsets[tileIndex] / SEGMENT_SIZE)).duplicate();
+        buffer.position(position);
+        buffer.limit(position + lengths[tileIndex]);
+        return buffer.slice();
+    }
+
+    /**
+     * Reads one byte of each page of the given tile, so that the OS loads the tile into the page cache.
+     *
+     * @throws IOException If the tile is not contained or the file cannot be mapped.
+     */
+    void prefetchTile(int tileX, int tileY) throws IOException {
+        final ByteBuffer buffer = mapTile(tileX, tileY);
+        for (int index = 0; index < buffer.limit(); index += PAGE_SIZE) {
+            buffer.get(index);
+        }
+    }
+
+    /**
+     * Closes the file. The mappings stay valid until they are garbage collected.
+     */
+    void close() throws IOException {
+        file.close();
+    }
+
+    private synchronized MappedByteBuffer getSegment(int segmentIndex) throws IOException {
+        if (segments[segmentIndex] == null) {
+            final FileChannel channel = file.getChannel();
+            final long position = segmentIndex * SEGMENT_SIZE;
+            final long size = Math.min(SEGMENT_SIZE, channel.size() - position);
+            segments[segmentIndex] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+        return segments[segmentIndex];
+    }
+
+    /**
+     * Writes a tile container. Tiles can be written in any order; the index is written on {@link #close()}.
+     */
+    public static final class Writer {
+
+        private final RandomAccessFile file;
+        private final TileCodec codec;
+        private final int numTilesX;
+        private final int numTilesY;
+        private final long[] offsets;
+        private final int[] lengths;
+        private long position;
+
+        /**
+         * Creates the container file for raw tiles.
+         *
+         * @param containerFile The file to write.
+         * @param numTilesX     The number of tiles of the image in x-direction.
+         * @param numTilesY     The number of tiles of the image in y-direction.
+         *
+         * @throws IOException If the file cannot be created.
+         */
+        public Writer(File containerFile, int numTilesX, int numTilesY) throws IOException {
+            this(containerFile, numTilesX, numTilesY, TileCodec.getRaw());
+        }
+
+        /**
+         * Creates the container file for tiles encoded by the given codec.
+         *
+         * @param containerFile The file to write.
+         * @param numTilesX     The number of tiles of the image in x-direction.
+         * @param numTilesY     The number of tiles of the image in y-direction.
+         * @param codec         The codec encoding the tiles.
+         *
+         * @throws IOException If the file cannot be created.
+         */
+        public Writer(File containerFile, int numTilesX, int numTilesY, TileCodec codec) throws IOException {
+            file = new RandomAccessFile(containerFile, "rw");
+            file.setLength(0);
+            this.codec = codec;
+            this.numTilesX = numTilesX;
+            this.numTilesY = numTilesY;
+            offsets = new long[numTilesX * numTilesY];
+            lengths = new int[numTilesX * numTilesY];
+            position = alignToPage(HEADER_SIZE + (long) offsets.length * INDEX_ENTRY_SIZE);
+        }
+
+        /**
+         * Encodes and appends the data of a tile.
+         *
+         * @param tileX The tile index in x-direction.
+         * @param tileY The tile index in y-direction.
+         * @param tile  The tile data in the raw layout of the image tile.
+         *
+         * @return the number of bytes the encoded tile occupies.
+         *
+         * @throws IOException If the data cannot be written.
+         */
+        public int writeTile(int tileX, int tileY, byte[] tile) throws IOException {
+            if (tileX < 0 || tileX >= numTilesX || tileY < 0 || tileY >= numTilesY) {
+                throw new IllegalArgumentException(
+                        MessageFormat.format("Tile ''{0} | {1}'' lies outside the image.", tileX, tileY));
+            }
+            final byte[] data = codec == TileCodec.getRaw() ? tile : codec.encode(tile);
+            if (data.length == 0 || data.length > SEGMENT_SIZE) {
+                throw new IllegalArgumentException(MessageFormat.format("Invalid tile size: {0}.", data.length));
+            }
+            if (position % SEGMENT_SIZE + data.length > SEGMENT_SIZE) {
+                position = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+            }
+            file.seek(position);
+            file.write(data);
+            offsets[tileY * numTilesX + tileX] = position;
+            lengths[tileY * numTilesX + tileX] = data.length;
+            position = alignToPage(position + data.length);
+            return data.length;
+        }
+
+        /**
+         * Writes header and index and closes the file.
+         *
+         * @throws IOException If the file cannot be written.
+         */
+        public void close() throws IOException {
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + offsets.length * INDEX_ENTRY_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(codec.getId()).putInt(numTilesX).putInt(numTilesY);
+                for (int i = 0; i < offsets.length; i++) {
+                    header.putLong(offsets[i]).putInt(lengths[i]);
+                }
+                file.seek(0);
+                file.write(header.array());
+                file.setLength(position);
+            } finally {
+                file.close();
+            }
+        }
+
+        private static long alignToPage(long position) {
+            return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        }
+    }
+}
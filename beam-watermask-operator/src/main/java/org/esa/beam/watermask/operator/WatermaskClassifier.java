@@ -16,26 +16,24 @@
 
 package org.esa.beam.watermask.operator;
 
-import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.framework.datamodel.GeoCoding;
 import org.esa.beam.framework.datamodel.GeoPos;
 import org.esa.beam.framework.datamodel.PixelPos;
-import org.esa.beam.util.ResourceInstaller;
-import org.esa.beam.util.SystemUtils;
-import org.esa.beam.watermask.util.ImageDescriptor;
-import org.esa.beam.watermask.util.ImageDescriptorBuilder;
-import org.geotools.resources.image.ImageUtilities;
-
-import javax.imageio.ImageIO;
-import javax.media.jai.NullOpImage;
+
 import javax.media.jai.OpImage;
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.image.Raster;
-import java.io.File;
 import java.io.IOException;
-import java.net.URL;
+import java.nio.ByteBuffer;
 import java.text.MessageFormat;
-import java.util.Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Classifies a pixel given by its geo-coordinate as water pixel.
@@ -46,6 +44,11 @@ public class WatermaskClassifier {
     public static final int WATER_VALUE = 1;
     public static final int INVALID_VALUE = 127;
     public static final int LAND_VALUE = 0;
+    /**
+     * The value returned by {@link #getHomogeneousValue(float, float, float, float)} for regions which are not known
+     * to be homogeneous.
+     */
+    public static final int MIXED_VALUE = BlockSummaryIndex.MIXED;
 
     static final int GC_TILE_WIDTH = 576;
     static final int GC_TILE_HEIGHT = 491;
@@ -54,10 +57,22 @@ public class WatermaskClassifier {
 
     static final String AUXDATA_VERSION = "v1.3.4";
 
-    private final ImageSource imageSource;
+    // the number of positions below which a batch is not split further
+    static final int BULK_SPLIT_SIZE = 16384;
+
+    private static ForkJoinPool bulkPool;
+
+    private final AuxdataImages auxdataImages;
+    private final AuxdataImages.ImageSource imageSource;
     private float[] samplingStepsX;
     private float[] samplingStepsY;
     private final int numSuperSamples;
+    private final double auxdataPixelSize;
+    private final FractionPyramidLevel pyramidLevel;
+    private final float[] pyramidStepsX;
+    private final float[] pyramidStepsY;
+    private final boolean adaptiveSuperSampling;
+    private boolean disposed;
 
 
     public WatermaskClassifier(int resolution) throws IOException {
@@ -89,23 +104,99 @@ public class WatermaskClassifier {
      * @throws java.io.IOException If some IO-error occurs creating the sources.
      */
     public WatermaskClassifier(int resolution, int superSamplingX, int superSamplingY) throws IOException {
+        this(resolution, superSamplingX, superSamplingY, false);
+    }
+
+    /**
+     * Creates a new classifier instance on the given resolution, which optionally computes the fractions of water
+     * from the water fraction pyramid. Each level of the pyramid holds the fractions of water of blocks of
+     * 2<sup>n</sup> x 2<sup>n</sup> pixels of the water mask. The coarsest level not exceeding the smaller
+     * super-sampling factor is used, and only as many super-samples are taken per pixel as are needed to cover the
+     * pixel with blocks of that level. Above 60&deg; north, where no pyramid exists, the water mask is sampled as
+     * usual. The pyramid levels are created by {@code org.esa.beam.watermask.util.FractionPyramidBuilder} and need to
+     * be placed in the auxdata directory.
+     *
+     * @param resolution         The resolution specifying on source data is to be queried. Needs to be
+     *                           50, 150, or 1000.
+     * @param superSamplingX     Each pixel of the input is super-sampled in x-direction by using this factor.
+     * @param superSamplingY     Each pixel of the input is super-sampled in y-direction by using this factor.
+     * @param useFractionPyramid Whether to use the water fraction pyramid; only possible for the resolutions
+     *                           50 and 150.
+     *
+     * @throws java.io.IOException If some IO-error occurs creating the sources, or if the fraction pyramid shall be
+     *                             used but no suitable level is installed.
+     */
+    public WatermaskClassifier(int resolution, int superSamplingX, int superSamplingY,
+                               boolean useFractionPyramid) throws IOException {
+        this(resolution, superSamplingX, superSamplingY, useFractionPyramid, false);
+    }
+
+    /**
+     * Creates a new classifier instance on the given resolution, which optionally computes the fractions of water
+     * from the water fraction pyramid (see {@link #WatermaskClassifier(int, int, int, boolean)}), and optionally
+     * super-samples adaptively.
+     * <p/>
+     * When super-sampling adaptively, the region spanned by the corner super-samples of each pixel is looked up by
+     * {@link #getHomogeneousValue(float, float, float, float)} first. Only if it is not known to be homogeneous, the
+     * pixel is refined by taking all its super-samples; otherwise its fraction follows from the value of the
+     * region. The fractions are the same as without adaptive super-sampling, as long as the geo-coding is nearly
+     * linear within a pixel, because the region is enlarged by a margin of one auxdata pixel plus the tolerated
+     * interpolation error of the geo-positions. The number of refined pixels is counted by the
+     * {@link WatermaskMetrics}. Adaptive super-sampling does not apply to the water fraction pyramid.
+     *
+     * @param resolution            The resolution specifying on source data is to be queried. Needs to be
+     *                              50, 150, or 1000.
+     * @param superSamplingX        Each pixel of the input is super-sampled in x-direction by using this factor.
+     * @param superSamplingY        Each pixel of the input is super-sampled in y-direction by using this factor.
+     * @param useFractionPyramid    Whether to use the water fraction pyramid; only possible for the resolutions
+     *                              50 and 150.
+     * @param adaptiveSuperSampling Whether to take all super-samples only of the pixels whose footprint is not
+     *                              known to be homogeneous.
+     *
+     * @throws java.io.IOException If some IO-error occurs creating the sources, or if the fraction pyramid shall be
+     *                             used but no suitable level is installed.
+     */
+    public WatermaskClassifier(int resolution, int superSamplingX, int superSamplingY, boolean useFractionPyramid,
+                               boolean adaptiveSuperSampling) throws IOException {
         if (!isValidResolution(resolution)) {
             throw new IllegalArgumentException(
                     MessageFormat.format("Resolution needs to be {0}, {1}, or {2}.", 50, 150, 1000));
         }
+        if (useFractionPyramid && resolution == 1000) {
+            throw new IllegalArgumentException("The fraction pyramid is only available for resolutions 50 and 150.");
+        }
 
         this.numSuperSamples = superSamplingX * superSamplingY;
+        // a single super-sample is cheaper to take than to look up the homogeneity of its region
+        this.adaptiveSuperSampling = adaptiveSuperSampling && numSuperSamples > 1;
+        this.auxdataPixelSize = 1.0 / WatermaskUtils.computeSideLength(resolution);
         samplingStepsX = getSuperSamplingSteps(superSamplingX);
         samplingStepsY = getSuperSamplingSteps(superSamplingY);
 
-        if (resolution == 50 || resolution == 150) {
-            File auxdataDir = installAuxdata();
-            SRTMOpImage centerImage = createCenterImage(resolution, auxdataDir);
-            ImageDescriptor northDescriptor = getNorthDescriptor(auxdataDir);
-            PNGSourceImage northImage = createBorderImage(northDescriptor);
-            imageSource = new HighResImageSource(centerImage, northImage);
+        auxdataImages = AuxdataImages.acquire(resolution);
+        imageSource = auxdataImages.getImageSource();
+
+        final int subSampling = Math.min(superSamplingX, superSamplingY);
+        if (useFractionPyramid && subSampling > 1) {
+            try {
+                pyramidLevel = auxdataImages.getPyramidLevel(subSampling);
+            } catch (IOException e) {
+                auxdataImages.release();
+                throw e;
+            }
+            if (pyramidLevel == null) {
+                auxdataImages.release();
+                throw new IOException(MessageFormat.format(
+                        "No level of the water fraction pyramid for resolution {0} and sub-sampling {1} installed.",
+                        resolution, subSampling));
+            }
+            final int factor = pyramidLevel.getFactor();
+            pyramidStepsX = getSuperSamplingSteps(Math.max(1, Math.round((float) superSamplingX / factor)));
+            pyramidStepsY = getSuperSamplingSteps(Math.max(1, Math.round((float) superSamplingY / factor)));
         } else {
-            imageSource = new LowResImageSource();
+            pyramidLevel = null;
+            pyramidStepsX = null;
+            pyramidStepsY = null;
         }
     }
 
@@ -125,7 +216,9 @@ public class WatermaskClassifier {
     }
 
     /**
-     * Returns the sample value at the given geo-position, regardless of the source resolution.
+     * Returns the sample value at the given geo-position, regardless of the source resolution. Where a block
+     * container is installed next to the SRTM zip file (see {@link BlockContainer}), only the block containing the
+     * position is read and cached, not the whole SRTM tile.
      *
      * @param lat The latitude value.
      * @param lon The longitude value.
@@ -134,20 +227,133 @@ public class WatermaskClassifier {
      * no definite statement can be made about the position.
      */
     public int getWaterMaskSample(float lat, float lon) {
-        double normLon = lon + 180.0;
-        if (normLon >= 360) {
-            normLon %= 360;
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        if (metrics != null) {
+            metrics.samplesEvaluated(1);
         }
+        final double normLon = normalizeLon(lon);
 
         float normLat = Math.abs(lat - 90.0f);
 
-        if (normLon < 0.0 || normLon > 360.0 || normLat < 0.0 || normLat > 180.0) {
+        if (normLon < 0.0 || normLat < 0.0 || normLat > 180.0) {
             return INVALID_VALUE;
         }
 
         return getSample(normLat, normLon, imageSource.getLatHeight(normLat), imageSource.getLonWidth(), imageSource.getImage(normLat));
     }
 
+    /**
+     * Tells whether all auxdata pixels within a geographic box have the same value, without reading pixel data.
+     * The eastern and southern edges of the box are exclusive, so that the box of a target tile aligned to the
+     * 1&deg; auxdata tiles does not reach into the next tile. Regions are known to be homogeneous if they lie within
+     * missing SRTM tiles or constant GlobCover tiles, or within homogeneous blocks of the block summary index
+     * installed next to the SRTM zip file (see {@link BlockSummaryIndex}). Boxes stretching over more than one
+     * auxdata image, and boxes of the 1000 m resolution, are not known to be homogeneous.
+     *
+     * @param northLat The northern latitude of the box.
+     * @param southLat The southern latitude of the box; not greater than the northern latitude.
+     * @param westLon  The western longitude of the box. If it is greater than the eastern longitude, the box crosses
+     *                 the antimeridian.
+     * @param eastLon  The eastern longitude of the box.
+     *
+     * @return {@link #LAND_VALUE}, {@link #WATER_VALUE} or {@link #INVALID_VALUE} if all pixels within the box have
+     * this value, or {@link #MIXED_VALUE} if they differ or it cannot be told without reading them.
+     */
+    public int getHomogeneousValue(float northLat, float southLat, float westLon, float eastLon) {
+        if (!(northLat >= southLat)) {
+            throw new IllegalArgumentException(
+                    MessageFormat.format("Northern latitude {0} is south of southern latitude {1}.",
+                                         northLat, southLat));
+        }
+        if (westLon > eastLon) {
+            final int westernValue = getHomogeneousValue(northLat, southLat, westLon, 180.0f);
+            if (westernValue == MIXED_VALUE) {
+                return MIXED_VALUE;
+            }
+            final int easternValue = getHomogeneousValue(northLat, southLat, -180.0f, eastLon);
+            return westernValue == easternValue ? westernValue : MIXED_VALUE;
+        }
+        final float minNormLat = Math.max(90.0f - northLat, 0.0f);
+        final float maxNormLat = Math.min(90.0f - southLat, 180.0f);
+        // the images are told apart inside of the box, as its northern edge may be the southern edge of an image
+        final float innerMinNormLat = minNormLat < maxNormLat ? Math.nextUp(minNormLat) : minNormLat;
+        final float innerMaxNormLat = minNormLat < maxNormLat ? Math.nextAfter(maxNormLat, 0.0) : maxNormLat;
+        final OpImage image = imageSource.getImage(innerMinNormLat);
+        final float latHeight = imageSource.getLatHeight(innerMinNormLat);
+        if (image != imageSource.getImage(innerMaxNormLat)
+            || latHeight != imageSource.getLatHeight(innerMaxNormLat)) {
+            return MIXED_VALUE;
+        }
+        if (image == null || latHeight == AuxdataImages.INVALID_LAT_HEIGHT) {
+            return INVALID_VALUE;
+        }
+        final double pixelSizeX = (double) imageSource.getLonWidth() / image.getWidth();
+        final double pixelSizeY = (double) latHeight / image.getHeight();
+        final int minX = toPixel(Math.max(westLon + 180.0, 0.0), pixelSizeX, image.getWidth());
+        final int maxX = Math.max(toLastPixel(Math.min(eastLon + 180.0, 360.0), pixelSizeX, image.getWidth()), minX);
+        final int minY = toPixel(minNormLat, pixelSizeY, image.getHeight());
+        final int maxY = Math.max(toLastPixel(maxNormLat, pixelSizeY, image.getHeight()), minY);
+        if (image instanceof SRTMOpImage) {
+            return ((SRTMOpImage) image).getHomogeneousValue(minX, minY, maxX, maxY);
+        }
+        if (image instanceof PNGSourceImage) {
+            return ((PNGSourceImage) image).getHomogeneousValue(minX, minY, maxX, maxY);
+        }
+        return MIXED_VALUE;
+    }
+
+    /**
+     * Returns the sample values at many geo-positions at once, as {@link #getWaterMaskSample(float, float)} does for
+     * each position; positions with a {@code NaN} latitude are invalid. The positions are sorted by the auxdata
+     * tile they fall into, the tiles in Morton order, so that every tile is visited once while it is resident,
+     * however scattered the positions are. Large batches are split at tile boundaries and classified in parallel.
+     *
+     * @param lats    The latitudes.
+     * @param lons    The longitudes; as many as latitudes.
+     * @param samples The array receiving the sample values in the order of the positions. Must provide at least
+     *                as many elements as there are positions.
+     */
+    public void getWaterMaskSamples(float[] lats, float[] lons, byte[] samples) {
+        final int count = lats.length;
+        if (lons.length != count || samples.length < count) {
+            throw new IllegalArgumentException(
+                    MessageFormat.format("Expected {0} longitudes and samples, got {1} and {2}.",
+                                         count, lons.length, samples.length));
+        }
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        if (metrics != null) {
+            metrics.samplesEvaluated(count);
+        }
+        final AuxdataRow positions = new AuxdataRow(count);
+        final List<OpImage> images = new ArrayList<OpImage>(2);
+        final long[] order = new long[count];
+        int validCount = 0;
+        for (int i = 0; i < count; i++) {
+            locateSample(lats[i], lons[i], positions, i);
+            final OpImage image = positions.images[i];
+            if (image == null) {
+                samples[i] = INVALID_VALUE;
+                continue;
+            }
+            int imageIndex = images.indexOf(image);
+            if (imageIndex < 0) {
+                imageIndex = images.size();
+                images.add(image);
+            }
+            final int tileX = image.XToTileX(positions.xs[i]);
+            final int tileY = image.YToTileY(positions.ys[i]);
+            // the key of the tile fills the upper bits, the position index the lower 31 bits
+            order[validCount++] = (getTileKey(imageIndex, tileX, tileY) << 31) | i;
+        }
+        Arrays.sort(order, 0, validCount);
+        final SampleBuckets buckets = new SampleBuckets(order, validCount, positions, samples);
+        if (validCount <= BULK_SPLIT_SIZE) {
+            buckets.classify(0, buckets.getBucketCount());
+        } else {
+            getBulkPool().invoke(new BucketTask(buckets, 0, buckets.getBucketCount()));
+        }
+    }
+
     /**
      * Returns the fraction of water for the given region, considering the super-sampling factors given at
      * construction time.
@@ -159,87 +365,708 @@ public class WatermaskClassifier {
      * @return The fraction of water in the given geographic rectangle, in the range [0..100].
      */
     public byte getWaterMaskFraction(GeoCoding geoCoding, int pixelPosX, int pixelPosY) {
+        final byte[] fraction = new byte[1];
+        getWaterMaskFractions(geoCoding, new Rectangle(pixelPosX, pixelPosY, 1, 1), fraction);
+        return fraction[0];
+    }
+
+    /**
+     * Computes the fractions of water for all pixels of the given rectangle, considering the super-sampling factors
+     * given at construction time. The result is the same as calling
+     * {@link #getWaterMaskFraction(GeoCoding, int, int)} for every pixel of the rectangle, but all scratch objects
+     * are allocated once per call and the auxdata tile accessed last is kept at hand.
+     *
+     * @param geoCoding The geo coding of the product the watermask fractions shall be computed for.
+     * @param rectangle The pixel region the watermask fractions shall be computed for.
+     * @param fractions The array receiving the fractions in row-major order, each in the range [0..100] or
+     *                  {@link #INVALID_VALUE}. Must provide at least {@code rectangle.width * rectangle.height}
+     *                  elements.
+     */
+    public void getWaterMaskFractions(GeoCoding geoCoding, Rectangle rectangle, byte[] fractions) {
+        getWaterMaskFractions(geoCoding, rectangle, 1, 0.0, fractions);
+    }
+
+    /**
+     * Computes the fractions of water for all pixels of the given rectangle, like
+     * {@link #getWaterMaskFractions(GeoCoding, Rectangle, byte[])}, but optionally evaluates the geo-coding only on
+     * a coarse grid of super-samples and interpolates the geo-positions in between. Grid cells whose interpolation
+     * error exceeds {@code maxGeoPosError} are evaluated exactly.
+     *
+     * @param geoCoding      The geo coding of the product the watermask fractions shall be computed for.
+     * @param rectangle      The pixel region the watermask fractions shall be computed for.
+     * @param geoPosGridStep The distance of the exactly computed geo-positions, in super-samples. A value of 1
+     *                       computes every geo-position exactly.
+     * @param maxGeoPosError The maximum tolerated error of interpolated geo-positions, in pixels of the auxiliary
+     *                       data.
+     * @param fractions      The array receiving the fractions in row-major order, each in the range [0..100] or
+     *                       {@link #INVALID_VALUE}. Must provide at least {@code rectangle.width * rectangle.height}
+     *                       elements.
+     */
+    public void getWaterMaskFractions(GeoCoding geoCoding, Rectangle rectangle, int geoPosGridStep,
+                                      double maxGeoPosError, byte[] fractions) {
+        checkFractionsLength(rectangle, fractions);
+        recordSamples(rectangle);
+        if (pyramidLevel != null) {
+            final GeoPosGrid geoPosGrid = new GeoPosGrid(geoCoding, rectangle, pyramidStepsX, pyramidStepsY,
+                                                         geoPosGridStep, maxGeoPosError * auxdataPixelSize);
+            computePyramidFractions(new SampleRows() {
+                @Override
+                void getRow(int sampleRow, float[] lats, float[] lons) {
+                    geoPosGrid.getRow(sampleRow, lats, lons);
+                }
+            }, rectangle, fractions);
+            return;
+        }
+        final int width = rectangle.width;
+        final double maxError = maxGeoPosError * auxdataPixelSize;
+        final GeoPosGrid geoPosGrid = new GeoPosGrid(geoCoding, rectangle, samplingStepsX, samplingStepsY,
+                                                     geoPosGridStep, maxError);
+        final int numStepsX = samplingStepsX.length;
+        final int numStepsY = samplingStepsY.length;
+        final float[] lats = new float[width * numStepsX];
+        final float[] lons = new float[width * numStepsX];
+        final AuxdataRow auxdataRow = new AuxdataRow(width * numStepsX);
+        final TileCursor cursor = new TileCursor();
+        final int[] valueSums = new int[width];
+        final int[] invalidCounts = new int[width];
+        final int[] footprintValues = adaptiveSuperSampling ? new int[width] : null;
+        final float[] bottomLats = adaptiveSuperSampling ? new float[width * numStepsX] : null;
+        final float[] bottomLons = adaptiveSuperSampling ? new float[width * numStepsX] : null;
+        // the region of the corner super-samples is enlarged by an auxdata pixel for the curvature of the
+        // geo-coding, and by twice the interpolation error for interpolated geo-positions
+        final double margin = auxdataPixelSize + (geoPosGridStep > 1 ? 2.0 * maxError : 0.0);
+        long refinedCount = 0;
+        try {
+            for (int y = 0; y < rectangle.height; y++) {
+                if (footprintValues != null) {
+                    for (int x = 0; x < width; x++) {
+                        final int first = x * numStepsX;
+                        final int last = first + numStepsX - 1;
+                        getCornerSamples(geoPosGrid, y * numStepsY, first, last, lats, lons);
+                        getCornerSamples(geoPosGrid, y * numStepsY + numStepsY - 1, first, last, bottomLats,
+                                         bottomLons);
+                        footprintValues[x] = getFootprintValue(
+                                min(lats[first], lats[last], bottomLats[first], bottomLats[last]),
+                                max(lats[first], lats[last], bottomLats[first], bottomLats[last]),
+                                min(lons[first], lons[last], bottomLons[first], bottomLons[last]),
+                                max(lons[first], lons[last], bottomLons[first], bottomLons[last]), margin);
+                    }
+                }
+                final int lineOffset = y * width;
+                int x = 0;
+                while (x < width) {
+                    if (footprintValues != null && footprintValues[x] != MIXED_VALUE) {
+                        fractions[lineOffset + x] = toFraction(footprintValues[x]);
+                        x++;
+                        continue;
+                    }
+                    final int runEnd = footprintValues != null ? findMixedRunEnd(footprintValues, x) : width;
+                    Arrays.fill(valueSums, x, runEnd, 0);
+                    Arrays.fill(invalidCounts, x, runEnd, 0);
+                    // walk each super-sampling row across the whole run of pixels, which keeps the look-ups within
+                    // few tiles
+                    for (int stepY = 0; stepY < numStepsY; stepY++) {
+                        geoPosGrid.getRow(y * numStepsY + stepY, x * numStepsX, runEnd * numStepsX, lats, lons);
+                        for (int sampleCol = x * numStepsX; sampleCol < runEnd * numStepsX; sampleCol++) {
+                            locateSample(lats[sampleCol], lons[sampleCol], auxdataRow, sampleCol);
+                        }
+                        accumulateRow(auxdataRow, numStepsX, cursor, valueSums, invalidCounts, x, runEnd);
+                    }
+                    for (int i = x; i < runEnd; i++) {
+                        fractions[lineOffset + i] = computeAverage(valueSums[i], invalidCounts[i], numSuperSamples);
+                    }
+                    refinedCount += runEnd - x;
+                    x = runEnd;
+                }
+            }
+        } finally {
+            cursor.release();
+        }
+        recordRefinedPixels(refinedCount);
+    }
+
+    /**
+     * Computes the fractions of water for all pixels of the given rectangle of a product whose pixel coordinates
+     * map onto WGS84 longitude and latitude by an affine transformation without rotation or shear, such as
+     * plate carr&eacute;e L3 grids. No geo-coding is evaluated: the longitudes of the super-sample columns are
+     * computed once per rectangle, and the auxdata image and row are determined once per row of super-samples.
+     *
+     * @param imageToGeo The transformation from pixel coordinates to (lon, lat); must neither rotate nor shear.
+     * @param rectangle  The pixel region the watermask fractions shall be computed for.
+     * @param fractions  The array receiving the fractions in row-major order, each in the range [0..100] or
+     *                   {@link #INVALID_VALUE}. Must provide at least {@code rectangle.width * rectangle.height}
+     *                   elements.
+     */
+    public void getWaterMaskFractions(AffineTransform imageToGeo, Rectangle rectangle, byte[] fractions) {
+        if (imageToGeo.getShearX() != 0.0 || imageToGeo.getShearY() != 0.0) {
+            throw new IllegalArgumentException("The image-to-geo transformation must neither rotate nor shear.");
+        }
+        checkFractionsLength(rectangle, fractions);
+        recordSamples(rectangle);
+        if (pyramidLevel != null) {
+            computePyramidFractions(new AffineSampleRows(imageToGeo, rectangle, pyramidStepsX, pyramidStepsY),
+                                    rectangle, fractions);
+            return;
+        }
+        final int width = rectangle.width;
+        final int numStepsX = samplingStepsX.length;
+        final int numStepsY = samplingStepsY.length;
+        final float[] lons = new float[width * numStepsX];
+        for (int sampleCol = 0; sampleCol < lons.length; sampleCol++) {
+            final double pixelX = rectangle.x + sampleCol / numStepsX + samplingStepsX[sampleCol % numStepsX];
+            lons[sampleCol] = (float) (imageToGeo.getScaleX() * pixelX + imageToGeo.getTranslateX());
+        }
+        final AuxdataRow auxdataRow = new AuxdataRow(width * numStepsX);
+        final TileCursor cursor = new TileCursor();
+        final int[] valueSums = new int[width];
+        final int[] invalidCounts = new int[width];
+        final int[] footprintValues = adaptiveSuperSampling ? new int[width] : null;
+        // the super-samples lie within the region spanned by the corner super-samples, which is enlarged by an
+        // auxdata pixel, as the region's eastern and southern edges are exclusive while a corner super-sample lying
+        // exactly on such an edge reads the pixel beyond it
+        final double margin = auxdataPixelSize;
+        long refinedCount = 0;
+        try {
+            for (int y = 0; y < rectangle.height; y++) {
+                if (footprintValues != null) {
+                    final float topLat = getLatitude(imageToGeo, rectangle.y + y + samplingStepsY[0]);
+                    final float bottomLat = getLatitude(imageToGeo, rectangle.y + y + samplingStepsY[numStepsY - 1]);
+                    for (int x = 0; x < width; x++) {
+                        final float firstLon = lons[x * numStepsX];
+                        final float lastLon = lons[x * numStepsX + numStepsX - 1];
+                        footprintValues[x] = getFootprintValue(Math.min(topLat, bottomLat),
+                                                               Math.max(topLat, bottomLat),
+                                                               Math.min(firstLon, lastLon),
+                                                               Math.max(firstLon, lastLon), margin);
+                    }
+                }
+                final int lineOffset = y * width;
+                int x = 0;
+                while (x < width) {
+                    if (footprintValues != null && footprintValues[x] != MIXED_VALUE) {
+                        fractions[lineOffset + x] = toFraction(footprintValues[x]);
+                        x++;
+                        continue;
+                    }
+                    final int runEnd = footprintValues != null ? findMixedRunEnd(footprintValues, x) : width;
+                    Arrays.fill(valueSums, x, runEnd, 0);
+                    Arrays.fill(invalidCounts, x, runEnd, 0);
+                    for (int stepY = 0; stepY < numStepsY; stepY++) {
+                        final float lat = getLatitude(imageToGeo, rectangle.y + y + samplingStepsY[stepY]);
+                        locateLatitudeRow(lat, lons, auxdataRow, x * numStepsX, runEnd * numStepsX);
+                        accumulateRow(auxdataRow, numStepsX, cursor, valueSums, invalidCounts, x, runEnd);
+                    }
+                    for (int i = x; i < runEnd; i++) {
+                        fractions[lineOffset + i] = computeAverage(valueSums[i], invalidCounts[i], numSuperSamples);
+                    }
+                    refinedCount += runEnd - x;
+                    x = runEnd;
+                }
+            }
+        } finally {
+            cursor.release();
+        }
+        recordRefinedPixels(refinedCount);
+    }
+
+    /**
+     * Computes the exact fractions of water for all pixels of the given rectangle, as the share of the auxdata
+     * pixels lying within the footprint of each pixel. The footprint is the quadrilateral spanned by the
+     * geo-positions of the pixel corners; an auxdata pixel lies within it if its centre does. The auxdata pixels
+     * are counted row by row, in spans between the edges of the footprint, and the water pixels of a span of a
+     * 1-bit packed auxdata row are counted at once. Like for super-sampling, invalid auxdata pixels count as land
+     * unless all are invalid. Footprints smaller than an auxdata pixel take the sample at their centre.
+     * <p/>
+     * The super-sampling factors given at construction time are only used for pixels whose footprint is not
+     * within a single auxdata image, e.g. pixels crossing 60&deg; north, and for pixels with an invalid corner;
+     * these are computed as by {@link #getWaterMaskFractions(GeoCoding, Rectangle, byte[])}.
+     *
+     * @param geoCoding The geo coding of the product the watermask fractions shall be computed for.
+     * @param rectangle The pixel region the watermask fractions shall be computed for.
+     * @param fractions The array receiving the fractions in row-major order, each in the range [0..100] or
+     *                  {@link #INVALID_VALUE}. Must provide at least {@code rectangle.width * rectangle.height}
+     *                  elements.
+     */
+    public void getExactWaterMaskFractions(GeoCoding geoCoding, Rectangle rectangle, byte[] fractions) {
+        checkFractionsLength(rectangle, fractions);
+        final int width = rectangle.width;
+        float[] topLats = new float[width + 1];
+        float[] topLons = new float[width + 1];
+        float[] bottomLats = new float[width + 1];
+        float[] bottomLons = new float[width + 1];
+        final PixelPos pixelPos = new PixelPos();
         final GeoPos geoPos = new GeoPos();
-        final PixelPos currentPos = new PixelPos();
-        float valueSum = 0;
-        int invalidCount = 0;
-        for (float samplingStepY : samplingStepsY) {
-            currentPos.y = pixelPosY + samplingStepY;
-            for (float samplingStepX : samplingStepsX) {
-                currentPos.x = pixelPosX + samplingStepX;
-                geoCoding.getGeoPos(currentPos, geoPos);
-                int waterMaskSample = getWaterMaskSample(geoPos);
-                if (waterMaskSample != WatermaskClassifier.INVALID_VALUE) {
-                    valueSum += waterMaskSample;
-                } else {
-                    invalidCount++;
+        final byte[] fraction = new byte[1];
+        final FootprintCounter counter = new FootprintCounter();
+        try {
+            computeCornerRow(geoCoding, rectangle.x, rectangle.y, pixelPos, geoPos, topLats, topLons);
+            for (int y = 0; y < rectangle.height; y++) {
+                computeCornerRow(geoCoding, rectangle.x, rectangle.y + y + 1, pixelPos, geoPos, bottomLats,
+                                 bottomLons);
+                for (int x = 0; x < width; x++) {
+                    int value = counter.computeFraction(topLats, topLons, bottomLats, bottomLons, x);
+                    if (value == FootprintCounter.NOT_COUNTABLE) {
+                        getWaterMaskFractions(geoCoding, new Rectangle(rectangle.x + x, rectangle.y + y, 1, 1),
+                                              fraction);
+                        value = fraction[0];
+                    }
+                    fractions[y * width + x] = (byte) value;
+                }
+                final float[] lats = topLats;
+                final float[] lons = topLons;
+                topLats = bottomLats;
+                topLons = bottomLons;
+                bottomLats = lats;
+                bottomLons = lons;
+            }
+        } finally {
+            counter.release();
+        }
+    }
+
+    /**
+     * Computes the exact fractions of water for all pixels of the given rectangle of a product whose pixel
+     * coordinates map onto WGS84 longitude and latitude by an affine transformation without rotation or shear, like
+     * {@link #getExactWaterMaskFractions(GeoCoding, Rectangle, byte[])} does for a geo-coded product. The footprints
+     * of the pixels are rectangles in longitude and latitude.
+     *
+     * @param imageToGeo The transformation from pixel coordinates to (lon, lat); must neither rotate nor shear.
+     * @param rectangle  The pixel region the watermask fractions shall be computed for.
+     * @param fractions  The array receiving the fractions in row-major order, each in the range [0..100] or
+     *                   {@link #INVALID_VALUE}. Must provide at least {@code rectangle.width * rectangle.height}
+     *                   elements.
+     */
+    public void getExactWaterMaskFractions(AffineTransform imageToGeo, Rectangle rectangle, byte[] fractions) {
+        if (imageToGeo.getShearX() != 0.0 || imageToGeo.getShearY() != 0.0) {
+            throw new IllegalArgumentException("The image-to-geo transformation must neither rotate nor shear.");
+        }
+        checkFractionsLength(rectangle, fractions);
+        final int width = rectangle.width;
+        final float[] lons = new float[width + 1];
+        for (int x = 0; x <= width; x++) {
+            lons[x] = (float) (imageToGeo.getScaleX() * (rectangle.x + x) + imageToGeo.getTranslateX());
+        }
+        final float[] topLats = new float[width + 1];
+        final float[] bottomLats = new float[width + 1];
+        final byte[] fraction = new byte[1];
+        final FootprintCounter counter = new FootprintCounter();
+        try {
+            for (int y = 0; y < rectangle.height; y++) {
+                Arrays.fill(topLats, getLatitude(imageToGeo, rectangle.y + y));
+                Arrays.fill(bottomLats, getLatitude(imageToGeo, rectangle.y + y + 1));
+                for (int x = 0; x < width; x++) {
+                    int value = counter.computeFraction(topLats, lons, bottomLats, lons, x);
+                    if (value == FootprintCounter.NOT_COUNTABLE) {
+                        getWaterMaskFractions(imageToGeo, new Rectangle(rectangle.x + x, rectangle.y + y, 1, 1),
+                                              fraction);
+                        value = fraction[0];
+                    }
+                    fractions[y * width + x] = (byte) value;
                 }
             }
+        } finally {
+            counter.release();
+        }
+    }
+
+    /**
+     * Starts loading the auxdata tiles covering the given footprint in the background, so that they are cached when
+     * the fractions are computed. The tiles are read from the images this classifier samples, including the water
+     * fraction pyramid if it is used, in the order of the footprint. Tiles are only prefetched up to half of the
+     * capacity of the {@link AuxdataTileCache}, so that they do not displace each other; missing and constant
+     * tiles and the in-memory image of the resolution 1000 are skipped.
+     *
+     * @param footprint The footprint of the source product.
+     *
+     * @return the prefetch, which can be cancelled.
+     */
+    AuxdataPrefetcher prefetch(AuxdataFootprint footprint) {
+        final long budget = AuxdataTileCache.getInstance().getMemoryCapacity() / 2;
+        final Set<AuxdataPrefetcher.TileRequest> tiles = new LinkedHashSet<AuxdataPrefetcher.TileRequest>();
+        long size = 0;
+        cells:
+        for (int cellIndex = 0; cellIndex < footprint.getCellCount(); cellIndex++) {
+            final int lonIndex = footprint.getLonIndex(cellIndex);
+            final int latIndex = footprint.getLatIndex(cellIndex);
+            final float normLat = latIndex + 0.5F;
+            final OpImage image = imageSource.getImage(normLat);
+            final float latHeight = imageSource.getLatHeight(normLat);
+            if (latHeight == AuxdataImages.INVALID_LAT_HEIGHT
+                || !(image instanceof SRTMOpImage || image instanceof PNGSourceImage)) {
+                continue;
+            }
+            // the pyramid levels are tiled like the SRTM image
+            final OpImage tileImage = pyramidLevel != null && image instanceof SRTMOpImage ? pyramidLevel.getImage()
+                                                                                              : image;
+            final double pixelSizeX = (double) imageSource.getLonWidth() / image.getWidth();
+            final double pixelSizeY = (double) latHeight / image.getHeight();
+            final int minTileX = image.XToTileX((int) Math.floor(lonIndex / pixelSizeX));
+            final int maxTileX = image.XToTileX(Math.min((int) Math.ceil((lonIndex + 1) / pixelSizeX),
+                                                         image.getWidth()) - 1);
+            final int minTileY = image.YToTileY((int) Math.floor(latIndex / pixelSizeY));
+            final int maxTileY = image.YToTileY(Math.min((int) Math.ceil((latIndex + 1) / pixelSizeY),
+                                                         image.getHeight()) - 1);
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                    final long length = getTileDataLength(tileImage, tileX, tileY);
+                    if (length == 0) {
+                        continue;
+                    }
+                    final AuxdataPrefetcher.TileRequest tile = new AuxdataPrefetcher.TileRequest(tileImage, tileX,
+                                                                                                 tileY);
+                    if (tiles.contains(tile)) {
+                        continue;
+                    }
+                    if (size + length > budget) {
+                        break cells;
+                    }
+                    size += length;
+                    tiles.add(tile);
+                }
+            }
+        }
+        return AuxdataPrefetcher.start(auxdataImages, new ArrayList<AuxdataPrefetcher.TileRequest>(tiles));
+    }
+
+    /**
+     * Releases the auxdata images, which are shared with the other classifiers of the same resolution. The images
+     * are disposed when the last classifier using them is disposed. The classifier must not be used afterwards.
+     */
+    public synchronized void dispose() {
+        if (!disposed) {
+            disposed = true;
+            auxdataImages.release();
         }
-        return computeAverage(valueSum, invalidCount, numSuperSamples);
     }
 
     public static boolean isValidResolution(int resolution) {
         return resolution == 50 || resolution == 150 || resolution == 1000;
     }
 
-    private SRTMOpImage createCenterImage(int resolution, File auxdataDir) throws IOException {
-        int tileSize = WatermaskUtils.computeSideLength(resolution);
+    /**
+     * Determines the auxdata image and pixel of a super-sample; the image is set to {@code null} if the sample
+     * cannot be classified.
+     */
+    private void locateSample(float lat, float lon, AuxdataRow row, int index) {
+        row.images[index] = null;
+        final double normLon = normalizeLon(lon);
+        final float normLat = Math.abs(lat - 90.0f);
+        if (Float.isNaN(lat) || normLon < 0.0 || normLat < 0.0 || normLat > 180.0) {
+            return;
+        }
+        final float latHeight = imageSource.getLatHeight(normLat);
+        final OpImage image = imageSource.getImage(normLat);
+        if (image == null || latHeight == AuxdataImages.INVALID_LAT_HEIGHT) {
+            return;
+        }
+        final double pixelSizeX = (double) imageSource.getLonWidth() / image.getWidth();
+        final double pixelSizeY = (double) latHeight / image.getHeight();
+        row.images[index] = image;
+        row.xs[index] = (int) Math.floor(normLon / pixelSizeX);
+        row.ys[index] = (int) Math.floor(normLat / pixelSizeY);
+    }
+
+    /**
+     * Locates the given columns of a row of super-samples sharing the same latitude. The auxdata image and its row
+     * are looked up once, only the column is computed per sample.
+     */
+    private void locateLatitudeRow(float lat, float[] lons, AuxdataRow row, int fromCol, int toCol) {
+        final float normLat = Math.abs(lat - 90.0f);
+        final float latHeight = imageSource.getLatHeight(normLat);
+        final OpImage image = imageSource.getImage(normLat);
+        if (normLat < 0.0 || normLat > 180.0 || image == null || latHeight == AuxdataImages.INVALID_LAT_HEIGHT) {
+            Arrays.fill(row.images, fromCol, toCol, null);
+            return;
+        }
+        final double pixelSizeX = (double) imageSource.getLonWidth() / image.getWidth();
+        final double pixelSizeY = (double) latHeight / image.getHeight();
+        final int y = (int) Math.floor(normLat / pixelSizeY);
+        for (int sampleCol = fromCol; sampleCol < toCol; sampleCol++) {
+            final double normLon = normalizeLon(lons[sampleCol]);
+            if (normLon >= 0.0) {
+                row.images[sampleCol] = image;
+                row.xs[sampleCol] = (int) Math.floor(normLon / pixelSizeX);
+                row.ys[sampleCol] = y;
+            } else {
+                row.images[sampleCol] = null;
+            }
+        }
+    }
+
+    /**
+     * Adds the water samples and the invalid samples of the given pixels of a located row of super-samples to the
+     * per-pixel sums. Where the super-samples of a pixel hit consecutive pixels of a 1-bit packed auxdata row, as
+     * they do when the super-sampling matches the auxdata resolution, the water samples are counted over the packed
+     * bits at once.
+     */
+    private static void accumulateRow(AuxdataRow row, int numStepsX, TileCursor cursor, int[] valueSums,
+                                      int[] invalidCounts, int fromX, int toX) {
+        for (int x = fromX; x < toX; x++) {
+            final int first = x * numStepsX;
+            if (numStepsX > 1 && row.isConsecutive(first, numStepsX)) {
+                final int waterCount = cursor.countWater(row.images[first], row.xs[first], row.ys[first], numStepsX);
+                if (waterCount >= 0) {
+                    valueSums[x] += waterCount;
+                    continue;
+                }
+            }
+            for (int i = first; i < first + numStepsX; i++) {
+                final OpImage image = row.images[i];
+                final int waterMaskSample = image != null ? cursor.getSample(image, row.xs[i], row.ys[i])
+                                                          : INVALID_VALUE;
+                if (waterMaskSample != INVALID_VALUE) {
+                    valueSums[x] += waterMaskSample;
+                } else {
+                    invalidCounts[x]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the value of all super-samples of a pixel whose corner super-samples span the given region, enlarged
+     * by the given margin in degrees, if the region is known to be homogeneous; {@link #MIXED_VALUE} otherwise, and
+     * for regions with invalid positions or crossing the anti-meridian.
+     */
+    private int getFootprintValue(float minLat, float maxLat, float minLon, float maxLon, double margin) {
+        final double westLon = minLon - margin;
+        final double eastLon = maxLon + margin;
+        // also fails for NaN positions
+        if (!(minLat <= maxLat && westLon >= -180.0 && eastLon < 180.0)) {
+            return MIXED_VALUE;
+        }
+        return getHomogeneousValue((float) Math.min(maxLat + margin, 90.0), (float) Math.max(minLat - margin, -90.0),
+                                   (float) westLon, (float) eastLon);
+    }
+
+    /**
+     * @return the fraction of water of a pixel whose super-samples all have the given value.
+     */
+    private static byte toFraction(int value) {
+        switch (value) {
+            case LAND_VALUE:
+                return 0;
+            case WATER_VALUE:
+                return 100;
+            default:
+                return INVALID_VALUE;
+        }
+    }
+
+    /**
+     * @return the index after the run of pixels starting at the given one whose footprints are not homogeneous.
+     */
+    private static int findMixedRunEnd(int[] footprintValues, int from) {
+        int end = from + 1;
+        while (end < footprintValues.length && footprintValues[end] == MIXED_VALUE) {
+            end++;
+        }
+        return end;
+    }
+
+    private static void getCornerSamples(GeoPosGrid geoPosGrid, int sampleRow, int firstCol, int lastCol,
+                                         float[] lats, float[] lons) {
+        geoPosGrid.getRow(sampleRow, firstCol, firstCol + 1, lats, lons);
+        if (lastCol != firstCol) {
+            geoPosGrid.getRow(sampleRow, lastCol, lastCol + 1, lats, lons);
+        }
+    }
+
+    /**
+     * Computes the geo-positions of the corners of a row of pixels; invalid positions are {@code NaN}.
+     */
+    private static void computeCornerRow(GeoCoding geoCoding, int minX, int y, PixelPos pixelPos, GeoPos geoPos,
+                                         float[] lats, float[] lons) {
+        for (int i = 0; i < lats.length; i++) {
+            pixelPos.x = minX + i;
+            pixelPos.y = y;
+            geoCoding.getGeoPos(pixelPos, geoPos);
+            if (geoPos.isValid()) {
+                lats[i] = geoPos.lat;
+                lons[i] = geoPos.lon;
+            } else {
+                lats[i] = Float.NaN;
+                lons[i] = Float.NaN;
+            }
+        }
+    }
 
-        int width = tileSize * 360;
-        int height = tileSize * 180;
-        final Properties properties = new Properties();
-        properties.setProperty("width", String.valueOf(width));
-        properties.setProperty("height", String.valueOf(height));
-        properties.setProperty("tileWidth", String.valueOf(tileSize));
-        properties.setProperty("tileHeight", String.valueOf(tileSize));
-        final URL imageProperties = getClass().getResource("image.properties");
-        properties.load(imageProperties.openStream());
+    private static float getLatitude(AffineTransform imageToGeo, double pixelY) {
+        return (float) (imageToGeo.getScaleY() * pixelY + imageToGeo.getTranslateY());
+    }
 
-        File zipFile = new File(auxdataDir, resolution + "m.zip");
-        return SRTMOpImage.create(properties, zipFile);
+    private static float min(float a, float b, float c, float d) {
+        return Math.min(Math.min(a, b), Math.min(c, d));
     }
 
-    private PNGSourceImage createBorderImage(ImageDescriptor descriptor) throws IOException {
-        int width = descriptor.getImageWidth();
-        int tileWidth = descriptor.getTileWidth();
-        int height = descriptor.getImageHeight();
-        int tileHeight = descriptor.getTileHeight();
-        final Properties properties = new Properties();
-        properties.setProperty("width", String.valueOf(width));
-        properties.setProperty("height", String.valueOf(height));
-        properties.setProperty("tileWidth", String.valueOf(tileWidth));
-        properties.setProperty("tileHeight", String.valueOf(tileHeight));
-        final URL imageProperties = getClass().getResource("image.properties");
-        properties.load(imageProperties.openStream());
+    private static float max(float a, float b, float c, float d) {
+        return Math.max(Math.max(a, b), Math.max(c, d));
+    }
+
+    /**
+     * Computes the fractions of water by averaging the fractions of the pyramid level at the given super-samples.
+     * Like in {@link #computeAverage(float, int, int)}, invalid super-samples count as land unless all are invalid.
+     */
+    private void computePyramidFractions(SampleRows sampleRows, Rectangle rectangle, byte[] fractions) {
+        final int width = rectangle.width;
+        final int numStepsX = pyramidStepsX.length;
+        final int numStepsY = pyramidStepsY.length;
+        final int numSamples = numStepsX * numStepsY;
+        final float[] lats = new float[width * numStepsX];
+        final float[] lons = new float[width * numStepsX];
+        final TileCursor cursor = new TileCursor();
+        final int[] percentSums = new int[width];
+        final int[] invalidCounts = new int[width];
+        try {
+            for (int y = 0; y < rectangle.height; y++) {
+                Arrays.fill(percentSums, 0);
+                Arrays.fill(invalidCounts, 0);
+                for (int stepY = 0; stepY < numStepsY; stepY++) {
+                    sampleRows.getRow(y * numStepsY + stepY, lats, lons);
+                    for (int sampleCol = 0; sampleCol < lats.length; sampleCol++) {
+                        final int percent = getPyramidFraction(lats[sampleCol], lons[sampleCol], cursor);
+                        if (percent != INVALID_VALUE) {
+                            percentSums[sampleCol / numStepsX] += percent;
+                        } else {
+                            invalidCounts[sampleCol / numStepsX]++;
+                        }
+                    }
+                }
+                final int lineOffset = y * width;
+                for (int x = 0; x < width; x++) {
+                    fractions[lineOffset + x] = invalidCounts[x] == numSamples ? INVALID_VALUE
+                                                                               : (byte) (percentSums[x] / numSamples);
+                }
+            }
+        } finally {
+            cursor.release();
+        }
+    }
 
-        final File auxdataDir = descriptor.getAuxdataDir();
-        final String zipFileName = descriptor.getZipFileName();
-        File zipFile = new File(auxdataDir, zipFileName);
-        return PNGSourceImage.create(properties, zipFile);
+    /**
+     * @return the fraction of water of the pyramid block containing the given position, in the range [0..100], or
+     * {@link #INVALID_VALUE}. Outside of the SRTM image the water mask sample is returned as 0 or 100.
+     */
+    private int getPyramidFraction(float lat, float lon, TileCursor cursor) {
+        final double normLon = normalizeLon(lon);
+        final float normLat = Math.abs(lat - 90.0f);
+        if (Float.isNaN(lat) || normLon < 0.0 || normLat > 180.0) {
+            return INVALID_VALUE;
+        }
+        final float latHeight = imageSource.getLatHeight(normLat);
+        final OpImage image = imageSource.getImage(normLat);
+        if (image == null || latHeight == AuxdataImages.INVALID_LAT_HEIGHT) {
+            return INVALID_VALUE;
+        }
+        final int x = (int) Math.floor(normLon / ((double) imageSource.getLonWidth() / image.getWidth()));
+        final int y = (int) Math.floor(normLat / ((double) latHeight / image.getHeight()));
+        if (image instanceof SRTMOpImage) {
+            return cursor.getSample(pyramidLevel.getImage(), pyramidLevel.toLevelCoordinate(x),
+                                    pyramidLevel.toLevelCoordinate(y));
+        }
+        final int sample = cursor.getSample(image, x, y);
+        return sample == INVALID_VALUE ? INVALID_VALUE : sample * 100;
     }
 
-    private File installAuxdata() throws IOException {
-        URL sourceUrl = ResourceInstaller.getSourceUrl(this.getClass());
-        String auxdataSrcPath = "auxdata/images";
+    /**
+     * @return the key of a tile: the image index above the Morton code of the tile indices, 30 bits in total.
+     */
+    private static long getTileKey(int imageIndex, int tileX, int tileY) {
+        // the auxdata images have less than 2^14 tiles in each direction
+        long morton = 0;
+        for (int bit = 0; bit < 14; bit++) {
+            morton |= ((long) (tileX >> bit & 1) << (2 * bit)) | ((long) (tileY >> bit & 1) << (2 * bit + 1));
+        }
+        return ((long) imageIndex << 28) | morton;
+    }
 
-        String relativeDestPath = ".beam/" + "beam-watermask-operator/auxdata_" + AUXDATA_VERSION + "/images";
-        File auxdataTargetDir = new File(SystemUtils.getUserHomeDir(), relativeDestPath);
+    private static synchronized ForkJoinPool getBulkPool() {
+        if (bulkPool == null) {
+            bulkPool = new ForkJoinPool();
+        }
+        return bulkPool;
+    }
 
-        ResourceInstaller resourceInstaller = new ResourceInstaller(sourceUrl, auxdataSrcPath, auxdataTargetDir);
-        resourceInstaller.install(".*", ProgressMonitor.NULL);
+    private static long getTileDataLength(OpImage image, int tileX, int tileY) {
+        if (image instanceof SRTMOpImage) {
+            return ((SRTMOpImage) image).getTileDataLength(tileX, tileY);
+        }
+        if (image instanceof PNGSourceImage) {
+            return ((PNGSourceImage) image).getTileDataLength(tileX, tileY);
+        }
+        return (long) image.getTileWidth() * image.getTileHeight();
+    }
 
-        return auxdataTargetDir;
+    /**
+     * Counts the super-samples taken for the given rectangle, if the {@link WatermaskMetrics} are enabled. When
+     * super-sampling adaptively, they are counted per refined pixel by {@link #recordRefinedPixels(long)}.
+     */
+    private void recordSamples(Rectangle rectangle) {
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        if (metrics != null && (pyramidLevel != null || !adaptiveSuperSampling)) {
+            final int numSamplesPerPixel = pyramidLevel != null ? pyramidStepsX.length * pyramidStepsY.length
+                                                                : numSuperSamples;
+            metrics.samplesEvaluated((long) rectangle.width * rectangle.height * numSamplesPerPixel);
+        }
+    }
+
+    /**
+     * Counts the pixels refined by adaptive super-sampling and their super-samples, if the
+     * {@link WatermaskMetrics} are enabled.
+     */
+    private void recordRefinedPixels(long count) {
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        if (metrics != null && adaptiveSuperSampling) {
+            metrics.samplesEvaluated(count * numSuperSamples);
+            metrics.pixelsRefined(count);
+        }
+    }
+
+    private static void checkFractionsLength(Rectangle rectangle, byte[] fractions) {
+        if (fractions.length < rectangle.width * rectangle.height) {
+            throw new IllegalArgumentException(
+                    MessageFormat.format("Fraction array too small; needs {0} elements, has {1}.",
+                                         rectangle.width * rectangle.height, fractions.length));
+        }
+    }
+
+    /**
+     * @return the longitude shifted into the range [0, 360], or -1 if it cannot be mapped.
+     */
+    private static double normalizeLon(float lon) {
+        double normLon = lon + 180.0;
+        if (normLon >= 360) {
+            normLon %= 360;
+        }
+        if (normLon < 0.0 || normLon > 360.0) {
+            return -1.0;
+        }
+        return normLon;
+    }
+
+    private static int toPixel(double coordinate, double pixelSize, int size) {
+        return Math.max(0, Math.min((int) Math.floor(coordinate / pixelSize), size - 1));
+    }
+
+    /**
+     * @return the last pixel before the given exclusive edge.
+     */
+    private static int toLastPixel(double edge, double pixelSize, int size) {
+        return Math.max(0, Math.min((int) Math.ceil(edge / pixelSize) - 1, size - 1));
     }
 
     private static int getSample(double lat, double lon, double latHeight, double lonWidth, OpImage image) {
-        if (image == null || latHeight == HighResImageSource.INVALID_LAT_HEIGHT) {
+        if (image == null || latHeight == AuxdataImages.INVALID_LAT_HEIGHT) {
             return INVALID_VALUE;
         }
         final double pixelSizeX = lonWidth / image.getWidth();
         final double pixelSizeY = latHeight / image.getHeight();
         final int x = (int) Math.floor(lon / pixelSizeX);
         final int y = (int) (Math.floor(lat / pixelSizeY));
+        if (image instanceof SRTMOpImage) {
+            // reads a single block of the SRTM tile where possible
+            return ((SRTMOpImage) image).getSingleSample(x, y);
+        }
         final Raster tile = image.getTile(image.XToTileX(x), image.YToTileY(y));
         if (tile == null) {
             return INVALID_VALUE;
@@ -269,102 +1096,409 @@ public class WatermaskClassifier {
         }
     }
 
-    private int getWaterMaskSample(GeoPos geoPos) {
-        final int waterMaskSample;
-        if (geoPos.isValid()) {
-            waterMaskSample = getWaterMaskSample(geoPos.lat, geoPos.lon);
-        } else {
-            waterMaskSample = WatermaskClassifier.INVALID_VALUE;
+    /**
+     * Remembers the auxdata tile which has been accessed last. Consecutive samples mostly fall into the same
+     * tile, so this saves the look-up in the tile cache of the image, and the tile is read through a
+     * {@link TileAccessor}. Existing SRTM tiles are read from their raw data off the Java heap where it is
+     * available (see {@link SRTMOpImage#acquireRawTile(int, int)}). Not thread-safe; use one instance per call,
+     * and {@link #release()} it afterwards.
+     */
+    private static final class TileCursor {
+
+        private OpImage image;
+        private int minX;
+        private int minY;
+        private int maxX;
+        private int maxY;
+        private TileAccessor tile;
+        private SRTMOpImage rawTileImage;
+        private int rawTileX;
+        private int rawTileY;
+
+        /**
+         * @return the sample at the given image position, or {@link #INVALID_VALUE} if the image has no tile there.
+         */
+        int getSample(OpImage image, int x, int y) {
+            moveTo(image, x, y);
+            if (tile == null) {
+                return INVALID_VALUE;
+            }
+            return tile.getSample(x, y);
+        }
+
+        /**
+         * @return the number of water pixels in the given run of pixels of an image row, or -1 if the run does not
+         * lie within a single 1-bit packed tile.
+         */
+        int countWater(OpImage image, int x, int y, int count) {
+            moveTo(image, x, y);
+            if (tile == null || !tile.isPacked() || x + count > maxX) {
+                return -1;
+            }
+            return tile.countBits(x, y, count);
+        }
+
+        /**
+         * Releases the raw tile data acquired last, if any.
+         */
+        void release() {
+            if (rawTileImage != null) {
+                rawTileImage.releaseRawTile(rawTileX, rawTileY);
+                rawTileImage = null;
+            }
+            image = null;
+            tile = null;
+        }
+
+        /**
+         * Counts the water pixels and the invalid pixels in a run of pixels of an image row, which may extend over
+         * several tiles.
+         *
+         * @param counts Receives the number of water pixels added at index 0, and of invalid pixels at index 1.
+         */
+        void countRun(OpImage image, int x, int y, int count, long[] counts) {
+            while (count > 0) {
+                moveTo(image, x, y);
+                final int length = Math.min(count, maxX - x);
+                if (tile == null) {
+                    counts[1] += length;
+                } else if (tile.isPacked()) {
+                    counts[0] += tile.countBits(x, y, length);
+                } else {
+                    for (int i = x; i < x + length; i++) {
+                        final int sample = tile.getSample(i, y);
+                        if (sample != INVALID_VALUE) {
+                            counts[0] += sample;
+                        } else {
+                            counts[1]++;
+                        }
+                    }
+                }
+                x += length;
+                count -= length;
+            }
         }
-        return waterMaskSample;
-    }
 
-    private static ImageDescriptor getNorthDescriptor(File auxdataDir) {
-        return new ImageDescriptorBuilder()
-                        .width(GC_IMAGE_WIDTH)
-                        .height(GC_IMAGE_HEIGHT)
-                        .tileWidth(GC_TILE_WIDTH)
-                        .tileHeight(GC_TILE_HEIGHT)
-                        .auxdataDir(auxdataDir)
-                        .zipFileName("GC_water_mask.zip")
-                        .build();
+        private void moveTo(OpImage image, int x, int y) {
+            if (image != this.image || x < minX || x >= maxX || y < minY || y >= maxY) {
+                release();
+                final int tileX = image.XToTileX(x);
+                final int tileY = image.YToTileY(y);
+                this.minX = image.tileXToX(tileX);
+                this.minY = image.tileYToY(tileY);
+                this.maxX = minX + image.getTileWidth();
+                this.maxY = minY + image.getTileHeight();
+                if (image instanceof SRTMOpImage) {
+                    this.tile = acquireRawTile((SRTMOpImage) image, tileX, tileY);
+                }
+                if (this.tile == null) {
+                    final Raster raster = image.getTile(tileX, tileY);
+                    this.tile = raster != null ? TileAccessor.create(raster) : null;
+                }
+                this.image = image;
+            }
+        }
+
+        private TileAccessor acquireRawTile(SRTMOpImage image, int tileX, int tileY) {
+            final ByteBuffer buffer;
+            try {
+                buffer = image.acquireRawTile(tileX, tileY);
+            } catch (IOException e) {
+                String msg = MessageFormat.format("Failed to read image tile ''{0} | {1}''.", tileX, tileY);
+                throw new RuntimeException(msg, e);
+            }
+            if (buffer == null) {
+                return null;
+            }
+            rawTileImage = image;
+            rawTileX = tileX;
+            rawTileY = tileY;
+            return TileAccessor.create(buffer, image.getRawSampleModel(), minX, minY);
+        }
     }
 
-    private static interface ImageSource {
+    /**
+     * Counts the auxdata pixels within pixel footprints, see
+     * {@link #getExactWaterMaskFractions(GeoCoding, Rectangle, byte[])}. The corners of a footprint are converted to
+     * the continuous pixel coordinates of the auxdata image, and each auxdata row whose centre lies within the
+     * footprint is intersected with the edges of the footprint. Not thread-safe; use one instance per call, and
+     * {@link #release()} it afterwards.
+     */
+    private final class FootprintCounter {
+
+        static final int NOT_COUNTABLE = -1;
 
-        float getLonWidth();
-        float getLatHeight(float lat);
-        OpImage getImage(float lat);
+        private final TileCursor cursor = new TileCursor();
+        private final float[] lats = new float[4];
+        private final float[] lons = new float[4];
+        private final double[] us = new double[4];
+        private final double[] vs = new double[4];
+        private final float[] normLats = new float[4];
+        private final double[] crossings = new double[4];
+        private final long[] counts = new long[2];
 
+        /**
+         * Computes the fraction of water of the footprint whose corners are the given corner and the next one of
+         * the upper row, and the same ones of the lower row.
+         *
+         * @return the fraction in the range [0..100], {@link #INVALID_VALUE}, or {@link #NOT_COUNTABLE} if the
+         * footprint does not lie within a single auxdata image, or has an invalid corner.
+         */
+        int computeFraction(float[] topLats, float[] topLons, float[] bottomLats, float[] bottomLons, int x) {
+            setCorner(0, topLats[x], topLons[x]);
+            setCorner(1, topLats[x + 1], topLons[x + 1]);
+            setCorner(2, bottomLats[x + 1], bottomLons[x + 1]);
+            setCorner(3, bottomLats[x], bottomLons[x]);
+            float minNormLat = Float.POSITIVE_INFINITY;
+            float maxNormLat = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < 4; k++) {
+                if (Float.isNaN(lats[k]) || Float.isNaN(lons[k])) {
+                    return NOT_COUNTABLE;
+                }
+                normLats[k] = Math.abs(lats[k] - 90.0f);
+                minNormLat = Math.min(minNormLat, normLats[k]);
+                maxNormLat = Math.max(maxNormLat, normLats[k]);
+            }
+            if (maxNormLat > 180.0f) {
+                return NOT_COUNTABLE;
+            }
+            final OpImage image = imageSource.getImage(minNormLat);
+            final float latHeight = imageSource.getLatHeight(minNormLat);
+            if (image != imageSource.getImage(maxNormLat) || latHeight != imageSource.getLatHeight(maxNormLat)) {
+                return NOT_COUNTABLE;
+            }
+            if (image == null || latHeight == AuxdataImages.INVALID_LAT_HEIGHT) {
+                return INVALID_VALUE;
+            }
+            final double pixelSizeX = (double) imageSource.getLonWidth() / image.getWidth();
+            final double pixelSizeY = (double) latHeight / image.getHeight();
+            double minV = Double.POSITIVE_INFINITY;
+            double maxV = Double.NEGATIVE_INFINITY;
+            for (int k = 0; k < 4; k++) {
+                // footprints crossing the anti-meridian extend beyond the image, and are wrapped when counted
+                us[k] = (GeoPosGrid.unwrapLon(lons[k], lons[0]) + 180.0) / pixelSizeX;
+                vs[k] = normLats[k] / pixelSizeY;
+                minV = Math.min(minV, vs[k]);
+                maxV = Math.max(maxV, vs[k]);
+            }
+            counts[0] = 0;
+            counts[1] = 0;
+            long total = 0;
+            final int firstRow = Math.max((int) Math.ceil(minV - 0.5), 0);
+            final int lastRow = Math.min((int) Math.ceil(maxV - 0.5) - 1, image.getHeight() - 1);
+            for (int row = firstRow; row <= lastRow; row++) {
+                final double v = row + 0.5;
+                int crossingCount = 0;
+                for (int k = 0; k < 4; k++) {
+                    final int next = (k + 1) % 4;
+                    if ((vs[k] <= v) != (vs[next] <= v)) {
+                        crossings[crossingCount++] = us[k] + (v - vs[k]) * (us[next] - us[k]) / (vs[next] - vs[k]);
+                    }
+                }
+                Arrays.sort(crossings, 0, crossingCount);
+                // the spans between pairs of crossings lie within the footprint
+                for (int i = 0; i + 1 < crossingCount; i += 2) {
+                    final int first = (int) Math.ceil(crossings[i] - 0.5);
+                    final int end = (int) Math.ceil(crossings[i + 1] - 0.5);
+                    if (end > first) {
+                        countWrappedRun(image, first, row, end - first);
+                        total += end - first;
+                    }
+                }
+            }
+            if (total == 0) {
+                final double centreU = (us[0] + us[1] + us[2] + us[3]) / 4.0;
+                final double centreV = (vs[0] + vs[1] + vs[2] + vs[3]) / 4.0;
+                final int sample = cursor.getSample(image, wrap((int) Math.floor(centreU), image.getWidth()),
+                                                    Math.min((int) Math.floor(centreV), image.getHeight() - 1));
+                return sample == INVALID_VALUE ? INVALID_VALUE : sample * 100;
+            }
+            if (counts[1] == total) {
+                return INVALID_VALUE;
+            }
+            return (int) (100 * counts[0] / total);
+        }
+
+        void release() {
+            cursor.release();
+        }
+
+        /**
+         * Sets a corner of the footprint; the corners follow its outline.
+         */
+        private void setCorner(int index, float lat, float lon) {
+            lats[index] = lat;
+            lons[index] = lon;
+        }
+
+        private void countWrappedRun(OpImage image, int x, int y, int count) {
+            final int width = image.getWidth();
+            while (count > 0) {
+                final int wrappedX = wrap(x, width);
+                final int length = Math.min(count, width - wrappedX);
+                cursor.countRun(image, wrappedX, y, length, counts);
+                x += length;
+                count -= length;
+            }
+        }
+
+        private int wrap(int x, int width) {
+            return (x % width + width) % width;
+        }
     }
 
-    private static class HighResImageSource implements ImageSource {
+    /**
+     * The located positions of a bulk classification, sorted into runs falling into the same auxdata tile.
+     */
+    private static final class SampleBuckets {
 
+        private final long[] order;
+        private final AuxdataRow positions;
+        private final byte[] samples;
+        private final int[] bucketStarts;
 
-        private static final float INVALID_LAT_HEIGHT = -1.0F;
-        private final OpImage centralImage;
-        private final OpImage northImage;
+        SampleBuckets(long[] order, int count, AuxdataRow positions, byte[] samples) {
+            this.order = order;
+            this.positions = positions;
+            this.samples = samples;
+            final int[] starts = new int[count + 1];
+            int bucketCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || (order[i] >>> 31) != (order[i - 1] >>> 31)) {
+                    starts[bucketCount++] = i;
+                }
+            }
+            starts[bucketCount] = count;
+            bucketStarts = Arrays.copyOf(starts, bucketCount + 1);
+        }
 
-        private HighResImageSource(OpImage centralImage, OpImage northImage) {
-            this.centralImage = centralImage;
-            this.northImage = northImage;
+        int getBucketCount() {
+            return bucketStarts.length - 1;
         }
 
-        @Override
-        public float getLonWidth() {
-                return 360.0F;
+        int getSampleCount(int fromBucket, int toBucket) {
+            return bucketStarts[toBucket] - bucketStarts[fromBucket];
         }
 
-        @Override
-        public float getLatHeight(float latitude) {
-            if (latitude < 150.0 && latitude > 30.0) {
-                return 180.0F;
-            } else if (latitude <= 30.0) {
-                return 30.0F;
+        /**
+         * @return the bucket between the given ones which comes closest to halving their positions.
+         */
+        int getMiddleBucket(int fromBucket, int toBucket) {
+            final int middle = (bucketStarts[fromBucket] + bucketStarts[toBucket]) >>> 1;
+            int bucket = Arrays.binarySearch(bucketStarts, fromBucket, toBucket + 1, middle);
+            if (bucket < 0) {
+                bucket = -bucket - 1;
             }
-            return INVALID_LAT_HEIGHT;
+            return Math.max(fromBucket + 1, Math.min(bucket, toBucket - 1));
         }
 
-        @Override
-        public OpImage getImage(float latitude) {
-            if (latitude < 150.0 && latitude > 30.0) {
-                return centralImage;
-            } else if (latitude <= 30.0) {
-                return northImage;
+        void classify(int fromBucket, int toBucket) {
+            final TileCursor cursor = new TileCursor();
+            try {
+                for (int i = bucketStarts[fromBucket]; i < bucketStarts[toBucket]; i++) {
+                    final int index = (int) (order[i] & Integer.MAX_VALUE);
+                    samples[index] = (byte) cursor.getSample(positions.images[index], positions.xs[index],
+                                                             positions.ys[index]);
+                }
+            } finally {
+                cursor.release();
             }
-            return null;
         }
     }
 
-    private static class LowResImageSource implements ImageSource {
+    private static final class BucketTask extends RecursiveAction {
 
-        OpImage image;
+        private final SampleBuckets buckets;
+        private final int fromBucket;
+        private final int toBucket;
 
-        @Override
-        public float getLonWidth() {
-                return 360.0F;
+        BucketTask(SampleBuckets buckets, int fromBucket, int toBucket) {
+            this.buckets = buckets;
+            this.fromBucket = fromBucket;
+            this.toBucket = toBucket;
         }
 
         @Override
-        public float getLatHeight(float latitude) {
-            return 180.0F;
+        protected void compute() {
+            if (toBucket - fromBucket <= 1 || buckets.getSampleCount(fromBucket, toBucket) <= BULK_SPLIT_SIZE) {
+                buckets.classify(fromBucket, toBucket);
+                return;
+            }
+            final int middleBucket = buckets.getMiddleBucket(fromBucket, toBucket);
+            invokeAll(new BucketTask(buckets, fromBucket, middleBucket),
+                      new BucketTask(buckets, middleBucket, toBucket));
+        }
+    }
+
+    /**
+     * Provides the geo-positions of the super-samples of a pixel rectangle row by row; invalid positions are
+     * {@code NaN}.
+     */
+    private abstract static class SampleRows {
+
+        abstract void getRow(int sampleRow, float[] lats, float[] lons);
+    }
+
+    private static final class AffineSampleRows extends SampleRows {
+
+        private final AffineTransform imageToGeo;
+        private final Rectangle rectangle;
+        private final float[] samplingStepsY;
+        private final float[] rowLons;
+
+        AffineSampleRows(AffineTransform imageToGeo, Rectangle rectangle, float[] samplingStepsX,
+                         float[] samplingStepsY) {
+            this.imageToGeo = imageToGeo;
+            this.rectangle = rectangle;
+            this.samplingStepsY = samplingStepsY;
+            final int numStepsX = samplingStepsX.length;
+            rowLons = new float[rectangle.width * numStepsX];
+            for (int sampleCol = 0; sampleCol < rowLons.length; sampleCol++) {
+                final double pixelX = rectangle.x + sampleCol / numStepsX + samplingStepsX[sampleCol % numStepsX];
+                rowLons[sampleCol] = (float) (imageToGeo.getScaleX() * pixelX + imageToGeo.getTranslateX());
+            }
         }
 
         @Override
-        public OpImage getImage(float latitude) {
-            if (image != null) {
-                return image;
+        void getRow(int sampleRow, float[] lats, float[] lons) {
+            final int numStepsY = samplingStepsY.length;
+            final double pixelY = rectangle.y + sampleRow / numStepsY + samplingStepsY[sampleRow % numStepsY];
+            final float lat = (float) (imageToGeo.getScaleY() * pixelY + imageToGeo.getTranslateY());
+            Arrays.fill(lats, 0, rowLons.length, lat);
+            System.arraycopy(rowLons, 0, lons, 0, rowLons.length);
+        }
+    }
+
+    /**
+     * The auxdata image and pixel position of each super-sample in a row; a {@code null} image marks samples
+     * which cannot be classified.
+     */
+    private static final class AuxdataRow {
+
+        private final OpImage[] images;
+        private final int[] xs;
+        private final int[] ys;
+
+        AuxdataRow(int length) {
+            images = new OpImage[length];
+            xs = new int[length];
+            ys = new int[length];
+        }
+
+        /**
+         * @return {@code true} if the given samples hit consecutive pixels of the same image row.
+         */
+        boolean isConsecutive(int first, int count) {
+            final OpImage image = images[first];
+            if (image == null) {
+                return false;
             }
-            final URL url = getClass().getResource("water.png");
-            BufferedImage waterImage = null;
-            try {
-                waterImage = ImageIO.read(url);
-            } catch (IOException e) {
-                e.printStackTrace();
+            for (int i = 1; i < count; i++) {
+                if (images[first + i] != image || ys[first + i] != ys[first] || xs[first + i] != xs[first] + i) {
+                    return false;
+                }
             }
-            NullOpImage opImage = new NullOpImage(waterImage, ImageUtilities.getImageLayout(waterImage), null, OpImage.OP_COMPUTE_BOUND);
-            image = opImage;
-            return opImage;
+            return true;
         }
     }
 
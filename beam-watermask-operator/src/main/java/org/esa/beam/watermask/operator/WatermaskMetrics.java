@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and timers of the water mask, telling whether a run is bound by the geo-coding, by reading and inflating
+ * auxdata tiles or by the auxdata tile cache. The metrics are exposed as the MXBean {@value #OBJECT_NAME} of the
+ * platform MBean server, and are passed on to the registered {@link Listener}s.
+ * <p/>
+ * The metrics are only recorded while they are enabled, by the system property {@value #ENABLED_PROPERTY} or by
+ * {@link #setEnabled(boolean)}. Code recording them fetches the instance by {@link #getActive()}, which is
+ * {@code null} while disabled, so that nothing is timed or counted then. The hits and misses of the
+ * {@link AuxdataTileCache} are always counted by the cache.
+ */
+public final class WatermaskMetrics implements WatermaskMetricsMXBean {
+
+    public static final String ENABLED_PROPERTY = "beam.watermask.metrics";
+    public static final String OBJECT_NAME = "org.esa.beam.watermask:type=WatermaskMetrics";
+
+    private static final WatermaskMetrics INSTANCE = new WatermaskMetrics();
+    private static volatile WatermaskMetrics active;
+
+    static {
+        if (Boolean.getBoolean(ENABLED_PROPERTY)) {
+            active = INSTANCE;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException ignored) {
+            // already registered by another class loader; the metrics are still recorded and passed to listeners
+        } catch (SecurityException ignored) {
+            // ditto, without permission to register
+        }
+    }
+
+    private final List<Listener> listeners;
+    private final AtomicLong targetTileCount;
+    private final AtomicLong targetTileNanos;
+    private final AtomicLong skippedTargetTileCount;
+    private final AtomicLong sampleCount;
+    private final AtomicLong refinedPixelCount;
+    private final ConcurrentMap<String, AtomicLong> tilesRead;
+    private final ConcurrentMap<String, AtomicLong> constantTiles;
+    private final ConcurrentMap<String, AtomicLong> bytesInflated;
+    private final ConcurrentMap<String, LatencyHistogram> computeTileLatencies;
+
+    private WatermaskMetrics() {
+        listeners = new CopyOnWriteArrayList<Listener>();
+        targetTileCount = new AtomicLong();
+        targetTileNanos = new AtomicLong();
+        skippedTargetTileCount = new AtomicLong();
+        sampleCount = new AtomicLong();
+        refinedPixelCount = new AtomicLong();
+        tilesRead = new ConcurrentHashMap<String, AtomicLong>();
+        constantTiles = new ConcurrentHashMap<String, AtomicLong>();
+        bytesInflated = new ConcurrentHashMap<String, AtomicLong>();
+        computeTileLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+    }
+
+    public static WatermaskMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return the metrics if they are enabled, {@code null} otherwise.
+     */
+    static WatermaskMetrics getActive() {
+        return active;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return active != null;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        active = enabled ? this : null;
+    }
+
+    /**
+     * Registers a listener which is passed the metrics while they are enabled. Listeners are called on the threads
+     * computing the water mask, possibly while locks are held; they need to be fast and must not call back into the
+     * water mask.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    void targetTileComputed(Rectangle rectangle, long nanos) {
+        targetTileCount.incrementAndGet();
+        targetTileNanos.addAndGet(nanos);
+        for (Listener listener : listeners) {
+            listener.targetTileComputed(rectangle, nanos);
+        }
+    }
+
+    void targetTileSkipped(Rectangle rectangle) {
+        skippedTargetTileCount.incrementAndGet();
+        for (Listener listener : listeners) {
+            listener.targetTileSkipped(rectangle);
+        }
+    }
+
+    void samplesEvaluated(long count) {
+        sampleCount.addAndGet(count);
+        for (Listener listener : listeners) {
+            listener.samplesEvaluated(count);
+        }
+    }
+
+    void pixelsRefined(long count) {
+        refinedPixelCount.addAndGet(count);
+        for (Listener listener : listeners) {
+            listener.pixelsRefined(count);
+        }
+    }
+
+    void auxdataTileRead(String source, int tileX, int tileY, long inflatedByteCount) {
+        increment(tilesRead, source, 1);
+        increment(bytesInflated, source, inflatedByteCount);
+        for (Listener listener : listeners) {
+            listener.auxdataTileRead(source, tileX, tileY, inflatedByteCount);
+        }
+    }
+
+    void constantTileServed(String source, int tileX, int tileY) {
+        increment(constantTiles, source, 1);
+        for (Listener listener : listeners) {
+            listener.constantTileServed(source, tileX, tileY);
+        }
+    }
+
+    void auxdataTileComputed(String imageType, int tileX, int tileY, long nanos) {
+        LatencyHistogram histogram = computeTileLatencies.get(imageType);
+        if (histogram == null) {
+            final LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = computeTileLatencies.putIfAbsent(imageType, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos);
+        for (Listener listener : listeners) {
+            listener.auxdataTileComputed(imageType, tileX, tileY, nanos);
+        }
+    }
+
+    void auxdataCacheAccessed(boolean hit) {
+        for (Listener listener : listeners) {
+            listener.auxdataCacheAccessed(hit);
+        }
+    }
+
+    @Override
+    public long getTargetTileCount() {
+        return targetTileCount.get();
+    }
+
+    @Override
+    public double getTargetTileMeanMillis() {
+        final long count = targetTileCount.get();
+        return count == 0 ? 0.0 : targetTileNanos.get() / 1.0e6 / count;
+    }
+
+    @Override
+    public long getSkippedTargetTileCount() {
+        return skippedTargetTileCount.get();
+    }
+
+    @Override
+    public long getSampleCount() {
+        return sampleCount.get();
+    }
+
+    @Override
+    public long getRefinedPixelCount() {
+        return refinedPixelCount.get();
+    }
+
+    @Override
+    public Map<String, Long> getAuxdataTilesRead() {
+        return snapshot(tilesRead);
+    }
+
+    @Override
+    public Map<String, Long> getConstantTilesServed() {
+        return snapshot(constantTiles);
+    }
+
+    @Override
+    public Map<String, Long> getBytesInflated() {
+        return snapshot(bytesInflated);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return AuxdataTileCache.getInstance().getStatistics().getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return AuxdataTileCache.getInstance().getStatistics().getMissCount();
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return AuxdataTileCache.getInstance().getStatistics().getEvictionCount();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        return AuxdataTileCache.getInstance().getStatistics().getHitRatio();
+    }
+
+    @Override
+    public Map<String, long[]> getComputeTileLatencyHistograms() {
+        final Map<String, long[]> histograms = new TreeMap<String, long[]>();
+        for (Map.Entry<String, LatencyHistogram> entry : computeTileLatencies.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().getCounts());
+        }
+        return histograms;
+    }
+
+    @Override
+    public Map<String, Double> getComputeTileMeanMillis() {
+        final Map<String, Double> means = new TreeMap<String, Double>();
+        for (Map.Entry<String, LatencyHistogram> entry : computeTileLatencies.entrySet()) {
+            means.put(entry.getKey(), entry.getValue().getMeanMillis());
+        }
+        return means;
+    }
+
+    @Override
+    public long[] getLatencyBucketLimitsMicros() {
+        final long[] limits = new long[LatencyHistogram.NUM_BUCKETS];
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = LatencyHistogram.getBucketLimitMicros(i);
+        }
+        return limits;
+    }
+
+    @Override
+    public void reset() {
+        targetTileCount.set(0);
+        targetTileNanos.set(0);
+        skippedTargetTileCount.set(0);
+        sampleCount.set(0);
+        refinedPixelCount.set(0);
+        tilesRead.clear();
+        constantTiles.clear();
+        bytesInflated.clear();
+        for (LatencyHistogram histogram : computeTileLatencies.values()) {
+            histogram.reset();
+        }
+        AuxdataTileCache.getInstance().resetStatistics();
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key, long delta) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            final AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters) {
+        final Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Receives the metrics of the water mask while they are enabled, e.g. to feed them into a metrics system.
+     * Sources are auxdata zip files, such as {@code 50m.zip}; image types are the simple names of the image
+     * classes.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the operator has computed a target tile.
+         */
+        void targetTileComputed(Rectangle rectangle, long nanos);
+
+        /**
+         * Called when the operator has filled a target tile with a constant value without classifying its pixels.
+         */
+        void targetTileSkipped(Rectangle rectangle);
+
+        /**
+         * Called when the water mask has been sampled for the given number of geo-positions.
+         */
+        void samplesEvaluated(long count);
+
+        /**
+         * Called when adaptive super-sampling has taken all super-samples of the given number of pixels, because
+         * their footprints are not known to be homogeneous.
+         */
+        void pixelsRefined(long count);
+
+        /**
+         * Called when an auxdata tile has been read. The inflated bytes are the decoded bytes of a tile read from a
+         * zip file, and 0 for tiles read from a tile container and for blocks read from a block container.
+         */
+        void auxdataTileRead(String source, int tileX, int tileY, long inflatedByteCount);
+
+        /**
+         * Called when a constant raster has been served for a missing auxdata tile.
+         */
+        void constantTileServed(String source, int tileX, int tileY);
+
+        /**
+         * Called when an auxdata image has computed a tile.
+         */
+        void auxdataTileComputed(String imageType, int tileX, int tileY, long nanos);
+
+        /**
+         * Called when an auxdata tile has been requested from the {@link AuxdataTileCache}.
+         */
+        void auxdataCacheAccessed(boolean hit);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import java.util.Map;
+
+/**
+ * The management interface of the {@link WatermaskMetrics}, registered as {@value WatermaskMetrics#OBJECT_NAME}.
+ * Counters keyed by source are kept per auxdata zip file, such as {@code 50m.zip}; latencies are kept per image
+ * class, {@code SRTMOpImage} or {@code PNGSourceImage}.
+ */
+public interface WatermaskMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the number of target tiles computed by the operator.
+     */
+    long getTargetTileCount();
+
+    double getTargetTileMeanMillis();
+
+    /**
+     * @return the number of target tiles the operator has filled with a constant value, because the auxdata is
+     * known to be all land, all water or invalid within their geographic bounds.
+     */
+    long getSkippedTargetTileCount();
+
+    /**
+     * @return the number of geo-positions the water mask has been sampled for, including super-samples.
+     */
+    long getSampleCount();
+
+    /**
+     * @return the number of pixels which adaptive super-sampling has refined by taking all their super-samples.
+     */
+    long getRefinedPixelCount();
+
+    Map<String, Long> getAuxdataTilesRead();
+
+    /**
+     * @return the number of tiles served as constant rasters, because they are missing from the auxdata or lie
+     * outside of the auxdata pack.
+     */
+    Map<String, Long> getConstantTilesServed();
+
+    /**
+     * @return the number of bytes inflated from the auxdata zip files.
+     */
+    Map<String, Long> getBytesInflated();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    long getCacheEvictionCount();
+
+    double getCacheHitRatio();
+
+    /**
+     * @return the counts of the latency buckets of {@code computeTile}, see {@link #getLatencyBucketLimitsMicros()}.
+     */
+    Map<String, long[]> getComputeTileLatencyHistograms();
+
+    Map<String, Double> getComputeTileMeanMillis();
+
+    /**
+     * @return the exclusive upper limits of the latency buckets, in microseconds.
+     */
+    long[] getLatencyBucketLimitsMicros();
+
+    /**
+     * Resets all counters and histograms, including the statistics of the auxdata tile cache.
+     */
+    void reset();
+}
@@ -18,7 +18,10 @@ package org.esa.beam.watermask.operator;
 
 import com.bc.ceres.core.ProgressMonitor;
 import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
 import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
 import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.datamodel.ProductData;
 import org.esa.beam.framework.gpf.Operator;
@@ -30,10 +33,15 @@ import org.esa.beam.framework.gpf.annotations.Parameter;
 import org.esa.beam.framework.gpf.annotations.SourceProduct;
 import org.esa.beam.framework.gpf.annotations.TargetProduct;
 import org.esa.beam.util.ProductUtils;
+import org.esa.beam.util.logging.BeamLogManager;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.Arrays;
 
 /**
  * The {@code LandWaterMask} operator takes the geographic bounds of the input product and creates a new
@@ -60,6 +68,10 @@ import java.text.MessageFormat;
                   description = "Operator creating a target product with a single band containing a land/water-mask.")
 public class WatermaskOp extends Operator {
 
+    private static final int MAX_ALIGNED_TILE_SIZE = 512;
+    private static final int OUTLINE_STEP = 16;
+    private static final double DEGREE_EDGE_TOLERANCE = 1.0e-6;
+
     @SourceProduct(alias = "source", description = "The Product the land/water-mask shall be computed for.",
                    label = "Name")
     private Product sourceProduct;
@@ -78,42 +90,128 @@ public class WatermaskOp extends Operator {
                label = "Subsampling factor y", defaultValue = "1", notNull = true)
     private int subSamplingFactorY;
 
+    @Parameter(description = "If greater than 1, the geo-coding is only evaluated on a grid of sub-samples with this " +
+                             "spacing, and the geo-positions in between are interpolated. A value of '1' evaluates " +
+                             "the geo-coding for every sub-sample.",
+               label = "Geo-position grid step", defaultValue = "1", notNull = true)
+    private int geoPosGridStep;
+
+    @Parameter(description = "The maximum error of interpolated geo-positions. Where it is exceeded, the geo-coding " +
+                             "is evaluated for every sub-sample.",
+               label = "Max. geo-position error", unit = "watermask pixels", defaultValue = "0.5", notNull = true)
+    private double maxGeoPosError;
+
+    @Parameter(description = "If true, the fractions of water are computed from the precomputed water fraction " +
+                             "pyramid instead of sampling the water mask for every sub-sample. The pyramid needs " +
+                             "to be installed in the auxdata directory. Not available for the resolution 1000.",
+               label = "Use water fraction pyramid", defaultValue = "false")
+    private boolean useFractionPyramid;
+
+    @Parameter(description = "If true, only the pixels whose footprint is not known to be all land, all water or " +
+                             "all invalid are sub-sampled; the footprint is spanned by the corner sub-samples and " +
+                             "looked up in the auxdata tiles and the block summary index. The fractions are the same " +
+                             "as without, unless the geo-coding is strongly curved within a pixel.",
+               label = "Adaptive subsampling", defaultValue = "false")
+    private boolean adaptiveSubSampling;
+
+    @Parameter(description = "If true, the fractions of water are the exact shares of the watermask pixels lying " +
+                             "within the footprint of each pixel, which is spanned by the geo-positions of its " +
+                             "corners. The subsampling factors are then only used for pixels whose footprint " +
+                             "crosses 60° north or has an invalid corner.",
+               label = "Exact fractions", defaultValue = "false")
+    private boolean exactFractions;
+
+    @Parameter(description = "The minimum memory budget of the tile cache shared by all auxdata images in this " +
+                             "process. It only raises the budget, which is initialised from the system property '" +
+                             AuxdataTileCache.SIZE_PROPERTY + "' or a default of " +
+                             AuxdataTileCache.DEFAULT_SIZE_MB + " MB, so that operators sharing the cache do not " +
+                             "shrink it for each other. The eviction policy is set by the system property '" +
+                             AuxdataTileCache.POLICY_PROPERTY + "'.",
+               label = "Auxdata tile cache size", unit = "MB")
+    private Integer tileCacheSize;
+
+    @Parameter(description = "If true, the auxdata tiles covering the source product are loaded in the background " +
+                             "while the operator is initialised, so that they are cached when the target tiles " +
+                             "are computed.",
+               label = "Prefetch auxdata tiles", defaultValue = "true")
+    private boolean prefetchAuxdata;
+
     @TargetProduct
     private Product targetProduct;
     private WatermaskClassifier classifier;
+    private AuxdataPrefetcher prefetcher;
+    private AffineTransform imageToGeo;
 
     @Override
     public void initialize() throws OperatorException {
         validateParameter();
         validateSourceProduct();
         initTargetProduct();
+        initImageToGeoTransform();
+        initTileCache();
         try {
-            classifier = new WatermaskClassifier(resolution, subSamplingFactorX, subSamplingFactorY);
+            classifier = new WatermaskClassifier(resolution, subSamplingFactorX, subSamplingFactorY,
+                                                 useFractionPyramid, adaptiveSubSampling);
         } catch (IOException e) {
             throw new OperatorException("Error creating class WatermaskClassifier.", e);
         }
+        if (prefetchAuxdata) {
+            final AuxdataFootprint footprint = AuxdataFootprint.compute(sourceProduct.getGeoCoding(),
+                                                                        sourceProduct.getSceneRasterWidth(),
+                                                                        sourceProduct.getSceneRasterHeight(),
+                                                                        AuxdataFootprint.DEFAULT_GRID_STEP);
+            prefetcher = classifier.prefetch(footprint);
+        }
     }
 
     @Override
     public void computeTile(Band targetBand, Tile targetTile, ProgressMonitor pm) throws OperatorException {
         final Rectangle rectangle = targetTile.getRectangle();
+        final WatermaskMetrics metrics = WatermaskMetrics.getActive();
+        final long startNanos = metrics != null ? System.nanoTime() : 0L;
         try {
-            final GeoCoding geoCoding = sourceProduct.getGeoCoding();
-            for (int y = rectangle.y; y < rectangle.y + rectangle.height; y++) {
-                for (int x = rectangle.x; x < rectangle.x + rectangle.width; x++) {
-                    final byte waterFraction;
-                    if (x >= 32397 && y >= 987) {
-                        System.out.println("Hello from the other side!");
-                    }
-                    waterFraction = classifier.getWaterMaskFraction(geoCoding, x, y);
-                    targetTile.setSample(x, y, waterFraction);
+            final byte[] waterFractions = new byte[rectangle.width * rectangle.height];
+            final int constantValue = getConstantValue(rectangle);
+            if (constantValue != WatermaskClassifier.MIXED_VALUE) {
+                final int fraction = constantValue == WatermaskClassifier.INVALID_VALUE ? constantValue
+                                                                                       : constantValue * 100;
+                Arrays.fill(waterFractions, (byte) fraction);
+                if (metrics != null) {
+                    metrics.targetTileSkipped(rectangle);
                 }
+            } else if (exactFractions && imageToGeo != null) {
+                classifier.getExactWaterMaskFractions(imageToGeo, rectangle, waterFractions);
+            } else if (exactFractions) {
+                classifier.getExactWaterMaskFractions(sourceProduct.getGeoCoding(), rectangle, waterFractions);
+            } else if (imageToGeo != null) {
+                classifier.getWaterMaskFractions(imageToGeo, rectangle, waterFractions);
+            } else {
+                final GeoCoding geoCoding = sourceProduct.getGeoCoding();
+                classifier.getWaterMaskFractions(geoCoding, rectangle, geoPosGridStep, maxGeoPosError,
+                                                 waterFractions);
+            }
+            targetTile.setRawSamples(ProductData.createInstance(waterFractions));
+            if (metrics != null) {
+                metrics.targetTileComputed(rectangle, System.nanoTime() - startNanos);
             }
         } catch (Exception e) {
             throw new OperatorException("Error computing tile '" + targetTile.getRectangle().toString() + "'.", e);
         }
     }
 
+    @Override
+    public void dispose() {
+        if (prefetcher != null) {
+            prefetcher.cancel();
+            prefetcher = null;
+        }
+        if (classifier != null) {
+            classifier.dispose();
+            classifier = null;
+        }
+        super.dispose();
+    }
+
     private void validateParameter() {
         if (resolution != 50 && resolution != 150 && resolution != 1000) {
             throw new OperatorException(String.format("Resolution needs to be either %d, %d or, %d.", 50, 150, 1000));
@@ -123,6 +221,38 @@ public class WatermaskOp extends Operator {
             String message = MessageFormat.format(msgPattern, subSamplingFactorX);
             throw new OperatorException(message);
         }
+        if (geoPosGridStep < 1) {
+            String msgPattern = "Geo-position grid step needs to be greater than or equal to 1; was: ''{0}''.";
+            throw new OperatorException(MessageFormat.format(msgPattern, geoPosGridStep));
+        }
+        if (maxGeoPosError <= 0.0) {
+            String msgPattern = "Max. geo-position error needs to be greater than 0; was: ''{0}''.";
+            throw new OperatorException(MessageFormat.format(msgPattern, maxGeoPosError));
+        }
+        if (tileCacheSize != null && tileCacheSize < 0) {
+            String msgPattern = "Tile cache size must not be negative; was: ''{0}''.";
+            throw new OperatorException(MessageFormat.format(msgPattern, tileCacheSize));
+        }
+        if (useFractionPyramid && resolution == 1000) {
+            throw new OperatorException("The water fraction pyramid is only available for resolutions 50 and 150.");
+        }
+        if (exactFractions && useFractionPyramid) {
+            throw new OperatorException("Exact fractions can not be computed from the water fraction pyramid.");
+        }
+    }
+
+    private void initTileCache() {
+        if (tileCacheSize == null) {
+            return;
+        }
+        final long requestedCapacity = tileCacheSize * 1024L * 1024L;
+        final long capacity = AuxdataTileCache.getInstance().raiseMemoryCapacity(requestedCapacity);
+        if (capacity > requestedCapacity) {
+            String msgPattern = "The auxdata tile cache shared in this process keeps its size of {0} MB; " +
+                                "the requested {1} MB are ignored.";
+            BeamLogManager.getSystemLogger().warning(MessageFormat.format(msgPattern, capacity / (1024L * 1024L),
+                                                                          tileCacheSize));
+        }
     }
 
     private void validateSourceProduct() {
@@ -145,6 +275,188 @@ public class WatermaskOp extends Operator {
         ProductUtils.copyGeoCoding(sourceProduct, targetProduct);
     }
 
+    /**
+     * Detects source products in WGS84 plate carr&eacute;e, whose pixels map onto longitude and latitude affinely.
+     * For these the geo-coding need not be evaluated, and the target tiles are aligned to the 1&deg; auxdata tiles
+     * where the grid allows.
+     */
+    private void initImageToGeoTransform() {
+        final GeoCoding geoCoding = sourceProduct.getGeoCoding();
+        if (!(geoCoding instanceof CrsGeoCoding)
+            || !CRS.equalsIgnoreMetadata(geoCoding.getMapCRS(), DefaultGeographicCRS.WGS84)
+            || !(geoCoding.getImageToMapTransform() instanceof AffineTransform)) {
+            return;
+        }
+        final AffineTransform transform = (AffineTransform) geoCoding.getImageToMapTransform();
+        if (transform.getShearX() != 0.0 || transform.getShearY() != 0.0
+            || transform.getScaleX() == 0.0 || transform.getScaleY() == 0.0) {
+            return;
+        }
+        imageToGeo = new AffineTransform(transform);
+
+        final int tileWidth = computeDegreeAlignedTileSize(imageToGeo.getScaleX(), imageToGeo.getTranslateX());
+        final int tileHeight = computeDegreeAlignedTileSize(imageToGeo.getScaleY(), imageToGeo.getTranslateY());
+        if (tileWidth > 0 && tileHeight > 0) {
+            targetProduct.setPreferredTileSize(tileWidth, tileHeight);
+        }
+    }
+
+    /**
+     * Tells whether the auxdata is all land, all water or invalid within the geographic bounds of a target tile, e.g.
+     * because the tile lies south of the coverage of the high-res auxdata, or within a 1&deg; cell which is missing
+     * from it. Then the tile need not be classified pixel by pixel.
+     *
+     * @return {@link WatermaskClassifier#LAND_VALUE}, {@link WatermaskClassifier#WATER_VALUE},
+     * {@link WatermaskClassifier#INVALID_VALUE} or {@link WatermaskClassifier#MIXED_VALUE}.
+     */
+    private int getConstantValue(Rectangle rectangle) {
+        final float[] bounds = imageToGeo != null ? computeGeoBounds(imageToGeo, rectangle)
+                                                  : computeGeoBounds(sourceProduct.getGeoCoding(), rectangle);
+        if (bounds == null) {
+            return WatermaskClassifier.MIXED_VALUE;
+        }
+        return classifier.getHomogeneousValue(bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    /**
+     * Computes the geographic bounds of the pixels of a rectangle of a product in WGS84 plate carr&eacute;e. The
+     * edges are exact; those of a rectangle aligned to the 1&deg; auxdata tiles are whole degrees, so that the
+     * bounds do not reach into the neighbouring tiles.
+     *
+     * @return the northern and southern latitude and the western and eastern longitude, see
+     * {@link #toGeoBounds(float, float, float, float)}, or {@code null} if the rectangle goes round the earth.
+     */
+    static float[] computeGeoBounds(AffineTransform imageToGeo, Rectangle rectangle) {
+        final double lon1 = snapToDegree(imageToGeo.getScaleX() * rectangle.x + imageToGeo.getTranslateX());
+        final double lon2 = snapToDegree(imageToGeo.getScaleX() * (rectangle.x + rectangle.width)
+                                         + imageToGeo.getTranslateX());
+        final double lat1 = snapToDegree(imageToGeo.getScaleY() * rectangle.y + imageToGeo.getTranslateY());
+        final double lat2 = snapToDegree(imageToGeo.getScaleY() * (rectangle.y + rectangle.height)
+                                         + imageToGeo.getTranslateY());
+        return toGeoBounds((float) Math.min(lat1, lat2), (float) Math.max(lat1, lat2),
+                           (float) Math.min(lon1, lon2), (float) Math.max(lon1, lon2));
+    }
+
+    /**
+     * @return the whole degree next to the given coordinate if it differs by rounding errors only, the coordinate
+     * otherwise.
+     */
+    private static double snapToDegree(double coordinate) {
+        final double degree = Math.rint(coordinate);
+        return Math.abs(coordinate - degree) < DEGREE_EDGE_TOLERANCE ? degree : coordinate;
+    }
+
+    /**
+     * Computes the geographic bounds of the pixels of a rectangle from the geo-positions of the pixel edges along
+     * its outline, taken every {@link #OUTLINE_STEP} pixels. The bounds are padded by the largest difference of
+     * latitude and longitude between successive positions, to include the outline between them for a curved
+     * geo-coding.
+     *
+     * @return the northern and southern latitude and the western and eastern longitude, see
+     * {@link #toGeoBounds(float, float, float, float)}, or {@code null} if a position of the outline is invalid, or
+     * if the outline encloses a pole.
+     */
+    static float[] computeGeoBounds(GeoCoding geoCoding, Rectangle rectangle) {
+        final int numStepsX = (rectangle.width + OUTLINE_STEP - 1) / OUTLINE_STEP;
+        final int numStepsY = (rectangle.height + OUTLINE_STEP - 1) / OUTLINE_STEP;
+        final int numPositions = 2 * (numStepsX + numStepsY);
+        final PixelPos pixelPos = new PixelPos();
+        final GeoPos geoPos = new GeoPos();
+        float minLat = Float.POSITIVE_INFINITY;
+        float maxLat = Float.NEGATIVE_INFINITY;
+        float minLon = Float.POSITIVE_INFINITY;
+        float maxLon = Float.NEGATIVE_INFINITY;
+        float maxLatStep = 0.0f;
+        float maxLonStep = 0.0f;
+        float lat = 0.0f;
+        float lon = 0.0f;
+        float firstLon = 0.0f;
+        // the first position is visited again at the end, to close the outline
+        for (int i = 0; i <= numPositions; i++) {
+            setOutlinePosition(rectangle, numStepsX, numStepsY, i % numPositions, pixelPos);
+            geoCoding.getGeoPos(pixelPos, geoPos);
+            if (!geoPos.isValid()) {
+                return null;
+            }
+            final float nextLon = i == 0 ? geoPos.lon : GeoPosGrid.unwrapLon(geoPos.lon, lon);
+            if (i > 0) {
+                maxLatStep = Math.max(maxLatStep, Math.abs(geoPos.lat - lat));
+                maxLonStep = Math.max(maxLonStep, Math.abs(nextLon - lon));
+            }
+            if (i == 0) {
+                firstLon = nextLon;
+            }
+            lat = geoPos.lat;
+            lon = nextLon;
+            minLat = Math.min(minLat, lat);
+            maxLat = Math.max(maxLat, lat);
+            minLon = Math.min(minLon, lon);
+            maxLon = Math.max(maxLon, lon);
+        }
+        // having gone round a pole, the outline ends one turn off its start
+        if (Math.abs(lon - firstLon) > 180.0f) {
+            return null;
+        }
+        return toGeoBounds(Math.max(minLat - maxLatStep, -90.0f), Math.min(maxLat + maxLatStep, 90.0f),
+                           minLon - maxLonStep, maxLon + maxLonStep);
+    }
+
+    /**
+     * Sets the pixel position of the outline of a rectangle with the given index, going clockwise from the upper
+     * left corner.
+     */
+    private static void setOutlinePosition(Rectangle rectangle, int numStepsX, int numStepsY, int index,
+                                           PixelPos pixelPos) {
+        final int right = rectangle.x + rectangle.width;
+        final int bottom = rectangle.y + rectangle.height;
+        if (index < numStepsX) {
+            pixelPos.setLocation(rectangle.x + index * OUTLINE_STEP, rectangle.y);
+        } else if (index < numStepsX + numStepsY) {
+            pixelPos.setLocation(right, rectangle.y + (index - numStepsX) * OUTLINE_STEP);
+        } else if (index < 2 * numStepsX + numStepsY) {
+            pixelPos.setLocation(right - (index - numStepsX - numStepsY) * OUTLINE_STEP, bottom);
+        } else {
+            pixelPos.setLocation(rectangle.x, bottom - (index - 2 * numStepsX - numStepsY) * OUTLINE_STEP);
+        }
+    }
+
+    /**
+     * @return the northern and southern latitude and the western and eastern longitude, as expected by
+     * {@link WatermaskClassifier#getHomogeneousValue(float, float, float, float)}; the longitudes are within
+     * [-180, 180], and the western one is greater than the eastern one if the bounds cross the antimeridian. Returns
+     * {@code null} if the bounds go round the earth.
+     */
+    static float[] toGeoBounds(float minLat, float maxLat, float minLon, float maxLon) {
+        final float lonExtent = maxLon - minLon;
+        if (!(lonExtent < 360.0f) || Float.isNaN(minLat) || Float.isNaN(maxLat)) {
+            return null;
+        }
+        final float westLon = (float) (minLon - 360.0 * Math.floor((minLon + 180.0) / 360.0));
+        float eastLon = westLon + lonExtent;
+        if (eastLon > 180.0f) {
+            eastLon -= 360.0f;
+        }
+        return new float[]{maxLat, minLat, westLon, eastLon};
+    }
+
+    /**
+     * @return the largest multiple of the pixels per degree not exceeding {@link #MAX_ALIGNED_TILE_SIZE}, or -1 if
+     * the pixel grid does not coincide with the degree grid.
+     */
+    static int computeDegreeAlignedTileSize(double pixelSize, double origin) {
+        final double pixelsPerDegree = 1.0 / Math.abs(pixelSize);
+        final long roundedPixelsPerDegree = Math.round(pixelsPerDegree);
+        if (roundedPixelsPerDegree < 1 || roundedPixelsPerDegree > MAX_ALIGNED_TILE_SIZE
+            || Math.abs(pixelsPerDegree - roundedPixelsPerDegree) > 1.0e-6 * pixelsPerDegree) {
+            return -1;
+        }
+        if (Math.abs(origin - Math.rint(origin)) * pixelsPerDegree > 1.0e-3) {
+            return -1;
+        }
+        final int numDegrees = (int) (MAX_ALIGNED_TILE_SIZE / roundedPixelsPerDegree);
+        return (int) (numDegrees * roundedPixelsPerDegree);
+    }
+
     @SuppressWarnings({"UnusedDeclaration"})
     public static class Spi extends OperatorSpi {
 
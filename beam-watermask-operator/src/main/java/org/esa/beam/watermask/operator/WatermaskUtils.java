@@ -1,7 +1,18 @@
 package org.esa.beam.watermask.operator;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+
 public class WatermaskUtils {
 
+    /**
+     * The reduction factors of the levels of the water fraction pyramid, in ascending order.
+     */
+    public static final int[] FRACTION_PYRAMID_FACTORS = {2, 4, 8, 16, 32};
+
     private WatermaskUtils() {
     }
 
@@ -54,4 +65,161 @@ public class WatermaskUtils {
 
         return result.toString();
     }
+
+    /**
+     * Determines the SRTM tile of an img file named by {@link #createImgFileName(float, float)}, such as
+     * 'w012n05.img'.
+     *
+     * @param name The name of the img file.
+     *
+     * @return the tile indices in x and y, counted from 180&deg; west and 90&deg; north, or {@code null} if the
+     * name is not the name of an img file.
+     */
+    public static int[] getImgTileIndices(String name) {
+        if (!name.endsWith(".img")) {
+            return null;
+        }
+        final int lon = Integer.parseInt(name.substring(1, 4)) * (name.charAt(0) == 'w' ? -1 : 1);
+        final int lat = Integer.parseInt(name.substring(5, 7)) * (name.charAt(4) == 's' ? -1 : 1);
+        // the name gives the lower left corner of the tile
+        return new int[]{lon + 180, 89 - lat};
+    }
+
+    /**
+     * Creates the name of a GlobCover tile file, such as '12-3.png', or '12-3.raw' if the tile is 1-bit packed (see
+     * {@link #packBits(byte[], int, int)}).
+     *
+     * @param tileX  The tile index in x-direction.
+     * @param tileY  The tile index in y-direction.
+     * @param packed Whether the tile is 1-bit packed.
+     *
+     * @return the name of the tile file
+     */
+    public static String createGlobCoverFileName(int tileX, int tileY, boolean packed) {
+        return tileX + "-" + tileY + (packed ? ".raw" : ".png");
+    }
+
+    /**
+     * Determines the tile of a GlobCover tile file named by {@link #createGlobCoverFileName(int, int, boolean)}.
+     *
+     * @param name The name of the png or raw file.
+     *
+     * @return the tile indices in x and y, or {@code null} if the name is not the name of a png or raw file.
+     */
+    public static int[] getGlobCoverTileIndices(String name) {
+        if (!name.endsWith(".png") && !name.endsWith(".raw")) {
+            return null;
+        }
+        final String[] indices = name.substring(0, name.length() - 4).split("-");
+        return new int[]{Integer.parseInt(indices[0]), Integer.parseInt(indices[1])};
+    }
+
+    /**
+     * @return {@code true} if the named GlobCover tile file is 1-bit packed.
+     */
+    public static boolean isPackedGlobCoverFile(String name) {
+        return name.endsWith(".raw");
+    }
+
+    /**
+     * Packs samples of 0 and 1 into the layout of the SRTM img files: one bit per pixel, the first pixel of a byte
+     * in its most significant bit, and each row starting at a new byte. Other values than 0 are packed as 1.
+     *
+     * @param samples The samples in row-major order, one byte per pixel.
+     * @param width   The width of the tile.
+     * @param height  The height of the tile.
+     *
+     * @return the packed data of {@code (width + 7) / 8 * height} bytes
+     */
+    public static byte[] packBits(byte[] samples, int width, int height) {
+        final int scanlineStride = (width + 7) / 8;
+        final byte[] packed = new byte[scanlineStride * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (samples[y * width + x] != 0) {
+                    packed[y * scanlineStride + (x >> 3)] |= 0x80 >>> (x & 7);
+                }
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Reverses {@link #packBits(byte[], int, int)}.
+     *
+     * @param packed  The packed data.
+     * @param width   The width of the tile.
+     * @param height  The height of the tile.
+     * @param samples The array receiving the samples in row-major order, one byte per pixel.
+     */
+    public static void unpackBits(byte[] packed, int width, int height, byte[] samples) {
+        final int scanlineStride = (width + 7) / 8;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                samples[y * width + x] = (byte) ((packed[y * scanlineStride + (x >> 3)] >>> (7 - (x & 7))) & 1);
+            }
+        }
+    }
+
+    /**
+     * Creates the name of the zip file holding a level of the water fraction pyramid.
+     *
+     * @param resolution The resolution of the water mask the level is reduced from.
+     * @param factor     The reduction factor of the level.
+     *
+     * @return the name of the zip file
+     */
+    public static String createFractionPyramidFileName(int resolution, int factor) {
+        return resolution + "m_fraction_" + factor + "x.zip";
+    }
+
+    /**
+     * Returns the file next to a zip file of the auxdata which holds derived data of it, such as a tile container
+     * or an index; it is named like the zip file, with the given extension instead of '.zip'.
+     *
+     * @param zipFile   The zip file.
+     * @param extension The extension of the file, such as '.tiles'.
+     *
+     * @return the file, whether it exists or not.
+     */
+    public static File getSiblingFile(File zipFile, String extension) {
+        String name = zipFile.getName();
+        if (name.endsWith(".zip")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return new File(zipFile.getParentFile(), name + extension);
+    }
+
+    /**
+     * @return the file given by {@link #getSiblingFile(File, String)}, or {@code null} if it does not exist.
+     */
+    static File getExistingSiblingFile(File zipFile, String extension) {
+        final File file = getSiblingFile(zipFile, extension);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * @return the number of blocks along each side of a tile, the last of which may be clipped.
+     */
+    public static int computeBlocksPerSide(int tileSideLength, int blockSize) {
+        return (tileSideLength + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Reads bytes from a file channel until the buffer is full.
+     *
+     * @param channel  The channel.
+     * @param buffer   The buffer, filled from its position to its limit.
+     * @param position The position in the file of the first byte of the buffer.
+     *
+     * @throws IOException If the file ends before the buffer is full.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(MessageFormat.format("Unexpected end of file at byte {0}.",
+                                                           position + buffer.position()));
+            }
+        }
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.AuxdataPack;
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import java.awt.Shape;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/* Extracts a regional auxdata pack (see AuxdataPack) from the installed auxdata directory, for machines which only
+   process some regions. The pack holds the zip files of the auxdata directory (50m.zip, 150m.zip, the levels of
+   the fraction pyramid and GC_water_mask.zip), reduced to the tiles of the 1° cells overlapping any of the given
+   regions, and the manifest listing these cells. Other files, such as tile containers or the index of constant
+   GlobCover tiles, are not copied; they can be written for the pack by TileContainerWriter and
+   ConstantTilesIndexGenerator. The operator uses the pack if the system property 'beam.watermask.auxdataPack'
+   names the pack directory.
+
+   Regions are given in degrees, as 'bbox:<west>,<south>,<east>,<north>' or
+   'polygon:<lon>,<lat>,<lon>,<lat>,...'; regions crossing the anti-meridian need to be split.
+
+   Usage: AuxdataPackExtractor <auxdata dir> <pack dir> <region> [<region> ...]
+ */
+class AuxdataPackExtractor {
+
+    private static final String GC_ZIP_FILE_NAME = "GC_water_mask.zip";
+    // the GlobCover image covers 90° to 60° north at 360 pixels per degree, in tiles of 576 x 491 pixels
+    private static final double GC_PIXELS_PER_DEGREE = 360.0;
+    private static final int GC_TILE_WIDTH = 576;
+    private static final int GC_TILE_HEIGHT = 491;
+
+    private AuxdataPackExtractor() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File auxdataDir = new File(args[0]);
+        final File packDir = new File(args[1]);
+        final List<Shape> regions = new ArrayList<Shape>();
+        final StringBuilder description = new StringBuilder();
+        for (int i = 2; i < args.length; i++) {
+            regions.add(parseRegion(args[i]));
+            description.append(i > 2 ? " " : "").append(args[i]);
+        }
+        final BitSet cells = computeCells(regions);
+        System.out.printf("%d cells of 1 degree cover the regions%n", cells.cardinality());
+
+        if (!packDir.isDirectory() && !packDir.mkdirs()) {
+            throw new IOException(MessageFormat.format("Unable to create directory ''{0}''.", packDir));
+        }
+        final File[] zipFiles = auxdataDir.listFiles();
+        if (zipFiles == null) {
+            throw new IOException(MessageFormat.format("''{0}'' is not a directory.", auxdataDir));
+        }
+        for (File zipFile : zipFiles) {
+            if (zipFile.getName().endsWith(".zip")) {
+                extract(zipFile, new File(packDir, zipFile.getName()), cells);
+            }
+        }
+        AuxdataPack.writeManifest(packDir, cells, description.toString());
+    }
+
+    private static Shape parseRegion(String region) {
+        final int colon = region.indexOf(':');
+        final String type = colon > 0 ? region.substring(0, colon) : "";
+        final String[] values = region.substring(colon + 1).split(",");
+        final double[] coordinates = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            coordinates[i] = Double.parseDouble(values[i].trim());
+        }
+        if ("bbox".equals(type) && coordinates.length == 4) {
+            return new Rectangle2D.Double(coordinates[0], coordinates[1], coordinates[2] - coordinates[0],
+                                          coordinates[3] - coordinates[1]);
+        } else if ("polygon".equals(type) && coordinates.length >= 6 && coordinates.length % 2 == 0) {
+            final Path2D.Double polygon = new Path2D.Double();
+            polygon.moveTo(coordinates[0], coordinates[1]);
+            for (int i = 2; i < coordinates.length; i += 2) {
+                polygon.lineTo(coordinates[i], coordinates[i + 1]);
+            }
+            polygon.closePath();
+            return polygon;
+        }
+        throw new IllegalArgumentException(MessageFormat.format("Invalid region ''{0}''.", region));
+    }
+
+    private static BitSet computeCells(List<Shape> regions) {
+        final BitSet cells = new BitSet(AuxdataPack.NUM_CELLS_X * AuxdataPack.NUM_CELLS_Y);
+        for (int latIndex = 0; latIndex < AuxdataPack.NUM_CELLS_Y; latIndex++) {
+            for (int lonIndex = 0; lonIndex < AuxdataPack.NUM_CELLS_X; lonIndex++) {
+                // the cell is slightly enlarged, so that regions touching it at its border or in a point count
+                final Rectangle2D cell = new Rectangle2D.Double(lonIndex - 180.0 - 1.0e-9, 89.0 - latIndex - 1.0e-9,
+                                                                1.0 + 2.0e-9, 1.0 + 2.0e-9);
+                for (Shape region : regions) {
+                    if (region.intersects(cell) || region.getBounds2D().intersects(cell) && isLine(region)) {
+                        cells.set(latIndex * AuxdataPack.NUM_CELLS_X + lonIndex);
+                        break;
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * @return {@code true} for degenerate regions without area, such as a bounding box of a single point.
+     */
+    private static boolean isLine(Shape region) {
+        final Rectangle2D bounds = region.getBounds2D();
+        return bounds.getWidth() == 0.0 || bounds.getHeight() == 0.0;
+    }
+
+    private static void extract(File sourceFile, File targetFile, BitSet cells) throws IOException {
+        final boolean globCover = GC_ZIP_FILE_NAME.equals(sourceFile.getName());
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        int count = 0;
+        try {
+            final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(targetFile));
+            try {
+                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    final boolean needed = globCover ? isGlobCoverTileNeeded(entry.getName(), cells)
+                                                     : isSrtmTileNeeded(entry.getName(), cells);
+                    if (needed) {
+                        copyEntry(zipFile, entry, outputStream);
+                        count++;
+                    }
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+        System.out.printf("Written %s with %d tiles%n", targetFile, count);
+    }
+
+    private static boolean isSrtmTileNeeded(String name, BitSet cells) {
+        final int[] tileIndices = WatermaskUtils.getImgTileIndices(name);
+        return tileIndices != null && cells.get(tileIndices[1] * AuxdataPack.NUM_CELLS_X + tileIndices[0]);
+    }
+
+    private static boolean isGlobCoverTileNeeded(String name, BitSet cells) {
+        final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(name);
+        if (tileIndices == null) {
+            return false;
+        }
+        final int minLonIndex = (int) (tileIndices[0] * GC_TILE_WIDTH / GC_PIXELS_PER_DEGREE);
+        final int maxLonIndex = (int) (((tileIndices[0] + 1) * GC_TILE_WIDTH - 1) / GC_PIXELS_PER_DEGREE);
+        final int minLatIndex = (int) (tileIndices[1] * GC_TILE_HEIGHT / GC_PIXELS_PER_DEGREE);
+        final int maxLatIndex = (int) (((tileIndices[1] + 1) * GC_TILE_HEIGHT - 1) / GC_PIXELS_PER_DEGREE);
+        for (int latIndex = minLatIndex; latIndex <= Math.min(maxLatIndex, AuxdataPack.NUM_CELLS_Y - 1); latIndex++) {
+            for (int lonIndex = minLonIndex; lonIndex <= Math.min(maxLonIndex, AuxdataPack.NUM_CELLS_X - 1);
+                 lonIndex++) {
+                if (cells.get(latIndex * AuxdataPack.NUM_CELLS_X + lonIndex)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void copyEntry(ZipFile zipFile, ZipEntry entry, ZipOutputStream outputStream) throws IOException {
+        outputStream.putNextEntry(new ZipEntry(entry.getName()));
+        final InputStream inputStream = zipFile.getInputStream(entry);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+        outputStream.closeEntry();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.BlockContainer;
+import org.esa.beam.watermask.operator.TileCodec;
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* Converts the zip file of an SRTM image (50m.zip or 150m.zip) into a block container (see BlockContainer), which
+   is written next to the zip file. The operator then reads single samples block by block from the container, while
+   it keeps reading whole tiles from the zip file or tile container.
+   Each tile is split into blocks of the given size (default 256, a multiple of 8), which are encoded by the given
+   codec (see TileCodec: raw, deflate, lz4 or rle; default rle). The side length of the tiles is derived from the
+   size of the img files.
+
+   Usage: BlockContainerWriter <zip file> [<block size>] [<codec>]
+ */
+class BlockContainerWriter {
+
+    private static final int SRTM_TILES_X = 360;
+    private static final int SRTM_TILES_Y = 180;
+    private static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private BlockContainerWriter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File sourceFile = new File(args[0]);
+        final int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+        final TileCodec codec = TileCodec.forName(args.length > 2 ? args[2] : TileCodec.RLE);
+        final File containerFile = BlockContainer.getContainerFile(sourceFile);
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        long rawSize = 0;
+        long encodedSize = 0;
+        try {
+            final int tileSideLength = getTileSideLength(zipFile);
+            final BlockContainer.Writer writer = new BlockContainer.Writer(containerFile, SRTM_TILES_X, SRTM_TILES_Y,
+                                                                           tileSideLength, blockSize, codec);
+            try {
+                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    final int[] tileIndices = WatermaskUtils.getImgTileIndices(entry.getName());
+                    if (tileIndices == null) {
+                        continue;
+                    }
+                    final byte[] data = readEntry(zipFile, entry);
+                    rawSize += data.length;
+                    encodedSize += writer.writeTile(tileIndices[0], tileIndices[1], data);
+                    System.out.printf("Written %s%n", entry.getName());
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+        System.out.printf("Written %s with blocks of %d pixels and codec %s: %d bytes of tiles encoded to %d bytes " +
+                          "(%.1f %%)%n", containerFile, blockSize, codec.getName(), rawSize, encodedSize,
+                          100.0 * encodedSize / rawSize);
+    }
+
+    private static int getTileSideLength(ZipFile zipFile) throws IOException {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            if (WatermaskUtils.getImgTileIndices(entry.getName()) != null) {
+                // a 1-bit packed square tile of side length s has s / 8 * s bytes
+                final int sideLength = (int) Math.round(Math.sqrt(8.0 * entry.getSize()));
+                if (sideLength % 8 != 0 || (long) sideLength / 8 * sideLength != entry.getSize()) {
+                    throw new IOException(MessageFormat.format("''{0}'' is no square 1-bit packed tile.",
+                                                               entry.getName()));
+                }
+                return sideLength;
+            }
+        }
+        throw new IOException(MessageFormat.format("''{0}'' contains no img files.", zipFile.getName()));
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        final byte[] data = new byte[(int) entry.getSize()];
+        final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(entry));
+        try {
+            inputStream.readFully(data);
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.BlockSummaryIndex;
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* Generates the block summary index (see BlockSummaryIndex) of the zip file of an SRTM image (50m.zip or 150m.zip),
+   which is written next to the zip file. The index tells for the blocks of each tile whether they are all land, all
+   water, invalid or mixed, at the given block sizes (default 512 128 32; multiples of 8, from coarse to fine), so
+   that WatermaskClassifier.getHomogeneousValue() recognises homogeneous regions without reading pixel data. The side
+   length of the tiles is derived from the size of the img files.
+
+   Usage: BlockSummaryIndexGenerator <zip file> [<block sizes>...]
+ */
+class BlockSummaryIndexGenerator {
+
+    private static final int SRTM_TILES_X = 360;
+    private static final int SRTM_TILES_Y = 180;
+    private static final int[] DEFAULT_BLOCK_SIZES = {512, 128, 32};
+
+    private BlockSummaryIndexGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File sourceFile = new File(args[0]);
+        int[] blockSizes = DEFAULT_BLOCK_SIZES;
+        if (args.length > 1) {
+            blockSizes = new int[args.length - 1];
+            for (int i = 0; i < blockSizes.length; i++) {
+                blockSizes[i] = Integer.parseInt(args[i + 1]);
+            }
+        }
+        final File indexFile = BlockSummaryIndex.getIndexFile(sourceFile);
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        int tileCount = 0;
+        long summarySize = 0;
+        try {
+            final int tileSideLength = getTileSideLength(zipFile);
+            final BlockSummaryIndex.Writer writer = new BlockSummaryIndex.Writer(indexFile, SRTM_TILES_X,
+                                                                                 SRTM_TILES_Y, tileSideLength,
+                                                                                 blockSizes);
+            try {
+                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    final int[] tileIndices = WatermaskUtils.getImgTileIndices(entry.getName());
+                    if (tileIndices == null) {
+                        continue;
+                    }
+                    summarySize += writer.writeTile(tileIndices[0], tileIndices[1], readEntry(zipFile, entry)).length;
+                    tileCount++;
+                    System.out.printf("Summarised %s%n", entry.getName());
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+        System.out.printf("Written %s with %d tile summaries of %d bytes in total%n", indexFile, tileCount,
+                          summarySize);
+    }
+
+    private static int getTileSideLength(ZipFile zipFile) throws IOException {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            if (WatermaskUtils.getImgTileIndices(entry.getName()) != null) {
+                // a 1-bit packed square tile of side length s has s / 8 * s bytes
+                final int sideLength = (int) Math.round(Math.sqrt(8.0 * entry.getSize()));
+                if (sideLength % 8 != 0 || (long) sideLength / 8 * sideLength != entry.getSize()) {
+                    throw new IOException(MessageFormat.format("''{0}'' is no square 1-bit packed tile.",
+                                                               entry.getName()));
+                }
+                return sideLength;
+            }
+        }
+        throw new IOException(MessageFormat.format("''{0}'' contains no img files.", zipFile.getName()));
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        final byte[] data = new byte[(int) entry.getSize()];
+        final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(entry));
+        try {
+            inputStream.readFully(data);
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.ConstantTilesIndex;
+import org.esa.beam.watermask.operator.WatermaskClassifier;
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* Creates the index of constant tiles (see ConstantTilesIndex) of a GlobCover zip file, as GC_water_mask.zip, and
+   writes it next to the zip file, where PNGSourceImage picks it up. Every tile is decoded and inverted the same way
+   PNGSourceImage does; tiles whose pixels all have the same value are served as constant rasters afterwards.
+
+   Usage: ConstantTilesIndexGenerator <zip file>
+ */
+class ConstantTilesIndexGenerator {
+
+    private ConstantTilesIndexGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File sourceFile = new File(args[0]);
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        try {
+            int numTilesX = 0;
+            int numTilesY = 0;
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(entries.nextElement().getName());
+                if (tileIndices != null) {
+                    numTilesX = Math.max(numTilesX, tileIndices[0] + 1);
+                    numTilesY = Math.max(numTilesY, tileIndices[1] + 1);
+                }
+            }
+            if (numTilesX == 0) {
+                throw new IOException(MessageFormat.format("''{0}'' holds no GlobCover tiles.", sourceFile));
+            }
+
+            final byte[] tileValues = new byte[numTilesX * numTilesY];
+            Arrays.fill(tileValues, (byte) WatermaskClassifier.INVALID_VALUE);
+            int tileCount = 0;
+            int constantCount = 0;
+            entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(entry.getName());
+                if (tileIndices == null) {
+                    continue;
+                }
+                final int tileValue = getTileValue(zipFile, entry);
+                tileValues[tileIndices[1] * numTilesX + tileIndices[0]] = (byte) tileValue;
+                tileCount++;
+                if (tileValue != ConstantTilesIndex.MIXED_TILE) {
+                    constantCount++;
+                }
+            }
+            final File indexFile = ConstantTilesIndex.getIndexFile(sourceFile);
+            ConstantTilesIndex.write(indexFile, numTilesX, numTilesY, tileValues);
+            System.out.printf("Written %s: %d of %d tiles are constant%n", indexFile, constantCount, tileCount);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * @return the inverted value of all pixels of the tile, or {@link ConstantTilesIndex#MIXED_TILE} if they differ.
+     */
+    private static int getTileValue(ZipFile zipFile, ZipEntry entry) throws IOException {
+        final InputStream inputStream = zipFile.getInputStream(entry);
+        try {
+            final BufferedImage image = ImageIO.read(inputStream);
+            final Raster imageData = image.getData();
+            final int[] samples = imageData.getSamples(0, 0, imageData.getWidth(), imageData.getHeight(), 0,
+                                                       (int[]) null);
+            for (int sample : samples) {
+                if (sample != samples[0]) {
+                    return ConstantTilesIndex.MIXED_TILE;
+                }
+            }
+            return Math.abs((byte) samples[0] - 1);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
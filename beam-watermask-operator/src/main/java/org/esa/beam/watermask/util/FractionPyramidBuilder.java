@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/* Creates the levels of the water fraction pyramid from a zip file of 1-bit water mask tiles, e.g. 50m.zip.
+   For each reduction factor in WatermaskUtils.FRACTION_PYRAMID_FACTORS a zip file is written, containing an entry
+   for each tile of the water mask with the same name. An entry holds one byte per block of factor x factor mask
+   pixels, the percentage of water pixels in that block. Tiles missing in the water mask are missing in the
+   pyramid as well; they are handled by MissingTiles.grid.
+   The zip files need to be copied into the auxdata directory of the watermask operator.
+
+   Usage: FractionPyramidBuilder <water mask zip file> <resolution> <target directory>
+ */
+class FractionPyramidBuilder {
+
+    private FractionPyramidBuilder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File sourceFile = new File(args[0]);
+        final int resolution = Integer.parseInt(args[1]);
+        final File targetDir = new File(args[2]);
+        final int sideLength = WatermaskUtils.computeSideLength(resolution);
+        final int[] factors = WatermaskUtils.FRACTION_PYRAMID_FACTORS;
+
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        final ZipOutputStream[] outputStreams = new ZipOutputStream[factors.length];
+        try {
+            for (int i = 0; i < factors.length; i++) {
+                final String fileName = WatermaskUtils.createFractionPyramidFileName(resolution, factors[i]);
+                final FileOutputStream outputStream = new FileOutputStream(new File(targetDir, fileName));
+                outputStreams[i] = new ZipOutputStream(new BufferedOutputStream(outputStream));
+            }
+            final byte[] bits = new byte[sideLength * sideLength / 8];
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".img")) {
+                    continue;
+                }
+                final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(entry));
+                try {
+                    inputStream.readFully(bits);
+                } finally {
+                    inputStream.close();
+                }
+                WaterCounts counts = WaterCounts.count(bits, sideLength);
+                for (int i = 0; i < factors.length; i++) {
+                    while (counts.factor < factors[i]) {
+                        counts = counts.reduce();
+                    }
+                    outputStreams[i].putNextEntry(new ZipEntry(entry.getName()));
+                    outputStreams[i].write(counts.toFractions(sideLength));
+                    outputStreams[i].closeEntry();
+                }
+                System.out.printf("Reduced %s%n", entry.getName());
+            }
+        } finally {
+            for (ZipOutputStream outputStream : outputStreams) {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            }
+            zipFile.close();
+        }
+    }
+
+    /**
+     * The number of water pixels of a tile in blocks of factor x factor pixels.
+     */
+    private static class WaterCounts {
+
+        private final int factor;
+        private final int sideLength;
+        private final int[] counts;
+
+        private WaterCounts(int factor, int sideLength) {
+            this.factor = factor;
+            this.sideLength = sideLength;
+            this.counts = new int[sideLength * sideLength];
+        }
+
+        /**
+         * Counts the water pixels of a 1-bit packed tile in blocks of 2 x 2 pixels; the side length of the tile is a
+         * multiple of 8.
+         */
+        static WaterCounts count(byte[] bits, int tileSideLength) {
+            final WaterCounts waterCounts = new WaterCounts(2, tileSideLength / 2);
+            final int bytesPerRow = tileSideLength / 8;
+            for (int y = 0; y < tileSideLength; y++) {
+                final int lineOffset = (y / 2) * waterCounts.sideLength;
+                for (int byteIndex = 0; byteIndex < bytesPerRow; byteIndex++) {
+                    final int value = bits[y * bytesPerRow + byteIndex] & 0xFF;
+                    if (value == 0) {
+                        continue;
+                    }
+                    for (int i = 0; i < 4; i++) {
+                        final int pairBits = value & (0xC0 >>> 2 * i);
+                        waterCounts.counts[lineOffset + byteIndex * 4 + i] += Integer.bitCount(pairBits);
+                    }
+                }
+            }
+            return waterCounts;
+        }
+
+        WaterCounts reduce() {
+            final WaterCounts reduced = new WaterCounts(factor * 2, (sideLength + 1) / 2);
+            for (int y = 0; y < sideLength; y++) {
+                for (int x = 0; x < sideLength; x++) {
+                    reduced.counts[(y / 2) * reduced.sideLength + x / 2] += counts[y * sideLength + x];
+                }
+            }
+            return reduced;
+        }
+
+        /**
+         * @return the percentage of water per block, rounded; the blocks at the right and lower border of the tile
+         * may be smaller than factor x factor pixels.
+         */
+        byte[] toFractions(int tileSideLength) {
+            final byte[] fractions = new byte[counts.length];
+            for (int y = 0; y < sideLength; y++) {
+                final int blockHeight = Math.min(factor, tileSideLength - y * factor);
+                for (int x = 0; x < sideLength; x++) {
+                    final int blockWidth = Math.min(factor, tileSideLength - x * factor);
+                    final int index = y * sideLength + x;
+                    fractions[index] = (byte) Math.round(100.0 * counts[index] / (blockWidth * blockHeight));
+                }
+            }
+            return fractions;
+        }
+    }
+}
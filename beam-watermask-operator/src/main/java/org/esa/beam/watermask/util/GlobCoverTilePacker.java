@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.Raster;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/* Converts the PNG tiles of a GlobCover zip file, as GC_water_mask.zip, into 1-bit packed tiles in the layout of
+   the SRTM img files (see WatermaskUtils.packBits), which PNGSourceImage reads without decoding. The tiles are
+   decoded and inverted the same way PNGSourceImage does, padded to the full tile size and written as entries named
+   like '12-3.raw' into the target zip file; other entries are copied. The target replaces GC_water_mask.zip in the
+   auxdata directory.
+
+   Usage: GlobCoverTilePacker <zip file> <target zip file> <tile width> <tile height>
+ */
+class GlobCoverTilePacker {
+
+    private GlobCoverTilePacker() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File sourceFile = new File(args[0]);
+        final File targetFile = new File(args[1]);
+        final int tileWidth = Integer.parseInt(args[2]);
+        final int tileHeight = Integer.parseInt(args[3]);
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        int count = 0;
+        try {
+            final ZipOutputStream outputStream = new ZipOutputStream(new FileOutputStream(targetFile));
+            try {
+                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(entry.getName());
+                    if (tileIndices == null || WatermaskUtils.isPackedGlobCoverFile(entry.getName())) {
+                        copyEntry(zipFile, entry, outputStream);
+                        continue;
+                    }
+                    final byte[] samples = decodeTile(zipFile, entry, tileWidth, tileHeight);
+                    final String name = WatermaskUtils.createGlobCoverFileName(tileIndices[0], tileIndices[1], true);
+                    outputStream.putNextEntry(new ZipEntry(name));
+                    outputStream.write(WatermaskUtils.packBits(samples, tileWidth, tileHeight));
+                    outputStream.closeEntry();
+                    count++;
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+        System.out.printf("Written %s with %d packed tiles%n", targetFile, count);
+    }
+
+    /**
+     * Reads a PNG or packed tile into one byte per pixel, inverted the same way PNGSourceImage does; pixels beyond
+     * a PNG are 0.
+     */
+    static byte[] readTile(ZipFile zipFile, ZipEntry entry, int tileWidth, int tileHeight) throws IOException {
+        if (!WatermaskUtils.isPackedGlobCoverFile(entry.getName())) {
+            return decodeTile(zipFile, entry, tileWidth, tileHeight);
+        }
+        final byte[] packed = new byte[(tileWidth + 7) / 8 * tileHeight];
+        final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(entry));
+        try {
+            inputStream.readFully(packed);
+        } finally {
+            inputStream.close();
+        }
+        final byte[] samples = new byte[tileWidth * tileHeight];
+        WatermaskUtils.unpackBits(packed, tileWidth, tileHeight, samples);
+        return samples;
+    }
+
+    private static byte[] decodeTile(ZipFile zipFile, ZipEntry entry, int tileWidth, int tileHeight)
+            throws IOException {
+        final byte[] samples = new byte[tileWidth * tileHeight];
+        final InputStream inputStream = zipFile.getInputStream(entry);
+        try {
+            final Raster imageData = ImageIO.read(inputStream).getData();
+            for (int y = 0; y < Math.min(imageData.getHeight(), tileHeight); y++) {
+                for (int x = 0; x < Math.min(imageData.getWidth(), tileWidth); x++) {
+                    final byte sample = (byte) imageData.getSample(x, y, 0);
+                    samples[y * tileWidth + x] = (byte) Math.abs(sample - 1);
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+        return samples;
+    }
+
+    private static void copyEntry(ZipFile zipFile, ZipEntry entry, ZipOutputStream outputStream) throws IOException {
+        outputStream.putNextEntry(new ZipEntry(entry.getName()));
+        final InputStream inputStream = zipFile.getInputStream(entry);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+        outputStream.closeEntry();
+    }
+}
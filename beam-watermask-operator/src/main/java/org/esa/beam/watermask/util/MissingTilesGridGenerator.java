@@ -0,0 +1,53 @@
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/* Converts MissingTiles.properties, as created by MissingTilesPropertyFileGenerator, into the binary grid
+   MissingTiles.grid read by the watermask operator: one byte per 1° tile, rows from 90° north to 90° south,
+   columns from 180° west to 180° east. Missing tiles hold their constant value, existing tiles -1.
+
+   Usage: MissingTilesGridGenerator <MissingTiles.properties> <MissingTiles.grid>
+ */
+class MissingTilesGridGenerator {
+
+    private MissingTilesGridGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final Properties properties = new Properties();
+        final InputStream inputStream = new FileInputStream(new File(args[0]));
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+
+        final byte[] grid = new byte[360 * 180];
+        Arrays.fill(grid, (byte) -1);
+        for (int x = -180; x < 180; x++) {
+            for (int y = 89; y >= -90; y--) {
+                final String tileFileName = WatermaskUtils.createImgFileName(y, x);
+                final String value = properties.getProperty(tileFileName.substring(0, tileFileName.indexOf('.')));
+                if (value != null) {
+                    grid[(89 - y) * 360 + x + 180] = Byte.parseByte(value);
+                }
+            }
+        }
+
+        final OutputStream outputStream = new FileOutputStream(new File(args[1]));
+        try {
+            outputStream.write(grid);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.WatermaskClassifier;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Classifies a stream of geo-positions, read from a file or from stdin ('-'), and writes the water mask sample or
+   water fraction of every position in input order, to a file or to stdout ('-'). The number of positions is not
+   limited by the memory: the positions are partitioned by cells of 10° into temporary files, the partitions are
+   classified in parallel in chunks, each chunk sorted by auxdata tile by WatermaskClassifier.getWaterMaskSamples,
+   and the results are merged back into input order. The throughput is reported on stderr at the end.
+
+   Text input holds one position per line as '<lat>,<lon>'; further columns are ignored, as are empty lines, lines
+   starting with '#' and a header line. Text output holds one value per line. Binary input holds big-endian float
+   pairs lat, lon; binary output one byte per position.
+
+   Values are 0 for land, 1 for water and 127 if invalid; fractions are in the range [0..100] or 127 if invalid,
+   computed for a pixel of the given size in degrees centered on the position.
+
+   Options:
+     -resolution <50|150|1000>  the resolution of the auxdata in metres, 50 by default
+     -fraction <degrees>        writes water fractions of pixels of the given size instead of samples
+     -superSampling <n>         the super-sampling of fractions in both directions, 3 by default
+     -binary                    reads and writes binary instead of text
+     -threads <n>               the number of partitions classified in parallel, the number of cores by default
+     -chunkSize <n>             the number of positions classified at once per thread, 1048576 by default
+     -tempDir <dir>             the directory of the temporary files, the system's temporary directory by default
+
+   Usage: PointClassifier [<option> ...] <input file> <output file>
+ */
+class PointClassifier {
+
+    private static final int PARTITION_DEGREES = 10;
+    private static final int NUM_PARTITIONS_X = 360 / PARTITION_DEGREES;
+    private static final int NUM_PARTITIONS_Y = 180 / PARTITION_DEGREES;
+    // positions which are not finite go into a partition of their own
+    private static final int INVALID_PARTITION = NUM_PARTITIONS_X * NUM_PARTITIONS_Y;
+    private static final int NUM_PARTITIONS = INVALID_PARTITION + 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WatermaskClassifier classifier;
+    private final double fractionPixelSize;
+    private final boolean binary;
+    private final int threadCount;
+    private final int chunkSize;
+    private final File tempDir;
+    private final long[] partitionSizes;
+
+    private PointClassifier(WatermaskClassifier classifier, double fractionPixelSize, boolean binary,
+                            int threadCount, int chunkSize, File tempDir) {
+        this.classifier = classifier;
+        this.fractionPixelSize = fractionPixelSize;
+        this.binary = binary;
+        this.threadCount = threadCount;
+        this.chunkSize = chunkSize;
+        this.tempDir = tempDir;
+        partitionSizes = new long[NUM_PARTITIONS];
+    }
+
+    public static void main(String[] args) throws Exception {
+        int resolution = 50;
+        double fractionPixelSize = 0.0;
+        int superSampling = 3;
+        boolean binary = false;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        int chunkSize = 1024 * 1024;
+        File tempParentDir = new File(System.getProperty("java.io.tmpdir"));
+        int argIndex = 0;
+        while (argIndex < args.length - 2) {
+            final String option = args[argIndex++];
+            if ("-binary".equals(option)) {
+                binary = true;
+                continue;
+            }
+            final String value = args[argIndex++];
+            if ("-resolution".equals(option)) {
+                resolution = Integer.parseInt(value);
+            } else if ("-fraction".equals(option)) {
+                fractionPixelSize = Double.parseDouble(value);
+            } else if ("-superSampling".equals(option)) {
+                superSampling = Integer.parseInt(value);
+            } else if ("-threads".equals(option)) {
+                threadCount = Integer.parseInt(value);
+            } else if ("-chunkSize".equals(option)) {
+                chunkSize = Integer.parseInt(value);
+            } else if ("-tempDir".equals(option)) {
+                tempParentDir = new File(value);
+            } else {
+                throw new IllegalArgumentException(MessageFormat.format("Unknown option ''{0}''.", option));
+            }
+        }
+        if (argIndex != args.length - 2) {
+            throw new IllegalArgumentException(
+                    "Usage: PointClassifier [<option> ...] <input file> <output file>");
+        }
+        final String inputName = args[argIndex];
+        final String outputName = args[argIndex + 1];
+
+        final WatermaskClassifier classifier = new WatermaskClassifier(resolution, superSampling, superSampling);
+        final File tempDir = Files.createTempDirectory(tempParentDir.toPath(), "watermask-points").toFile();
+        final long startTime = System.nanoTime();
+        final long count;
+        try {
+            final PointClassifier pointClassifier = new PointClassifier(classifier, fractionPixelSize, binary,
+                                                                        Math.max(threadCount, 1),
+                                                                        Math.max(chunkSize, 1), tempDir);
+            final InputStream inputStream = "-".equals(inputName) ? System.in : new FileInputStream(inputName);
+            try {
+                count = pointClassifier.partition(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            pointClassifier.classifyPartitions();
+            final OutputStream outputStream = "-".equals(outputName) ? System.out : new FileOutputStream(outputName);
+            try {
+                pointClassifier.merge(outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            deleteDir(tempDir);
+            classifier.dispose();
+        }
+        final double seconds = (System.nanoTime() - startTime) / 1.0e9;
+        System.err.printf("Classified %d positions in %.1f s, %.0f positions per second%n",
+                          count, seconds, seconds > 0.0 ? count / seconds : 0.0);
+    }
+
+    /**
+     * Writes the positions into one file per partition, and the partition of every position, in input order, into
+     * the sequence file.
+     *
+     * @return the number of positions.
+     */
+    private long partition(InputStream inputStream) throws IOException {
+        final PositionReader reader = binary ? new BinaryPositionReader(inputStream)
+                                             : new TextPositionReader(inputStream);
+        final DataOutputStream[] partitionStreams = new DataOutputStream[NUM_PARTITIONS];
+        final DataOutputStream sequenceStream = createOutputStream(getSequenceFile());
+        final float[] position = new float[2];
+        long count = 0;
+        try {
+            while (reader.read(position)) {
+                final int partition = getPartition(position[0], position[1]);
+                if (partitionStreams[partition] == null) {
+                    partitionStreams[partition] = createOutputStream(getPositionFile(partition));
+                }
+                partitionStreams[partition].writeFloat(position[0]);
+                partitionStreams[partition].writeFloat(position[1]);
+                partitionSizes[partition]++;
+                sequenceStream.writeShort(partition);
+                count++;
+            }
+        } finally {
+            sequenceStream.close();
+            for (DataOutputStream partitionStream : partitionStreams) {
+                if (partitionStream != null) {
+                    partitionStream.close();
+                }
+            }
+        }
+        return count;
+    }
+
+    private void classifyPartitions() throws IOException, InterruptedException {
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+            if (partitionSizes[partition] > 0) {
+                final int taskPartition = partition;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        classifyPartition(taskPartition);
+                        return null;
+                    }
+                });
+            }
+        }
+        // the bulk classification runs on a pool of its own; the threads here mostly overlap it with the file I/O
+        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+        try {
+            for (Future<Void> future : executorService.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    private void classifyPartition(int partition) throws IOException {
+        final File positionFile = getPositionFile(partition);
+        final int maxChunkSize = (int) Math.min(chunkSize, partitionSizes[partition]);
+        final float[] lats = new float[maxChunkSize];
+        final float[] lons = new float[maxChunkSize];
+        final byte[] values = new byte[maxChunkSize];
+        final DataInputStream inputStream = createInputStream(positionFile);
+        try {
+            final OutputStream outputStream = createOutputStream(getResultFile(partition));
+            try {
+                long remaining = partitionSizes[partition];
+                while (remaining > 0) {
+                    final int count = (int) Math.min(maxChunkSize, remaining);
+                    for (int i = 0; i < count; i++) {
+                        lats[i] = inputStream.readFloat();
+                        lons[i] = inputStream.readFloat();
+                    }
+                    // the bulk classification takes all positions of the arrays, the last chunk may be shorter
+                    classify(count < maxChunkSize ? Arrays.copyOf(lats, count) : lats,
+                             count < maxChunkSize ? Arrays.copyOf(lons, count) : lons, values);
+                    outputStream.write(values, 0, count);
+                    remaining -= count;
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+        if (!positionFile.delete()) {
+            positionFile.deleteOnExit();
+        }
+    }
+
+    private void classify(float[] lats, float[] lons, byte[] values) {
+        if (fractionPixelSize <= 0.0) {
+            classifier.getWaterMaskSamples(lats, lons, values);
+            return;
+        }
+        final AffineTransform pixelToGeo = new AffineTransform();
+        final Rectangle pixel = new Rectangle(0, 0, 1, 1);
+        final byte[] fraction = new byte[1];
+        final double halfPixelSize = 0.5 * fractionPixelSize;
+        for (int i = 0; i < lats.length; i++) {
+            if (Float.isNaN(lats[i]) || Float.isNaN(lons[i])) {
+                values[i] = WatermaskClassifier.INVALID_VALUE;
+                continue;
+            }
+            pixelToGeo.setTransform(fractionPixelSize, 0.0, 0.0, -fractionPixelSize,
+                                    lons[i] - halfPixelSize, lats[i] + halfPixelSize);
+            classifier.getWaterMaskFractions(pixelToGeo, pixel, fraction);
+            values[i] = fraction[0];
+        }
+    }
+
+    /**
+     * Writes the results of the partitions in input order, as given by the sequence file.
+     */
+    private void merge(OutputStream outputStream) throws IOException {
+        final InputStream[] resultStreams = new InputStream[NUM_PARTITIONS];
+        final DataInputStream sequenceStream = createInputStream(getSequenceFile());
+        final OutputStream bufferedStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        final Writer writer = binary ? null : new BufferedWriter(new OutputStreamWriter(bufferedStream, "US-ASCII"));
+        try {
+            for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+                if (partitionSizes[partition] > 0) {
+                    resultStreams[partition] = createInputStream(getResultFile(partition));
+                }
+            }
+            while (true) {
+                final int partition;
+                try {
+                    partition = sequenceStream.readShort();
+                } catch (EOFException e) {
+                    break;
+                }
+                final InputStream resultStream = partition >= 0 && partition < NUM_PARTITIONS
+                                                 ? resultStreams[partition] : null;
+                final int value = resultStream != null ? resultStream.read() : -1;
+                if (value < 0) {
+                    throw new IOException(MessageFormat.format("The results of partition {0} end early.", partition));
+                }
+                if (writer != null) {
+                    writer.write(Integer.toString(value));
+                    writer.write('\n');
+                } else {
+                    bufferedStream.write(value);
+                }
+            }
+            for (int partition = 0; partition < NUM_PARTITIONS; partition++) {
+                if (resultStreams[partition] != null && resultStreams[partition].read() >= 0) {
+                    throw new IOException(MessageFormat.format(
+                            "The results of partition {0} outnumber its positions.", partition));
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.flush();
+            }
+            bufferedStream.flush();
+            sequenceStream.close();
+            for (InputStream resultStream : resultStreams) {
+                if (resultStream != null) {
+                    resultStream.close();
+                }
+            }
+        }
+    }
+
+    private static int getPartition(float lat, float lon) {
+        if (Float.isNaN(lat) || Float.isNaN(lon) || Float.isInfinite(lat) || Float.isInfinite(lon)) {
+            return INVALID_PARTITION;
+        }
+        final int partitionX = (int) Math.floor((lon + 180.0) / PARTITION_DEGREES);
+        final int partitionY = (int) Math.floor((90.0 - lat) / PARTITION_DEGREES);
+        return Math.max(0, Math.min(partitionY, NUM_PARTITIONS_Y - 1)) * NUM_PARTITIONS_X
+               + Math.max(0, Math.min(partitionX, NUM_PARTITIONS_X - 1));
+    }
+
+    private File getSequenceFile() {
+        return new File(tempDir, "sequence");
+    }
+
+    private File getPositionFile(int partition) {
+        return new File(tempDir, "positions-" + partition);
+    }
+
+    private File getResultFile(int partition) {
+        return new File(tempDir, "results-" + partition);
+    }
+
+    private static DataOutputStream createOutputStream(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    private static DataInputStream createInputStream(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+    }
+
+    private static void deleteDir(File dir) {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    file.deleteOnExit();
+                }
+            }
+        }
+        if (!dir.delete()) {
+            dir.deleteOnExit();
+        }
+    }
+
+    private interface PositionReader {
+
+        /**
+         * Reads the next position into {@code position} as lat, lon.
+         *
+         * @return {@code false} at the end of the input.
+         */
+        boolean read(float[] position) throws IOException;
+    }
+
+    private static class BinaryPositionReader implements PositionReader {
+
+        private final DataInputStream inputStream;
+        private final byte[] record;
+        private final ByteBuffer recordBuffer;
+        private long positionCount;
+
+        BinaryPositionReader(InputStream inputStream) {
+            this.inputStream = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+            record = new byte[8];
+            recordBuffer = ByteBuffer.wrap(record);
+        }
+
+        @Override
+        public boolean read(float[] position) throws IOException {
+            final int firstByte = inputStream.read();
+            if (firstByte < 0) {
+                return false;
+            }
+            record[0] = (byte) firstByte;
+            try {
+                inputStream.readFully(record, 1, record.length - 1);
+            } catch (EOFException e) {
+                throw new IOException(MessageFormat.format("The input ends within position {0}.", positionCount), e);
+            }
+            position[0] = recordBuffer.getFloat(0);
+            position[1] = recordBuffer.getFloat(4);
+            positionCount++;
+            return true;
+        }
+    }
+
+    private static class TextPositionReader implements PositionReader {
+
+        private final BufferedReader reader;
+        private long lineNumber;
+        private boolean headerAllowed;
+
+        TextPositionReader(InputStream inputStream) throws IOException {
+            reader = new BufferedReader(new InputStreamReader(inputStream, "US-ASCII"), BUFFER_SIZE);
+            headerAllowed = true;
+        }
+
+        @Override
+        public boolean read(float[] position) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final int separator = line.indexOf(',');
+                final int nextSeparator = separator < 0 ? -1 : line.indexOf(',', separator + 1);
+                try {
+                    if (separator < 0) {
+                        throw new NumberFormatException();
+                    }
+                    position[0] = Float.parseFloat(line.substring(0, separator).trim());
+                    final int end = nextSeparator < 0 ? line.length() : nextSeparator;
+                    position[1] = Float.parseFloat(line.substring(separator + 1, end).trim());
+                    headerAllowed = false;
+                    return true;
+                } catch (NumberFormatException e) {
+                    if (!headerAllowed) {
+                        throw new IOException(MessageFormat.format("Invalid position in line {0}: ''{1}''.",
+                                                                   lineNumber, line));
+                    }
+                    // the header line, which is only allowed before the first position
+                    headerAllowed = false;
+                }
+            }
+            return false;
+        }
+    }
+}
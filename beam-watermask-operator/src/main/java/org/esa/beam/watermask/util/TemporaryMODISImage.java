@@ -35,7 +35,7 @@ class TemporaryMODISImage extends SourcelessOpImage {
         } else {
             strategy = new SouthStrategy();
         }
-        setTileCache(JAI.createTileCache(50L * 1024 * 1024));
+        setTileCache(AuxdataTileCache.getInstance());
     }
 
     @Override
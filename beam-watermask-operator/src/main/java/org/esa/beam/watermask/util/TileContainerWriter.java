@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.TileCodec;
+import org.esa.beam.watermask.operator.TileContainer;
+import org.esa.beam.watermask.operator.WatermaskUtils;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/* Converts the zip file of an auxdata image into a tile container (see TileContainer), which is written next to
+   the zip file and then used by the watermask operator instead of it.
+   Zip files of SRTM tiles (*.img, as 50m.zip, 150m.zip or the levels of the fraction pyramid) are copied as they
+   are. GlobCover tiles (*.png, as GC_water_mask.zip) are decoded and inverted the same way PNGSourceImage does,
+   packed GlobCover tiles (*.raw) are unpacked; both are stored with one byte per pixel, and for both the tile size
+   needs to be given.
+   The tiles are encoded by the given codec (see TileCodec: raw, deflate, lz4 or rle), raw by default. The sizes of
+   the tiles before and after encoding are reported, so that the codecs can be compared.
+
+   Usage: TileContainerWriter <zip file> [<tile width> <tile height>] [<codec>]
+ */
+class TileContainerWriter {
+
+    private static final int SRTM_TILES_X = 360;
+    private static final int SRTM_TILES_Y = 180;
+
+    private TileContainerWriter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File sourceFile = new File(args[0]);
+        final File containerFile = TileContainer.getContainerFile(sourceFile);
+        final boolean hasTileSize = args.length > 2;
+        final boolean hasCodec = args.length == 2 || args.length == 4;
+        final TileCodec codec = TileCodec.forName(hasCodec ? args[args.length - 1] : TileCodec.RAW);
+        final ZipFile zipFile = new ZipFile(sourceFile);
+        final long[] sizes;
+        try {
+            if (hasTileSize) {
+                sizes = writePngTiles(zipFile, containerFile, Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                                      codec);
+            } else {
+                sizes = writeImgTiles(zipFile, containerFile, codec);
+            }
+        } finally {
+            zipFile.close();
+        }
+        System.out.printf("Written %s with codec %s: %d bytes of tiles encoded to %d bytes (%.1f %%), file size %d%n",
+                          containerFile, codec.getName(), sizes[0], sizes[1], 100.0 * sizes[1] / sizes[0],
+                          containerFile.length());
+    }
+
+    private static long[] writeImgTiles(ZipFile zipFile, File containerFile, TileCodec codec) throws IOException {
+        final long[] sizes = new long[2];
+        final TileContainer.Writer writer = new TileContainer.Writer(containerFile, SRTM_TILES_X, SRTM_TILES_Y,
+                                                                     codec);
+        try {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final int[] tileIndices = WatermaskUtils.getImgTileIndices(entry.getName());
+                if (tileIndices == null) {
+                    continue;
+                }
+                final byte[] data = new byte[(int) entry.getSize()];
+                final DataInputStream inputStream = new DataInputStream(zipFile.getInputStream(entry));
+                try {
+                    inputStream.readFully(data);
+                } finally {
+                    inputStream.close();
+                }
+                sizes[0] += data.length;
+                sizes[1] += writer.writeTile(tileIndices[0], tileIndices[1], data);
+                System.out.printf("Written %s%n", entry.getName());
+            }
+        } finally {
+            writer.close();
+        }
+        return sizes;
+    }
+
+    private static long[] writePngTiles(ZipFile zipFile, File containerFile, int tileWidth, int tileHeight,
+                                        TileCodec codec) throws IOException {
+        final long[] sizes = new long[2];
+        int numTilesX = 0;
+        int numTilesY = 0;
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(entries.nextElement().getName());
+            if (tileIndices != null) {
+                numTilesX = Math.max(numTilesX, tileIndices[0] + 1);
+                numTilesY = Math.max(numTilesY, tileIndices[1] + 1);
+            }
+        }
+
+        final TileContainer.Writer writer = new TileContainer.Writer(containerFile, numTilesX, numTilesY, codec);
+        try {
+            entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final int[] tileIndices = WatermaskUtils.getGlobCoverTileIndices(entry.getName());
+                if (tileIndices == null) {
+                    continue;
+                }
+                final byte[] data = GlobCoverTilePacker.readTile(zipFile, entry, tileWidth, tileHeight);
+                sizes[0] += data.length;
+                sizes[1] += writer.writeTile(tileIndices[0], tileIndices[1], data);
+                System.out.printf("Written %s%n", entry.getName());
+            }
+        } finally {
+            writer.close();
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AuxdataFootprintTest {
+
+    @Test
+    public void testCellsOfProduct() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 0.0F);
+
+        final AuxdataFootprint footprint = AuxdataFootprint.compute(geoCoding, 300, 250, 32);
+
+        assertEquals(9, footprint.getCellCount());
+        assertEquals(80, footprint.getLatIndex(0));
+        assertEquals(200, footprint.getLonIndex(0));
+        final Set<Integer> cells = getCells(footprint);
+        for (int latIndex = 80; latIndex <= 82; latIndex++) {
+            for (int lonIndex = 200; lonIndex <= 202; lonIndex++) {
+                assertTrue(cells.contains(latIndex * 360 + lonIndex));
+            }
+        }
+        assertTrue(geoCoding.callCount < 300 * 250 / 100);
+    }
+
+    @Test
+    public void testCellsAcrossAntiMeridian() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 179.5F, 0.01F, 0.0F);
+
+        final AuxdataFootprint footprint = AuxdataFootprint.compute(geoCoding, 100, 10, 32);
+
+        assertEquals(2, footprint.getCellCount());
+        final Set<Integer> cells = getCells(footprint);
+        assertTrue(cells.contains(80 * 360 + 359));
+        assertTrue(cells.contains(80 * 360));
+    }
+
+    @Test
+    public void testInvalidGeoPositionsAreLeftOut() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 0.0F);
+        geoCoding.invalidBelowX = 1000;
+
+        assertEquals(0, AuxdataFootprint.compute(geoCoding, 300, 250, 32).getCellCount());
+    }
+
+    private static Set<Integer> getCells(AuxdataFootprint footprint) {
+        final Set<Integer> cells = new HashSet<Integer>();
+        for (int i = 0; i < footprint.getCellCount(); i++) {
+            cells.add(footprint.getLatIndex(i) * 360 + footprint.getLonIndex(i));
+        }
+        return cells;
+    }
+}
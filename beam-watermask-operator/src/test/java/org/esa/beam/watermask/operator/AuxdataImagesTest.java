@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class AuxdataImagesTest {
+
+    @Test
+    public void testImagesAreSharedAndReferenceCounted() throws Exception {
+        final AuxdataImages first = AuxdataImages.acquire(1000);
+        final AuxdataImages second = AuxdataImages.acquire(1000);
+        assertSame(first, second);
+        assertEquals(2, first.getReferenceCount());
+
+        second.release();
+        assertEquals(1, first.getReferenceCount());
+        first.release();
+        assertEquals(0, first.getReferenceCount());
+
+        final AuxdataImages third = AuxdataImages.acquire(1000);
+        try {
+            assertNotSame(first, third);
+            assertEquals(1, third.getReferenceCount());
+        } finally {
+            third.release();
+        }
+    }
+
+    @Test
+    public void testConcurrentlyAcquiredImagesAreCreatedOnce() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<AuxdataImages>> futures = new ArrayList<Future<AuxdataImages>>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<AuxdataImages>() {
+                    @Override
+                    public AuxdataImages call() throws Exception {
+                        return AuxdataImages.acquire(1000);
+                    }
+                }));
+            }
+            final AuxdataImages first = futures.get(0).get();
+            assertNotNull(first.getImageSource());
+            for (Future<AuxdataImages> future : futures) {
+                assertSame(first, future.get());
+            }
+            assertEquals(8, first.getReferenceCount());
+        } finally {
+            executor.shutdown();
+            for (Future<AuxdataImages> future : futures) {
+                future.get().release();
+            }
+        }
+    }
+
+    @Test
+    public void testClassifiersShareImages() throws Exception {
+        final WatermaskClassifier classifier1 = new WatermaskClassifier(1000, 1, 1);
+        final WatermaskClassifier classifier2 = new WatermaskClassifier(1000, 3, 3);
+        final AuxdataImages auxdataImages = AuxdataImages.acquire(1000);
+        try {
+            assertEquals(3, auxdataImages.getReferenceCount());
+            classifier1.dispose();
+            classifier1.dispose();
+            assertEquals(2, auxdataImages.getReferenceCount());
+        } finally {
+            classifier2.dispose();
+            auxdataImages.release();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class AuxdataPackTest {
+
+    private File packDir;
+
+    @Before
+    public void setUp() throws Exception {
+        packDir = File.createTempFile("watermask", "pack");
+        packDir.delete();
+        packDir.mkdir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        new File(packDir, AuxdataPack.MANIFEST_FILE_NAME).delete();
+        packDir.delete();
+    }
+
+    @Test
+    public void testWriteAndLoadManifest() throws Exception {
+        final BitSet cells = new BitSet();
+        cells.set(80 * 360 + 200, 80 * 360 + 203);
+        cells.set(81 * 360 + 201);
+        cells.set(81 * 360 + 359);
+        cells.set(82 * 360);
+        AuxdataPack.writeManifest(packDir, cells, "bbox:20,8,23,10");
+
+        final AuxdataPack pack = AuxdataPack.load(packDir);
+
+        assertEquals(packDir.getAbsoluteFile(), pack.getDir());
+        assertTrue(pack.containsCell(200, 80));
+        assertTrue(pack.containsCell(202, 80));
+        assertFalse(pack.containsCell(203, 80));
+        assertFalse(pack.containsCell(200, 81));
+        assertTrue(pack.containsCell(201, 81));
+        assertTrue(pack.containsCell(359, 81));
+        assertTrue(pack.containsCell(0, 82));
+        assertFalse(pack.containsCell(1, 82));
+        assertFalse(pack.containsCell(-1, 80));
+        assertFalse(pack.containsCell(200, 180));
+    }
+
+    @Test
+    public void testEmptyPack() throws Exception {
+        AuxdataPack.writeManifest(packDir, new BitSet(), "");
+
+        final AuxdataPack pack = AuxdataPack.load(packDir);
+
+        assertFalse(pack.containsCell(0, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testVersionMismatch() throws Exception {
+        final Properties manifest = new Properties();
+        manifest.setProperty("version", "v0.0");
+        manifest.setProperty("cells", "80:200");
+        writeManifest(manifest);
+
+        AuxdataPack.load(packDir);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidCells() throws Exception {
+        final Properties manifest = new Properties();
+        manifest.setProperty("version", WatermaskClassifier.AUXDATA_VERSION);
+        manifest.setProperty("cells", "80:202-200");
+        writeManifest(manifest);
+
+        AuxdataPack.load(packDir);
+    }
+
+    private void writeManifest(Properties manifest) throws IOException {
+        final OutputStream outputStream = new FileOutputStream(new File(packDir, AuxdataPack.MANIFEST_FILE_NAME));
+        try {
+            manifest.store(outputStream, null);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import javax.media.jai.OpImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AuxdataPrefetcherTest {
+
+    @Test
+    public void testTilesAreLoadedAndImagesReleased() throws Exception {
+        final AuxdataImages auxdataImages = AuxdataImages.acquire(1000);
+        try {
+            final OpImage image = auxdataImages.getImageSource().getImage(0.0F);
+            final List<AuxdataPrefetcher.TileRequest> tiles = new ArrayList<AuxdataPrefetcher.TileRequest>();
+            tiles.add(new AuxdataPrefetcher.TileRequest(image, 0, 0));
+            tiles.add(new AuxdataPrefetcher.TileRequest(image, 0, 0));
+
+            final AuxdataPrefetcher prefetcher = AuxdataPrefetcher.start(auxdataImages, tiles);
+
+            assertTrue(prefetcher.awaitCompletion(10, TimeUnit.SECONDS));
+            assertEquals(2, prefetcher.getLoadedCount());
+            assertEquals(1, auxdataImages.getReferenceCount());
+        } finally {
+            auxdataImages.release();
+        }
+    }
+
+    @Test
+    public void testNothingToLoad() throws Exception {
+        final AuxdataImages auxdataImages = AuxdataImages.acquire(1000);
+        try {
+            final List<AuxdataPrefetcher.TileRequest> tiles = Collections.emptyList();
+            final AuxdataPrefetcher prefetcher = AuxdataPrefetcher.start(auxdataImages, tiles);
+
+            assertTrue(prefetcher.awaitCompletion(0, TimeUnit.SECONDS));
+            assertEquals(1, auxdataImages.getReferenceCount());
+        } finally {
+            auxdataImages.release();
+        }
+    }
+}
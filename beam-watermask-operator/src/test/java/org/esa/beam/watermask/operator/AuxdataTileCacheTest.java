@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+
+import static org.junit.Assert.*;
+
+public class AuxdataTileCacheTest {
+
+    private static final int TILE_SIZE = 100;
+
+    private final RenderedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+    private final RenderedImage otherImage = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+
+    @Test
+    public void testStatistics() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(2 * TILE_SIZE, "LRU");
+        assertNull(cache.getTile(image, 0, 0));
+        cache.add(image, 0, 0, createTile());
+        assertNotNull(cache.getTile(image, 0, 0));
+        cache.add(image, 1, 0, createTile());
+        cache.add(image, 2, 0, createTile());
+
+        final AuxdataTileCache.Statistics statistics = cache.getStatistics();
+        assertEquals("LRU", statistics.getPolicy());
+        assertEquals(1, statistics.getHitCount());
+        assertEquals(1, statistics.getMissCount());
+        assertEquals(1, statistics.getEvictionCount());
+        assertEquals(2, statistics.getTileCount());
+        assertEquals(2 * TILE_SIZE, statistics.getMemoryUsage());
+        assertEquals(0.5, statistics.getHitRatio(), 1.0e-6);
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getStatistics().getHitCount());
+        assertEquals(2, cache.getStatistics().getTileCount());
+    }
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(3 * TILE_SIZE, "LRU");
+        cache.add(image, 0, 0, createTile());
+        cache.add(image, 1, 0, createTile());
+        cache.add(image, 2, 0, createTile());
+        cache.getTile(image, 0, 0);
+        cache.add(image, 3, 0, createTile());
+
+        assertNotNull(cache.getTile(image, 0, 0));
+        assertNull(cache.getTile(image, 1, 0));
+        assertNotNull(cache.getTile(image, 2, 0));
+        assertNotNull(cache.getTile(image, 3, 0));
+    }
+
+    @Test
+    public void testSegmentedLruKeepsReusedTilesDuringScan() throws Exception {
+        assertReusedTilesSurviveScan(new AuxdataTileCache(5 * TILE_SIZE, "SLRU"));
+    }
+
+    @Test
+    public void testArcKeepsReusedTilesDuringScan() throws Exception {
+        assertReusedTilesSurviveScan(new AuxdataTileCache(5 * TILE_SIZE, "ARC"));
+    }
+
+    @Test
+    public void testLruLosesReusedTilesDuringScan() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(5 * TILE_SIZE, "LRU");
+        addReusedTilesAndScan(cache);
+        assertNull(cache.getTile(image, 0, 0));
+    }
+
+    @Test
+    public void testSetMemoryCapacityEvicts() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(3 * TILE_SIZE, "SLRU");
+        cache.add(image, 0, 0, createTile());
+        cache.add(image, 1, 0, createTile());
+        cache.add(image, 2, 0, createTile());
+        cache.setMemoryCapacity(TILE_SIZE);
+        assertEquals(1, cache.getStatistics().getTileCount());
+        assertEquals(2, cache.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testRaiseMemoryCapacityNeverLowers() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(3 * TILE_SIZE, "LRU");
+        cache.add(image, 0, 0, createTile());
+        cache.add(image, 1, 0, createTile());
+        assertEquals(3 * TILE_SIZE, cache.raiseMemoryCapacity(TILE_SIZE));
+        assertEquals(2, cache.getStatistics().getTileCount());
+        assertEquals(4 * TILE_SIZE, cache.raiseMemoryCapacity(4 * TILE_SIZE));
+        assertEquals(4 * TILE_SIZE, cache.getMemoryCapacity());
+    }
+
+    @Test
+    public void testRemoveTiles() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(4 * TILE_SIZE, "ARC");
+        cache.add(image, 0, 0, createTile());
+        cache.add(image, 1, 0, createTile());
+        cache.add(otherImage, 0, 0, createTile());
+
+        cache.removeTiles(image);
+
+        assertNull(cache.getTiles(image));
+        assertEquals(1, cache.getTiles(otherImage).length);
+        assertEquals(TILE_SIZE, cache.getStatistics().getMemoryUsage());
+    }
+
+    @Test
+    public void testChangePolicyKeepsTiles() throws Exception {
+        final AuxdataTileCache cache = new AuxdataTileCache(2 * TILE_SIZE, "LRU");
+        cache.add(image, 0, 0, createTile());
+        cache.add(image, 1, 0, createTile());
+        cache.setPolicy("arc");
+
+        assertEquals("ARC", cache.getPolicy());
+        assertNotNull(cache.getTile(image, 0, 0));
+        assertNotNull(cache.getTile(image, 1, 0));
+        cache.add(image, 2, 0, createTile());
+        assertEquals(2, cache.getStatistics().getTileCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPolicy() throws Exception {
+        new AuxdataTileCache(TILE_SIZE, "FIFO");
+    }
+
+    private void assertReusedTilesSurviveScan(AuxdataTileCache cache) {
+        addReusedTilesAndScan(cache);
+        assertNotNull(cache.getTile(image, 0, 0));
+        assertNotNull(cache.getTile(image, 1, 0));
+    }
+
+    /**
+     * Adds two tiles which are requested repeatedly, followed by a scan over many tiles requested once.
+     */
+    private void addReusedTilesAndScan(AuxdataTileCache cache) {
+        for (int tileX = 0; tileX < 2; tileX++) {
+            cache.add(image, tileX, 0, createTile());
+            cache.getTile(image, tileX, 0);
+        }
+        for (int tileX = 10; tileX < 30; tileX++) {
+            if (cache.getTile(image, tileX, 0) == null) {
+                cache.add(image, tileX, 0, createTile());
+            }
+        }
+    }
+
+    private static Raster createTile() {
+        return Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, 10, 10, 1, null);
+    }
+}
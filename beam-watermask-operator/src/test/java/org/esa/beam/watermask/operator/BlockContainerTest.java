@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BlockContainerTest {
+
+    private static final int SIDE_LENGTH = 40;
+    private static final int BLOCK_SIZE = 16;
+
+    private File zipFile;
+    private File containerFile;
+
+    @Before
+    public void setUp() throws Exception {
+        zipFile = File.createTempFile("watermask", ".zip");
+        containerFile = BlockContainer.getContainerFile(zipFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zipFile.delete();
+        containerFile.delete();
+    }
+
+    @Test
+    public void testExtractBlock() throws Exception {
+        final byte[] tile = createTile(3);
+        // the last block of a row holds the last 8 of 40 pixels in its first byte, followed by padding
+        final byte[] block = BlockContainer.extractBlock(tile, SIDE_LENGTH, BLOCK_SIZE, 2, 0);
+        assertEquals(2 * BLOCK_SIZE, block.length);
+        assertEquals(tile[4], block[0]);
+        assertEquals(0, block[1]);
+        assertEquals(tile[5 + 4], block[2]);
+        // the last block row holds the last 8 rows
+        final byte[] lastBlock = BlockContainer.extractBlock(tile, SIDE_LENGTH, BLOCK_SIZE, 0, 2);
+        assertEquals(tile[32 * 5], lastBlock[0]);
+        assertEquals(tile[39 * 5 + 1], lastBlock[7 * 2 + 1]);
+        assertEquals(0, lastBlock[8 * 2]);
+    }
+
+    @Test
+    public void testWriteAndReadBlocks() throws Exception {
+        for (String codecName : new String[]{TileCodec.RAW, TileCodec.RLE}) {
+            final BlockContainer.Writer writer = new BlockContainer.Writer(containerFile, 3, 2, SIDE_LENGTH,
+                                                                           BLOCK_SIZE, TileCodec.forName(codecName));
+            writer.writeTile(2, 1, createTile(7));
+            writer.writeTile(0, 0, createTile(3));
+            writer.close();
+
+            final BlockContainer container = BlockContainer.openIfExists(zipFile);
+            try {
+                assertEquals(3, container.getBlocksPerSide());
+                assertTrue(container.hasTile(2, 1));
+                assertFalse(container.hasTile(1, 0));
+                final byte[] block = new byte[container.getBlockLength()];
+                for (int blockY = 0; blockY < 3; blockY++) {
+                    for (int blockX = 0; blockX < 3; blockX++) {
+                        container.readBlock(2, 1, blockX, blockY, block);
+                        assertArrayEquals(BlockContainer.extractBlock(createTile(7), SIDE_LENGTH, BLOCK_SIZE,
+                                                                      blockX, blockY), block);
+                    }
+                }
+                container.readBlock(0, 0, 1, 1, block);
+                assertArrayEquals(BlockContainer.extractBlock(createTile(3), SIDE_LENGTH, BLOCK_SIZE, 1, 1), block);
+            } finally {
+                container.close();
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadMissingTile() throws Exception {
+        final BlockContainer.Writer writer = new BlockContainer.Writer(containerFile, 2, 1, SIDE_LENGTH, BLOCK_SIZE,
+                                                                       TileCodec.forName(TileCodec.RLE));
+        writer.writeTile(0, 0, createTile(1));
+        writer.close();
+
+        final BlockContainer container = BlockContainer.openIfExists(zipFile);
+        try {
+            container.readBlock(1, 0, 0, 0, new byte[container.getBlockLength()]);
+        } finally {
+            container.close();
+        }
+    }
+
+    private static byte[] createTile(int seed) {
+        final byte[] data = new byte[SIDE_LENGTH / 8 * SIDE_LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * seed + 1);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.esa.beam.watermask.operator.WatermaskClassifier.*;
+import static org.junit.Assert.*;
+
+public class BlockSummaryIndexTest {
+
+    private static final int SIDE_LENGTH = 64;
+    private static final int[] BLOCK_SIZES = {32, 16, 8};
+
+    private File zipFile;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        zipFile = File.createTempFile("watermask", ".zip");
+        indexFile = BlockSummaryIndex.getIndexFile(zipFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zipFile.delete();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testComputeTileSummary() throws Exception {
+        final byte[] summary = BlockSummaryIndex.computeTileSummary(createTile(), SIDE_LENGTH, BLOCK_SIZES);
+        // 4 blocks of 32, 16 blocks of 16 and 64 blocks of 8 pixels, 2 bits each
+        assertEquals(1 + 4 + 16, summary.length);
+        // land, water, land, mixed
+        assertEquals((byte) 0x13, summary[0]);
+        // the last row of blocks of 16 pixels: land, land, mixed, water
+        assertEquals((byte) 0x0D, summary[1 + 3]);
+    }
+
+    @Test
+    public void testGetValue() throws Exception {
+        final BlockSummaryIndex.Writer writer = new BlockSummaryIndex.Writer(indexFile, 3, 2, SIDE_LENGTH,
+                                                                             BLOCK_SIZES);
+        writer.writeTile(1, 0, createTile());
+        writer.close();
+
+        final BlockSummaryIndex index = BlockSummaryIndex.openIfExists(zipFile);
+        assertEquals(SIDE_LENGTH, index.getTileSideLength());
+        assertEquals(LAND_VALUE, index.getValue(1, 0, 0, 0, 31, 63));
+        assertEquals(WATER_VALUE, index.getValue(1, 0, 32, 0, 63, 47));
+        // resolved by the finer levels within the mixed blocks
+        assertEquals(WATER_VALUE, index.getValue(1, 0, 48, 48, 63, 63));
+        assertEquals(WATER_VALUE, index.getValue(1, 0, 32, 48, 39, 63));
+        assertEquals(WATER_VALUE, index.getValue(1, 0, 40, 56, 47, 63));
+        assertEquals(BlockSummaryIndex.MIXED, index.getValue(1, 0, 40, 48, 47, 55));
+        assertEquals(BlockSummaryIndex.MIXED, index.getValue(1, 0, 0, 0, 63, 63));
+        // tiles which are not stored are not known to be homogeneous
+        assertEquals(BlockSummaryIndex.MIXED, index.getValue(0, 0, 0, 0, 7, 7));
+        assertEquals(BlockSummaryIndex.MIXED, index.getValue(3, 0, 0, 0, 7, 7));
+    }
+
+    @Test
+    public void testClippedBlocks() throws Exception {
+        final byte[] tile = new byte[40 / 8 * 40];
+        Arrays.fill(tile, (byte) 0xFF);
+        final BlockSummaryIndex.Writer writer = new BlockSummaryIndex.Writer(indexFile, 1, 1, 40,
+                                                                             new int[]{16, 8});
+        writer.writeTile(0, 0, tile);
+        writer.close();
+
+        final BlockSummaryIndex index = BlockSummaryIndex.openIfExists(zipFile);
+        assertEquals(WATER_VALUE, index.getValue(0, 0, 0, 0, 39, 39));
+        assertEquals(WATER_VALUE, index.getValue(0, 0, 32, 32, 50, 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAscendingBlockSizes() throws Exception {
+        new BlockSummaryIndex.Writer(indexFile, 1, 1, SIDE_LENGTH, new int[]{8, 16});
+    }
+
+    /**
+     * @return a tile whose left half is land, whose right half is water, except for a single land pixel at (40, 50).
+     */
+    private static byte[] createTile() {
+        final int stride = SIDE_LENGTH / 8;
+        final byte[] tile = new byte[stride * SIDE_LENGTH];
+        for (int y = 0; y < SIDE_LENGTH; y++) {
+            Arrays.fill(tile, y * stride + stride / 2, (y + 1) * stride, (byte) 0xFF);
+        }
+        tile[50 * stride + 5] = 0x7F;
+        return tile;
+    }
+}
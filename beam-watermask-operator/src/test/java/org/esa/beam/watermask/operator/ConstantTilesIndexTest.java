@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ConstantTilesIndexTest {
+
+    private File zipFile;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        zipFile = File.createTempFile("watermask", ".zip");
+        indexFile = ConstantTilesIndex.getIndexFile(zipFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zipFile.delete();
+        indexFile.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        final byte[] tileValues = {
+                WatermaskClassifier.WATER_VALUE, ConstantTilesIndex.MIXED_TILE, WatermaskClassifier.LAND_VALUE,
+                ConstantTilesIndex.MIXED_TILE, (byte) WatermaskClassifier.INVALID_VALUE, WatermaskClassifier.WATER_VALUE
+        };
+        ConstantTilesIndex.write(indexFile, 3, 2, tileValues);
+
+        final ConstantTilesIndex index = ConstantTilesIndex.readIfExists(zipFile);
+        assertEquals(WatermaskClassifier.WATER_VALUE, index.getTileValue(0, 0));
+        assertEquals(ConstantTilesIndex.MIXED_TILE, index.getTileValue(1, 0));
+        assertEquals(WatermaskClassifier.LAND_VALUE, index.getTileValue(2, 0));
+        assertEquals(WatermaskClassifier.INVALID_VALUE, index.getTileValue(1, 1));
+        assertEquals(WatermaskClassifier.WATER_VALUE, index.getTileValue(2, 1));
+        // tiles outside of the index are read
+        assertEquals(ConstantTilesIndex.MIXED_TILE, index.getTileValue(3, 0));
+        assertEquals(ConstantTilesIndex.MIXED_TILE, index.getTileValue(0, -1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteWithWrongTileCount() throws Exception {
+        ConstantTilesIndex.write(indexFile, 3, 2, new byte[5]);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadInvalidFile() throws Exception {
+        final FileOutputStream outputStream = new FileOutputStream(indexFile);
+        try {
+            outputStream.write(new byte[20]);
+        } finally {
+            outputStream.close();
+        }
+        ConstantTilesIndex.readIfExists(zipFile);
+    }
+}
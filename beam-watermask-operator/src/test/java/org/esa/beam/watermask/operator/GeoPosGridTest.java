@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class GeoPosGridTest {
+
+    private static final float[] STEPS_3 = {1 / 6.0F, 3 / 6.0F, 5 / 6.0F};
+    private static final float[] STEPS_1 = {0.5F};
+
+    @Test
+    public void testExactWithoutGrid() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 0.0F);
+        final Rectangle rectangle = new Rectangle(5, 7, 4, 3);
+        final GeoPosGrid grid = new GeoPosGrid(geoCoding, rectangle, STEPS_3, STEPS_1, 1, 0.0);
+        final float[] lats = new float[12];
+        final float[] lons = new float[12];
+
+        grid.getRow(2, lats, lons);
+
+        assertEquals(10.0F - 0.01F * 9.5F, lats[0], 1.0e-5F);
+        assertEquals(20.0F + 0.01F * (5 + 1 / 6.0F), lons[0], 1.0e-5F);
+        assertEquals(20.0F + 0.01F * (8 + 5 / 6.0F), lons[11], 1.0e-5F);
+        assertEquals(12, geoCoding.callCount);
+    }
+
+    @Test
+    public void testInterpolationOfLinearGeoCoding() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 0.0F);
+        final Rectangle rectangle = new Rectangle(0, 0, 50, 40);
+        assertGridMatchesExact(geoCoding, rectangle, STEPS_3, STEPS_3, 16, 1.0e-4);
+        assertTrue(geoCoding.callCount < 150 * 120 / 10);
+    }
+
+    @Test
+    public void testInterpolationAcrossAntiMeridian() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(-20.0F, 179.8F, 0.01F, 0.0F);
+        final Rectangle rectangle = new Rectangle(0, 0, 64, 8);
+        final float[] lats = new float[64];
+        final float[] lons = new float[64];
+        final GeoPosGrid grid = new GeoPosGrid(geoCoding, rectangle, STEPS_1, STEPS_1, 16, 1.0e-4);
+
+        grid.getRow(0, lats, lons);
+
+        assertEquals(179.805F, lons[0], 1.0e-4F);
+        assertEquals(179.995F, lons[19], 1.0e-4F);
+        assertEquals(-179.995F, lons[20], 1.0e-4F);
+        assertEquals(-179.565F, lons[63], 1.0e-4F);
+    }
+
+    @Test
+    public void testFallbackToExactWhereErrorBoundIsExceeded() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 1.0e-4F);
+        final Rectangle rectangle = new Rectangle(0, 0, 40, 40);
+        assertGridMatchesExact(geoCoding, rectangle, STEPS_1, STEPS_1, 8, 1.0e-6);
+    }
+
+    @Test
+    public void testPartOfRow() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 1.0e-4F);
+        final Rectangle rectangle = new Rectangle(0, 0, 40, 40);
+        final GeoPosGrid grid = new GeoPosGrid(geoCoding, rectangle, STEPS_3, STEPS_1, 8, 1.0e-4);
+        final float[] lats = new float[120];
+        final float[] lons = new float[120];
+        final float[] partLats = new float[120];
+        final float[] partLons = new float[120];
+
+        for (int row = 0; row < 40; row += 13) {
+            grid.getRow(row, lats, lons);
+            grid.getRow(row, 7, 95, partLats, partLons);
+            for (int col = 0; col < 120; col++) {
+                assertEquals(col >= 7 && col < 95 ? lats[col] : 0.0F, partLats[col], 0.0F);
+                assertEquals(col >= 7 && col < 95 ? lons[col] : 0.0F, partLons[col], 0.0F);
+            }
+            Arrays.fill(partLats, 0.0F);
+            Arrays.fill(partLons, 0.0F);
+        }
+    }
+
+    @Test
+    public void testInvalidGeoPositionsAreNaN() throws Exception {
+        final TestGeoCoding geoCoding = new TestGeoCoding(10.0F, 20.0F, 0.01F, 0.0F);
+        geoCoding.invalidBelowX = 3;
+        final Rectangle rectangle = new Rectangle(0, 0, 20, 20);
+        final float[] lats = new float[20];
+        final float[] lons = new float[20];
+        final GeoPosGrid grid = new GeoPosGrid(geoCoding, rectangle, STEPS_1, STEPS_1, 8, 1.0e-4);
+
+        grid.getRow(5, lats, lons);
+
+        assertTrue(Float.isNaN(lats[0]));
+        assertTrue(Float.isNaN(lons[2]));
+        assertEquals(20.035F, lons[3], 1.0e-4F);
+        assertEquals(20.195F, lons[19], 1.0e-4F);
+    }
+
+    private static void assertGridMatchesExact(TestGeoCoding geoCoding, Rectangle rectangle, float[] stepsX,
+                                               float[] stepsY, int gridStep, double maxError) {
+        final int numSamplesX = rectangle.width * stepsX.length;
+        final int numSamplesY = rectangle.height * stepsY.length;
+        final float[] lats = new float[numSamplesX];
+        final float[] lons = new float[numSamplesX];
+        final float[] exactLats = new float[numSamplesX];
+        final float[] exactLons = new float[numSamplesX];
+        final GeoPosGrid grid = new GeoPosGrid(geoCoding, rectangle, stepsX, stepsY, gridStep, maxError);
+        final TestGeoCoding exactGeoCoding = new TestGeoCoding(geoCoding);
+        final GeoPosGrid exactGrid = new GeoPosGrid(exactGeoCoding, rectangle, stepsX, stepsY, 1, 0.0);
+        for (int row = 0; row < numSamplesY; row++) {
+            grid.getRow(row, lats, lons);
+            exactGrid.getRow(row, exactLats, exactLons);
+            for (int col = 0; col < numSamplesX; col++) {
+                assertEquals(exactLats[col], lats[col], 2 * maxError);
+                assertEquals(exactLons[col], lons[col], 2 * maxError);
+            }
+        }
+    }
+}
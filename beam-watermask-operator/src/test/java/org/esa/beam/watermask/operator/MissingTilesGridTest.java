@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class MissingTilesGridTest {
+
+    @Test
+    public void testTileValues() throws Exception {
+        final MissingTilesGrid grid = MissingTilesGrid.getInstance();
+        // e073n34
+        assertEquals(WatermaskClassifier.LAND_VALUE, grid.getTileValue(253, 55));
+        // w001s01
+        assertEquals(WatermaskClassifier.WATER_VALUE, grid.getTileValue(179, 90));
+        // e010n50
+        assertEquals(MissingTilesGrid.EXISTING_TILE, grid.getTileValue(190, 39));
+        // w180n89 and e179s90
+        assertEquals(WatermaskClassifier.INVALID_VALUE, grid.getTileValue(0, 0));
+        assertEquals(WatermaskClassifier.INVALID_VALUE, grid.getTileValue(359, 179));
+    }
+
+    @Test
+    public void testGridMatchesProperties() throws Exception {
+        final Properties properties = new Properties();
+        final InputStream inputStream = getClass().getResourceAsStream("MissingTiles.properties");
+        try {
+            properties.load(inputStream);
+        } finally {
+            inputStream.close();
+        }
+        final MissingTilesGrid grid = MissingTilesGrid.getInstance();
+        int missingTileCount = 0;
+        for (int tileY = 0; tileY < MissingTilesGrid.NUM_TILES_Y; tileY++) {
+            for (int tileX = 0; tileX < MissingTilesGrid.NUM_TILES_X; tileX++) {
+                final String imgFileName = WatermaskUtils.createImgFileName(89 - tileY, tileX - 180);
+                final String value = properties.getProperty(imgFileName.substring(0, imgFileName.indexOf('.')));
+                if (value != null) {
+                    assertEquals(imgFileName, Integer.parseInt(value), grid.getTileValue(tileX, tileY));
+                    missingTileCount++;
+                } else {
+                    assertEquals(imgFileName, MissingTilesGrid.EXISTING_TILE, grid.getTileValue(tileX, tileY));
+                }
+            }
+        }
+        assertEquals(properties.size(), missingTileCount);
+    }
+}
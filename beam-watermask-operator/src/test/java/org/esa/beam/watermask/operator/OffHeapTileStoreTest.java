@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class OffHeapTileStoreTest {
+
+    private static final int TILE_LENGTH = 16;
+
+    private int loadCount;
+
+    @Test
+    public void testTilesAreLoadedOnceAndKeptOffHeap() throws Exception {
+        final OffHeapTileStore store = new OffHeapTileStore(TILE_LENGTH, 2 * TILE_LENGTH, new CountingLoader());
+
+        final ByteBuffer tile = store.acquire(3, 4);
+        assertTrue(tile.isDirect());
+        assertEquals(7, tile.get(0));
+        assertEquals(7, tile.get(TILE_LENGTH - 1));
+        store.release(3, 4);
+        store.acquire(3, 4);
+        store.release(3, 4);
+
+        assertEquals(1, loadCount);
+        assertEquals(1, store.getHitCount());
+        assertEquals(1, store.getMissCount());
+        assertEquals(TILE_LENGTH, store.getMemoryUsage());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSlotIsReused() throws Exception {
+        final OffHeapTileStore store = new OffHeapTileStore(TILE_LENGTH, 2 * TILE_LENGTH, new CountingLoader());
+        acquireAndRelease(store, 0, 0);
+        acquireAndRelease(store, 1, 0);
+        acquireAndRelease(store, 0, 0);
+        acquireAndRelease(store, 2, 0);
+
+        assertEquals(2, store.getTileCount());
+        assertEquals(2 * TILE_LENGTH, store.getMemoryUsage());
+        acquireAndRelease(store, 0, 0);
+        assertEquals(3, loadCount);
+        acquireAndRelease(store, 1, 0);
+        assertEquals(4, loadCount);
+    }
+
+    @Test
+    public void testAcquiredTilesAreNotReplaced() throws Exception {
+        final OffHeapTileStore store = new OffHeapTileStore(TILE_LENGTH, TILE_LENGTH, new CountingLoader());
+        final ByteBuffer tile = store.acquire(1, 1);
+
+        assertNull(store.acquire(2, 1));
+        assertEquals(2, tile.get(0));
+
+        store.release(1, 1);
+        assertNotNull(store.acquire(2, 1));
+    }
+
+    @Test
+    public void testIncompleteTileIsNotKept() throws Exception {
+        final OffHeapTileStore.TileLoader loader = new OffHeapTileStore.TileLoader() {
+            @Override
+            public void loadTile(int tileX, int tileY, ByteBuffer target) {
+                loadCount++;
+                // the first attempt ends early
+                final int length = loadCount == 1 ? 1 : target.remaining();
+                for (int i = 0; i < length; i++) {
+                    target.put((byte) 1);
+                }
+            }
+        };
+        final OffHeapTileStore store = new OffHeapTileStore(TILE_LENGTH, TILE_LENGTH, loader);
+        try {
+            store.acquire(0, 0);
+            fail();
+        } catch (IOException expected) {
+            // expected
+        }
+        assertEquals(0, store.getTileCount());
+
+        // the slot is free again
+        assertNotNull(store.acquire(0, 0));
+        assertEquals(1, store.getTileCount());
+    }
+
+    @Test
+    public void testInterruptedWaitingThreadUnpinsSlot() throws Exception {
+        final CountDownLatch loadStarted = new CountDownLatch(1);
+        final CountDownLatch loadAllowed = new CountDownLatch(1);
+        final OffHeapTileStore.TileLoader loader = new OffHeapTileStore.TileLoader() {
+            @Override
+            public void loadTile(int tileX, int tileY, ByteBuffer target) throws IOException {
+                loadStarted.countDown();
+                try {
+                    loadAllowed.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                while (target.hasRemaining()) {
+                    target.put((byte) 1);
+                }
+            }
+        };
+        final OffHeapTileStore store = new OffHeapTileStore(TILE_LENGTH, TILE_LENGTH, loader);
+        final Thread loadingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.acquire(0, 0);
+                    store.release(0, 0);
+                } catch (IOException ignored) {
+                    // checked by acquiring the slot below
+                }
+            }
+        });
+        loadingThread.start();
+        loadStarted.await();
+
+        final AtomicReference<Throwable> waitingFailure = new AtomicReference<Throwable>();
+        final Thread waitingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store.acquire(0, 0);
+                } catch (Throwable t) {
+                    waitingFailure.set(t);
+                }
+            }
+        });
+        waitingThread.start();
+        while (waitingThread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        waitingThread.interrupt();
+        waitingThread.join();
+        assertTrue(waitingFailure.get() instanceof IOException);
+
+        loadAllowed.countDown();
+        loadingThread.join();
+
+        // the only slot is neither pinned by the loading nor by the interrupted thread
+        assertNotNull(store.acquire(1, 0));
+    }
+
+    private static void acquireAndRelease(OffHeapTileStore store, int tileX, int tileY) throws IOException {
+        assertNotNull(store.acquire(tileX, tileY));
+        store.release(tileX, tileY);
+    }
+
+    private class CountingLoader implements OffHeapTileStore.TileLoader {
+
+        @Override
+        public void loadTile(int tileX, int tileY, ByteBuffer target) {
+            loadCount++;
+            while (target.hasRemaining()) {
+                target.put((byte) (tileX + tileY));
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.esa.beam.framework.dataop.maptransf.Datum;
+import org.esa.beam.framework.datamodel.GeoCoding;
+import org.esa.beam.framework.datamodel.GeoPos;
+import org.esa.beam.framework.datamodel.PixelPos;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+/**
+ * A geo-coding with constant pixel size, optionally bending the longitudes quadratically with the row, and with
+ * invalid geo-positions left of a given column. Counts its calls.
+ */
+class TestGeoCoding implements GeoCoding {
+
+    private final float lat0;
+    private final float lon0;
+    private final float pixelSize;
+    private final float curvature;
+    int invalidBelowX;
+    int callCount;
+
+    TestGeoCoding(float lat0, float lon0, float pixelSize, float curvature) {
+        this.lat0 = lat0;
+        this.lon0 = lon0;
+        this.pixelSize = pixelSize;
+        this.curvature = curvature;
+    }
+
+    TestGeoCoding(TestGeoCoding other) {
+        this(other.lat0, other.lon0, other.pixelSize, other.curvature);
+    }
+
+    @Override
+    public GeoPos getGeoPos(PixelPos pixelPos, GeoPos geoPos) {
+        callCount++;
+        if (pixelPos.x < invalidBelowX) {
+            geoPos.setInvalid();
+            return geoPos;
+        }
+        float lon = lon0 + pixelPos.x * pixelSize + curvature * pixelPos.y * pixelPos.y;
+        if (lon >= 180.0F) {
+            lon -= 360.0F;
+        }
+        geoPos.setLocation(lat0 - pixelPos.y * pixelSize, lon);
+        return geoPos;
+    }
+
+    @Override
+    public boolean isCrossingMeridianAt180() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetPixelPos() {
+        return false;
+    }
+
+    @Override
+    public boolean canGetGeoPos() {
+        return true;
+    }
+
+    @Override
+    public PixelPos getPixelPos(GeoPos geoPos, PixelPos pixelPos) {
+        return null;
+    }
+
+    @Override
+    public Datum getDatum() {
+        return null;
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    @Override
+    public CoordinateReferenceSystem getImageCRS() {
+        return null;
+    }
+
+    @Override
+    public CoordinateReferenceSystem getMapCRS() {
+        return null;
+    }
+
+    @Override
+    public CoordinateReferenceSystem getGeoCRS() {
+        return null;
+    }
+
+    @Override
+    public MathTransform getImageToMapTransform() {
+        return null;
+    }
+}
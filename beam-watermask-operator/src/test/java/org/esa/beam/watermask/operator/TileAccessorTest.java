@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.awt.Point;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileAccessorTest {
+
+    @Test
+    public void testPackedRaster() throws Exception {
+        final MultiPixelPackedSampleModel sampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, 43, 17, 1);
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(216, 432));
+        fillRandomly(raster, 1);
+
+        final TileAccessor accessor = TileAccessor.create(raster);
+
+        assertTrue(accessor.isPacked());
+        assertSameSamples(raster, accessor);
+    }
+
+    @Test
+    public void testPackedRasterWithBufferOffset() throws Exception {
+        final MultiPixelPackedSampleModel sampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, 20, 5, 1,
+                                                                                        3, 3);
+        final DataBufferByte dataBuffer = new DataBufferByte(new byte[40], 15, 2);
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, new Point(8, 0));
+        fillRandomly(raster, 1);
+
+        assertSameSamples(raster, TileAccessor.create(raster));
+    }
+
+    @Test
+    public void testTranslatedChildOfByteRaster() throws Exception {
+        final PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, 30, 20,
+                                                                                        1, 30, new int[]{0});
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(0, 0));
+        fillRandomly(raster, 255);
+        final Raster child = raster.createTranslatedChild(576, 982);
+
+        final TileAccessor accessor = TileAccessor.create(child);
+
+        assertFalse(accessor.isPacked());
+        assertSameSamples(child, accessor);
+    }
+
+    @Test
+    public void testCountBits() throws Exception {
+        final MultiPixelPackedSampleModel sampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, 203, 3, 1,
+                                                                                        28, 5);
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(100, 50));
+        fillRandomly(raster, 1);
+        final TileAccessor accessor = TileAccessor.create(raster);
+
+        final Random random = new Random(7);
+        for (int i = 0; i < 500; i++) {
+            final int y = 50 + random.nextInt(3);
+            final int x = 100 + random.nextInt(203);
+            final int count = 1 + random.nextInt(303 - x);
+            int expected = 0;
+            for (int k = x; k < x + count; k++) {
+                expected += raster.getSample(k, y, 0);
+            }
+            assertEquals("x=" + x + ", count=" + count, expected, accessor.countBits(x, y, count));
+        }
+    }
+
+    @Test
+    public void testPackedDirectBuffer() throws Exception {
+        final MultiPixelPackedSampleModel sampleModel = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, 203, 3, 1);
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(406, 9));
+        fillRandomly(raster, 1);
+
+        final TileAccessor accessor = TileAccessor.create(copyToDirectBuffer(raster), sampleModel, 406, 9);
+
+        assertTrue(accessor.isPacked());
+        assertEquals(3 * 26, TileAccessor.getDataLength(sampleModel));
+        assertSameSamples(raster, accessor);
+        assertEquals(TileAccessor.create(raster).countBits(407, 10, 190), accessor.countBits(407, 10, 190));
+    }
+
+    @Test
+    public void testByteDirectBuffer() throws Exception {
+        final PixelInterleavedSampleModel sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, 30, 20,
+                                                                                        1, 30, new int[]{0});
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, new Point(60, 40));
+        fillRandomly(raster, 255);
+
+        final TileAccessor accessor = TileAccessor.create(copyToDirectBuffer(raster), sampleModel, 60, 40);
+
+        assertFalse(accessor.isPacked());
+        assertEquals(600, TileAccessor.getDataLength(sampleModel));
+        assertSameSamples(raster, accessor);
+    }
+
+    private static ByteBuffer copyToDirectBuffer(Raster raster) {
+        final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data);
+        return buffer;
+    }
+
+    private static void fillRandomly(WritableRaster raster, int maxValue) {
+        final Random random = new Random(42);
+        for (int y = raster.getMinY(); y < raster.getMinY() + raster.getHeight(); y++) {
+            for (int x = raster.getMinX(); x < raster.getMinX() + raster.getWidth(); x++) {
+                raster.setSample(x, y, 0, random.nextInt(maxValue + 1));
+            }
+        }
+    }
+
+    private static void assertSameSamples(Raster raster, TileAccessor accessor) {
+        for (int y = raster.getMinY(); y < raster.getMinY() + raster.getHeight(); y++) {
+            for (int x = raster.getMinX(); x < raster.getMinX() + raster.getWidth(); x++) {
+                assertEquals("x=" + x + ", y=" + y, raster.getSample(x, y, 0), accessor.getSample(x, y));
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TileCodecTest {
+
+    private static final String[] NAMES = {TileCodec.RAW, TileCodec.DEFLATE, TileCodec.LZ4, TileCodec.RLE};
+    private static final TileCodec INVERTING_CODEC = new InvertingCodec();
+
+    static {
+        TileCodec.register(INVERTING_CODEC);
+    }
+
+    @Test
+    public void testForName() throws Exception {
+        for (String name : NAMES) {
+            assertEquals(name, TileCodec.forName(name.toUpperCase()).getName());
+            assertSame(TileCodec.forName(name), TileCodec.forId(TileCodec.forName(name).getId()));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForUnknownName() throws Exception {
+        TileCodec.forName("zstd");
+    }
+
+    @Test
+    public void testRegister() throws Exception {
+        assertSame(INVERTING_CODEC, TileCodec.forName("INVERT"));
+        assertSame(INVERTING_CODEC, TileCodec.forId(100));
+        assertRoundTrip(INVERTING_CODEC, createMask(1000, 50), false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterTakenId() throws Exception {
+        TileCodec.register(new InvertingCodec() {
+            @Override
+            public String getName() {
+                return "other";
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterTakenName() throws Exception {
+        TileCodec.register(new InvertingCodec() {
+            @Override
+            public int getId() {
+                return 101;
+            }
+
+            @Override
+            public String getName() {
+                return TileCodec.RLE;
+            }
+        });
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String name : NAMES) {
+            final TileCodec codec = TileCodec.forName(name);
+            for (int length : new int[]{1, 12, 13, 1000, 100000}) {
+                assertRoundTrip(codec, createMask(length, 0), false);
+                assertRoundTrip(codec, createMask(length, 50), true);
+                assertRoundTrip(codec, createRandom(length), false);
+            }
+        }
+    }
+
+    @Test
+    public void testMasksAreCompressed() throws Exception {
+        final byte[] mask = createMask(100000, 50);
+        for (String name : new String[]{TileCodec.DEFLATE, TileCodec.LZ4, TileCodec.RLE}) {
+            assertTrue(name, TileCodec.forName(name).encode(mask).length < mask.length / 4);
+        }
+    }
+
+    @Test
+    public void testWrongLength() throws Exception {
+        for (String name : NAMES) {
+            final TileCodec codec = TileCodec.forName(name);
+            final byte[] encoded = codec.encode(createMask(1000, 50));
+            try {
+                codec.decode(ByteBuffer.wrap(encoded), ByteBuffer.allocate(999));
+                fail(name);
+            } catch (IOException expected) {
+                // expected
+            }
+            try {
+                codec.decode(ByteBuffer.wrap(encoded), ByteBuffer.allocate(1001));
+                fail(name);
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+
+    private static void assertRoundTrip(TileCodec codec, byte[] data, boolean direct) throws IOException {
+        final byte[] encoded = codec.encode(data);
+        final ByteBuffer target = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+        codec.decode(ByteBuffer.wrap(encoded), target);
+        assertFalse(target.hasRemaining());
+        final byte[] decoded = new byte[data.length];
+        target.flip();
+        target.get(decoded);
+        assertArrayEquals(codec.getName(), data, decoded);
+    }
+
+    /**
+     * Creates a packed mask of alternating land and water runs, with a coastline byte every {@code coastStep} bytes.
+     */
+    private static byte[] createMask(int length, int coastStep) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ((i / 300) % 2 == 0 ? 0x00 : 0xFF);
+            if (coastStep > 0 && i % coastStep == 0) {
+                data[i] = (byte) (i * 31);
+            }
+        }
+        return data;
+    }
+
+    private static byte[] createRandom(int length) {
+        final byte[] data = new byte[length];
+        new Random(5).nextBytes(data);
+        return data;
+    }
+
+    private static class InvertingCodec extends TileCodec {
+
+        @Override
+        public String getName() {
+            return "invert";
+        }
+
+        @Override
+        public int getId() {
+            return 100;
+        }
+
+        @Override
+        public byte[] encode(byte[] data) {
+            final byte[] encoded = new byte[data.length];
+            for (int i = 0; i < data.length; i++) {
+                encoded[i] = (byte) ~data[i];
+            }
+            return encoded;
+        }
+
+        @Override
+        public void decode(ByteBuffer source, ByteBuffer target) throws IOException {
+            if (source.remaining() != target.remaining()) {
+                throw new IOException("Encoded tile does not decode to the length of the tile.");
+            }
+            while (source.hasRemaining()) {
+                target.put((byte) ~source.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TileContainerTest {
+
+    private File zipFile;
+    private File containerFile;
+
+    @Before
+    public void setUp() throws Exception {
+        zipFile = File.createTempFile("watermask", ".zip");
+        containerFile = TileContainer.getContainerFile(zipFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        zipFile.delete();
+        containerFile.delete();
+    }
+
+    @Test
+    public void testWriteAndReadTiles() throws Exception {
+        final TileContainer.Writer writer = new TileContainer.Writer(containerFile, 3, 2);
+        writer.writeTile(2, 1, createData(100, 7));
+        writer.writeTile(0, 0, createData(100, 3));
+        writer.close();
+        assertEquals(3 * 4096, containerFile.length());
+
+        final TileContainer container = TileContainer.openIfExists(zipFile);
+        try {
+            assertTrue(container.hasTile(0, 0));
+            assertTrue(container.hasTile(2, 1));
+            assertFalse(container.hasTile(1, 0));
+            assertFalse(container.hasTile(3, 0));
+
+            final byte[] data = new byte[100];
+            container.readTile(2, 1, data);
+            assertArrayEquals(createData(100, 7), data);
+            container.readTile(0, 0, data);
+            assertArrayEquals(createData(100, 3), data);
+        } finally {
+            container.close();
+        }
+    }
+
+    @Test
+    public void testWriteAndReadEncodedTiles() throws Exception {
+        final TileContainer.Writer writer = new TileContainer.Writer(containerFile, 2, 1,
+                                                                     TileCodec.forName(TileCodec.RLE));
+        assertTrue(writer.writeTile(1, 0, new byte[1000]) < 1000);
+        writer.writeTile(0, 0, createData(100, 3));
+        writer.close();
+
+        final TileContainer container = TileContainer.openIfExists(zipFile);
+        try {
+            assertEquals(TileCodec.RLE, container.getCodec().getName());
+            assertFalse(container.isRaw());
+            final byte[] data = new byte[1000];
+            container.readTile(1, 0, data);
+            assertArrayEquals(new byte[1000], data);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+            container.readTile(0, 0, buffer);
+            assertEquals(100, buffer.position());
+            assertEquals(createData(100, 3)[99], buffer.get(99));
+        } finally {
+            container.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadTileWithWrongLength() throws Exception {
+        final TileContainer.Writer writer = new TileContainer.Writer(containerFile, 1, 1);
+        writer.writeTile(0, 0, createData(100, 1));
+        writer.close();
+
+        final TileContainer container = TileContainer.openIfExists(zipFile);
+        try {
+            container.readTile(0, 0, new byte[50]);
+        } finally {
+            container.close();
+        }
+    }
+
+    private static byte[] createData(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed);
+        }
+        return data;
+    }
+}
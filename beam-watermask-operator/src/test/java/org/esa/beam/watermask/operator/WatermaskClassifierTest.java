@@ -16,10 +16,14 @@
 
 package org.esa.beam.watermask.operator;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.net.URL;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -35,6 +39,11 @@ public class WatermaskClassifierTest {
         gcClassifier = new WatermaskClassifier(50);
     }
 
+    @After
+    public void tearDown() throws Exception {
+        gcClassifier.dispose();
+    }
+
     @Test
     public void testGetWatermaskSampleAboveSixtyGC() throws Exception {
         assertEquals(WatermaskClassifier.WATER_VALUE, gcClassifier.getWaterMaskSample(70.860277f, 29.205115f));
@@ -84,6 +93,132 @@ public class WatermaskClassifierTest {
         assertFalse(gcClassifier.isWater(-4.2652f, 11.49324f));
     }
 
+    @Test
+    public void testGetWaterMaskSamples() throws Exception {
+        // enough positions all over the globe to be split into parallel tasks
+        final int count = 3 * WatermaskClassifier.BULK_SPLIT_SIZE;
+        final float[] lats = new float[count];
+        final float[] lons = new float[count];
+        final Random random = new Random(5);
+        for (int i = 0; i < count; i++) {
+            lats[i] = -90.0f + 180.0f * random.nextFloat();
+            lons[i] = -180.0f + 360.0f * random.nextFloat();
+        }
+        lats[0] = 70.860277f;
+        lons[0] = 29.205115f;
+        lats[1] = Float.NaN;
+        lats[2] = 91.0f;
+
+        final byte[] samples = new byte[count];
+        gcClassifier.getWaterMaskSamples(lats, lons, samples);
+
+        assertEquals(WatermaskClassifier.WATER_VALUE, samples[0]);
+        assertEquals(WatermaskClassifier.INVALID_VALUE, samples[1]);
+        for (int i = 2; i < count; i++) {
+            assertEquals(gcClassifier.getWaterMaskSample(lats[i], lons[i]), samples[i]);
+        }
+    }
+
+    @Test
+    public void testAdaptiveSuperSampling() throws Exception {
+        final WatermaskClassifier classifier = new WatermaskClassifier(50, 10, 10);
+        final WatermaskClassifier adaptiveClassifier = new WatermaskClassifier(50, 10, 10, false, true);
+        final WatermaskClassifier edgeClassifier = new WatermaskClassifier(50, 2, 2);
+        final WatermaskClassifier adaptiveEdgeClassifier = new WatermaskClassifier(50, 2, 2, false, true);
+        final WatermaskMetrics metrics = WatermaskMetrics.getInstance();
+        metrics.reset();
+        metrics.setEnabled(true);
+        try {
+            // the coast of Brittany and the open sea west of it, and the coast of the Barents Sea above 60° north
+            final float[][] origins = {{48.9f, -6.5f}, {71.0f, 28.9f}};
+            final Rectangle rectangle = new Rectangle(0, 0, 80, 40);
+            for (float[] origin : origins) {
+                final AffineTransform imageToGeo = new AffineTransform(0.01, 0.0, 0.0, -0.01, origin[1], origin[0]);
+                final byte[] expected = new byte[rectangle.width * rectangle.height];
+                final byte[] actual = new byte[expected.length];
+                classifier.getWaterMaskFractions(imageToGeo, rectangle, expected);
+                adaptiveClassifier.getWaterMaskFractions(imageToGeo, rectangle, actual);
+                assertArrayEquals(expected, actual);
+
+                final TestGeoCoding geoCoding = new TestGeoCoding(origin[0], origin[1], 0.01F, 0.0F);
+                classifier.getWaterMaskFractions(geoCoding, rectangle, expected);
+                adaptiveClassifier.getWaterMaskFractions(geoCoding, rectangle, actual);
+                assertArrayEquals(expected, actual);
+                classifier.getWaterMaskFractions(geoCoding, rectangle, 4, 0.5, expected);
+                adaptiveClassifier.getWaterMaskFractions(geoCoding, rectangle, 4, 0.5, actual);
+                assertArrayEquals(expected, actual);
+            }
+            final long refinedCount = metrics.getRefinedPixelCount();
+            assertTrue(refinedCount > 0);
+            assertTrue(refinedCount < 3 * 2 * rectangle.width * rectangle.height);
+
+            // the 50 m auxdata pixels have edges at every 1/8 degree, where the corner super-samples of 1/2 degree
+            // pixels super-sampled 2 x 2 lie exactly
+            final Rectangle edgeRectangle = new Rectangle(0, 0, 40, 20);
+            for (float[] origin : new float[][]{{50.0f, -10.0f}, {72.0f, 10.0f}}) {
+                final AffineTransform imageToGeo = new AffineTransform(0.5, 0.0, 0.0, -0.5, origin[1], origin[0]);
+                final byte[] expected = new byte[edgeRectangle.width * edgeRectangle.height];
+                final byte[] actual = new byte[expected.length];
+                edgeClassifier.getWaterMaskFractions(imageToGeo, edgeRectangle, expected);
+                adaptiveEdgeClassifier.getWaterMaskFractions(imageToGeo, edgeRectangle, actual);
+                assertArrayEquals(expected, actual);
+            }
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+            classifier.dispose();
+            adaptiveClassifier.dispose();
+            edgeClassifier.dispose();
+            adaptiveEdgeClassifier.dispose();
+        }
+    }
+
+    @Test
+    public void testExactWaterMaskFractions() throws Exception {
+        final WatermaskClassifier classifier = new WatermaskClassifier(50, 20, 20);
+        try {
+            // the coast of Brittany and the open sea west of it, and the coast of the Barents Sea above 60° north
+            final float[][] origins = {{48.9f, -6.5f}, {71.0f, 28.9f}};
+            final Rectangle rectangle = new Rectangle(0, 0, 80, 40);
+            for (float[] origin : origins) {
+                final AffineTransform imageToGeo = new AffineTransform(0.01, 0.0, 0.0, -0.01, origin[1], origin[0]);
+                final byte[] superSampled = new byte[rectangle.width * rectangle.height];
+                final byte[] exact = new byte[superSampled.length];
+                classifier.getWaterMaskFractions(imageToGeo, rectangle, superSampled);
+                classifier.getExactWaterMaskFractions(imageToGeo, rectangle, exact);
+                long differenceSum = 0;
+                for (int i = 0; i < exact.length; i++) {
+                    assertTrue(exact[i] >= 0 && exact[i] <= 100);
+                    differenceSum += Math.abs(exact[i] - superSampled[i]);
+                }
+                // 20 x 20 sub-samples approximate the share of the about 22 x 22 auxdata pixels of a pixel
+                assertTrue(differenceSum < 3 * exact.length);
+
+                final byte[] geoCoded = new byte[exact.length];
+                classifier.getExactWaterMaskFractions(new TestGeoCoding(origin[0], origin[1], 0.01F, 0.0F), rectangle,
+                                                      geoCoded);
+                for (int i = 0; i < exact.length; i++) {
+                    assertEquals(exact[i], geoCoded[i], 1);
+                }
+            }
+
+            // pixels with an invalid corner are sub-sampled
+            final TestGeoCoding geoCoding = new TestGeoCoding(48.9f, -6.5f, 0.01F, 0.0F);
+            geoCoding.invalidBelowX = 5;
+            final byte[] fractions = new byte[rectangle.width * rectangle.height];
+            classifier.getExactWaterMaskFractions(geoCoding, rectangle, fractions);
+            assertEquals(WatermaskClassifier.INVALID_VALUE, fractions[4]);
+            assertEquals(100, fractions[5]);
+        } finally {
+            classifier.dispose();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetWaterMaskSamplesWithTooFewLongitudes() throws Exception {
+        gcClassifier.getWaterMaskSamples(new float[3], new float[2], new byte[3]);
+    }
+
     @Test
     public void testGetZipfile() throws Exception {
         // north-west
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class WatermaskMetricsTest {
+
+    private WatermaskMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = WatermaskMetrics.getInstance();
+        metrics.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        metrics.setEnabled(false);
+        metrics.reset();
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        assertFalse(metrics.isEnabled());
+        assertNull(WatermaskMetrics.getActive());
+
+        metrics.setEnabled(true);
+
+        assertSame(metrics, WatermaskMetrics.getActive());
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        metrics.targetTileComputed(new Rectangle(0, 0, 10, 10), 2000000);
+        metrics.targetTileComputed(new Rectangle(10, 0, 10, 10), 4000000);
+        metrics.targetTileSkipped(new Rectangle(10, 0, 10, 10));
+        metrics.samplesEvaluated(100);
+        metrics.pixelsRefined(3);
+        metrics.auxdataTileRead("50m.zip", 190, 35, 616050);
+        metrics.auxdataTileRead("50m.zip", 191, 35, 616050);
+        metrics.auxdataTileRead("GC_water_mask.zip", 100, 10, 0);
+        metrics.constantTileServed("50m.zip", 100, 35);
+
+        assertEquals(2, metrics.getTargetTileCount());
+        assertEquals(3.0, metrics.getTargetTileMeanMillis(), 1.0e-9);
+        assertEquals(1, metrics.getSkippedTargetTileCount());
+        assertEquals(100, metrics.getSampleCount());
+        assertEquals(3, metrics.getRefinedPixelCount());
+        assertEquals(2L, metrics.getAuxdataTilesRead().get("50m.zip").longValue());
+        assertEquals(1L, metrics.getAuxdataTilesRead().get("GC_water_mask.zip").longValue());
+        assertEquals(1232100L, metrics.getBytesInflated().get("50m.zip").longValue());
+        assertEquals(1L, metrics.getConstantTilesServed().get("50m.zip").longValue());
+
+        metrics.reset();
+
+        assertEquals(0, metrics.getTargetTileCount());
+        assertTrue(metrics.getAuxdataTilesRead().isEmpty());
+    }
+
+    @Test
+    public void testLatencyHistogram() throws Exception {
+        metrics.auxdataTileComputed("SRTMOpImage", 0, 0, 500);
+        metrics.auxdataTileComputed("SRTMOpImage", 0, 0, 3000);
+        metrics.auxdataTileComputed("SRTMOpImage", 0, 0, 3500000);
+        metrics.auxdataTileComputed("PNGSourceImage", 0, 0, 100L * 1000000000L);
+
+        final long[] srtmCounts = metrics.getComputeTileLatencyHistograms().get("SRTMOpImage");
+        final long[] limits = metrics.getLatencyBucketLimitsMicros();
+        assertEquals(limits.length, srtmCounts.length);
+        assertEquals(1, srtmCounts[0]);
+        assertEquals(1, srtmCounts[2]);
+        // 3500 µs lie between 2048 and 4096 µs
+        assertEquals(4096, limits[12]);
+        assertEquals(1, srtmCounts[12]);
+        final long[] pngCounts = metrics.getComputeTileLatencyHistograms().get("PNGSourceImage");
+        assertEquals(1, pngCounts[pngCounts.length - 1]);
+        assertEquals(Long.MAX_VALUE, limits[limits.length - 1]);
+    }
+
+    @Test
+    public void testListener() throws Exception {
+        final CountingListener listener = new CountingListener();
+        metrics.addListener(listener);
+        try {
+            metrics.samplesEvaluated(42);
+            metrics.auxdataTileRead("150m.zip", 1, 2, 100);
+        } finally {
+            metrics.removeListener(listener);
+        }
+        metrics.samplesEvaluated(1);
+
+        assertEquals(42, listener.sampleCount);
+        assertEquals(100, listener.inflatedByteCount);
+    }
+
+    @Test
+    public void testRegisteredAsMXBean() throws Exception {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(WatermaskMetrics.OBJECT_NAME);
+        metrics.samplesEvaluated(7);
+
+        assertTrue(server.isRegistered(name));
+        assertEquals(7L, server.getAttribute(name, "SampleCount"));
+        assertEquals(Boolean.FALSE, server.getAttribute(name, "Enabled"));
+    }
+
+    private static class CountingListener implements WatermaskMetrics.Listener {
+
+        private long sampleCount;
+        private long inflatedByteCount;
+
+        @Override
+        public void targetTileComputed(Rectangle rectangle, long nanos) {
+        }
+
+        @Override
+        public void targetTileSkipped(Rectangle rectangle) {
+        }
+
+        @Override
+        public void samplesEvaluated(long count) {
+            sampleCount += count;
+        }
+
+        @Override
+        public void pixelsRefined(long count) {
+        }
+
+        @Override
+        public void auxdataTileRead(String source, int tileX, int tileY, long inflatedByteCount) {
+            this.inflatedByteCount += inflatedByteCount;
+        }
+
+        @Override
+        public void constantTileServed(String source, int tileX, int tileY) {
+        }
+
+        @Override
+        public void auxdataTileComputed(String imageType, int tileX, int tileY, long nanos) {
+        }
+
+        @Override
+        public void auxdataCacheAccessed(boolean hit) {
+        }
+    }
+}
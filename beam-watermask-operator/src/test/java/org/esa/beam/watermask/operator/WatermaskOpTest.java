@@ -17,6 +17,7 @@
 package org.esa.beam.watermask.operator;
 
 import org.esa.beam.framework.datamodel.Band;
+import org.esa.beam.framework.datamodel.CrsGeoCoding;
 import org.esa.beam.framework.datamodel.GeoCoding;
 import org.esa.beam.framework.datamodel.GeoPos;
 import org.esa.beam.framework.datamodel.PixelPos;
@@ -24,11 +25,14 @@ import org.esa.beam.framework.datamodel.Product;
 import org.esa.beam.framework.dataop.maptransf.Datum;
 import org.esa.beam.framework.gpf.GPF;
 import org.esa.beam.framework.gpf.OperatorSpi;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.junit.Before;
 import org.junit.Test;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -70,6 +74,90 @@ public class WatermaskOpTest {
         assertEquals(0, sample);
     }
 
+    @Test
+    public void testSouthOfCoverage() throws Exception {
+        sourceProduct.setGeoCoding(new TestGeoCoding(-70.0F, 10.0F, 0.01F, 0.0F));
+        final WatermaskMetrics metrics = WatermaskMetrics.getInstance();
+        metrics.reset();
+        metrics.setEnabled(true);
+        try {
+            Product lwProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(WatermaskOp.class), parameters,
+                                                  sourceProduct);
+            Band band = lwProduct.getBand("land_water_fraction");
+            byte sample = (byte) band.getSourceImage().getData().getSample(0, 0, 0);
+            assertEquals(WatermaskClassifier.INVALID_VALUE, sample);
+            assertEquals(1, metrics.getSkippedTargetTileCount());
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+        }
+    }
+
+    @Test
+    public void testDegreeAlignedTileInMissingCellIsSkipped() throws Exception {
+        // the 1° cell north of 60° south, a missing SRTM tile of the Southern Ocean bordering on the invalid region
+        final AffineTransform imageToMap = new AffineTransform(1.0 / 120, 0.0, 0.0, -1.0 / 120, 0.0, -59.0);
+        sourceProduct = new Product("aligned", "type", 120, 120);
+        sourceProduct.setGeoCoding(new CrsGeoCoding(DefaultGeographicCRS.WGS84, new Rectangle(120, 120),
+                                                    imageToMap));
+        final WatermaskMetrics metrics = WatermaskMetrics.getInstance();
+        metrics.reset();
+        metrics.setEnabled(true);
+        try {
+            Product lwProduct = GPF.createProduct(OperatorSpi.getOperatorAlias(WatermaskOp.class), parameters,
+                                                  sourceProduct);
+            lwProduct.getBand("land_water_fraction").getSourceImage().getData();
+            assertEquals(1, metrics.getTargetTileCount());
+            assertEquals(1, metrics.getSkippedTargetTileCount());
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+        }
+    }
+
+    @Test
+    public void testComputeGeoBounds() throws Exception {
+        final Rectangle rectangle = new Rectangle(10, 20, 40, 30);
+        final AffineTransform imageToGeo = new AffineTransform(0.5, 0.0, 0.0, -0.5, 170.0, 50.0);
+        // crosses the antimeridian
+        assertArrayEquals(new float[]{40.0f, 25.0f, 175.0f, -165.0f}, WatermaskOp.computeGeoBounds(imageToGeo,
+                                                                                                  rectangle), 1.0e-4f);
+        // the edges of a degree-aligned rectangle are whole degrees despite rounding errors
+        final AffineTransform alignedImageToGeo = new AffineTransform(1.0 / 120, 0.0, 0.0, -1.0 / 120, -179.0, 61.0);
+        final float[] alignedBounds = WatermaskOp.computeGeoBounds(alignedImageToGeo,
+                                                                   new Rectangle(120, 120, 120, 120));
+        assertArrayEquals(new float[]{60.0f, 59.0f, -178.0f, -177.0f}, alignedBounds, 0.0f);
+
+        // padded by the largest step between the outline positions, 16 * 0.01 degrees
+        final float[] bounds = WatermaskOp.computeGeoBounds(new TestGeoCoding(50.0F, -10.0F, 0.01F, 0.0F), rectangle);
+        assertArrayEquals(new float[]{49.96f, 49.34f, -10.06f, -9.34f}, bounds, 1.0e-4f);
+
+        final TestGeoCoding invalidGeoCoding = new TestGeoCoding(50.0F, -10.0F, 0.01F, 0.0F);
+        invalidGeoCoding.invalidBelowX = 11;
+        assertNull(WatermaskOp.computeGeoBounds(invalidGeoCoding, rectangle));
+    }
+
+    @Test
+    public void testToGeoBounds() throws Exception {
+        assertArrayEquals(new float[]{10.0f, -10.0f, 20.0f, 30.0f},
+                          WatermaskOp.toGeoBounds(-10.0f, 10.0f, 20.0f, 30.0f), 1.0e-4f);
+        assertArrayEquals(new float[]{10.0f, -10.0f, 170.0f, -170.0f},
+                          WatermaskOp.toGeoBounds(-10.0f, 10.0f, -190.0f, -170.0f), 1.0e-4f);
+        assertArrayEquals(new float[]{10.0f, -10.0f, -180.0f, 180.0f},
+                          WatermaskOp.toGeoBounds(-10.0f, 10.0f, 180.0f, 540.0f - 1.0e-3f), 1.0e-2f);
+        assertNull(WatermaskOp.toGeoBounds(-10.0f, 10.0f, -180.0f, 180.0f));
+    }
+
+    @Test
+    public void testComputeDegreeAlignedTileSize() throws Exception {
+        assertEquals(480, WatermaskOp.computeDegreeAlignedTileSize(1.0 / 120, -180.0));
+        assertEquals(480, WatermaskOp.computeDegreeAlignedTileSize(-1.0 / 120, 90.0));
+        assertEquals(512, WatermaskOp.computeDegreeAlignedTileSize(1.0, 10.0));
+        assertEquals(-1, WatermaskOp.computeDegreeAlignedTileSize(1.0 / 120, -179.5));
+        assertEquals(-1, WatermaskOp.computeDegreeAlignedTileSize(0.3, 0.0));
+        assertEquals(-1, WatermaskOp.computeDegreeAlignedTileSize(1.0 / 2216, 0.0));
+    }
+
     private static class MyGeoCoding implements GeoCoding {
 
         @Override
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.operator;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class WatermaskUtilsTest {
+
+    @Test
+    public void testGetSiblingFile() throws Exception {
+        assertEquals(new File("auxdata", "50m.tiles"), WatermaskUtils.getSiblingFile(new File("auxdata", "50m.zip"),
+                                                                                     ".tiles"));
+        assertEquals(new File("auxdata", "GC_water_mask.constant"),
+                     WatermaskUtils.getSiblingFile(new File("auxdata", "GC_water_mask.zip"), ".constant"));
+        assertEquals(new File("auxdata", "50m.summary"), WatermaskUtils.getSiblingFile(new File("auxdata", "50m"),
+                                                                                       ".summary"));
+
+        assertEquals(new File("auxdata", "50m.tiles"), TileContainer.getContainerFile(new File("auxdata", "50m.zip")));
+        assertEquals(new File("auxdata", "50m.blocks"),
+                     BlockContainer.getContainerFile(new File("auxdata", "50m.zip")));
+        assertEquals(new File("auxdata", "50m.summary"),
+                     BlockSummaryIndex.getIndexFile(new File("auxdata", "50m.zip")));
+        assertEquals(new File("auxdata", "GC_water_mask.constant"),
+                     ConstantTilesIndex.getIndexFile(new File("auxdata", "GC_water_mask.zip")));
+    }
+
+    @Test
+    public void testGetExistingSiblingFile() throws Exception {
+        final File zipFile = File.createTempFile("watermask", ".zip");
+        final File siblingFile = WatermaskUtils.getSiblingFile(zipFile, ".tiles");
+        try {
+            assertNull(WatermaskUtils.getExistingSiblingFile(zipFile, ".tiles"));
+            assertNull(TileContainer.openIfExists(zipFile));
+            assertNull(BlockContainer.openIfExists(zipFile));
+            assertNull(BlockSummaryIndex.openIfExists(zipFile));
+            assertNull(ConstantTilesIndex.readIfExists(zipFile));
+
+            assertTrue(siblingFile.mkdir());
+            assertNull(WatermaskUtils.getExistingSiblingFile(zipFile, ".tiles"));
+            assertTrue(siblingFile.delete());
+
+            assertTrue(siblingFile.createNewFile());
+            assertEquals(siblingFile, WatermaskUtils.getExistingSiblingFile(zipFile, ".tiles"));
+        } finally {
+            siblingFile.delete();
+            zipFile.delete();
+        }
+    }
+
+    @Test
+    public void testComputeBlocksPerSide() throws Exception {
+        assertEquals(2, WatermaskUtils.computeBlocksPerSide(64, 32));
+        // the last block is clipped
+        assertEquals(3, WatermaskUtils.computeBlocksPerSide(40, 16));
+        assertEquals(1, WatermaskUtils.computeBlocksPerSide(8, 16));
+    }
+}
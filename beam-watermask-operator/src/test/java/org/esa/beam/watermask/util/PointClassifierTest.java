@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Brockmann Consult GmbH (info@brockmann-consult.de)
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 3 of the License, or (at your option)
+ * any later version.
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see http://www.gnu.org/licenses/
+ */
+
+package org.esa.beam.watermask.util;
+
+import org.esa.beam.watermask.operator.WatermaskClassifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+public class PointClassifierTest {
+
+    // three positions share a partition, so that its last chunk of two is short
+    private static final float[][] POSITIONS = {
+            {70.860277f, 29.205115f},
+            {72.791664f, 105.28333f},
+            {Float.NaN, 10.0f},
+            {70.853971f, 29.210610f},
+            {53.5f, 8.0f},
+            {70.5f, 25.9f},
+            {-33.9f, 18.4f},
+    };
+
+    private WatermaskClassifier classifier;
+    private File inputFile;
+    private File outputFile;
+
+    @Before
+    public void setUp() throws Exception {
+        classifier = new WatermaskClassifier(50);
+        inputFile = File.createTempFile("points", ".in");
+        outputFile = File.createTempFile("points", ".out");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        classifier.dispose();
+        inputFile.delete();
+        outputFile.delete();
+    }
+
+    @Test
+    public void testClassifyTextFile() throws Exception {
+        final Writer writer = new FileWriter(inputFile);
+        try {
+            writer.write("lat,lon\n");
+            writer.write("# a comment\n");
+            writer.write("\n");
+            for (float[] position : POSITIONS) {
+                writer.write(position[0] + "," + position[1] + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        PointClassifier.main(new String[]{"-threads", "2", "-chunkSize", "2",
+                inputFile.getPath(), outputFile.getPath()});
+
+        final BufferedReader reader = new BufferedReader(new FileReader(outputFile));
+        try {
+            for (float[] position : POSITIONS) {
+                assertEquals(Integer.toString(getExpectedSample(position)), reader.readLine());
+            }
+            assertNull(reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testClassifyBinaryFile() throws Exception {
+        final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(inputFile));
+        try {
+            for (float[] position : POSITIONS) {
+                outputStream.writeFloat(position[0]);
+                outputStream.writeFloat(position[1]);
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        PointClassifier.main(new String[]{"-binary", "-threads", "2", "-chunkSize", "2",
+                inputFile.getPath(), outputFile.getPath()});
+
+        final DataInputStream inputStream = new DataInputStream(new FileInputStream(outputFile));
+        try {
+            for (float[] position : POSITIONS) {
+                assertEquals(getExpectedSample(position), inputStream.read());
+            }
+            assertEquals(-1, inputStream.read());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBinaryFileEndingWithinPosition() throws Exception {
+        final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(inputFile));
+        try {
+            outputStream.writeFloat(POSITIONS[0][0]);
+            outputStream.writeFloat(POSITIONS[0][1]);
+            outputStream.writeFloat(POSITIONS[1][0]);
+            outputStream.writeShort(0);
+        } finally {
+            outputStream.close();
+        }
+
+        PointClassifier.main(new String[]{"-binary", inputFile.getPath(), outputFile.getPath()});
+    }
+
+    private int getExpectedSample(float[] position) {
+        if (Float.isNaN(position[0])) {
+            return WatermaskClassifier.INVALID_VALUE;
+        }
+        return classifier.getWaterMaskSample(position[0], position[1]);
+    }
+}